@@ -0,0 +1,96 @@
+package com.magnuswikhog.remotedb.benchmarks;
+
+import com.magnuswikhog.remotedb.codec.JsonEntryCodec;
+import com.magnuswikhog.remotedb.database.RawLocalEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The time to acknowledge a server response of N UUID's, which marks the entries as stored and
+ * releases the chunk's lease in a single transaction, like UploadEngine.markEntriesAsStored() does,
+ * compared to acknowledging the same chunk by sequence number. The table holds other entries as
+ * well, so that the UUID index has a realistic size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AckBenchmark {
+    private static final long LEASE_ID = 1;
+    private static final int OTHER_ENTRIES = 50000;
+
+    @Param({"100", "1000", "5000"})
+    public int uuidCount;
+
+    private BenchmarkDatabase mDb;
+    private List<String> mUuids;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mDb = new BenchmarkDatabase();
+        mUuids = new ArrayList<>();
+
+        JsonEntryCodec codec = new JsonEntryCodec();
+        byte[] storedEntry = codec.encode(BenchmarkEntries.create(BenchmarkEntries.Size.SMALL, 1));
+        RawLocalEntry[] batch = new RawLocalEntry[1000];
+        for (int added = 0; added < OTHER_ENTRIES + uuidCount; added += batch.length) {
+            int count = Math.min(batch.length, OTHER_ENTRIES + uuidCount - added);
+            RawLocalEntry[] entries = count == batch.length ? batch : new RawLocalEntry[count];
+            for (int i = 0; i < count; i++) {
+                String uuid = UUID.randomUUID().toString();
+                entries[i] = new RawLocalEntry("", 1, uuid, storedEntry);
+                // Acknowledge every n:th entry, so the UUID's are spread over the table
+                if( (added + i) % (OTHER_ENTRIES / uuidCount + 1) == 0 && mUuids.size() < uuidCount )
+                    mUuids.add(uuid);
+            }
+            mDb.insert(entries);
+        }
+        // Only the acknowledged entries are reset for each invocation
+        mDb.acknowledge(mUuids, false, 0);
+    }
+
+
+    /**
+     * Each ack is measured against unstored entries, leased like a chunk that was just sent.
+     */
+    @Setup(Level.Invocation)
+    public void resetBacklog() throws Exception {
+        mDb.resetBacklog(LEASE_ID);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mDb.close();
+    }
+
+
+    @Benchmark
+    public void acknowledge() throws Exception {
+        mDb.acknowledge(mUuids, false, LEASE_ID);
+    }
+
+
+    /**
+     * The same chunk, acknowledged with a compact "stored_through" response.
+     */
+    @Benchmark
+    public int acknowledgeThrough() throws Exception {
+        return mDb.acknowledgeThrough(LEASE_ID, Long.MAX_VALUE, new long[0], false);
+    }
+}
@@ -0,0 +1,135 @@
+package com.magnuswikhog.remotedb.benchmarks;
+
+import com.magnuswikhog.remotedb.RemoteDbExecutors;
+import com.magnuswikhog.remotedb.codec.EntryCodec;
+import com.magnuswikhog.remotedb.database.Converters;
+import com.magnuswikhog.remotedb.database.RawLocalEntry;
+import com.magnuswikhog.remotedb.engine.EngineEnvironment;
+import com.magnuswikhog.remotedb.engine.UploadEngine;
+import com.magnuswikhog.remotedb.upload.ContentEncoding;
+import com.magnuswikhog.remotedb.upload.HttpUrlConnectionTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The time for an UploadEngine to send a large backlog to an in-process HTTP server: lease each
+ * chunk, build and compress its request body, post it with HttpUrlConnectionTransport, parse the
+ * response and acknowledge the stored entries, with up to maxInFlight chunks sent at a time. This is
+ * the code that RemoteDb runs, without the Android scheduling overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class BacklogFlushBenchmark {
+    private static final String PASSWORD = "password";
+    /** The callbacks run on the request's thread, like those of the default transport. */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Param({"10000"})
+    public int backlogSize;
+
+    @Param({"100", "500"})
+    public int chunkSize;
+
+    @Param({"IDENTITY", "GZIP"})
+    public ContentEncoding encoding;
+
+    @Param({"JSON", "BINARY"})
+    public BenchmarkEntries.Codec codec;
+
+    @Param({"1", "4"})
+    public int maxInFlight;
+
+    private BenchmarkDatabase mDb;
+    private StubServer mServer;
+    private ExecutorService mIoExecutor;
+    private EngineEnvironment mEnvironment;
+    private UploadEngine mEngine;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        EntryCodec entryCodec = codec.create();
+        Converters.setEntryCodec(entryCodec);
+
+        mDb = new BenchmarkDatabase();
+        mServer = new StubServer(PASSWORD);
+        mIoExecutor = Executors.newFixedThreadPool(maxInFlight);
+        mEnvironment = new EngineEnvironment(mDb, RemoteDbExecutors.createDefault(),
+                new HttpUrlConnectionTransport(mIoExecutor, DIRECT_EXECUTOR, 15000));
+        mEnvironment.setMaxInFlightChunks(maxInFlight);
+        mEngine = new UploadEngine(mEnvironment, "", mServer.getStoreUrl(), PASSWORD, "device");
+        mEngine.setSendToServerEntryChunkSize(chunkSize);
+        mEngine.setMaxInFlightChunks(maxInFlight);
+        mEngine.setUploadCompression(encoding);
+
+        RawLocalEntry[] batch = new RawLocalEntry[1000];
+        for (int added = 0; added < backlogSize; added += batch.length) {
+            for (int i = 0; i < batch.length; i++)
+                batch[i] = new RawLocalEntry("", 1, UUID.randomUUID().toString(), entryCodec.encode(BenchmarkEntries.create(BenchmarkEntries.Size.MEDIUM, added + i)));
+            mDb.insert(batch);
+        }
+    }
+
+
+    /**
+     * Each iteration sends the whole backlog once.
+     */
+    @Setup(Level.Iteration)
+    public void resetBacklog() throws Exception {
+        mDb.resetBacklog(0);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mIoExecutor.shutdown();
+        mServer.close();
+        mDb.close();
+    }
+
+
+    @Benchmark
+    public long flush() throws Exception {
+        mEngine.sendToServer(false).get();
+        // The future completes when the first chunks have been handed to the transport
+        while( mEngine.isSending() )
+            Thread.sleep(1);
+        // The last acknowledgement is queued on the writer after the engine is done
+        mEnvironment.getExecutors().submitWrite(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+
+        long unstored = mDb.countUnstoredEntries("");
+        if( unstored != 0 )
+            throw new IllegalStateException(unstored + " entries weren't acknowledged");
+        return mDb.countEntries("");
+    }
+}
@@ -0,0 +1,457 @@
+package com.magnuswikhog.remotedb.benchmarks;
+
+import com.magnuswikhog.remotedb.database.EntryStore;
+import com.magnuswikhog.remotedb.database.RawLocalEntry;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The local entry table in a temporary file, opened with a host-side SQLite driver, with the
+ * schema, indices, count triggers and pragmas of LocalDatabase. Room and the Android SQLite classes
+ * aren't available on a plain JVM, so this is an {@link EntryStore} with the statements of
+ * LocalDatabase, LocalEntryDao and RoomEntryStore copied, which must be kept in sync with them.
+ * <p>
+ * There is a single connection, so all methods are synchronized, like SQLite serializes the writes
+ * of Room's connections.
+ */
+class BenchmarkDatabase implements EntryStore, Closeable {
+    /** See RoomEntryStore.ACK_BATCH_SIZE. */
+    private static final int ACK_BATCH_SIZE = 500;
+
+    private final File mFile;
+    private final Connection mConnection;
+    private final PreparedStatement mInsert;
+    private final PreparedStatement mSelectUnstored;
+    private final PreparedStatement mLease;
+    private final PreparedStatement mSelectLeased;
+    private final PreparedStatement mReleaseLease;
+    private final PreparedStatement mMarkLeasedAsStored;
+    private final PreparedStatement mDeleteLeased;
+    /** Statements that mark entries as stored, by the number of UUID's they bind. */
+    private final Map<Integer, PreparedStatement> mMarkAsStored = new HashMap<>();
+    /** Statements that delete entries, by the number of UUID's they bind. */
+    private final Map<Integer, PreparedStatement> mDeleteWithUuids = new HashMap<>();
+    /** Statements that take entries out of a lease, by the number of ids they bind. */
+    private final Map<Integer, PreparedStatement> mReleaseFromLease = new HashMap<>();
+
+
+    BenchmarkDatabase() throws IOException, SQLException {
+        mFile = File.createTempFile("remotedb-benchmark", ".db");
+        mConnection = DriverManager.getConnection("jdbc:sqlite:" + mFile.getPath());
+
+        Statement statement = mConnection.createStatement();
+        try {
+            // What LocalDatabaseConfig.createDefault() ends up with on most devices
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA synchronous=NORMAL");
+
+            statement.execute("CREATE TABLE remotedb_localentry (id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, stream TEXT NOT NULL, "
+                    + "priority INTEGER NOT NULL, uuid TEXT, entry BLOB, createdAt INTEGER NOT NULL, storedOnServer INTEGER NOT NULL, leaseId INTEGER NOT NULL)");
+            statement.execute("CREATE UNIQUE INDEX index_remotedb_localentry_uuid ON remotedb_localentry (uuid)");
+            statement.execute("CREATE INDEX index_remotedb_localentry_stream_storedOnServer_priority_id ON remotedb_localentry (stream, storedOnServer, priority, id)");
+            statement.execute("CREATE INDEX index_remotedb_localentry_leaseId ON remotedb_localentry (leaseId)");
+            statement.execute("CREATE INDEX index_remotedb_localentry_storedOnServer_id ON remotedb_localentry (storedOnServer, id)");
+            statement.execute("CREATE INDEX index_remotedb_localentry_createdAt ON remotedb_localentry (createdAt)");
+
+            statement.execute("CREATE TABLE remotedb_entrycount (stream TEXT NOT NULL, allCount INTEGER NOT NULL, unstoredCount INTEGER NOT NULL, PRIMARY KEY(stream))");
+            statement.execute("CREATE TRIGGER remotedb_entrycount_insert AFTER INSERT ON remotedb_localentry BEGIN "
+                    + "INSERT OR IGNORE INTO remotedb_entrycount (stream, allCount, unstoredCount) VALUES (NEW.stream, 0, 0); "
+                    + "UPDATE remotedb_entrycount SET allCount=allCount+1, unstoredCount=unstoredCount+(NEW.storedOnServer=0) WHERE stream=NEW.stream; "
+                    + "END");
+            statement.execute("CREATE TRIGGER remotedb_entrycount_delete AFTER DELETE ON remotedb_localentry BEGIN "
+                    + "UPDATE remotedb_entrycount SET allCount=allCount-1, unstoredCount=unstoredCount-(OLD.storedOnServer=0) WHERE stream=OLD.stream; "
+                    + "END");
+            statement.execute("CREATE TRIGGER remotedb_entrycount_update AFTER UPDATE OF storedOnServer ON remotedb_localentry "
+                    + "WHEN OLD.storedOnServer!=NEW.storedOnServer BEGIN "
+                    + "UPDATE remotedb_entrycount SET unstoredCount=unstoredCount+(NEW.storedOnServer=0)-(OLD.storedOnServer=0) WHERE stream=NEW.stream; "
+                    + "END");
+        }
+        finally {
+            statement.close();
+        }
+
+        mConnection.setAutoCommit(false);
+        mInsert = mConnection.prepareStatement(
+                "INSERT INTO remotedb_localentry (stream, priority, uuid, entry, createdAt, storedOnServer, leaseId) VALUES (?, ?, ?, ?, ?, 0, 0)");
+        mSelectUnstored = mConnection.prepareStatement(
+                "SELECT id, uuid, entry FROM remotedb_localentry WHERE stream=? AND storedOnServer=0 AND priority=? AND leaseId=0 AND id>? ORDER BY id LIMIT ?");
+        mLease = mConnection.prepareStatement(
+                "UPDATE remotedb_localentry SET leaseId=? WHERE stream=? AND storedOnServer=0 AND priority=? AND leaseId=0 AND id BETWEEN ? AND ?");
+        mSelectLeased = mConnection.prepareStatement(
+                "SELECT id, uuid, entry FROM remotedb_localentry WHERE storedOnServer=0 AND leaseId=? ORDER BY priority DESC, id");
+        mReleaseLease = mConnection.prepareStatement(
+                "UPDATE remotedb_localentry SET leaseId=0 WHERE leaseId=?");
+        mMarkLeasedAsStored = mConnection.prepareStatement(
+                "UPDATE remotedb_localentry SET storedOnServer=1 WHERE leaseId=? AND storedOnServer=0 AND id<=?");
+        mDeleteLeased = mConnection.prepareStatement(
+                "DELETE FROM remotedb_localentry WHERE leaseId=? AND storedOnServer=0 AND id<=?");
+    }
+
+
+    /**
+     * Inserts a batch of encoded entries in a single transaction, like LocalDatabase.insertRawEntries().
+     */
+    @Override
+    public synchronized void insert(RawLocalEntry[] entries) {
+        try {
+            long createdAt = System.currentTimeMillis();
+            for (RawLocalEntry entry : entries) {
+                mInsert.setString(1, entry.stream != null ? entry.stream : "");
+                mInsert.setInt(2, entry.priority);
+                mInsert.setString(3, entry.uuid);
+                mInsert.setBytes(4, entry.entry);
+                mInsert.setLong(5, createdAt);
+                mInsert.executeUpdate();
+            }
+            mConnection.commit();
+        }
+        catch (SQLException e) {
+            throw rollback(e);
+        }
+    }
+
+
+    @Override
+    public synchronized List<RawLocalEntry> leaseNextChunk(String stream, long[] lastSentIds, int[] priorityBudgets, int maxCount, long leaseId) {
+        try {
+            List<RawLocalEntry> chunk = new ArrayList<>();
+            for (int priority = lastSentIds.length - 1; priority >= 0 && chunk.size() < maxCount; priority--) {
+                int count = Math.min(maxCount - chunk.size(), priorityBudgets[priority]);
+                if( count <= 0 )
+                    continue;
+
+                mSelectUnstored.setString(1, stream);
+                mSelectUnstored.setInt(2, priority);
+                mSelectUnstored.setLong(3, lastSentIds[priority]);
+                mSelectUnstored.setInt(4, count);
+                List<RawLocalEntry> entries = readEntries(mSelectUnstored);
+                if( entries.isEmpty() )
+                    continue;
+
+                long lastId = entries.get(entries.size() - 1).id;
+                mLease.setLong(1, leaseId);
+                mLease.setString(2, stream);
+                mLease.setInt(3, priority);
+                mLease.setLong(4, entries.get(0).id);
+                mLease.setLong(5, lastId);
+                mLease.executeUpdate();
+                lastSentIds[priority] = lastId;
+                chunk.addAll(entries);
+            }
+            mConnection.commit();
+            return chunk;
+        }
+        catch (SQLException e) {
+            throw rollback(e);
+        }
+    }
+
+
+    @Override
+    public synchronized List<RawLocalEntry> getLeasedEntries(long leaseId) {
+        try {
+            mSelectLeased.setLong(1, leaseId);
+            List<RawLocalEntry> entries = readEntries(mSelectLeased);
+            mConnection.commit();
+            return entries;
+        }
+        catch (SQLException e) {
+            throw rollback(e);
+        }
+    }
+
+
+    /**
+     * Marks the entries as stored (or deletes them) and releases the lease in a single transaction,
+     * with the UUID's bound in batches, like RoomEntryStore.acknowledge().
+     */
+    @Override
+    public synchronized void acknowledge(List<String> uuids, boolean delete, long leaseId) {
+        try {
+            for (int offset = 0; offset < uuids.size(); offset += ACK_BATCH_SIZE) {
+                List<String> batch = uuids.subList(offset, Math.min(uuids.size(), offset + ACK_BATCH_SIZE));
+                PreparedStatement statement = delete
+                        ? getInStatement(mDeleteWithUuids, "DELETE FROM remotedb_localentry WHERE uuid IN (", batch.size())
+                        : getInStatement(mMarkAsStored, "UPDATE remotedb_localentry SET storedOnServer=1 WHERE uuid IN (", batch.size());
+                for (int i = 0; i < batch.size(); i++)
+                    statement.setString(i + 1, batch.get(i));
+                statement.executeUpdate();
+            }
+
+            if( leaseId != 0 ) {
+                mReleaseLease.setLong(1, leaseId);
+                mReleaseLease.executeUpdate();
+            }
+            mConnection.commit();
+        }
+        catch (SQLException e) {
+            throw rollback(e);
+        }
+    }
+
+
+    /**
+     * Acknowledges a chunk by sequence number, like RoomEntryStore.acknowledgeThrough().
+     */
+    @Override
+    public synchronized int acknowledgeThrough(long leaseId, long storedThroughId, long[] notStoredIds, boolean delete) {
+        try {
+            executeReleaseFromLease(leaseId, notStoredIds);
+
+            PreparedStatement acknowledge = delete ? mDeleteLeased : mMarkLeasedAsStored;
+            acknowledge.setLong(1, leaseId);
+            acknowledge.setLong(2, storedThroughId);
+            int count = acknowledge.executeUpdate();
+
+            mReleaseLease.setLong(1, leaseId);
+            mReleaseLease.executeUpdate();
+            mConnection.commit();
+            return count;
+        }
+        catch (SQLException e) {
+            throw rollback(e);
+        }
+    }
+
+
+    @Override
+    public synchronized void releaseLease(long leaseId) {
+        try {
+            mReleaseLease.setLong(1, leaseId);
+            mReleaseLease.executeUpdate();
+            mConnection.commit();
+        }
+        catch (SQLException e) {
+            throw rollback(e);
+        }
+    }
+
+
+    @Override
+    public synchronized void releaseFromLease(long leaseId, long[] ids) {
+        try {
+            executeReleaseFromLease(leaseId, ids);
+            mConnection.commit();
+        }
+        catch (SQLException e) {
+            throw rollback(e);
+        }
+    }
+
+
+    private void executeReleaseFromLease(long leaseId, long[] ids) throws SQLException {
+        for (int offset = 0; offset < ids.length; offset += ACK_BATCH_SIZE) {
+            int count = Math.min(ids.length - offset, ACK_BATCH_SIZE);
+            PreparedStatement statement = getInStatement(mReleaseFromLease, "UPDATE remotedb_localentry SET leaseId=0 WHERE leaseId=? AND id IN (", count);
+            statement.setLong(1, leaseId);
+            for (int i = 0; i < count; i++)
+                statement.setLong(i + 2, ids[offset + i]);
+            statement.executeUpdate();
+        }
+    }
+
+
+    @Override
+    public synchronized long getMaxLeaseId() {
+        return queryCount("SELECT IFNULL(MAX(leaseId), 0) FROM remotedb_localentry");
+    }
+
+
+    @Override
+    public synchronized void releaseAllLeases() {
+        execute("UPDATE remotedb_localentry SET leaseId=0 WHERE leaseId>0");
+    }
+
+
+    @Override
+    public synchronized void quarantine(long leaseId) {
+        execute("UPDATE remotedb_localentry SET leaseId=" + QUARANTINED_LEASE_ID + " WHERE leaseId=" + leaseId + " AND storedOnServer=0");
+    }
+
+
+    @Override
+    public synchronized int releaseQuarantined(String stream) {
+        return execute("UPDATE remotedb_localentry SET leaseId=0 WHERE stream='" + stream.replace("'", "''") + "' AND leaseId=" + QUARANTINED_LEASE_ID);
+    }
+
+
+    @Override
+    public synchronized void deleteStored(String stream) {
+        execute("DELETE FROM remotedb_localentry WHERE stream='" + stream.replace("'", "''") + "' AND storedOnServer=1");
+    }
+
+
+    @Override
+    public synchronized void deleteAll(String stream) {
+        execute("DELETE FROM remotedb_localentry WHERE stream='" + stream.replace("'", "''") + "'");
+    }
+
+
+    /**
+     * @return The number of entries, read from the counters table like
+     * LocalEntryDao.countAllEntries().
+     */
+    @Override
+    public synchronized long countEntries(String stream) {
+        return queryCount("SELECT IFNULL((SELECT allCount FROM remotedb_entrycount WHERE stream='" + stream.replace("'", "''") + "'), 0)");
+    }
+
+
+    /**
+     * @return The number of unstored entries, read from the counters table like
+     * LocalEntryDao.countEntriesNotStoredOnServer().
+     */
+    @Override
+    public synchronized long countUnstoredEntries(String stream) {
+        return queryCount("SELECT IFNULL((SELECT unstoredCount FROM remotedb_entrycount WHERE stream='" + stream.replace("'", "''") + "'), 0)");
+    }
+
+
+    /**
+     * Makes the entries that have been stored unstored again, and leases them with the supplied id
+     * (or none, if 0).
+     */
+    synchronized void resetBacklog(long leaseId) {
+        try {
+            PreparedStatement reset = mConnection.prepareStatement("UPDATE remotedb_localentry SET storedOnServer=0, leaseId=? WHERE storedOnServer=1");
+            try {
+                reset.setLong(1, leaseId);
+                reset.executeUpdate();
+            }
+            finally {
+                reset.close();
+            }
+            mConnection.commit();
+        }
+        catch (SQLException e) {
+            throw rollback(e);
+        }
+    }
+
+
+    private static List<RawLocalEntry> readEntries(PreparedStatement select) throws SQLException {
+        List<RawLocalEntry> entries = new ArrayList<>();
+        ResultSet resultSet = select.executeQuery();
+        try {
+            while( resultSet.next() ) {
+                RawLocalEntry entry = new RawLocalEntry();
+                entry.id = resultSet.getLong(1);
+                entry.uuid = resultSet.getString(2);
+                entry.entry = resultSet.getBytes(3);
+                entries.add(entry);
+            }
+        }
+        finally {
+            resultSet.close();
+        }
+        return entries;
+    }
+
+
+    /**
+     * Each UUID (or id) in the IN (...) list is a separate variable, so a statement is prepared per
+     * list length.
+     */
+    private PreparedStatement getInStatement(Map<Integer, PreparedStatement> statements, String sqlPrefix, int count) throws SQLException {
+        PreparedStatement statement = statements.get(count);
+        if( statement == null ) {
+            StringBuilder sql = new StringBuilder(sqlPrefix);
+            for (int i = 0; i < count; i++)
+                sql.append(i == 0 ? "?" : ",?");
+            sql.append(')');
+            statement = mConnection.prepareStatement(sql.toString());
+            statements.put(count, statement);
+        }
+        return statement;
+    }
+
+
+    /**
+     * @return The number of rows changed.
+     */
+    private int execute(String sql) {
+        try {
+            Statement statement = mConnection.createStatement();
+            int count;
+            try {
+                statement.execute(sql);
+                count = statement.getUpdateCount();
+            }
+            finally {
+                statement.close();
+            }
+            mConnection.commit();
+            return count;
+        }
+        catch (SQLException e) {
+            throw rollback(e);
+        }
+    }
+
+
+    private long queryCount(String sql) {
+        try {
+            Statement statement = mConnection.createStatement();
+            try {
+                ResultSet resultSet = statement.executeQuery(sql);
+                try {
+                    return resultSet.next() ? resultSet.getLong(1) : 0;
+                }
+                finally {
+                    resultSet.close();
+                }
+            }
+            finally {
+                statement.close();
+            }
+        }
+        catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Rolls back the failed transaction, like Room's endTransaction() does without
+     * setTransactionSuccessful(), and wraps the error since EntryStore methods don't throw checked
+     * exceptions.
+     */
+    private IllegalStateException rollback(SQLException e) {
+        try {
+            mConnection.rollback();
+        }
+        catch (SQLException rollbackError) {
+            e.addSuppressed(rollbackError);
+        }
+        return new IllegalStateException(e);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mConnection.close();
+        }
+        catch (SQLException e) {
+            throw new IOException(e);
+        }
+        finally {
+            mFile.delete();
+            new File(mFile.getPath() + "-wal").delete();
+            new File(mFile.getPath() + "-shm").delete();
+        }
+    }
+}
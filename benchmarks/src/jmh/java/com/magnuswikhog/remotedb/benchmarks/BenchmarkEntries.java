@@ -0,0 +1,56 @@
+package com.magnuswikhog.remotedb.benchmarks;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.codec.BinaryEntryCodec;
+import com.magnuswikhog.remotedb.codec.EntryCodec;
+import com.magnuswikhog.remotedb.codec.JsonEntryCodec;
+
+
+/**
+ * The entries and codecs that the benchmarks are parameterized with.
+ */
+public class BenchmarkEntries {
+
+    public enum Size {
+        /** A log line: a few short fields. */
+        SMALL(4, 32),
+        /** An event with a handful of attributes. */
+        MEDIUM(16, 256),
+        /** A diagnostic dump. */
+        LARGE(64, 2048);
+
+        final int mFieldCount;
+        final int mMessageLength;
+
+        Size(int fieldCount, int messageLength) {
+            mFieldCount = fieldCount;
+            mMessageLength = messageLength;
+        }
+    }
+
+
+    public enum Codec {
+        JSON,
+        BINARY;
+
+        EntryCodec create() {
+            return this == BINARY ? new BinaryEntryCodec() : new JsonEntryCodec();
+        }
+    }
+
+
+    static Entry create(Size size, int index) {
+        StringBuilder message = new StringBuilder(size.mMessageLength);
+        while( message.length() < size.mMessageLength )
+            message.append("Entry #").append(index).append(' ');
+        message.setLength(size.mMessageLength);
+
+        Entry entry = new Entry()
+                .put("timestamp", 1539849600000L + index)
+                .put("level", index % 4)
+                .put("message", message.toString());
+        for (int i = 3; i < size.mFieldCount; i++)
+            entry.put("field" + i, index * 0.5 + i);
+        return entry;
+    }
+}
@@ -0,0 +1,86 @@
+package com.magnuswikhog.remotedb.benchmarks;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.codec.EntryCodec;
+import com.magnuswikhog.remotedb.database.RawLocalEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The rate at which added entries reach the local database: each entry is encoded and given a
+ * UUID, like addEntry() does, and written in batches of a transaction each, like the ingest queue
+ * does. The score is in entries per second, for every batch size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IngestBenchmark {
+    private static final int ENTRIES_PER_INVOCATION = 1000;
+
+    @Param({"1", "20", "200", "1000"})
+    public int batchSize;
+
+    @Param({"SMALL", "LARGE"})
+    public BenchmarkEntries.Size entrySize;
+
+    @Param({"JSON", "BINARY"})
+    public BenchmarkEntries.Codec codec;
+
+    private BenchmarkDatabase mDb;
+    private EntryCodec mCodec;
+    private Entry mEntry;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mDb = new BenchmarkDatabase();
+        mCodec = codec.create();
+        mEntry = BenchmarkEntries.create(entrySize, 1);
+    }
+
+
+    /**
+     * Keeps the table from growing across iterations, which would make later ones slower.
+     */
+    @Setup(Level.Iteration)
+    public void clear() throws Exception {
+        mDb.deleteAll("");
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mDb.close();
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES_PER_INVOCATION)
+    public void addEntries() throws Exception {
+        RawLocalEntry[] batch = new RawLocalEntry[Math.min(batchSize, ENTRIES_PER_INVOCATION)];
+        int added = 0;
+        while( added < ENTRIES_PER_INVOCATION ) {
+            int count = Math.min(batch.length, ENTRIES_PER_INVOCATION - added);
+            if( count < batch.length )
+                batch = new RawLocalEntry[count];
+            for (int i = 0; i < count; i++)
+                batch[i] = new RawLocalEntry("", 1, UUID.randomUUID().toString(), mCodec.encode(mEntry));
+            mDb.insert(batch);
+            added += count;
+        }
+    }
+}
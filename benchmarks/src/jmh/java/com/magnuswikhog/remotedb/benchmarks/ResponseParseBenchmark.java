@@ -0,0 +1,76 @@
+package com.magnuswikhog.remotedb.benchmarks;
+
+import com.magnuswikhog.remotedb.upload.ChunkResponse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The time to parse the server's response to a chunk of N entries: a "stored_uuids" response with
+ * ChunkResponse, the same response parsed into a JSONObject and then a JSONArray (the way it was
+ * parsed before ChunkResponse), and a "stored_through" response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponseParseBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int uuidCount;
+
+    private String mUuidResponse;
+    private String mSequenceResponse;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        JSONArray uuids = new JSONArray();
+        for (int i = 0; i < uuidCount; i++)
+            uuids.put(UUID.randomUUID().toString());
+
+        // The server script sends the UUID's as the text of an array
+        mUuidResponse = new JSONObject()
+                .put("status", "ok")
+                .put("stored_uuids", uuids.toString())
+                .put("total_count", 123456)
+                .toString();
+        mSequenceResponse = new JSONObject()
+                .put("status", "ok")
+                .put("stored_through", 123456)
+                .put("not_stored", new JSONArray())
+                .put("total_count", 123456)
+                .toString();
+    }
+
+
+    @Benchmark
+    public int parseStoredUuids() throws Exception {
+        return ChunkResponse.parse(mUuidResponse).getStoredUuids().size();
+    }
+
+
+    @Benchmark
+    public int parseStoredUuidsWithJsonObject() throws Exception {
+        JSONObject response = new JSONObject(mUuidResponse);
+        return new JSONArray(response.optString("stored_uuids", "[]")).length();
+    }
+
+
+    @Benchmark
+    public long parseStoredThrough() throws Exception {
+        return ChunkResponse.parse(mSequenceResponse).getStoredThrough();
+    }
+}
@@ -0,0 +1,89 @@
+package com.magnuswikhog.remotedb.benchmarks;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.database.Converters;
+import com.magnuswikhog.remotedb.upload.ChunkBodyWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The cost per entry of converting entries to their stored form and back, and of copying stored
+ * entries into the JSON body of an upload request, for each entry size and codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializationBenchmark {
+    private static final int CHUNK_SIZE = 100;
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public BenchmarkEntries.Size entrySize;
+
+    @Param({"JSON", "BINARY"})
+    public BenchmarkEntries.Codec codec;
+
+    private Entry mEntry;
+    private byte[] mStoredEntry;
+    private byte[][] mStoredChunk;
+    private String[] mUuids;
+    private ByteArrayOutputStream mBody;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Converters.setEntryCodec(codec.create());
+
+        mEntry = BenchmarkEntries.create(entrySize, 1);
+        mStoredEntry = Converters.entryToBytes(mEntry);
+        mStoredChunk = new byte[CHUNK_SIZE][];
+        mUuids = new String[CHUNK_SIZE];
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+            mStoredChunk[i] = Converters.entryToBytes(BenchmarkEntries.create(entrySize, i));
+            mUuids[i] = UUID.randomUUID().toString();
+        }
+        mBody = new ByteArrayOutputStream(CHUNK_SIZE * mStoredEntry.length * 2);
+    }
+
+
+    @Benchmark
+    public byte[] encode() {
+        return Converters.entryToBytes(mEntry);
+    }
+
+
+    @Benchmark
+    public Entry decode() {
+        return Converters.fromBytes(mStoredEntry);
+    }
+
+
+    /**
+     * Writes a chunk like sendChunk() does, without compression, which is measured by
+     * {@link BacklogFlushBenchmark}.
+     */
+    @Benchmark
+    @OperationsPerInvocation(CHUNK_SIZE)
+    public int writeChunkBody() throws Exception {
+        mBody.reset();
+        ChunkBodyWriter writer = new ChunkBodyWriter(mBody);
+        writer.begin("password", "device");
+        for (int i = 0; i < CHUNK_SIZE; i++)
+            writer.writeStoredEntry(Converters.codecFor(mStoredChunk[i]), mStoredChunk[i], i + 1, mUuids[i]);
+        writer.end("{}");
+        return mBody.size();
+    }
+}
@@ -0,0 +1,111 @@
+package com.magnuswikhog.remotedb.benchmarks;
+
+import com.magnuswikhog.remotedb.upload.ContentEncoding;
+import com.magnuswikhog.remotedb.upload.StubTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * An HTTP server on the loopback interface that handles upload requests the way the server script
+ * does, by passing them to a {@link StubTransport}. This puts a real HTTP round trip in the
+ * benchmarks without depending on a server outside the process.
+ */
+class StubServer implements Closeable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final HttpServer mServer;
+    private final ExecutorService mHandlerExecutor = Executors.newFixedThreadPool(4);
+    private final StubTransport mTransport;
+
+    static {
+        // Without this, the response headers and body are sent in separate packets, and delayed
+        // acknowledgements add tens of milliseconds to every request. Read when the first server
+        // is created.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+
+    StubServer(String password) throws IOException {
+        mTransport = new StubTransport(DIRECT_EXECUTOR, password);
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/store.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(exchange);
+            }
+        });
+        // Handle concurrent requests concurrently, like the web server does
+        mServer.setExecutor(mHandlerExecutor);
+        mServer.start();
+    }
+
+
+    String getStoreUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/store.php";
+    }
+
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        byte[] body = readFully(exchange.getRequestBody());
+        String encodingHeader = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        ContentEncoding encoding = ContentEncoding.IDENTITY;
+        for (ContentEncoding candidate : ContentEncoding.values()) {
+            if( candidate.getHeaderValue() != null && candidate.getHeaderValue().equalsIgnoreCase(encodingHeader) )
+                encoding = candidate;
+        }
+
+        byte[] responseBytes = mTransport.respond(body, encoding).getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, responseBytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(responseBytes);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while( (count = in.read(buffer)) != -1 )
+                out.write(buffer, 0, count);
+            return out.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+
+    @Override
+    public void close() {
+        mServer.stop(0);
+        mHandlerExecutor.shutdown();
+    }
+}
@@ -0,0 +1,267 @@
+package com.magnuswikhog.remotedb;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+
+/**
+ * A reusable, allocation-light alternative to {@link Entry} for code that adds many entries, e.g.
+ * high-frequency telemetry. Numbers and booleans are kept in a primitive array instead of being
+ * boxed into a map, and the builder is encoded straight to the storage format by
+ * RemoteDb.addEntry(EntryBuilder) and
+ * {@link com.magnuswikhog.remotedb.engine.UploadEngine#addEntry(EntryBuilder, int)}, so no JSONObject is ever created.
+ * <p>
+ * A builder is meant to be reused: call {@link #reset()} (or keep overwriting the same fields)
+ * after adding it, instead of creating a new one for each entry. Builders are not thread safe.
+ * <pre>
+ * mBuilder.reset().put("t", System.currentTimeMillis()).put("level", level).put("m", message);
+ * remoteDb.addEntry(mBuilder);
+ * </pre>
+ */
+public class EntryBuilder {
+    public static final byte TYPE_INT = 1;
+    public static final byte TYPE_LONG = 2;
+    public static final byte TYPE_DOUBLE = 3;
+    public static final byte TYPE_BOOLEAN = 4;
+    public static final byte TYPE_STRING = 5;
+    /** A JSONObject or JSONArray value. */
+    public static final byte TYPE_JSON = 6;
+    public static final byte TYPE_NULL = 7;
+
+    private String[] mKeys;
+    private byte[] mTypes;
+    /** Int, long and boolean values as longs, doubles as their raw long bits. */
+    private long[] mPrimitives;
+    private Object[] mObjects;
+    private int mSize;
+
+
+    public EntryBuilder() {
+        this(8);
+    }
+
+
+    public EntryBuilder(int initialCapacity) {
+        initialCapacity = Math.max(1, initialCapacity);
+        mKeys = new String[initialCapacity];
+        mTypes = new byte[initialCapacity];
+        mPrimitives = new long[initialCapacity];
+        mObjects = new Object[initialCapacity];
+    }
+
+
+    /**
+     * Removes all fields, keeping the allocated storage so that the builder can be reused.
+     */
+    public EntryBuilder reset() {
+        Arrays.fill(mKeys, 0, mSize, null);
+        Arrays.fill(mObjects, 0, mSize, null);
+        mSize = 0;
+        return this;
+    }
+
+
+    public EntryBuilder put(String name, int value) {
+        int index = slot(name, TYPE_INT);
+        mPrimitives[index] = value;
+        return this;
+    }
+
+
+    public EntryBuilder put(String name, long value) {
+        int index = slot(name, TYPE_LONG);
+        mPrimitives[index] = value;
+        return this;
+    }
+
+
+    /**
+     * Like {@link Entry#put(String, double)}, NaN and infinite values can't be represented in JSON
+     * and are ignored.
+     */
+    public EntryBuilder put(String name, double value) {
+        if( Double.isNaN(value) || Double.isInfinite(value) )
+            return this;
+        int index = slot(name, TYPE_DOUBLE);
+        mPrimitives[index] = Double.doubleToRawLongBits(value);
+        return this;
+    }
+
+
+    public EntryBuilder put(String name, boolean value) {
+        int index = slot(name, TYPE_BOOLEAN);
+        mPrimitives[index] = value ? 1 : 0;
+        return this;
+    }
+
+
+    /**
+     * Like {@link JSONObject#put(String, Object)}, a null value removes the field.
+     */
+    public EntryBuilder put(String name, String value) {
+        if( value == null )
+            return remove(name);
+        int index = slot(name, TYPE_STRING);
+        mObjects[index] = value;
+        return this;
+    }
+
+
+    /**
+     * Adds a nested object or array. A null value removes the field, use {@link JSONObject#NULL}
+     * to add an explicit null.
+     */
+    public EntryBuilder put(String name, Object value) {
+        if( value == null )
+            return remove(name);
+
+        if( value == JSONObject.NULL ) {
+            slot(name, TYPE_NULL);
+        }
+        else if( value instanceof JSONObject || value instanceof JSONArray ) {
+            int index = slot(name, TYPE_JSON);
+            mObjects[index] = value;
+        }
+        else if( value instanceof Integer || value instanceof Short || value instanceof Byte )
+            put(name, ((Number) value).intValue());
+        else if( value instanceof Long )
+            put(name, ((Long) value).longValue());
+        else if( value instanceof Number )
+            put(name, ((Number) value).doubleValue());
+        else if( value instanceof Boolean )
+            put(name, ((Boolean) value).booleanValue());
+        else
+            put(name, String.valueOf(value));
+        return this;
+    }
+
+
+    public EntryBuilder remove(String name) {
+        int index = indexOf(name);
+        if( index >= 0 ) {
+            int moved = mSize - index - 1;
+            System.arraycopy(mKeys, index + 1, mKeys, index, moved);
+            System.arraycopy(mTypes, index + 1, mTypes, index, moved);
+            System.arraycopy(mPrimitives, index + 1, mPrimitives, index, moved);
+            System.arraycopy(mObjects, index + 1, mObjects, index, moved);
+            mSize--;
+            mKeys[mSize] = null;
+            mObjects[mSize] = null;
+        }
+        return this;
+    }
+
+
+    /**
+     * @return The number of fields.
+     */
+    public int size() {
+        return mSize;
+    }
+
+
+    /* The accessors below are used by the entry codecs to encode the fields in order. */
+
+    public String getKey(int index) {
+        return mKeys[index];
+    }
+
+
+    /**
+     * @return One of the TYPE_ constants.
+     */
+    public byte getType(int index) {
+        return mTypes[index];
+    }
+
+
+    /**
+     * @return The value of a {@link #TYPE_INT} or {@link #TYPE_LONG} field.
+     */
+    public long getLong(int index) {
+        return mPrimitives[index];
+    }
+
+
+    public double getDouble(int index) {
+        return Double.longBitsToDouble(mPrimitives[index]);
+    }
+
+
+    public boolean getBoolean(int index) {
+        return mPrimitives[index] != 0;
+    }
+
+
+    /**
+     * @return The value of a {@link #TYPE_STRING} or {@link #TYPE_JSON} field.
+     */
+    public Object getObject(int index) {
+        return mObjects[index];
+    }
+
+
+    /**
+     * Creates an {@link Entry} with the same fields, for code that needs the JSONObject API.
+     */
+    public Entry toEntry() {
+        Entry entry = new Entry();
+        for (int i = 0; i < mSize; i++) {
+            switch (mTypes[i]) {
+                case TYPE_INT: entry.put(mKeys[i], (int) mPrimitives[i]); break;
+                case TYPE_LONG: entry.put(mKeys[i], mPrimitives[i]); break;
+                case TYPE_DOUBLE: entry.put(mKeys[i], getDouble(i)); break;
+                case TYPE_BOOLEAN: entry.put(mKeys[i], getBoolean(i)); break;
+                case TYPE_NULL: entry.put(mKeys[i], JSONObject.NULL); break;
+                default: entry.put(mKeys[i], mObjects[i]); break;
+            }
+        }
+        return entry;
+    }
+
+
+    /**
+     * @return The index to store the value of the field in, after setting its type. Existing
+     *         fields keep their position, new fields are appended. May replace the arrays, so call
+     *         it before indexing them (not as in mPrimitives[slot(...)]).
+     */
+    private int slot(String name, byte type) {
+        if( name == null )
+            throw new NullPointerException("name == null");
+
+        int index = indexOf(name);
+        if( index < 0 ) {
+            if( mSize == mKeys.length )
+                grow();
+            index = mSize++;
+            mKeys[index] = name;
+        }
+
+        mTypes[index] = type;
+        mObjects[index] = null;
+        return index;
+    }
+
+
+    /**
+     * Entries usually have a handful of fields, so a linear search is cheaper than hashing.
+     */
+    private int indexOf(String name) {
+        for (int i = 0; i < mSize; i++) {
+            if( mKeys[i].equals(name) )
+                return i;
+        }
+        return -1;
+    }
+
+
+    private void grow() {
+        int capacity = mKeys.length * 2;
+        mKeys = Arrays.copyOf(mKeys, capacity);
+        mTypes = Arrays.copyOf(mTypes, capacity);
+        mPrimitives = Arrays.copyOf(mPrimitives, capacity);
+        mObjects = Arrays.copyOf(mObjects, capacity);
+    }
+}
@@ -0,0 +1,451 @@
+package com.magnuswikhog.remotedb;
+
+import com.magnuswikhog.remotedb.database.EntryStore;
+import com.magnuswikhog.remotedb.database.RawLocalEntry;
+import com.magnuswikhog.remotedb.engine.EngineLogger;
+import com.magnuswikhog.remotedb.metrics.RemoteDbMetrics;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Buffers entries in memory and writes them to the {@link EntryStore} in batches, each batch in a
+ * single transaction. A batch is written when it reaches the configured batch size, or when the
+ * oldest buffered entry has waited for the configured max delay, whichever comes first.
+ * <p>
+ * A dedicated thread keeps track of when a batch is due, and runs the write on the database
+ * writer executor, so that batches are ordered with the other mutations of the database.
+ * <p>
+ * The capacity counts the batch being written along with the buffered entries, so a batch that
+ * fails can be put back in front of the buffer without going over it. It is then written again a
+ * second later, and {@link #flush()} reports the failure. Call {@link #close()} to write what's
+ * left and stop the thread.
+ */
+public class EntryIngestQueue {
+    private static final String TAG = "EntryIngestQueue";
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+
+    /**
+     * What to do when an entry is added while the buffer is full.
+     */
+    public enum Backpressure {
+        /**
+         * Block the calling thread until the writer thread has made room in the buffer. If the
+         * thread is interrupted while it waits, the entry is added anyway, over the capacity.
+         */
+        BLOCK,
+
+        /**
+         * Discard the oldest buffered entry to make room for the new one. Entries in the batch being
+         * written are never discarded.
+         */
+        DROP_OLDEST,
+
+        /** Write the buffered entries to the database on the calling thread. */
+        SPILL
+    }
+
+
+    private final EntryStore mStore;
+    private final Executor mWriteExecutor;
+    private final RemoteDbMetrics mMetrics;
+    private final EngineLogger mLogger;
+    private final Object mLock = new Object();
+    private final Object mWriteLock = new Object();
+    private final ArrayDeque<RawLocalEntry> mBuffer = new ArrayDeque<>();
+    private final Thread mWriterThread;
+
+    private int mCapacity = 10000;
+    private int mMaxBatchSize = 200;
+    private long mMaxDelayMillis = 200;
+    private Backpressure mBackpressure = Backpressure.BLOCK;
+
+    /** Sequence number of the last added entry. */
+    private long mAddedSeq;
+    /** Sequence number of the last entry that has been written (or dropped). */
+    private long mWrittenSeq;
+    /** Time (System.nanoTime()) when the oldest entry in the buffer was added. */
+    private long mOldestAddedNanos;
+    private boolean mFlushRequested;
+    private long mDroppedCount;
+    /** True while a batch taken from the buffer is being written. */
+    private boolean mWriting;
+    /** The number of entries in the batch being written, which still count against the capacity. */
+    private int mWritingCount;
+    /** The streams cleared while a batch was being written, which must not be put back if it fails. */
+    private final Set<String> mClearedWhileWriting = new HashSet<>();
+    private long mWriteFailureCount;
+    private RuntimeException mLastWriteFailure;
+    /** Time (System.nanoTime()) when a failed batch is written again, or 0. */
+    private long mRetryAtNanos;
+    private boolean mClosed;
+
+
+    /**
+     * @param writeExecutor Runs the batch writes, see {@link RemoteDbExecutors#getDatabaseWriter()}.
+     */
+    public EntryIngestQueue(EntryStore store, Executor writeExecutor) {
+        this(store, writeExecutor, new RemoteDbMetrics(), EngineLogger.STDERR);
+    }
+
+
+    /**
+     * @param writeExecutor Runs the batch writes, see {@link RemoteDbExecutors#getDatabaseWriter()}.
+     * @param metrics       Receives the size, wait time and commit time of each batch.
+     * @param logger        Receives a debug message for each batch.
+     */
+    public EntryIngestQueue(EntryStore store, Executor writeExecutor, RemoteDbMetrics metrics, EngineLogger logger) {
+        mStore = store;
+        mWriteExecutor = writeExecutor;
+        mMetrics = metrics;
+        mLogger = logger;
+
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while( true ) {
+                    try {
+                        if( !awaitBatch() )
+                            return;
+
+                        // Wait for the write, otherwise the still full buffer would trigger it again
+                        FutureTask<Void> write = new FutureTask<>(mWriteBufferedRunnable, null);
+                        mWriteExecutor.execute(write);
+                        write.get();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    catch (Exception e) {
+                        mLogger.error(TAG, "Failed to run a batch write", e);
+                    }
+                }
+            }
+        }, "RemoteDb-ingest");
+        mWriterThread.setPriority(RemoteDbExecutors.BACKGROUND_PRIORITY);
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+
+    /**
+     * Adds an encoded entry to the buffer. Depending on the {@link Backpressure} setting, this may block or
+     * write to the database on the calling thread if the buffer is full.
+     * @throws IllegalStateException If the queue has been closed.
+     */
+    public void add(RawLocalEntry localEntry) {
+        boolean spill = false;
+
+        synchronized (mLock) {
+            if( mClosed )
+                throw new IllegalStateException("The ingest queue has been closed");
+
+            boolean interrupted = false;
+            while( isFull() ) {
+                if( mBackpressure == Backpressure.DROP_OLDEST ) {
+                    // The batch being written may fill the capacity on its own
+                    if( mBuffer.pollFirst() == null )
+                        break;
+                    mDroppedCount++;
+                }
+                else if( mBackpressure == Backpressure.SPILL ) {
+                    break;
+                }
+                else {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Losing the entry would break the promise of BLOCK, going over the
+                        // capacity once doesn't
+                        interrupted = true;
+                        break;
+                    }
+                }
+            }
+            if( interrupted )
+                Thread.currentThread().interrupt();
+
+            if( mBuffer.isEmpty() )
+                mOldestAddedNanos = System.nanoTime();
+            mBuffer.addLast(localEntry);
+            mAddedSeq++;
+
+            // The writer thread waits without a timeout while the buffer is empty, so it's woken
+            // by the first entry to start the max delay
+            if( isFull() && mBackpressure == Backpressure.SPILL )
+                spill = true;
+            else if( mBuffer.size() == 1 || isBatchFull() )
+                mLock.notifyAll();
+        }
+
+        if( spill )
+            writeBuffered();
+    }
+
+
+    /**
+     * Writes all entries added before this call to the database, and waits until they have been
+     * committed. Must not be called on the main thread, or on the database writer thread, since it
+     * waits for that thread.
+     * @throws IllegalStateException If a batch failed to be written in the meantime. The entries are
+     *                               kept in the buffer, and written again later.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            long targetSeq = mAddedSeq;
+            if( mWrittenSeq >= targetSeq )
+                return;
+
+            long failureCount = mWriteFailureCount;
+            mFlushRequested = true;
+            mLock.notifyAll();
+
+            while( mWrittenSeq < targetSeq ) {
+                if( mWriteFailureCount != failureCount )
+                    throw new IllegalStateException("Failed to write the buffered entries", mLastWriteFailure);
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Discards the buffered entries of the stream that have not yet been written to the database.
+     */
+    public void clear(String stream) {
+        synchronized (mLock) {
+            Iterator<RawLocalEntry> iterator = mBuffer.iterator();
+            while( iterator.hasNext() ) {
+                if( stream.equals(iterator.next().stream) )
+                    iterator.remove();
+            }
+
+            // A batch being written right now counts as written once it has been committed
+            if( mWriting )
+                mClearedWhileWriting.add(stream);
+            else if( mBuffer.isEmpty() )
+                mWrittenSeq = mAddedSeq;
+            mLock.notifyAll();
+        }
+    }
+
+
+    /**
+     * Writes the buffered entries, waits until they have been committed, and stops the ingest
+     * thread. Entries can't be added afterwards. Like {@link #flush()}, this must not be called on
+     * the main thread or on the database writer thread.
+     * @throws IllegalStateException If the buffered entries failed to be written. The thread is
+     *                               stopped anyway.
+     */
+    public void close() {
+        synchronized (mLock) {
+            if( mClosed )
+                return;
+            mClosed = true;
+            mLock.notifyAll();
+        }
+
+        try {
+            flush();
+        }
+        finally {
+            mWriterThread.interrupt();
+            try {
+                mWriterThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Waits until a batch is due.
+     * @return False if the queue has been closed and there is nothing left to write.
+     */
+    private boolean awaitBatch() throws InterruptedException {
+        synchronized (mLock) {
+            while( true ) {
+                // After a failure, give the database a moment before trying again
+                long retryWaitMillis = mRetryAtNanos != 0 ? (mRetryAtNanos - System.nanoTime()) / 1000000 : 0;
+                if( retryWaitMillis > 0 ) {
+                    mLock.wait(retryWaitMillis);
+                    continue;
+                }
+
+                if( mFlushRequested || isBatchFull() || (mClosed && !mBuffer.isEmpty()) )
+                    return true;
+
+                if( mBuffer.isEmpty() ) {
+                    if( mClosed )
+                        return false;
+                    mLock.wait();
+                }
+                else {
+                    long waitMillis = mMaxDelayMillis - (System.nanoTime() - mOldestAddedNanos) / 1000000;
+                    if( waitMillis <= 0 )
+                        return true;
+                    mLock.wait(waitMillis);
+                }
+            }
+        }
+    }
+
+
+    private boolean isFull() {
+        return mBuffer.size() + mWritingCount >= mCapacity;
+    }
+
+
+    private boolean isBatchFull() {
+        return mBuffer.size() >= Math.min(mMaxBatchSize, mCapacity);
+    }
+
+
+    private final Runnable mWriteBufferedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeBuffered();
+        }
+    };
+
+
+    /**
+     * Takes everything in the buffer and writes it to the database in a single transaction. The
+     * write lock makes sure that batches taken from the buffer are committed in the order they were
+     * taken, even when the calling thread spills while the writer thread is busy. A batch that fails
+     * is put back in front of the buffer.
+     */
+    private void writeBuffered() {
+        synchronized (mWriteLock) {
+            RawLocalEntry[] batch;
+            long batchSeq;
+            long oldestAddedNanos;
+            synchronized (mLock) {
+                batch = mBuffer.toArray(new RawLocalEntry[mBuffer.size()]);
+                batchSeq = mAddedSeq;
+                oldestAddedNanos = mOldestAddedNanos;
+                mBuffer.clear();
+                mLock.notifyAll();
+                if( batch.length == 0 ) {
+                    mFlushRequested = false;
+                    mWrittenSeq = Math.max(mWrittenSeq, batchSeq);
+                    return;
+                }
+                mWriting = true;
+                mWritingCount = batch.length;
+            }
+
+            boolean committed = false;
+            try {
+                long startNanos = mMetrics.isEnabled() ? System.nanoTime() : 0;
+                mStore.insert(batch);
+                committed = true;
+                if( startNanos != 0 ) {
+                    long endNanos = System.nanoTime();
+                    mMetrics.recordBatchCommitted(batch.length, (endNanos - oldestAddedNanos) / 1000, (endNanos - startNanos) / 1000);
+                }
+
+                if( mLogger.isDebugEnabled() )
+                    mLogger.debug(TAG, "Wrote batch of " + batch.length + " entries    droppedCount=" + getDroppedCount());
+            }
+            catch (RuntimeException e) {
+                mLogger.error(TAG, "Failed to write a batch of " + batch.length + " entries, retrying in " + RETRY_DELAY_MILLIS + " ms", e);
+                synchronized (mLock) {
+                    mLastWriteFailure = e;
+                    mWriteFailureCount++;
+                }
+            }
+            finally {
+                synchronized (mLock) {
+                    mWriting = false;
+                    mWritingCount = 0;
+                    if( committed ) {
+                        mWrittenSeq = Math.max(mWrittenSeq, batchSeq);
+                        mRetryAtNanos = 0;
+                    }
+                    else {
+                        requeue(batch, oldestAddedNanos);
+                    }
+                    mClearedWhileWriting.clear();
+
+                    // Whatever was added since has been written, dropped or cleared
+                    if( mBuffer.isEmpty() ) {
+                        mWrittenSeq = mAddedSeq;
+                        mFlushRequested = false;
+                    }
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Puts a batch that failed to be written back in front of the entries added since, except the
+     * entries of streams that have been cleared in the meantime. The batch counted against the
+     * capacity while it was written, so the buffer stays within it. Called with mLock held.
+     */
+    private void requeue(RawLocalEntry[] batch, long oldestAddedNanos) {
+        for (int i = batch.length - 1; i >= 0; i--) {
+            if( !mClearedWhileWriting.contains(batch[i].stream) )
+                mBuffer.addFirst(batch[i]);
+        }
+        if( !mBuffer.isEmpty() )
+            mOldestAddedNanos = oldestAddedNanos;
+        mFlushRequested = false;
+        mRetryAtNanos = System.nanoTime() + RETRY_DELAY_MILLIS * 1000000;
+        if( mRetryAtNanos == 0 )
+            mRetryAtNanos = 1;
+    }
+
+
+    /**
+     * @param maxBatchSize      A batch is written as soon as this many entries are buffered.
+     * @param maxDelayMillis    A batch is written at the latest this long after its first entry was
+     *                          added, even if it isn't full.
+     */
+    public void setBatching(int maxBatchSize, long maxDelayMillis) {
+        synchronized (mLock) {
+            mMaxBatchSize = Math.max(1, maxBatchSize);
+            mMaxDelayMillis = Math.max(0, maxDelayMillis);
+            mLock.notifyAll();
+        }
+    }
+
+
+    /**
+     * @param capacity      The maximum number of entries that can be buffered, including the batch
+     *                      being written.
+     * @param backpressure  What to do when an entry is added while the buffer is full.
+     */
+    public void setBackpressure(int capacity, Backpressure backpressure) {
+        synchronized (mLock) {
+            mCapacity = Math.max(1, capacity);
+            mBackpressure = backpressure;
+            mLock.notifyAll();
+        }
+    }
+
+
+    /**
+     * @return The number of entries that have been discarded because the buffer was full and the
+     *         {@link Backpressure#DROP_OLDEST} policy was used.
+     */
+    public long getDroppedCount() {
+        synchronized (mLock) {
+            return mDroppedCount;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.magnuswikhog.remotedb;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The threads that a RemoteDb (or any other
+ * {@link com.magnuswikhog.remotedb.engine.UploadEngine}) does its work on:
+ * <ul>
+ *     <li>The database writer, which runs all mutations of the local database (written batches of
+ *     added entries, acknowledgements, removals and lease releases) one at a time, in the order
+ *     they were submitted. Should be a single thread, or anything else that runs tasks serially
+ *     in submission order.</li>
+ *     <li>The upload executor, which reads and serializes chunks of entries and hands them to the
+ *     network.</li>
+ * </ul>
+ * By default each RemoteDb gets its own background threads, so that its work doesn't compete with
+ * (or get stuck behind) other AsyncTasks in the app. Tests can supply executors that run tasks
+ * directly on the calling thread instead.
+ */
+public class RemoteDbExecutors {
+    private static final int DEFAULT_UPLOAD_THREADS = 2;
+
+    /**
+     * The Java priority of the library's own threads. Android maps it to the same nice value as
+     * Process.THREAD_PRIORITY_BACKGROUND, and on a server JVM it is just below the default.
+     */
+    public static final int BACKGROUND_PRIORITY = Thread.NORM_PRIORITY - 1;
+
+    private final Executor mDatabaseWriter;
+    private final Executor mUpload;
+    /** True if the executors were created by {@link #createDefault()}, and can be shut down. */
+    private final boolean mOwnsThreads;
+
+
+    /**
+     * @param databaseWriter    Runs mutations of the local database. Must run tasks serially, in
+     *                          the order they are submitted.
+     * @param upload            Runs chunk serialization and upload work.
+     */
+    public RemoteDbExecutors(Executor databaseWriter, Executor upload) {
+        this(databaseWriter, upload, false);
+    }
+
+
+    private RemoteDbExecutors(Executor databaseWriter, Executor upload, boolean ownsThreads) {
+        if( databaseWriter == null || upload == null )
+            throw new NullPointerException("Executors must not be null");
+        mDatabaseWriter = databaseWriter;
+        mUpload = upload;
+        mOwnsThreads = ownsThreads;
+    }
+
+
+    /**
+     * Creates a single database writer thread and a small pool of upload threads, all daemon
+     * threads running with background priority, see {@link #BACKGROUND_PRIORITY}.
+     */
+    public static RemoteDbExecutors createDefault() {
+        return new RemoteDbExecutors(
+                Executors.newSingleThreadExecutor(new BackgroundThreadFactory("RemoteDb-db")),
+                Executors.newFixedThreadPool(DEFAULT_UPLOAD_THREADS, new BackgroundThreadFactory("RemoteDb-upload")),
+                true);
+    }
+
+
+    /**
+     * Stops the threads created by {@link #createDefault()}, once the tasks already submitted have
+     * run. Tasks submitted afterwards are rejected. Executors supplied by the app are left alone.
+     */
+    public void shutdown() {
+        if( !mOwnsThreads )
+            return;
+        ((ExecutorService) mDatabaseWriter).shutdown();
+        ((ExecutorService) mUpload).shutdown();
+    }
+
+
+    public Executor getDatabaseWriter() {
+        return mDatabaseWriter;
+    }
+
+
+    public Executor getUpload() {
+        return mUpload;
+    }
+
+
+    /**
+     * Runs the task on the database writer.
+     * @return A future which completes when the task has run.
+     */
+    public Future<Void> submitWrite(Runnable task) {
+        return submit(mDatabaseWriter, task);
+    }
+
+
+    /**
+     * Runs the task on the upload executor.
+     * @return A future which completes when the task has run.
+     */
+    public Future<Void> submitUpload(Runnable task) {
+        return submit(mUpload, task);
+    }
+
+
+    private static Future<Void> submit(Executor executor, Runnable task) {
+        LoggingFutureTask<Void> future = new LoggingFutureTask<>(Executors.callable(task, (Void) null));
+        executor.execute(future);
+        return future;
+    }
+
+
+    /**
+     * Prints exceptions thrown by the task, like AsyncTask.execute() did, since most callers of
+     * RemoteDb never look at the returned futures.
+     */
+    private static class LoggingFutureTask<V> extends FutureTask<V> {
+        LoggingFutureTask(Callable<V> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            t.printStackTrace();
+            super.setException(t);
+        }
+    }
+
+
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        BackgroundThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mName + "-" + mCount.incrementAndGet());
+            thread.setPriority(BACKGROUND_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,501 @@
+package com.magnuswikhog.remotedb.codec;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.EntryBuilder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ * Stores entries in a compact binary format: a two byte header (0xC1, which is never used by
+ * MessagePack, followed by a format version) and the entry as a MessagePack map.
+ * <p>
+ * Keys can optionally be interned: keys found in the dictionary supplied to the constructor are
+ * stored as their index in the dictionary instead of as a string. Since the index is what's stored,
+ * the dictionary must only ever be appended to, never reordered or shortened, as long as there are
+ * entries in the local database that were encoded with it.
+ */
+public class BinaryEntryCodec implements EntryCodec {
+    static final byte MAGIC = (byte) 0xC1;
+    static final byte VERSION = 1;
+
+    private final String[] mDictionary;
+    private final Map<String, Integer> mDictionaryIndices = new HashMap<>();
+    /** The dictionary keys as quoted JSON strings, so that they can be copied as is by writeJson(). */
+    private final byte[][] mQuotedDictionary;
+
+
+    public BinaryEntryCodec(String... dictionary) {
+        mDictionary = dictionary != null ? Arrays.copyOf(dictionary, dictionary.length) : new String[0];
+        mQuotedDictionary = new byte[mDictionary.length][];
+        for (int i = 0; i < mDictionary.length; i++) {
+            mDictionaryIndices.put(mDictionary[i], i);
+            mQuotedDictionary[i] = JSONObject.quote(mDictionary[i]).getBytes(JsonEntryCodec.UTF_8);
+        }
+    }
+
+
+    @Override
+    public byte[] encode(Entry entry) {
+        ByteWriter out = new ByteWriter(64);
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeObject(out, entry);
+        return out.toByteArray();
+    }
+
+
+    @Override
+    public byte[] encode(EntryBuilder builder) {
+        ByteWriter out = new ByteWriter(2 + 12 * builder.size());
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeContainerHeader(out, builder.size(), 0x80, 0xde, 0xdf);
+        for (int i = 0; i < builder.size(); i++) {
+            writeKey(out, builder.getKey(i));
+            switch (builder.getType(i)) {
+                case EntryBuilder.TYPE_INT:
+                case EntryBuilder.TYPE_LONG: writeLong(out, builder.getLong(i)); break;
+                case EntryBuilder.TYPE_DOUBLE: writeDouble(out, builder.getDouble(i)); break;
+                case EntryBuilder.TYPE_BOOLEAN: out.write(builder.getBoolean(i) ? 0xc3 : 0xc2); break;
+                case EntryBuilder.TYPE_STRING: writeString(out, (String) builder.getObject(i)); break;
+                case EntryBuilder.TYPE_JSON: writeValue(out, builder.getObject(i)); break;
+                default: out.write(0xc0); break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+
+    @Override
+    public Entry decode(byte[] data) {
+        if( !canDecode(data) )
+            return new Entry();
+
+        try {
+            Entry entry = new Entry();
+            ByteReader in = new ByteReader(data, 2);
+            readObjectInto(in, entry, readMapHeader(in));
+            return entry;
+        } catch (Exception e) {
+            return new Entry();
+        }
+    }
+
+
+    @Override
+    public boolean canDecode(byte[] data) {
+        return data != null && data.length >= 2 && data[0] == MAGIC && data[1] == VERSION;
+    }
+
+
+    /**
+     * Transcodes the MessagePack data straight to JSON text, without building a JSONObject tree.
+     */
+    @Override
+    public void writeJson(byte[] data, OutputStream out) throws IOException {
+        if( !canDecode(data) )
+            throw new IllegalArgumentException("Not a binary entry");
+
+        ByteReader in = new ByteReader(data, 2);
+        try {
+            writeJsonObject(in, out, readMapHeader(in));
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated binary entry", e);
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // E.g. a corrupt length
+            throw new IllegalArgumentException("Invalid binary entry", e);
+        }
+    }
+
+
+    /* ------------------------------------------------------------------------------------------ */
+    /* Encoding                                                                                    */
+    /* ------------------------------------------------------------------------------------------ */
+
+    private void writeObject(ByteWriter out, JSONObject object) {
+        writeContainerHeader(out, object.length(), 0x80, 0xde, 0xdf);
+        Iterator<String> keys = object.keys();
+        while( keys.hasNext() ) {
+            String key = keys.next();
+            writeKey(out, key);
+            writeValue(out, object.opt(key));
+        }
+    }
+
+
+    private void writeKey(ByteWriter out, String key) {
+        Integer index = mDictionaryIndices.get(key);
+        if( index != null )
+            writeLong(out, index);
+        else
+            writeString(out, key);
+    }
+
+
+    private void writeValue(ByteWriter out, Object value) {
+        if( value == null || value == JSONObject.NULL ) {
+            out.write(0xc0);
+        }
+        else if( value instanceof Boolean ) {
+            out.write((Boolean) value ? 0xc3 : 0xc2);
+        }
+        else if( value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte ) {
+            writeLong(out, ((Number) value).longValue());
+        }
+        else if( value instanceof Float ) {
+            out.write(0xca);
+            out.writeInt(Float.floatToIntBits((Float) value));
+        }
+        else if( value instanceof Double ) {
+            writeDouble(out, (Double) value);
+        }
+        else if( value instanceof JSONObject ) {
+            writeObject(out, (JSONObject) value);
+        }
+        else if( value instanceof JSONArray ) {
+            JSONArray array = (JSONArray) value;
+            writeContainerHeader(out, array.length(), 0x90, 0xdc, 0xdd);
+            for (int i = 0; i < array.length(); i++)
+                writeValue(out, array.opt(i));
+        }
+        else {
+            writeString(out, String.valueOf(value));
+        }
+    }
+
+
+    private static void writeLong(ByteWriter out, long value) {
+        if( value >= 0 && value <= 0x7f ) {
+            out.write((int) value);
+        }
+        else if( value < 0 && value >= -32 ) {
+            out.write((int) value & 0xff);
+        }
+        else if( value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE ) {
+            out.write(0xd0);
+            out.write((int) value);
+        }
+        else if( value >= Short.MIN_VALUE && value <= Short.MAX_VALUE ) {
+            out.write(0xd1);
+            out.writeShort((int) value);
+        }
+        else if( value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ) {
+            out.write(0xd2);
+            out.writeInt((int) value);
+        }
+        else {
+            out.write(0xd3);
+            out.writeLong(value);
+        }
+    }
+
+
+    private static void writeDouble(ByteWriter out, double value) {
+        out.write(0xcb);
+        out.writeLong(Double.doubleToLongBits(value));
+    }
+
+
+    private static void writeString(ByteWriter out, String value) {
+        byte[] bytes = value.getBytes(JsonEntryCodec.UTF_8);
+        int length = bytes.length;
+        if( length <= 31 ) {
+            out.write(0xa0 | length);
+        }
+        else if( length <= 0xff ) {
+            out.write(0xd9);
+            out.write(length);
+        }
+        else if( length <= 0xffff ) {
+            out.write(0xda);
+            out.writeShort(length);
+        }
+        else {
+            out.write(0xdb);
+            out.writeInt(length);
+        }
+        out.write(bytes, 0, length);
+    }
+
+
+    private static void writeContainerHeader(ByteWriter out, int size, int fixType, int type16, int type32) {
+        if( size <= 15 ) {
+            out.write(fixType | size);
+        }
+        else if( size <= 0xffff ) {
+            out.write(type16);
+            out.writeShort(size);
+        }
+        else {
+            out.write(type32);
+            out.writeInt(size);
+        }
+    }
+
+
+    /* ------------------------------------------------------------------------------------------ */
+    /* Decoding                                                                                    */
+    /* ------------------------------------------------------------------------------------------ */
+
+    private void readObjectInto(ByteReader in, JSONObject object, int size) throws JSONException {
+        for (int i = 0; i < size; i++) {
+            String key = readKey(in);
+            object.put(key, readValue(in));
+        }
+    }
+
+
+    String readKey(ByteReader in) {
+        int type = in.peek();
+        if( (type & 0xe0) == 0xa0 || type == 0xd9 || type == 0xda || type == 0xdb )
+            return (String) readValueOrNull(in);
+        return mDictionary[(int) readInteger(in)];
+    }
+
+
+    private Object readValue(ByteReader in) throws JSONException {
+        int type = in.peek();
+        if( (type & 0xf0) == 0x80 || type == 0xde || type == 0xdf ) {
+            JSONObject object = new JSONObject();
+            readObjectInto(in, object, readMapHeader(in));
+            return object;
+        }
+        if( (type & 0xf0) == 0x90 || type == 0xdc || type == 0xdd ) {
+            int size = readArrayHeader(in);
+            JSONArray array = new JSONArray();
+            for (int i = 0; i < size; i++)
+                array.put(readValue(in));
+            return array;
+        }
+
+        Object value = readValueOrNull(in);
+        return value != null ? value : JSONObject.NULL;
+    }
+
+
+    private void writeJsonObject(ByteReader in, OutputStream out, int size) throws IOException {
+        out.write('{');
+        for (int i = 0; i < size; i++) {
+            if( i > 0 )
+                out.write(',');
+
+            int type = in.peek();
+            if( (type & 0xe0) == 0xa0 || type == 0xd9 || type == 0xda || type == 0xdb )
+                writeJsonScalar(out, readValueOrNull(in));
+            else
+                out.write(mQuotedDictionary[(int) readInteger(in)]);
+
+            out.write(':');
+            writeJsonValue(in, out);
+        }
+        out.write('}');
+    }
+
+
+    private void writeJsonValue(ByteReader in, OutputStream out) throws IOException {
+        int type = in.peek();
+        if( (type & 0xf0) == 0x80 || type == 0xde || type == 0xdf ) {
+            writeJsonObject(in, out, readMapHeader(in));
+        }
+        else if( (type & 0xf0) == 0x90 || type == 0xdc || type == 0xdd ) {
+            int size = readArrayHeader(in);
+            out.write('[');
+            for (int i = 0; i < size; i++) {
+                if( i > 0 )
+                    out.write(',');
+                writeJsonValue(in, out);
+            }
+            out.write(']');
+        }
+        else {
+            writeJsonScalar(out, readValueOrNull(in));
+        }
+    }
+
+
+    private static void writeJsonScalar(OutputStream out, Object value) throws IOException {
+        String json;
+        if( value == null )
+            json = "null";
+        else if( value instanceof String )
+            json = JSONObject.quote((String) value);
+        else if( value instanceof Number )
+            json = JsonEntryCodec.numberToString((Number) value);
+        else
+            json = String.valueOf(value);
+        out.write(json.getBytes(JsonEntryCodec.UTF_8));
+    }
+
+
+    /**
+     * Reads a scalar value: null (returned as null), boolean, number or string.
+     */
+    static Object readValueOrNull(ByteReader in) {
+        int type = in.read();
+        if( type <= 0x7f )
+            return type;
+        if( type >= 0xe0 )
+            return (int) (byte) type;
+        if( (type & 0xe0) == 0xa0 )
+            return in.readString(type & 0x1f);
+
+        switch (type) {
+            case 0xc0: return null;
+            case 0xc2: return Boolean.FALSE;
+            case 0xc3: return Boolean.TRUE;
+            case 0xca: return Float.intBitsToFloat(in.readInt());
+            case 0xcb: return Double.longBitsToDouble(in.readLong());
+            case 0xd0: return toIntegerIfPossible((byte) in.read());
+            case 0xd1: return toIntegerIfPossible((short) in.readShort());
+            case 0xd2: return toIntegerIfPossible(in.readInt());
+            case 0xd3: return toIntegerIfPossible(in.readLong());
+            case 0xd9: return in.readString(in.read());
+            case 0xda: return in.readString(in.readShort());
+            case 0xdb: return in.readString(in.readInt());
+            default: throw new IllegalArgumentException("Unexpected type " + type);
+        }
+    }
+
+
+    static long readInteger(ByteReader in) {
+        Object value = readValueOrNull(in);
+        if( !(value instanceof Integer || value instanceof Long) )
+            throw new IllegalArgumentException("Expected an integer, got " + value);
+        return ((Number) value).longValue();
+    }
+
+
+    static int readMapHeader(ByteReader in) {
+        int type = in.read();
+        if( (type & 0xf0) == 0x80 )
+            return type & 0x0f;
+        if( type == 0xde )
+            return in.readShort();
+        if( type == 0xdf )
+            return in.readInt();
+        throw new IllegalArgumentException("Expected a map, got type " + type);
+    }
+
+
+    static int readArrayHeader(ByteReader in) {
+        int type = in.read();
+        if( (type & 0xf0) == 0x90 )
+            return type & 0x0f;
+        if( type == 0xdc )
+            return in.readShort();
+        if( type == 0xdd )
+            return in.readInt();
+        throw new IllegalArgumentException("Expected an array, got type " + type);
+    }
+
+
+    private static Object toIntegerIfPossible(long value) {
+        if( value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE )
+            return (int) value;
+        return value;
+    }
+
+
+    /**
+     * An unsynchronized, growable byte buffer writing big-endian numbers.
+     */
+    static class ByteWriter {
+        private byte[] mBuffer;
+        private int mSize;
+
+        ByteWriter(int initialCapacity) {
+            mBuffer = new byte[initialCapacity];
+        }
+
+        void write(int b) {
+            ensureCapacity(1);
+            mBuffer[mSize++] = (byte) b;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, mBuffer, mSize, length);
+            mSize += length;
+        }
+
+        void writeShort(int value) {
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeInt(int value) {
+            writeShort(value >>> 16);
+            writeShort(value);
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, mSize);
+        }
+
+        private void ensureCapacity(int extra) {
+            if( mSize + extra > mBuffer.length )
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + extra));
+        }
+    }
+
+
+    /**
+     * Reads big-endian numbers and UTF-8 strings from a byte array.
+     */
+    static class ByteReader {
+        private final byte[] mData;
+        private int mPosition;
+
+        ByteReader(byte[] data, int position) {
+            mData = data;
+            mPosition = position;
+        }
+
+        boolean hasMore() {
+            return mPosition < mData.length;
+        }
+
+        int peek() {
+            return mData[mPosition] & 0xff;
+        }
+
+        int read() {
+            return mData[mPosition++] & 0xff;
+        }
+
+        int readShort() {
+            return (read() << 8) | read();
+        }
+
+        int readInt() {
+            return (readShort() << 16) | readShort();
+        }
+
+        long readLong() {
+            return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+        }
+
+        String readString(int length) {
+            String value = new String(mData, mPosition, length, JsonEntryCodec.UTF_8);
+            mPosition += length;
+            return value;
+        }
+    }
+}
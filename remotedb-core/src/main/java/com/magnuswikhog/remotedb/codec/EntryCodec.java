@@ -0,0 +1,35 @@
+package com.magnuswikhog.remotedb.codec;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.EntryBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Converts entries to and from the bytes stored in the local database.
+ */
+public interface EntryCodec {
+    byte[] encode(Entry entry);
+
+    /**
+     * Encodes the fields of the builder to the same format as {@link #encode(Entry)}, without
+     * creating an Entry.
+     */
+    byte[] encode(EntryBuilder builder);
+
+    Entry decode(byte[] data);
+
+    /**
+     * @return True if the data looks like it was encoded by this codec.
+     */
+    boolean canDecode(byte[] data);
+
+    /**
+     * Writes the stored data as a UTF-8 encoded JSON object, without decoding it into an
+     * {@link Entry}. Used when building upload requests.
+     * @throws IllegalArgumentException If the data is not valid.
+     */
+    void writeJson(byte[] data, OutputStream out) throws IOException;
+}
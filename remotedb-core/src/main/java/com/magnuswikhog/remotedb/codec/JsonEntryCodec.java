@@ -0,0 +1,97 @@
+package com.magnuswikhog.remotedb.codec;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.EntryBuilder;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+
+/**
+ * Stores entries as UTF-8 encoded JSON text. This is the format used by all versions before
+ * pluggable codecs were introduced, so it can always be decoded.
+ */
+public class JsonEntryCodec implements EntryCodec {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+
+    @Override
+    public byte[] encode(Entry entry) {
+        return String.valueOf(entry).getBytes(UTF_8);
+    }
+
+
+    @Override
+    public byte[] encode(EntryBuilder builder) {
+        StringBuilder json = new StringBuilder(16 * builder.size() + 2);
+        json.append('{');
+        for (int i = 0; i < builder.size(); i++) {
+            if( i > 0 )
+                json.append(',');
+            json.append(JSONObject.quote(builder.getKey(i))).append(':');
+
+            switch (builder.getType(i)) {
+                case EntryBuilder.TYPE_INT:
+                case EntryBuilder.TYPE_LONG: json.append(builder.getLong(i)); break;
+                case EntryBuilder.TYPE_DOUBLE: json.append(numberToString(builder.getDouble(i))); break;
+                case EntryBuilder.TYPE_BOOLEAN: json.append(builder.getBoolean(i)); break;
+                case EntryBuilder.TYPE_STRING: json.append(JSONObject.quote((String) builder.getObject(i))); break;
+                case EntryBuilder.TYPE_JSON: json.append(builder.getObject(i)); break;
+                default: json.append("null"); break;
+            }
+        }
+        json.append('}');
+        return json.toString().getBytes(UTF_8);
+    }
+
+
+    /**
+     * Formats numbers the same way JSONObject.toString() does.
+     */
+    static String numberToString(Number value) {
+        try {
+            return JSONObject.numberToString(value);
+        } catch (Exception e) {
+            // Non-finite numbers can't be represented in JSON, and are never put in an entry
+            return "null";
+        }
+    }
+
+
+    @Override
+    public Entry decode(byte[] data) {
+        try {
+            return new Entry(new String(data, UTF_8));
+        } catch (JSONException e) {
+            return new Entry();
+        }
+    }
+
+
+    @Override
+    public boolean canDecode(byte[] data) {
+        for (byte b : data) {
+            if( b == '{' )
+                return true;
+            if( b != ' ' && b != '\t' && b != '\r' && b != '\n' )
+                return false;
+        }
+        return false;
+    }
+
+
+    /**
+     * The stored data already is the JSON text, so it is written as is, if it looks like a JSON
+     * object.
+     */
+    @Override
+    public void writeJson(byte[] data, OutputStream out) throws IOException {
+        if( !canDecode(data) )
+            throw new IllegalArgumentException("Not a JSON entry");
+        out.write(data);
+    }
+}
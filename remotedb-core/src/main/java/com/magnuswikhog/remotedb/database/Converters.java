@@ -0,0 +1,70 @@
+package com.magnuswikhog.remotedb.database;
+
+import android.arch.persistence.room.TypeConverter;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.codec.BinaryEntryCodec;
+import com.magnuswikhog.remotedb.codec.EntryCodec;
+import com.magnuswikhog.remotedb.codec.JsonEntryCodec;
+
+public class Converters {
+    private static final EntryCodec LEGACY_CODEC = new JsonEntryCodec();
+
+    /**
+     * The codec used to store new entries. Room type converters are static, so this applies to all
+     * local databases in the process.
+     */
+    private static volatile EntryCodec sEntryCodec = LEGACY_CODEC;
+
+    /**
+     * Reads entries stored with a BinaryEntryCodec, also after another codec has been configured.
+     * This is the binary codec configured most recently, since its dictionary is needed to read
+     * interned keys.
+     */
+    private static volatile EntryCodec sBinaryCodec = new BinaryEntryCodec();
+
+
+    public static void setEntryCodec(EntryCodec codec) {
+        sEntryCodec = codec != null ? codec : LEGACY_CODEC;
+        if( codec instanceof BinaryEntryCodec )
+            sBinaryCodec = codec;
+    }
+
+
+    public static EntryCodec getEntryCodec() {
+        return sEntryCodec;
+    }
+
+
+    /**
+     * @return The codec that can read the stored data: the configured codec if the data looks like
+     *         its format, otherwise the binary codec if the data has its header, otherwise the
+     *         legacy JSON codec.
+     */
+    public static EntryCodec codecFor(byte[] data) {
+        EntryCodec codec = sEntryCodec;
+        if( codec.canDecode(data) )
+            return codec;
+
+        // The binary header can't start JSON text, so binary entries are recognized even after
+        // switching back to JSON. Entries stored before a codec was configured are JSON text.
+        EntryCodec binaryCodec = sBinaryCodec;
+        if( binaryCodec.canDecode(data) )
+            return binaryCodec;
+        return LEGACY_CODEC;
+    }
+
+
+    @TypeConverter
+    public static Entry fromBytes(byte[] data) {
+        if( data == null )
+            return new Entry();
+
+        return codecFor(data).decode(data);
+    }
+
+    @TypeConverter
+    public static byte[] entryToBytes(Entry entry) {
+        return sEntryCodec.encode(entry);
+    }
+}
@@ -0,0 +1,127 @@
+package com.magnuswikhog.remotedb.database;
+
+import java.util.List;
+
+
+/**
+ * Where the entries of an {@link com.magnuswikhog.remotedb.engine.UploadEngine} are kept until the
+ * server has stored them: the Room database on Android, and anything else on a server JVM.
+ * <p>
+ * Each entry belongs to a stream, has a priority, and is either unstored or stored on the server.
+ * While an unstored entry is being sent, it is leased with the id of its chunk, so that no other
+ * upload picks it up until the chunk has been acknowledged or given up on. Leases only live as long
+ * as the process, except the quarantine of entries that the server has rejected.
+ * <p>
+ * The methods that change the store (except {@link #leaseNextChunk}) are called on the database
+ * writer executor, one at a time. {@link #leaseNextChunk} and the reads are called on the upload
+ * threads, concurrently with the writes and with each other.
+ */
+public interface EntryStore {
+
+    /**
+     * The lease of the entries that have been quarantined, see {@link #quarantine(long)}.
+     */
+    long QUARANTINED_LEASE_ID = -1;
+
+
+    /**
+     * Inserts a batch of encoded, unstored entries in a single transaction, and sets their ids.
+     * Ids must increase in the order the entries are inserted.
+     */
+    void insert(RawLocalEntry[] entries);
+
+
+    /**
+     * Reads the next chunk of unstored, unleased entries of the stream and leases them, in a single
+     * transaction. The chunk is filled from the highest priority down, with the entries of each
+     * priority that come after the id in lastSentIds, which is then advanced past them.
+     * @param lastSentIds       The id of the last entry sent so far, indexed by priority.
+     * @param priorityBudgets   The max number of entries of each priority in the chunk.
+     * @param maxCount          The max number of entries in the chunk.
+     * @param leaseId           The id to lease the entries with.
+     * @return The leased entries, with their id, uuid and encoded entry, or an empty list if there
+     *         are no more.
+     */
+    List<RawLocalEntry> leaseNextChunk(String stream, long[] lastSentIds, int[] priorityBudgets, int maxCount, long leaseId);
+
+
+    /**
+     * @return The unstored entries leased with the id, highest priority first, e.g. to resend a
+     *         chunk that failed. Entries that have been stored or removed since are left out.
+     */
+    List<RawLocalEntry> getLeasedEntries(long leaseId);
+
+
+    /**
+     * Marks the entries with the UUID's as stored (or deletes them), and releases the lease, in a
+     * single transaction.
+     * @param leaseId   The lease of the acknowledged chunk, or 0 if there is none.
+     */
+    void acknowledge(List<String> uuids, boolean delete, long leaseId);
+
+
+    /**
+     * Marks the entries leased with the id as stored (or deletes them), if their id is at most
+     * storedThroughId and not in notStoredIds, and releases the lease, in a single transaction. This
+     * is how a chunk is acknowledged by sequence number (the entry id), without any UUID's.
+     * @return The number of entries that were acknowledged.
+     */
+    int acknowledgeThrough(long leaseId, long storedThroughId, long[] notStoredIds, boolean delete);
+
+
+    void releaseLease(long leaseId);
+
+
+    /**
+     * Takes the entries with the ids out of the lease, without acknowledging them, e.g. entries of
+     * a chunk that couldn't be sent. They are leased again by a later upload.
+     */
+    void releaseFromLease(long leaseId, long[] ids);
+
+
+    /**
+     * @return The highest lease id held by any entry, or 0 if there is none. Read when the store is
+     *         opened, so that new lease ids don't collide with stale ones.
+     */
+    long getMaxLeaseId();
+
+
+    /**
+     * Releases the leases of all entries, except the quarantined ones. Called when the store is
+     * opened, since no chunk is in flight yet.
+     */
+    void releaseAllLeases();
+
+
+    /**
+     * Moves the unstored entries leased with the id into quarantine, e.g. a chunk that the server
+     * rejected as malformed. Quarantined entries keep their place in the store, but aren't sent
+     * again until {@link #releaseQuarantined(String)} is called, also after a restart.
+     */
+    void quarantine(long leaseId);
+
+
+    /**
+     * Releases the quarantined entries of the stream, so that they are sent again.
+     * @return The number of entries that were released.
+     */
+    int releaseQuarantined(String stream);
+
+
+    /**
+     * Removes the entries of the stream that have been stored on the server.
+     */
+    void deleteStored(String stream);
+
+
+    /**
+     * Removes all entries of the stream.
+     */
+    void deleteAll(String stream);
+
+
+    long countEntries(String stream);
+
+
+    long countUnstoredEntries(String stream);
+}
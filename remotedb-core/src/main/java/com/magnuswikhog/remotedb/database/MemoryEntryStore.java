@@ -0,0 +1,340 @@
+package com.magnuswikhog.remotedb.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * An {@link EntryStore} that keeps its entries in memory, so they are lost with the process. For
+ * tests, load tests, and server side agents that would rather drop a backlog than write it to disk.
+ * <p>
+ * The unstored entries of each stream and priority are kept in their own map sorted by id, so
+ * leasing a chunk only looks at the entries that go into it (and any leased ones in between),
+ * however large the backlog is.
+ */
+public class MemoryEntryStore implements EntryStore {
+
+    private static class StoredEntry {
+        final RawLocalEntry mEntry;
+        boolean mStored;
+        boolean mDeleted;
+        long mLeaseId;
+
+        StoredEntry(RawLocalEntry entry) {
+            mEntry = entry;
+        }
+    }
+
+
+    private static class StreamEntries {
+        final TreeMap<Long, StoredEntry> mAll = new TreeMap<>();
+        /** The unstored entries, by priority. */
+        final Map<Integer, TreeMap<Long, StoredEntry>> mUnstored = new HashMap<>();
+        long mUnstoredCount;
+
+        TreeMap<Long, StoredEntry> getUnstored(int priority) {
+            TreeMap<Long, StoredEntry> unstored = mUnstored.get(priority);
+            if( unstored == null ) {
+                unstored = new TreeMap<>();
+                mUnstored.put(priority, unstored);
+            }
+            return unstored;
+        }
+
+        void removeUnstored(StoredEntry entry) {
+            if( getUnstored(entry.mEntry.priority).remove(entry.mEntry.id) != null )
+                mUnstoredCount--;
+        }
+    }
+
+
+    private final Map<String, StreamEntries> mStreams = new HashMap<>();
+    private final Map<String, StoredEntry> mByUuid = new HashMap<>();
+    private final Map<Long, List<StoredEntry>> mLeases = new HashMap<>();
+    private long mLastId;
+
+
+    @Override
+    public synchronized void insert(RawLocalEntry[] entries) {
+        for (RawLocalEntry entry : entries) {
+            if( entry.stream == null )
+                entry.stream = "";
+            entry.id = ++mLastId;
+
+            StoredEntry storedEntry = new StoredEntry(entry);
+            mByUuid.put(entry.uuid, storedEntry);
+
+            StreamEntries streamEntries = getStream(entry.stream);
+            streamEntries.mAll.put(entry.id, storedEntry);
+            streamEntries.getUnstored(entry.priority).put(entry.id, storedEntry);
+            streamEntries.mUnstoredCount++;
+        }
+    }
+
+
+    @Override
+    public synchronized List<RawLocalEntry> leaseNextChunk(String stream, long[] lastSentIds, int[] priorityBudgets, int maxCount, long leaseId) {
+        List<RawLocalEntry> chunk = new ArrayList<>();
+        StreamEntries streamEntries = mStreams.get(stream);
+        if( streamEntries == null )
+            return chunk;
+
+        List<StoredEntry> leased = new ArrayList<>();
+        for (int priority = lastSentIds.length - 1; priority >= 0 && chunk.size() < maxCount; priority--) {
+            int count = Math.min(maxCount - chunk.size(), priorityBudgets[priority]);
+            if( count <= 0 )
+                continue;
+
+            for (StoredEntry entry : streamEntries.getUnstored(priority).tailMap(lastSentIds[priority], false).values()) {
+                if( count == 0 )
+                    break;
+                if( entry.mLeaseId != 0 )
+                    continue;
+
+                entry.mLeaseId = leaseId;
+                leased.add(entry);
+                chunk.add(entry.mEntry);
+                lastSentIds[priority] = entry.mEntry.id;
+                count--;
+            }
+        }
+
+        if( !leased.isEmpty() )
+            mLeases.put(leaseId, leased);
+        return chunk;
+    }
+
+
+    @Override
+    public synchronized List<RawLocalEntry> getLeasedEntries(long leaseId) {
+        List<RawLocalEntry> entries = new ArrayList<>();
+        List<StoredEntry> leased = mLeases.get(leaseId);
+        if( leased != null ) {
+            for (StoredEntry entry : leased) {
+                if( !entry.mStored && !entry.mDeleted )
+                    entries.add(entry.mEntry);
+            }
+        }
+        return entries;
+    }
+
+
+    @Override
+    public synchronized void acknowledge(List<String> uuids, boolean delete, long leaseId) {
+        for (String uuid : uuids) {
+            StoredEntry entry = mByUuid.get(uuid);
+            if( entry == null )
+                continue;
+
+            if( delete ) {
+                remove(entry);
+            }
+            else if( !entry.mStored ) {
+                entry.mStored = true;
+                getStream(entry.mEntry.stream).removeUnstored(entry);
+            }
+        }
+
+        if( leaseId != 0 )
+            releaseLease(leaseId);
+    }
+
+
+    @Override
+    public synchronized int acknowledgeThrough(long leaseId, long storedThroughId, long[] notStoredIds, boolean delete) {
+        List<StoredEntry> leased = mLeases.remove(leaseId);
+        if( leased == null )
+            return 0;
+
+        long[] sortedNotStoredIds = notStoredIds.clone();
+        Arrays.sort(sortedNotStoredIds);
+        int count = 0;
+        for (StoredEntry entry : leased) {
+            if( entry.mLeaseId != leaseId )
+                continue;
+            entry.mLeaseId = 0;
+
+            long id = entry.mEntry.id;
+            if( entry.mStored || entry.mDeleted || id > storedThroughId || Arrays.binarySearch(sortedNotStoredIds, id) >= 0 )
+                continue;
+
+            if( delete ) {
+                remove(entry);
+            }
+            else {
+                entry.mStored = true;
+                getStream(entry.mEntry.stream).removeUnstored(entry);
+            }
+            count++;
+        }
+        return count;
+    }
+
+
+    @Override
+    public synchronized void releaseLease(long leaseId) {
+        List<StoredEntry> leased = mLeases.remove(leaseId);
+        if( leased != null ) {
+            for (StoredEntry entry : leased) {
+                if( entry.mLeaseId == leaseId )
+                    entry.mLeaseId = 0;
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized void releaseFromLease(long leaseId, long[] ids) {
+        List<StoredEntry> leased = mLeases.get(leaseId);
+        if( leased == null )
+            return;
+
+        long[] sortedIds = ids.clone();
+        Arrays.sort(sortedIds);
+        for (Iterator<StoredEntry> iterator = leased.iterator(); iterator.hasNext(); ) {
+            StoredEntry entry = iterator.next();
+            if( entry.mLeaseId == leaseId && Arrays.binarySearch(sortedIds, entry.mEntry.id) >= 0 ) {
+                entry.mLeaseId = 0;
+                iterator.remove();
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized long getMaxLeaseId() {
+        long maxLeaseId = 0;
+        for (Map.Entry<Long, List<StoredEntry>> lease : mLeases.entrySet()) {
+            if( lease.getKey() > maxLeaseId && !lease.getValue().isEmpty() )
+                maxLeaseId = lease.getKey();
+        }
+        return maxLeaseId;
+    }
+
+
+    @Override
+    public synchronized void releaseAllLeases() {
+        List<StoredEntry> quarantined = mLeases.remove(QUARANTINED_LEASE_ID);
+        for (List<StoredEntry> leased : mLeases.values()) {
+            for (StoredEntry entry : leased)
+                entry.mLeaseId = 0;
+        }
+        mLeases.clear();
+        if( quarantined != null )
+            mLeases.put(QUARANTINED_LEASE_ID, quarantined);
+    }
+
+
+    @Override
+    public synchronized void quarantine(long leaseId) {
+        List<StoredEntry> leased = mLeases.remove(leaseId);
+        if( leased == null )
+            return;
+
+        List<StoredEntry> quarantined = mLeases.get(QUARANTINED_LEASE_ID);
+        if( quarantined == null ) {
+            quarantined = new ArrayList<>();
+            mLeases.put(QUARANTINED_LEASE_ID, quarantined);
+        }
+        for (StoredEntry entry : leased) {
+            if( entry.mLeaseId == leaseId && !entry.mStored && !entry.mDeleted ) {
+                entry.mLeaseId = QUARANTINED_LEASE_ID;
+                quarantined.add(entry);
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized int releaseQuarantined(String stream) {
+        List<StoredEntry> quarantined = mLeases.get(QUARANTINED_LEASE_ID);
+        if( quarantined == null )
+            return 0;
+
+        int count = 0;
+        for (Iterator<StoredEntry> iterator = quarantined.iterator(); iterator.hasNext(); ) {
+            StoredEntry entry = iterator.next();
+            if( entry.mLeaseId != QUARANTINED_LEASE_ID ) {
+                iterator.remove();
+            }
+            else if( entry.mEntry.stream.equals(stream) ) {
+                entry.mLeaseId = 0;
+                iterator.remove();
+                if( !entry.mDeleted )
+                    count++;
+            }
+        }
+        return count;
+    }
+
+
+    @Override
+    public synchronized void deleteStored(String stream) {
+        StreamEntries streamEntries = mStreams.get(stream);
+        if( streamEntries == null )
+            return;
+
+        Iterator<StoredEntry> iterator = streamEntries.mAll.values().iterator();
+        while( iterator.hasNext() ) {
+            StoredEntry entry = iterator.next();
+            if( entry.mStored ) {
+                iterator.remove();
+                entry.mDeleted = true;
+                mByUuid.remove(entry.mEntry.uuid);
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized void deleteAll(String stream) {
+        StreamEntries streamEntries = mStreams.remove(stream);
+        if( streamEntries == null )
+            return;
+
+        for (StoredEntry entry : streamEntries.mAll.values()) {
+            entry.mDeleted = true;
+            mByUuid.remove(entry.mEntry.uuid);
+        }
+    }
+
+
+    @Override
+    public synchronized long countEntries(String stream) {
+        StreamEntries streamEntries = mStreams.get(stream);
+        return streamEntries != null ? streamEntries.mAll.size() : 0;
+    }
+
+
+    @Override
+    public synchronized long countUnstoredEntries(String stream) {
+        StreamEntries streamEntries = mStreams.get(stream);
+        return streamEntries != null ? streamEntries.mUnstoredCount : 0;
+    }
+
+
+    private StreamEntries getStream(String stream) {
+        StreamEntries streamEntries = mStreams.get(stream);
+        if( streamEntries == null ) {
+            streamEntries = new StreamEntries();
+            mStreams.put(stream, streamEntries);
+        }
+        return streamEntries;
+    }
+
+
+    private void remove(StoredEntry entry) {
+        entry.mDeleted = true;
+        mByUuid.remove(entry.mEntry.uuid);
+
+        StreamEntries streamEntries = getStream(entry.mEntry.stream);
+        streamEntries.mAll.remove(entry.mEntry.id);
+        if( !entry.mStored )
+            streamEntries.removeUnstored(entry);
+    }
+}
@@ -0,0 +1,43 @@
+package com.magnuswikhog.remotedb.database;
+
+import android.arch.persistence.room.Ignore;
+
+
+/**
+ * A row of the local entry table with the entry left in its stored form, see
+ * {@link Converters#codecFor(byte[])} for how to read it.
+ */
+public class RawLocalEntry {
+    public long id;
+
+    public String uuid;
+
+    public byte[] entry;
+
+    /**
+     * Only used when inserting, the queries that return raw entries are all for a single stream.
+     */
+    @Ignore
+    public String stream;
+
+    /**
+     * Only used when inserting, see LocalEntry.priority.
+     */
+    @Ignore
+    public int priority;
+
+
+
+    public RawLocalEntry(){}
+
+    /**
+     * @param entry An entry encoded with the current entry codec, see {@link Converters#getEntryCodec()}.
+     */
+    @Ignore
+    public RawLocalEntry(String stream, int priority, String uuid, byte[] entry){
+        this.stream = stream;
+        this.priority = priority;
+        this.uuid = uuid;
+        this.entry = entry;
+    }
+}
@@ -0,0 +1,240 @@
+package com.magnuswikhog.remotedb.engine;
+
+import com.magnuswikhog.remotedb.EntryIngestQueue;
+import com.magnuswikhog.remotedb.RemoteDbExecutors;
+import com.magnuswikhog.remotedb.database.EntryStore;
+import com.magnuswikhog.remotedb.metrics.RemoteDbMetrics;
+import com.magnuswikhog.remotedb.upload.UploadScheduler;
+import com.magnuswikhog.remotedb.upload.UploadTransport;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Everything that the {@link UploadEngine}s of several streams share: the entry store, its ingest
+ * queue and writer thread, the upload threads, the transport, the metrics, and a scheduler which
+ * divides the in-flight upload requests fairly between the streams.
+ * <p>
+ * On Android, a RemoteDbEnvironment creates one over the Room database. On a server JVM, create
+ * one directly:
+ * <pre>
+ * EngineEnvironment environment = new EngineEnvironment(new MemoryEntryStore(),
+ *         RemoteDbExecutors.createDefault(), new HttpUrlConnectionTransport());
+ * UploadEngine events = new UploadEngine(environment, "events", eventsUrl, password, hostName);
+ * events.addEntry(entry, UploadEngine.PRIORITY_NORMAL);
+ * events.sendToServer(false);
+ * ...
+ * environment.close();
+ * </pre>
+ */
+public class EngineEnvironment {
+    private static final String TAG = "EngineEnvironment";
+
+    private final EntryStore mStore;
+    private final RemoteDbExecutors mExecutors;
+    private final UploadTransport mTransport;
+    private final EngineLogger mLogger;
+    private final RemoteDbMetrics mMetrics = new RemoteDbMetrics();
+    private final EntryIngestQueue mIngestQueue;
+    private final UploadScheduler mUploadScheduler;
+    private final AtomicLong mNextLeaseId = new AtomicLong();
+    /** Completes when the stale leases have been released, see the constructor. */
+    private final Future<Void> mLeasesReleased;
+    private volatile boolean mLeasesReleasedChecked;
+    private ScheduledExecutorService mTimer;
+    private boolean mClosed;
+    private Future<Void> mLastWrite;
+
+
+    /**
+     * Creates an environment which logs warnings and errors to System.err.
+     */
+    public EngineEnvironment(EntryStore store, RemoteDbExecutors executors, UploadTransport transport) {
+        this(store, executors, transport, EngineLogger.STDERR);
+    }
+
+
+    /**
+     * @param store     Where the entries are kept until the server has stored them.
+     * @param executors The executors to run store writes and uploads on.
+     * @param transport The transport to send requests with.
+     * @param logger    Receives the log messages of the ingest queue and the engines.
+     */
+    public EngineEnvironment(final EntryStore store, RemoteDbExecutors executors, UploadTransport transport, EngineLogger logger) {
+        mStore = store;
+        mExecutors = executors;
+        mTransport = transport;
+        mLogger = logger;
+        mIngestQueue = new EntryIngestQueue(store, executors.getDatabaseWriter(), mMetrics, logger);
+        mUploadScheduler = new UploadScheduler(executors.getUpload());
+
+        // Leases only live as long as the process, any left in the store are stale. New ids start
+        // above them, in case the release fails.
+        mLeasesReleased = mExecutors.submitWrite(new Runnable() {
+            @Override
+            public void run() {
+                mNextLeaseId.set(Math.max(0, store.getMaxLeaseId()));
+                store.releaseAllLeases();
+            }
+        });
+    }
+
+
+    /**
+     * Sets how many upload requests may be sent but not yet answered, in total for all streams.
+     * Each stream can be limited further with {@link UploadEngine#setMaxInFlightChunks(int)}.
+     */
+    public void setMaxInFlightChunks(int maxInFlightChunks) {
+        mUploadScheduler.setMaxInFlight(maxInFlightChunks);
+    }
+
+
+    public int getMaxInFlightChunks() {
+        return mUploadScheduler.getMaxInFlight();
+    }
+
+
+    /**
+     * Entries added to any stream are buffered in memory and written to the store in batches, one
+     * transaction per batch.
+     * @see EntryIngestQueue#setBatching(int, long)
+     */
+    public void setIngestBatching(int maxBatchSize, long maxDelayMillis) {
+        mIngestQueue.setBatching(maxBatchSize, maxDelayMillis);
+    }
+
+
+    /**
+     * @see EntryIngestQueue#setBackpressure(int, EntryIngestQueue.Backpressure)
+     */
+    public void setIngestBackpressure(int capacity, EntryIngestQueue.Backpressure backpressure) {
+        mIngestQueue.setBackpressure(capacity, backpressure);
+    }
+
+
+    /**
+     * @return The metrics of the ingest and upload pipeline of all streams. They are disabled until
+     * {@link RemoteDbMetrics#setEnabled(boolean)} is called.
+     */
+    public RemoteDbMetrics getMetrics() {
+        return mMetrics;
+    }
+
+
+    public EntryStore getStore() {
+        return mStore;
+    }
+
+
+    public RemoteDbExecutors getExecutors() {
+        return mExecutors;
+    }
+
+
+    public UploadTransport getTransport() {
+        return mTransport;
+    }
+
+
+    public EntryIngestQueue getIngestQueue() {
+        return mIngestQueue;
+    }
+
+
+    public UploadScheduler getUploadScheduler() {
+        return mUploadScheduler;
+    }
+
+
+    public EngineLogger getLogger() {
+        return mLogger;
+    }
+
+
+    /**
+     * Writes the buffered entries to the store and stops the environment's threads: the ingest
+     * thread, the retry timer, and the executors if they were created by
+     * {@link RemoteDbExecutors#createDefault()} (so don't share those with an environment that stays
+     * open). Retries that are still pending are dropped, and
+     * their entries are sent again by the next environment over the same store. The engines of the
+     * environment can't be used afterwards. Must not be called on the main thread or on the
+     * database writer thread, since it waits for the buffered entries to be written.
+     * @return A future which completes when the writes submitted before this call have run.
+     */
+    public synchronized Future<Void> close() {
+        if( mClosed )
+            return mLastWrite;
+        mClosed = true;
+        if( mTimer != null )
+            mTimer.shutdownNow();
+
+        try {
+            mIngestQueue.close();
+        }
+        catch (IllegalStateException e) {
+            mLogger.error(TAG, "Buffered entries were lost when closing", e);
+        }
+
+        mLastWrite = mExecutors.submitWrite(NO_OP);
+        mExecutors.shutdown();
+        return mLastWrite;
+    }
+
+
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+
+    /**
+     * Lease ids identify chunks in the shared store, so they must be unique across streams. Waits
+     * until the stale leases have been released, so that the release can't clear the new lease.
+     */
+    long nextLeaseId() {
+        if( !mLeasesReleasedChecked ) {
+            try {
+                mLeasesReleased.get();
+                mLeasesReleasedChecked = true;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e) {
+                mLeasesReleasedChecked = true;
+                mLogger.error(TAG, "Failed to release the stale leases", e.getCause());
+            }
+        }
+        return mNextLeaseId.incrementAndGet();
+    }
+
+
+    /**
+     * @return A daemon thread which runs the retry timers of all streams. It only starts the tasks,
+     * the retries themselves run on the upload executor.
+     * @throws RejectedExecutionException If the environment has been closed.
+     */
+    synchronized ScheduledExecutorService getTimer() {
+        if( mClosed )
+            throw new RejectedExecutionException("The environment has been closed");
+        if( mTimer == null ) {
+            mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "RemoteDb-timer");
+                    thread.setPriority(RemoteDbExecutors.BACKGROUND_PRIORITY);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mTimer;
+    }
+}
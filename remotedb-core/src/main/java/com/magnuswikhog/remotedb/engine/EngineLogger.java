@@ -0,0 +1,51 @@
+package com.magnuswikhog.remotedb.engine;
+
+
+/**
+ * Where the engine writes its log messages: Logcat on Android, and whatever logging framework the
+ * host uses on a server JVM.
+ */
+public interface EngineLogger {
+
+    /**
+     * Prints warnings and errors to System.err, and no debug messages.
+     */
+    EngineLogger STDERR = new EngineLogger() {
+        @Override
+        public boolean isDebugEnabled() {
+            return false;
+        }
+
+        @Override
+        public void debug(String tag, String message) {
+        }
+
+        @Override
+        public void warn(String tag, String message) {
+            System.err.println(tag + ": " + message);
+        }
+
+        @Override
+        public void error(String tag, String message, Throwable error) {
+            System.err.println(tag + ": " + message);
+            if( error != null )
+                error.printStackTrace();
+        }
+    };
+
+
+    /**
+     * Debug messages are only built when this returns true, since some of them need database
+     * queries.
+     */
+    boolean isDebugEnabled();
+
+    void debug(String tag, String message);
+
+    void warn(String tag, String message);
+
+    /**
+     * @param error What went wrong, may be null.
+     */
+    void error(String tag, String message, Throwable error);
+}
@@ -0,0 +1,1257 @@
+package com.magnuswikhog.remotedb.engine;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.EntryBuilder;
+import com.magnuswikhog.remotedb.EntryIngestQueue;
+import com.magnuswikhog.remotedb.RemoteDbExecutors;
+import com.magnuswikhog.remotedb.database.Converters;
+import com.magnuswikhog.remotedb.database.EntryStore;
+import com.magnuswikhog.remotedb.database.RawLocalEntry;
+import com.magnuswikhog.remotedb.metrics.RemoteDbMetrics;
+import com.magnuswikhog.remotedb.upload.AdaptiveChunkSizer;
+import com.magnuswikhog.remotedb.upload.ChunkBodyWriter;
+import com.magnuswikhog.remotedb.upload.ChunkResponse;
+import com.magnuswikhog.remotedb.upload.ContentEncoding;
+import com.magnuswikhog.remotedb.upload.CountingOutputStream;
+import com.magnuswikhog.remotedb.upload.RetryScheduler;
+import com.magnuswikhog.remotedb.upload.UploadScheduler;
+import com.magnuswikhog.remotedb.upload.UploadStatsListener;
+import com.magnuswikhog.remotedb.upload.UploadTransport;
+
+import org.json.JSONArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Sends the entries of a single stream to the server: reads them from the {@link EntryStore} in
+ * chunks, serializes and posts each chunk, acknowledges the entries that the server has stored,
+ * and retries the chunks that failed. It has no Android dependencies, so the same engine runs
+ * inside RemoteDb on a device and on its own on a server JVM.
+ * <p>
+ * All methods can be called on any thread, and the outcome of each request is reported to the
+ * {@link Listener} on whatever thread the transport calls back on.
+ */
+public class UploadEngine {
+    private static final String TAG = "UploadEngine";
+
+    /**
+     * Entry priorities, see {@link UploadEngine#addEntry(Entry, int)}. Unstored entries are sent in
+     * order of priority, highest first, and within each priority in the order they were added.
+     */
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+    private static final int PRIORITY_COUNT = PRIORITY_HIGH + 1;
+
+
+    /**
+     * Receives the outcome of each request. Called on the transport's callback thread, so
+     * implementations should be quick and thread-safe.
+     */
+    public interface Listener {
+        /** Called when the server has acknowledged that it has successfully stored the sent entries. */
+        void onSendSucceeded();
+
+        /** Called if there was a problem when sending or storing the entries on the server. */
+        void onSendFailed();
+
+        /** Called with the total number of entries on the server, which it sends with each successful response. */
+        void onServerEntryCount(long serverEntryCount);
+    }
+
+
+    private final EngineEnvironment mEnvironment;
+    private final String mStream;
+    private final EntryStore mStore;
+    private final RemoteDbExecutors mExecutors;
+    private final UploadTransport mTransport;
+    private final EntryIngestQueue mIngestQueue;
+    private final RemoteDbMetrics mMetrics;
+    private final EngineLogger mLog;
+
+    private final String mStoreUrl;
+    private final String mPassword;
+    private volatile String mDeviceId;
+    private volatile Listener mListener;
+    private volatile boolean mDeleteAfterStore;
+    private volatile Entry mRequestParams = new Entry();
+
+    /**
+     * Each HTTP request to the server will contain at most this many entries. Useful to prevent
+     * trying to send a single giant JSON request with thousands of entries.
+     */
+    private volatile int mSendToServerEntryChunkSize = 100;
+
+    /** The max number of entries of each priority in a chunk, indexed by priority. */
+    private final int[] mPriorityChunkBudgets = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+
+    /**
+     * If set, chunk sizes are adapted between a min and max entry count (the max being
+     * mSendToServerEntryChunkSize) based on how previous requests went.
+     */
+    private volatile AdaptiveChunkSizer mChunkSizer;
+
+    /** The max number of chunks that are sent to the server but not yet answered. */
+    private volatile int mMaxInFlightChunks = 4;
+    /** If true, chunks are sent one at a time in sequence order. */
+    private volatile boolean mPreserveUploadOrder;
+    private long mAdaptiveChunkTargetBytes = 64 * 1024;
+    private long mAdaptiveChunkTargetRoundTripMillis = 2000;
+
+
+    private volatile ContentEncoding mUploadEncoding = ContentEncoding.IDENTITY;
+    /** True once the server has accepted a request compressed with mUploadEncoding. */
+    private volatile boolean mUploadEncodingConfirmed;
+    private volatile UploadStatsListener mUploadStatsListener;
+    /** Used as initial buffer size when building the next request body. */
+    private int mLastEncodedChunkBytes = 1024;
+    /** If true, requests ask the server to acknowledge by sequence number instead of by UUID. */
+    private volatile boolean mSequenceAcknowledgements;
+
+
+    private final Object mSessionLock = new Object();
+    private UploadSession mActiveSession;
+    private boolean mFollowUpSessionRequested;
+    /** The chunks of this engine that are sent but not yet answered, retries included. */
+    private int mInFlightChunkCount;
+    /** The failed chunks that are waiting for a retry or being retried. */
+    private int mRetryingChunkCount;
+    /** True if a session was stopped by a failed chunk, and should continue once it is retried. */
+    private boolean mResumeAfterRetries;
+
+    private final RetryScheduler mRetryScheduler = new RetryScheduler();
+    private final Object mRetryCheckLock = new Object();
+    private ScheduledFuture<?> mRetryCheck;
+
+
+    /**
+     * @param environment   The environment that the stream lives in.
+     * @param stream        The name of the stream. Use a single engine per stream.
+     * @param storeUrl      The URL for the RemoteDb server script.
+     * @param password      The password to send to the RemoteDb server script.
+     * @param deviceId      Identifies the sender in each request, e.g. the Android id or the host
+     *                      name.
+     */
+    public UploadEngine(EngineEnvironment environment, String stream, String storeUrl, String password, String deviceId) {
+        mEnvironment = environment;
+        mStream = stream;
+        mStore = environment.getStore();
+        mExecutors = environment.getExecutors();
+        mTransport = environment.getTransport();
+        mIngestQueue = environment.getIngestQueue();
+        mMetrics = environment.getMetrics();
+        mLog = environment.getLogger();
+
+        mStoreUrl = storeUrl;
+        mPassword = password;
+        mDeviceId = deviceId;
+    }
+
+
+    /**
+     * Adds an entry to the stream. The entry is encoded right away, so changing it afterwards
+     * doesn't affect what is stored. See {@link EntryIngestQueue} for how it gets to the store.
+     * @param priority  One of {@link UploadEngine#PRIORITY_LOW}, {@link UploadEngine#PRIORITY_NORMAL}
+     *                  and {@link UploadEngine#PRIORITY_HIGH}.
+     */
+    public void addEntry(Entry entry, int priority) {
+        addEncodedEntry(Converters.entryToBytes(entry), priority);
+    }
+
+
+    /**
+     * Like {@link UploadEngine#addEntry(Entry, int)}, but takes the fields from a builder, which is
+     * encoded directly to the storage format. The builder can be reused right away.
+     */
+    public void addEntry(EntryBuilder builder, int priority) {
+        addEncodedEntry(Converters.getEntryCodec().encode(builder), priority);
+    }
+
+
+    /**
+     * Adds an entry that is already encoded with one of the codecs that {@link Converters} reads.
+     */
+    public void addEncodedEntry(byte[] bytes, int priority) {
+        mIngestQueue.add(new RawLocalEntry(mStream, clampPriority(priority), UUID.randomUUID().toString(), bytes));
+    }
+
+
+    private static int clampPriority(int priority) {
+        return Math.max(PRIORITY_LOW, Math.min(PRIORITY_HIGH, priority));
+    }
+
+
+    /**
+     * Writes all buffered entries to the store, and waits until they have been committed. Must not
+     * be called on the database writer executor.
+     */
+    public void flush() {
+        mIngestQueue.flush();
+
+        if( mLog.isDebugEnabled() )
+            mLog.debug(TAG, "flush()    allEntriesCount=" + mStore.countEntries(mStream) + "    unstoredEntriesCount=" + mStore.countUnstoredEntries(mStream));
+    }
+
+
+    /**
+     * Sends all entries in the store that have not yet been stored on the server, to the server.
+     * This is done asynchronously, and the outcome of each request is reported to the
+     * {@link Listener}.
+     * @param sendRequestEvenIfEmpty    It true, a HTTP request will be sent to the server even if
+     *                                  there are no entries to send. Useful for retrieving the number
+     *                                  of entries on the server.
+     * @return A future which completes when the entries added before this call have been written
+     *         to the store and the upload of them has started (or been merged into an upload that
+     *         is already running).
+     */
+    public Future<Void> sendToServer(final boolean sendRequestEvenIfEmpty) {
+        return mExecutors.submitUpload(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Make sure entries added before this call are included. If they can't be
+                    // written right now, the entries that are already in the store are sent anyway.
+                    try {
+                        mIngestQueue.flush();
+                    }
+                    catch (IllegalStateException e) {
+                        mLog.error(TAG, "sendToServer()    failed to write the buffered entries", e);
+                    }
+
+                    if( mLog.isDebugEnabled() )
+                        mLog.debug(TAG, "sendToServer()    allEntriesCount=" + mStore.countEntries(mStream) + "    unstoredEntriesCount=" + mStore.countUnstoredEntries(mStream));
+
+                    UploadSession runningSession;
+                    synchronized (mSessionLock) {
+                        runningSession = mActiveSession;
+                        if( runningSession == null ) {
+                            // While the server is failing, only the failed chunks are sent (on their
+                            // retry schedule), and a new session starts once they have gone through
+                            if( mRetryingChunkCount > 0 ) {
+                                mFollowUpSessionRequested = true;
+                                if( mLog.isDebugEnabled() )
+                                    mLog.debug(TAG, "sendToServer()    deferred until " + mRetryingChunkCount + " failed chunks have been retried");
+                                return;
+                            }
+                            mActiveSession = new UploadSession(sendRequestEvenIfEmpty, mDeviceId, String.valueOf(mRequestParams));
+                        }
+                    }
+
+                    if( runningSession == null )
+                        mEnvironment.getUploadScheduler().requestSend(mUploadStream);
+                    else
+                        mergeIntoRunningSession(runningSession);
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Only one session runs at a time. As long as the running session hasn't run out of entries,
+     * it will pick up the ones that were just flushed, so there's nothing more to do. Otherwise a
+     * single follow-up session is asked for, no matter how many times sendToServer() is called in
+     * the meantime.
+     * <p>
+     * The session is asked without holding mSessionLock, since a session takes mSessionLock while
+     * it sends a chunk. If it finishes in the meantime, the follow-up is started here instead.
+     */
+    private void mergeIntoRunningSession(UploadSession session) {
+        if( !session.isExhausted() ) {
+            if( mLog.isDebugEnabled() )
+                mLog.debug(TAG, "sendToServer()    merged into running session");
+            return;
+        }
+
+        synchronized (mSessionLock) {
+            mFollowUpSessionRequested = true;
+        }
+        if( mLog.isDebugEnabled() )
+            mLog.debug(TAG, "sendToServer()    follow-up session requested");
+        startFollowUpSessionIfDue();
+    }
+
+
+    /**
+     * @return True if an upload started by {@link UploadEngine#sendToServer(boolean)} is still
+     *         running. Failed chunks that are waiting for a retry don't count.
+     */
+    public boolean isSending() {
+        synchronized (mSessionLock) {
+            return mActiveSession != null;
+        }
+    }
+
+
+    /**
+     * Called when a session has no more entries to send (or was stopped by a failed chunk) and all
+     * its chunks have been answered.
+     */
+    private void onSessionFinished(UploadSession session) {
+        synchronized (mSessionLock) {
+            if( mActiveSession != session )
+                return;
+            mActiveSession = null;
+        }
+        startFollowUpSessionIfDue();
+    }
+
+
+    /**
+     * Starts a new session if one has been asked for, once no session is running and no failed
+     * chunks are waiting for a retry.
+     */
+    private void startFollowUpSessionIfDue() {
+        synchronized (mSessionLock) {
+            if( mActiveSession != null || mRetryingChunkCount > 0 || !(mFollowUpSessionRequested || mResumeAfterRetries) )
+                return;
+            mFollowUpSessionRequested = false;
+            mResumeAfterRetries = false;
+        }
+        sendToServer(false);
+    }
+
+
+    /**
+     * Stops the running session from leasing more chunks, e.g. because the server is failing. Its
+     * chunks in flight are still answered.
+     */
+    private void stopActiveSession() {
+        UploadSession session;
+        synchronized (mSessionLock) {
+            session = mActiveSession;
+        }
+        if( session != null )
+            session.stop();
+    }
+
+
+    /**
+     * A single pass over the unstored entries, started by {@link UploadEngine#sendToServer(boolean)}.
+     * <p>
+     * Chunks are built lazily: a new chunk is only read and serialized when there is a free slot in
+     * the in-flight window (see {@link UploadEngine#setMaxInFlightChunks(int)}), so a large backlog
+     * is never materialized in memory all at once. The entries of each chunk are leased in the same
+     * transaction as they are read, so that no other upload sends them until the chunk has been
+     * acknowledged or given up on.
+     * <p>
+     * Each chunk is filled with the unstored entries of the highest priority first, within the
+     * budget of each priority (see {@link UploadEngine#setPriorityChunkBudget(int, int)}). Entries
+     * of a higher priority that are added while the session is running still go out in the next
+     * chunk.
+     * <p>
+     * Each priority is walked with its own keyset cursor on the id instead of an offset. An offset
+     * has to be skipped row by row on every chunk, and since acknowledgements may commit while the
+     * session is still running, the unstored set can shrink under us and make later offsets skip
+     * entries that were never sent.
+     */
+    private class UploadSession {
+        private final boolean mSendRequestEvenIfEmpty;
+        private final String mDeviceId;
+        private final String mRequestParamsJson;
+
+        /** The id of the last entry sent so far, indexed by priority. */
+        private final long[] mLastSentIds = new long[PRIORITY_COUNT];
+        private int mInFlightCount;
+        private boolean mSentAnyRequest;
+        private boolean mExhausted;
+
+        UploadSession(boolean sendRequestEvenIfEmpty, String deviceId, String requestParamsJson) {
+            mSendRequestEvenIfEmpty = sendRequestEvenIfEmpty;
+            mDeviceId = deviceId;
+            mRequestParamsJson = requestParamsJson;
+        }
+
+
+        synchronized boolean isExhausted() {
+            return mExhausted;
+        }
+
+
+        /**
+         * Leases no more chunks. The session finishes once its chunks in flight have been answered.
+         */
+        void stop() {
+            boolean finished;
+            synchronized (this) {
+                mExhausted = true;
+                finished = mInFlightCount == 0;
+            }
+            if( finished )
+                onSessionFinished(this);
+        }
+
+
+        /**
+         * Builds and sends the next chunk, unless there are no more unstored entries. Called by the
+         * upload scheduler when this stream gets a free slot and the engine's in-flight window
+         * isn't full.
+         * @return True if a chunk was sent.
+         */
+        boolean sendNextChunk() {
+            boolean sent = false;
+            boolean finished;
+            synchronized (this) {
+                if( !mExhausted ) {
+                    long leaseId = mEnvironment.nextLeaseId();
+                    List<RawLocalEntry> unstoredEntries = mStore.leaseNextChunk(mStream, mLastSentIds, mPriorityChunkBudgets, getNextChunkSize(), leaseId);
+                    boolean send = true;
+                    if( unstoredEntries.isEmpty() ) {
+                        mExhausted = true;
+                        send = !mSentAnyRequest && mSendRequestEvenIfEmpty;
+                        leaseId = 0;
+                    }
+
+                    if( send ) {
+                        // Counted first, the transport may answer before post() returns
+                        mInFlightCount++;
+                        try {
+                            sendChunk(this, null, leaseId, unstoredEntries, mDeviceId, mRequestParamsJson);
+                            mSentAnyRequest = true;
+                            sent = true;
+                        }
+                        catch (Exception e) {
+                            e.printStackTrace();
+                            mInFlightCount--;
+                            releaseLease(leaseId);
+                            mExhausted = true;
+                        }
+                    }
+                }
+
+                if( mLog.isDebugEnabled() )
+                    mLog.debug(TAG, "sendNextChunk()    stream=" + mStream + "   lastSentIds=" + Arrays.toString(mLastSentIds) + "   inFlightCount=" + mInFlightCount + "   exhausted=" + mExhausted);
+
+                finished = mExhausted && mInFlightCount == 0;
+            }
+
+            if( finished )
+                onSessionFinished(this);
+            return sent;
+        }
+
+
+        /**
+         * Called when a chunk of the session has been answered (or has failed).
+         */
+        void onChunkDone() {
+            boolean finished;
+            synchronized (this) {
+                mInFlightCount--;
+                finished = mExhausted && mInFlightCount == 0;
+            }
+
+            if( finished )
+                onSessionFinished(this);
+        }
+    }
+
+
+    /**
+     * This engine's stream as seen by the upload scheduler. Each free slot goes to a failed chunk
+     * whose retry is due, if there is one, and otherwise to the next chunk of the active session.
+     * Either way the chunk counts against the engine's in-flight window.
+     */
+    private final UploadScheduler.Stream mUploadStream = new UploadScheduler.Stream() {
+        @Override
+        public boolean sendNextChunk() {
+            UploadSession session;
+            synchronized (mSessionLock) {
+                if( mInFlightChunkCount >= getEffectiveMaxInFlightChunks() )
+                    return false;
+                session = mActiveSession;
+            }
+
+            if( sendDueRetry() )
+                return true;
+            return session != null && session.sendNextChunk();
+        }
+    };
+
+
+    /**
+     * Sends the failed chunk whose retry is due first, if any.
+     * @return True if a chunk was sent.
+     */
+    private boolean sendDueRetry() {
+        String deviceId = mDeviceId;
+        String requestParamsJson = String.valueOf(mRequestParams);
+        RetryScheduler.PendingRetry retry;
+        while( (retry = mRetryScheduler.takeNextDue()) != null ) {
+            try {
+                // Entries in the chunk may have been stored or removed since it failed
+                List<RawLocalEntry> entries = mStore.getLeasedEntries(retry.chunkId);
+                if( !entries.isEmpty() ) {
+                    sendChunk(null, retry, retry.chunkId, entries, deviceId, requestParamsJson);
+                    return true;
+                }
+            }
+            catch (Exception e) {
+                mLog.error(TAG, "Failed to resend chunk " + retry.chunkId, e);
+                releaseLease(retry.chunkId);
+            }
+            onRetryFinished(true);
+        }
+        scheduleRetryCheck();
+        return false;
+    }
+
+
+    /**
+     * Called when a chunk that was waiting for a retry has been stored, or given up on.
+     * @param resume    True if the session that the failure stopped should continue.
+     */
+    private void onRetryFinished(boolean resume) {
+        synchronized (mSessionLock) {
+            mRetryingChunkCount--;
+            if( !resume )
+                mResumeAfterRetries = false;
+        }
+        startFollowUpSessionIfDue();
+    }
+
+
+    /**
+     * Builds the request body for a chunk of entries and hands it to the transport. The entries are
+     * copied into the body in their stored form, without being decoded. Entries that can't be read
+     * with the codecs set now are taken out of the lease instead, so the server can't acknowledge
+     * them, and are sent by a later upload. Must be called on a background thread.
+     * @param session   The session the chunk belongs to, or null if it is sent outside of a session.
+     * @param retry     The pending retry if the chunk is being retried, otherwise null.
+     * @param leaseId   The id that the entries are leased with, or 0 for an empty chunk.
+     */
+    private void sendChunk(UploadSession session, RetryScheduler.PendingRetry retry, long leaseId, List<RawLocalEntry> entries, String deviceId, String requestParamsJson) throws IOException {
+        long startNanos = mMetrics.isEnabled() ? System.nanoTime() : 0;
+        ContentEncoding encoding = mUploadEncoding;
+        ByteArrayOutputStream encodedBody = new ByteArrayOutputStream(mLastEncodedChunkBytes);
+        OutputStream encoder = encoding.wrap(encodedBody);
+        CountingOutputStream rawBody = new CountingOutputStream(encoder);
+
+        ChunkBodyWriter bodyWriter = new ChunkBodyWriter(rawBody);
+        bodyWriter.begin(mPassword, deviceId, mSequenceAcknowledgements);
+        List<RawLocalEntry> unreadableEntries = null;
+        for (RawLocalEntry entry : entries) {
+            if( !bodyWriter.writeStoredEntry(Converters.codecFor(entry.entry), entry.entry, entry.id, entry.uuid) ) {
+                if( unreadableEntries == null )
+                    unreadableEntries = new ArrayList<>();
+                unreadableEntries.add(entry);
+            }
+        }
+        bodyWriter.end(requestParamsJson);
+        encoder.close();
+
+        if( unreadableEntries != null ) {
+            mLog.warn(TAG, "Leaving " + unreadableEntries.size() + " entries that can't be read out of chunk " + leaseId + ", has the codec they were stored with been set?");
+            releaseFromLease(leaseId, unreadableEntries);
+        }
+        int entryCount = bodyWriter.getEntryCount();
+
+        byte[] bodyBytes = encodedBody.toByteArray();
+        mLastEncodedChunkBytes = Math.max(1024, bodyBytes.length);
+
+        long firstId = entries.isEmpty() ? 0 : entries.get(0).id;
+        long lastId = entries.isEmpty() ? 0 : entries.get(entries.size() - 1).id;
+        ChunkResponseHandler handler = new ChunkResponseHandler(session, retry, leaseId, firstId, lastId, entryCount, bodyBytes.length, encoding);
+        synchronized (mSessionLock) {
+            mInFlightChunkCount++;
+        }
+
+        // None of the entries could be read, there is nothing to send
+        if( entryCount == 0 && !entries.isEmpty() ) {
+            handler.onNotSent();
+            return;
+        }
+
+        if( startNanos != 0 )
+            mMetrics.recordChunkSent(entryCount, bodyBytes.length, (System.nanoTime() - startNanos) / 1000);
+
+        UploadStatsListener statsListener = mUploadStatsListener;
+        if( statsListener != null )
+            statsListener.onChunkEncoded(entryCount, rawBody.getCount(), bodyBytes.length, encoding);
+
+        if( mLog.isDebugEnabled() )
+            mLog.debug(TAG, "sendChunk()    chunkSize=" + entryCount + "   rawBytes=" + rawBody.getCount() + "   bodyBytes=" + bodyBytes.length + "   encoding=" + encoding);
+
+        mTransport.post(mStoreUrl, bodyBytes, encoding, handler);
+    }
+
+
+    /**
+     * Handles the server response for a single chunk of entries, identified by the id range of the
+     * entries it contained.
+     */
+    private class ChunkResponseHandler implements UploadTransport.Callback {
+        private final UploadSession mSession;
+        private final RetryScheduler.PendingRetry mRetry;
+        private final long mLeaseId;
+        private final long mFirstId;
+        private final long mLastId;
+        private final int mEntryCount;
+        private final int mBodyBytes;
+        private final ContentEncoding mEncoding;
+        /** True once this chunk was a retry, and has been stored or given up on. */
+        private boolean mRetryFinished;
+        private boolean mResumeAfterRetry = true;
+        private final long mSentAtNanos = System.nanoTime();
+
+        ChunkResponseHandler(UploadSession session, RetryScheduler.PendingRetry retry, long leaseId, long firstId, long lastId, int entryCount, int bodyBytes, ContentEncoding encoding) {
+            mSession = session;
+            mRetry = retry;
+            mLeaseId = leaseId;
+            mFirstId = firstId;
+            mLastId = lastId;
+            mEntryCount = entryCount;
+            mBodyBytes = bodyBytes;
+            mEncoding = encoding;
+        }
+
+
+        @Override
+        public void onResponse(ChunkResponse response) {
+            if( mMetrics.isEnabled() )
+                mMetrics.recordChunkCompleted(mEntryCount, getRoundTripMillis(), response.isOk());
+
+            if( handleResponse(response) )
+                onChunkDone();
+        }
+
+
+        @Override
+        public void onError(int statusCode, String retryAfterHeader, Exception error) {
+            if( mMetrics.isEnabled() )
+                mMetrics.recordChunkCompleted(mEntryCount, getRoundTripMillis(), false);
+
+            if( handleError(statusCode, retryAfterHeader, error) )
+                onChunkDone();
+        }
+
+
+        /**
+         * Called instead of posting the chunk, when none of its entries could be read.
+         */
+        void onNotSent() {
+            mRetryFinished = mRetry != null;
+            onChunkDone();
+        }
+
+
+        private long getRoundTripMillis() {
+            return (System.nanoTime() - mSentAtNanos) / 1000000;
+        }
+
+
+        private void onChunkDone() {
+            synchronized (mSessionLock) {
+                mInFlightChunkCount--;
+            }
+            if( mSession != null )
+                mSession.onChunkDone();
+            if( mRetryFinished )
+                onRetryFinished(mResumeAfterRetry);
+            mEnvironment.getUploadScheduler().onChunkDone(mUploadStream);
+        }
+
+
+        /**
+         * @return False if the chunk has been resent, in which case it still occupies its slot.
+         */
+        private boolean handleResponse(ChunkResponse response) {
+            Listener listener = mListener;
+            if( !response.isOk() ) {
+                if( mLog.isDebugEnabled() )
+                    mLog.debug(TAG, "Server error: "+response.toString());
+
+                // A server that doesn't understand compressed bodies can't parse the JSON either
+                if( mayFallBackToIdentity() ) {
+                    resendWithoutCompression();
+                    return false;
+                }
+
+                AdaptiveChunkSizer chunkSizer = mChunkSizer;
+                if( chunkSizer != null )
+                    chunkSizer.onChunkFailed();
+
+                // The request got through, so the error is the server's (e.g. its database is down),
+                // not the chunk's, and it is retried like a connection failure
+                scheduleRetry(0, null, "server error: " + response.getMessage());
+                stopActiveSession();
+
+                if( listener != null )
+                    listener.onSendFailed();
+            }
+            else {
+                if( mEncoding != ContentEncoding.IDENTITY )
+                    mUploadEncodingConfirmed = true;
+
+                AdaptiveChunkSizer chunkSizer = mChunkSizer;
+                if( chunkSizer != null )
+                    chunkSizer.onChunkSucceeded(mEntryCount, mBodyBytes, getRoundTripMillis());
+
+                long receivedAtNanos = mMetrics.isEnabled() ? System.nanoTime() : 0;
+                if( response.hasStoredThrough() ) {
+                    if( mLog.isDebugEnabled() )
+                        mLog.debug(TAG, "onResponse()   storedThrough="+response.getStoredThrough()+"   notStored="+Arrays.toString(response.getNotStored()));
+
+                    acknowledgeThrough(response.getStoredThrough(), response.getNotStored(), mDeleteAfterStore, mLeaseId, receivedAtNanos);
+                }
+                else {
+                    if( mLog.isDebugEnabled() )
+                        mLog.debug(TAG, "onResponse()   storedUuids.size()="+response.getStoredUuids().size());
+
+                    acknowledgeEntries(response.getStoredUuids(), mDeleteAfterStore, mLeaseId, receivedAtNanos);
+                }
+                mRetryFinished = mRetry != null;
+
+                if( listener != null )
+                    listener.onSendSucceeded();
+
+                if( response.getTotalCount() >= 0 && listener != null )
+                    listener.onServerEntryCount(response.getTotalCount());
+            }
+            return true;
+        }
+
+
+        /**
+         * @return False if the chunk has been resent, in which case it still occupies its slot.
+         */
+        private boolean handleError(int statusCode, String retryAfterHeader, Exception error) {
+            if( (statusCode == 415 || statusCode == 400) && mayFallBackToIdentity() ) {
+                resendWithoutCompression();
+                return false;
+            }
+
+            String errorStr = "Upload error: ";
+            errorStr += "HTTP code " + (statusCode != 0 ? statusCode : "(none)") + "   ";
+            errorStr += "Message: " + (error != null && error.getMessage() != null ? error.getMessage() : "(none)");
+            mLog.error(TAG, errorStr, error);
+
+            AdaptiveChunkSizer chunkSizer = mChunkSizer;
+            if( chunkSizer != null )
+                chunkSizer.onChunkFailed();
+
+            scheduleRetry(statusCode, retryAfterHeader, "HTTP code " + (statusCode != 0 ? statusCode : "(none)"));
+            stopActiveSession();
+
+            Listener listener = mListener;
+            if( listener != null )
+                listener.onSendFailed();
+            return true;
+        }
+
+
+        /**
+         * @return True if this chunk was compressed and the server has never accepted a compressed
+         *         request, in which case a rejection most likely means that it doesn't support it.
+         */
+        private boolean mayFallBackToIdentity() {
+            return mEncoding != ContentEncoding.IDENTITY && !mUploadEncodingConfirmed;
+        }
+
+
+        /**
+         * Schedules a retry of the failed chunk, or gives up on it. Until the failed chunks have
+         * been retried, the engine sends nothing else, so a server that is down isn't sent the
+         * whole backlog and the order of the chunks is kept.
+         * <p>
+         * A chunk that the server rejects as invalid is quarantined, so that it isn't sent again
+         * with every sendToServer(), and the rest of the backlog is sent.
+         * @param statusCode    The HTTP status code, or 0 if the failure wasn't an HTTP error.
+         * @param reason        Describes the failure in the log.
+         */
+        private void scheduleRetry(int statusCode, String retryAfterHeader, String reason) {
+            // The empty request sent by sendToServer(true) only fetches the server count, don't retry it
+            if( mEntryCount == 0 )
+                return;
+
+            RetryScheduler.PendingRetry retry = mRetryScheduler.onFailure(mRetry, mLeaseId, statusCode, retryAfterHeader);
+            mMetrics.recordRetry(retry == null);
+            if( retry == null ) {
+                mRetryFinished = mRetry != null;
+                if( isRejectedChunk(statusCode) ) {
+                    mLog.warn(TAG, "Quarantining chunk " + mFirstId + "-" + mLastId + " after " + reason);
+                    quarantine(mLeaseId);
+                    synchronized (mSessionLock) {
+                        mResumeAfterRetries = true;
+                    }
+                }
+                else {
+                    // Most likely the server is down or misconfigured, the rest of the backlog is
+                    // sent with the next sendToServer()
+                    mLog.warn(TAG, "Giving up on chunk " + mFirstId + "-" + mLastId + " after " + reason);
+                    releaseLease(mLeaseId);
+                    mResumeAfterRetry = false;
+                    synchronized (mSessionLock) {
+                        mResumeAfterRetries = false;
+                    }
+                }
+            }
+            else {
+                if( mRetry == null ) {
+                    synchronized (mSessionLock) {
+                        mRetryingChunkCount++;
+                        mResumeAfterRetries = true;
+                    }
+                }
+                if( mLog.isDebugEnabled() )
+                    mLog.debug(TAG, "Retrying chunk " + mFirstId + "-" + mLastId + " in " + (retry.getDueAtMillis() - System.currentTimeMillis()) + " ms");
+            }
+
+            scheduleRetryCheck();
+        }
+
+
+        private void resendWithoutCompression() {
+            mLog.warn(TAG, "Server rejected " + mEncoding + " encoded request, falling back to uncompressed requests");
+            mUploadEncoding = ContentEncoding.IDENTITY;
+
+            mExecutors.submitUpload(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        List<RawLocalEntry> entries = mStore.getLeasedEntries(mLeaseId);
+                        // An empty chunk (see sendToServer()) is resent as is, otherwise skip it if everything is already stored
+                        if( !entries.isEmpty() || mLeaseId == 0 ) {
+                            // The resent chunk takes over this one's slot
+                            synchronized (mSessionLock) {
+                                mInFlightChunkCount--;
+                            }
+                            sendChunk(mSession, mRetry, mLeaseId, entries, mDeviceId, String.valueOf(mRequestParams));
+                        }
+                        else {
+                            mRetryFinished = mRetry != null;
+                            onChunkDone();
+                        }
+                    }
+                    catch (Exception e) {
+                        e.printStackTrace();
+                        mRetryFinished = mRetry != null;
+                        onChunkDone();
+                    }
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Makes sure that {@link UploadEngine#mRetryDueRunnable} runs when the next pending retry is due.
+     */
+    private void scheduleRetryCheck() {
+        long delay = mRetryScheduler.getMillisUntilNextDue();
+        synchronized (mRetryCheckLock) {
+            if( mRetryCheck != null )
+                mRetryCheck.cancel(false);
+            try {
+                mRetryCheck = delay >= 0 ? mEnvironment.getTimer().schedule(mRetryDueRunnable, delay, TimeUnit.MILLISECONDS) : null;
+            }
+            catch (RejectedExecutionException e) {
+                // The environment has been closed
+                mRetryCheck = null;
+            }
+        }
+    }
+
+
+    /**
+     * Asks the upload scheduler for a slot once a retry is due, see {@link UploadEngine#sendDueRetry()}.
+     */
+    private final Runnable mRetryDueRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mEnvironment.getUploadScheduler().requestSend(mUploadStream);
+        }
+    };
+
+
+    /**
+     * Marks the entries with the supplied UUID's in the store as "stored on the server".
+     * @param uuids A list of UUID's, one for each entry to mark as stored.
+     * @param deleteEntries If true, the entries with the supplied UUID's will be deleted from the
+     *                      store instead of being marked as stored. Entries that were marked as
+     *                      stored earlier are left alone, use
+     *                      {@link UploadEngine#removeStoredEntries()} to remove those.
+     * @return A future which completes when the change has been committed.
+     */
+    public Future<Void> markEntriesAsStored(JSONArray uuids, boolean deleteEntries) {
+        List<String> uuidList = new ArrayList<>(uuids.length());
+        for (int i = 0; i < uuids.length(); i++)
+            uuidList.add(uuids.optString(i));
+        return acknowledgeEntries(uuidList, deleteEntries, 0, 0);
+    }
+
+
+    /**
+     * Like {@link UploadEngine#markEntriesAsStored(JSONArray, boolean)}, but also releases the lease
+     * of the chunk that was acknowledged (in the same transaction), so that any entries in it that
+     * the server didn't store can be sent again.
+     * @param receivedAtNanos   When the response was received (System.nanoTime()), to measure the
+     *                          ack latency, or 0 if it isn't measured.
+     */
+    private Future<Void> acknowledgeEntries(final List<String> uuids, final boolean deleteEntries, final long leaseId, final long receivedAtNanos) {
+        return mExecutors.submitWrite(new Runnable() {
+            @Override
+            public void run() {
+                if( mLog.isDebugEnabled() )
+                    mLog.debug(TAG, "Marking "+uuids.size()+" local entries as stored");
+
+                mStore.acknowledge(uuids, deleteEntries, leaseId);
+
+                if( receivedAtNanos != 0 )
+                    mMetrics.recordEntriesAcknowledged(uuids.size(), (System.nanoTime() - receivedAtNanos) / 1000);
+
+                if( mLog.isDebugEnabled() )
+                    mLog.debug(TAG, "markEntriesAsStored()    allEntriesCount=" + mStore.countEntries(mStream) + "    unstoredEntriesCount=" + mStore.countUnstoredEntries(mStream));
+            }
+        });
+    }
+
+
+    /**
+     * Acknowledges the entries of a chunk by sequence number: every entry leased with the chunk's
+     * lease id, up to and including storedThroughId, except those in notStoredIds. The rest of the
+     * chunk is released, to be sent again.
+     */
+    private Future<Void> acknowledgeThrough(final long storedThroughId, final long[] notStoredIds, final boolean deleteEntries, final long leaseId, final long receivedAtNanos) {
+        // The empty request sent by sendToServer(true) has nothing to acknowledge
+        if( leaseId == 0 )
+            return releaseLease(leaseId);
+
+        return mExecutors.submitWrite(new Runnable() {
+            @Override
+            public void run() {
+                int count = mStore.acknowledgeThrough(leaseId, storedThroughId, notStoredIds, deleteEntries);
+
+                if( receivedAtNanos != 0 )
+                    mMetrics.recordEntriesAcknowledged(count, (System.nanoTime() - receivedAtNanos) / 1000);
+
+                if( mLog.isDebugEnabled() )
+                    mLog.debug(TAG, "acknowledgeThrough()    acknowledged=" + count + "    allEntriesCount=" + mStore.countEntries(mStream) + "    unstoredEntriesCount=" + mStore.countUnstoredEntries(mStream));
+            }
+        });
+    }
+
+
+    /**
+     * @return True if the server rejected the content of the chunk, rather than the request.
+     */
+    private static boolean isRejectedChunk(int statusCode) {
+        return statusCode == 400 || statusCode == 413 || statusCode == 422;
+    }
+
+
+    private Future<Void> quarantine(final long leaseId) {
+        return mExecutors.submitWrite(new Runnable() {
+            @Override
+            public void run() {
+                mStore.quarantine(leaseId);
+            }
+        });
+    }
+
+
+    /**
+     * Releases the entries of this stream that were quarantined because the server rejected their
+     * chunk, so that they are sent again with the next {@link UploadEngine#sendToServer(boolean)},
+     * e.g. after the server has been fixed.
+     * @return A future which completes when the entries have been released.
+     */
+    public Future<Void> retryQuarantinedEntries() {
+        return mExecutors.submitWrite(new Runnable() {
+            @Override
+            public void run() {
+                int count = mStore.releaseQuarantined(mStream);
+                if( mLog.isDebugEnabled() )
+                    mLog.debug(TAG, "retryQuarantinedEntries()    released=" + count);
+            }
+        });
+    }
+
+
+    private Future<Void> releaseFromLease(final long leaseId, List<RawLocalEntry> entries) {
+        final long[] ids = new long[entries.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = entries.get(i).id;
+
+        return mExecutors.submitWrite(new Runnable() {
+            @Override
+            public void run() {
+                mStore.releaseFromLease(leaseId, ids);
+            }
+        });
+    }
+
+
+    private Future<Void> releaseLease(final long leaseId) {
+        return mExecutors.submitWrite(new Runnable() {
+            @Override
+            public void run() {
+                if( leaseId != 0 )
+                    mStore.releaseLease(leaseId);
+            }
+        });
+    }
+
+
+    /**
+     * Removes all entries of this stream that are marked as "stored on the server" from the store.
+     * @return A future which completes when the entries have been removed.
+     */
+    public Future<Void> removeStoredEntries() {
+        return mExecutors.submitWrite(new Runnable() {
+            @Override
+            public void run() {
+                if( mLog.isDebugEnabled() )
+                    mLog.debug(TAG, "Removing all stored entries from local DB");
+
+                mStore.deleteStored(mStream);
+            }
+        });
+    }
+
+
+    /**
+     * Removes all entries of this stream from the store (and the ingest buffer), regardless of if
+     * they have been stored on the server or not.
+     * @return A future which completes when the entries have been removed.
+     */
+    public Future<Void> clearLocalEntries() {
+        return mExecutors.submitWrite(new Runnable() {
+            @Override
+            public void run() {
+                if( mLog.isDebugEnabled() )
+                    mLog.debug(TAG, "Clearing local DB");
+
+                mIngestQueue.clear(mStream);
+                mStore.deleteAll(mStream);
+            }
+        });
+    }
+
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+
+    public void setDeviceId(String deviceId) {
+        mDeviceId = deviceId;
+    }
+
+
+    /**
+     * @param deleteAfterStore  If true, entries will be removed from the store as soon as the
+     *                          server has acknowledged that they have been stored.
+     */
+    public void setDeleteAfterStore(boolean deleteAfterStore) {
+        mDeleteAfterStore = deleteAfterStore;
+    }
+
+
+    public boolean getDeleteAfterStore() {
+        return mDeleteAfterStore;
+    }
+
+
+    public Entry getRequestParams() {
+        return mRequestParams;
+    }
+
+
+    /**
+     * Sets an entry that will be supplied with each request to the remote server, for data that is
+     * common for all entries.
+     */
+    public void setRequestParams(Entry requestParams) {
+        mRequestParams = requestParams;
+    }
+
+
+    public int getSendToServerEntryChunk() {
+        return mSendToServerEntryChunkSize;
+    }
+
+
+    /**
+     * Each HTTP request to the server will contain at most this many entries. This disables
+     * adaptive chunk sizing, see {@link UploadEngine#setSendToServerEntryChunkSize(int, int)}.
+     */
+    public void setSendToServerEntryChunkSize(int entryCount) {
+        mSendToServerEntryChunkSize = entryCount;
+        mChunkSizer = null;
+    }
+
+
+    /**
+     * Enables adaptive chunk sizing. Each HTTP request to the server will contain between
+     * minEntryCount and maxEntryCount entries, sized to fit a byte budget and adjusted based on the
+     * round trip time and failures of previous requests. See
+     * {@link UploadEngine#setAdaptiveChunkTargets(long, long)} for the targets that are used.
+     */
+    public synchronized void setSendToServerEntryChunkSize(int minEntryCount, int maxEntryCount) {
+        mSendToServerEntryChunkSize = maxEntryCount;
+        AdaptiveChunkSizer chunkSizer = mChunkSizer;
+        if( chunkSizer == null )
+            mChunkSizer = new AdaptiveChunkSizer(minEntryCount, maxEntryCount, mAdaptiveChunkTargetBytes, mAdaptiveChunkTargetRoundTripMillis);
+        else
+            chunkSizer.setBounds(minEntryCount, maxEntryCount);
+    }
+
+
+    /**
+     * Sets the targets used by adaptive chunk sizing.
+     * @param targetBytes               The preferred size of a request body, in bytes (after compression).
+     * @param targetRoundTripMillis     Requests that take longer than this to get a response make
+     *                                  the following chunks smaller.
+     */
+    public synchronized void setAdaptiveChunkTargets(long targetBytes, long targetRoundTripMillis) {
+        mAdaptiveChunkTargetBytes = targetBytes;
+        mAdaptiveChunkTargetRoundTripMillis = targetRoundTripMillis;
+        AdaptiveChunkSizer chunkSizer = mChunkSizer;
+        if( chunkSizer != null )
+            chunkSizer.setTargets(targetBytes, targetRoundTripMillis);
+    }
+
+
+    public int getPriorityChunkBudget(int priority) {
+        return mPriorityChunkBudgets[clampPriority(priority)];
+    }
+
+
+    /**
+     * Sets how many entries of a priority each chunk may contain at most. By default there is no
+     * limit besides the chunk size, and each chunk is filled with entries of the highest priority
+     * first.
+     */
+    public void setPriorityChunkBudget(int priority, int maxEntries) {
+        mPriorityChunkBudgets[clampPriority(priority)] = Math.max(1, maxEntries);
+    }
+
+
+    public int getMaxInFlightChunks() {
+        return mMaxInFlightChunks;
+    }
+
+
+    /**
+     * Sets how many chunks of this stream may be sent to the server without having been answered
+     * yet. The streams of an environment also share its limit, see
+     * {@link EngineEnvironment#setMaxInFlightChunks(int)}.
+     */
+    public void setMaxInFlightChunks(int maxInFlightChunks) {
+        mMaxInFlightChunks = Math.max(1, maxInFlightChunks);
+    }
+
+
+    public int getUploadPriority() {
+        return mEnvironment.getUploadScheduler().getPriority(mUploadStream);
+    }
+
+
+    /**
+     * @param priority  This stream's share of the upload requests in its environment, relative to
+     *                  the other streams.
+     */
+    public void setUploadPriority(int priority) {
+        mEnvironment.getUploadScheduler().setPriority(mUploadStream, priority);
+    }
+
+
+    public boolean getPreserveUploadOrder() {
+        return mPreserveUploadOrder;
+    }
+
+
+    /**
+     * @param preserveUploadOrder If true, chunks are sent one at a time, so the server receives the
+     *                            entries in the order they were added. This overrides
+     *                            {@link UploadEngine#setMaxInFlightChunks(int)}.
+     */
+    public void setPreserveUploadOrder(boolean preserveUploadOrder) {
+        mPreserveUploadOrder = preserveUploadOrder;
+    }
+
+
+    /**
+     * @see RetryScheduler#setBackoff(long, long, int)
+     */
+    public void setRetryBackoff(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+        mRetryScheduler.setBackoff(baseDelayMillis, maxDelayMillis, maxAttempts);
+    }
+
+
+    public ContentEncoding getUploadCompression() {
+        return mUploadEncoding;
+    }
+
+
+    /**
+     * Compresses the body of each HTTP request to the server with the supplied encoding. If the
+     * server rejects a compressed request before it has accepted any, the engine falls back to
+     * sending uncompressed requests.
+     */
+    public void setUploadCompression(ContentEncoding encoding) {
+        mUploadEncoding = encoding;
+        mUploadEncodingConfirmed = false;
+    }
+
+
+    /**
+     * Asks the server to acknowledge each chunk with the highest sequence number ("_s") up to which
+     * it stored every entry, plus the exceptions, instead of listing the UUID of every stored entry.
+     * This shrinks the response of a fully stored chunk to a few bytes, and the entries are
+     * acknowledged by id range instead of by UUID lookups. Only enable it if the server supports
+     * it. Responses that list UUID's are still handled either way.
+     */
+    public void setSequenceAcknowledgements(boolean enabled) {
+        mSequenceAcknowledgements = enabled;
+    }
+
+
+    public boolean getSequenceAcknowledgements() {
+        return mSequenceAcknowledgements;
+    }
+
+
+    /**
+     * Sets a listener that receives the raw and compressed size of each request sent to the server.
+     */
+    public void setUploadStatsListener(UploadStatsListener listener) {
+        mUploadStatsListener = listener;
+    }
+
+
+    public String getStream() {
+        return mStream;
+    }
+
+
+    public EngineEnvironment getEnvironment() {
+        return mEnvironment;
+    }
+
+
+    private int getEffectiveMaxInFlightChunks() {
+        return mPreserveUploadOrder ? 1 : mMaxInFlightChunks;
+    }
+
+
+    private int getNextChunkSize() {
+        AdaptiveChunkSizer chunkSizer = mChunkSizer;
+        return chunkSizer != null ? chunkSizer.nextChunkSize() : mSendToServerEntryChunkSize;
+    }
+}
@@ -0,0 +1,126 @@
+package com.magnuswikhog.remotedb.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A histogram of non-negative values, with a bucket per power of two. Values can be recorded from
+ * any thread without locking, and percentiles read from a {@link Snapshot} are accurate within a
+ * factor of two, which is enough to tell a 5 ms commit from a 50 ms one.
+ * <p>
+ * Bucket 0 counts zeros, and bucket i counts the values from 2^(i-1) to 2^i - 1.
+ */
+public class Histogram {
+    static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+
+    public void record(long value) {
+        if( value < 0 )
+            value = 0;
+
+        mBuckets.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max;
+        while( (max = mMax.get()) < value && !mMax.compareAndSet(max, value) ) {
+            // Another thread recorded a value at the same time, try again
+        }
+    }
+
+
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            buckets[i] = mBuckets.get(i);
+        return new Snapshot(buckets, mCount.get(), mSum.get(), mMax.get());
+    }
+
+
+    static int bucketOf(long value) {
+        return Long.SIZE - Long.numberOfLeadingZeros(value);
+    }
+
+
+    /**
+     * @return The largest value that is counted by the bucket.
+     */
+    static long upperBoundOf(int bucket) {
+        return bucket >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+
+    /**
+     * The values of a histogram at one point in time. Values recorded while the snapshot is taken
+     * may be counted in some of its fields but not in others.
+     */
+    public static class Snapshot {
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(long[] buckets, long count, long sum, long max) {
+            mBuckets = buckets;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+
+        public long getCount() {
+            return mCount;
+        }
+
+
+        public long getSum() {
+            return mSum;
+        }
+
+
+        public long getMax() {
+            return mMax;
+        }
+
+
+        public double getMean() {
+            return mCount > 0 ? (double) mSum / mCount : 0;
+        }
+
+
+        /**
+         * @param quantile  Between 0 and 1, e.g. 0.99 for the 99th percentile.
+         * @return An upper bound of the value at the quantile, at most twice the actual value (and
+         * never more than the max).
+         */
+        public long getPercentile(double quantile) {
+            long total = 0;
+            for (long bucketCount : mBuckets)
+                total += bucketCount;
+            if( total == 0 )
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if( seen >= rank )
+                    return Math.min(upperBoundOf(i), mMax);
+            }
+            return mMax;
+        }
+
+
+        @Override
+        public String toString() {
+            return "count=" + mCount + " mean=" + (long) getMean() + " p50=" + getPercentile(0.5)
+                    + " p99=" + getPercentile(0.99) + " max=" + mMax;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.magnuswikhog.remotedb.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Measurements of the ingest and upload pipeline, for production telemetry and for tuning the
+ * batching, chunking and database settings.
+ * <p>
+ * Metrics are disabled by default. While disabled, the pipeline only reads a volatile flag at each
+ * measuring point, and takes no timestamps. When enabled, each measurement is recorded in a
+ * lock-free {@link Histogram} or counter, and passed to the {@link Listener} if there is one. Read
+ * everything recorded so far with {@link #snapshot()}.
+ * <p>
+ * The metrics are shared by all streams in an environment (a RemoteDbEnvironment on
+ * Android, or an {@link com.magnuswikhog.remotedb.engine.EngineEnvironment}), since the streams
+ * share the ingest queue and the database.
+ */
+public class RemoteDbMetrics {
+
+    /**
+     * Receives each measurement as it is recorded. Called on the thread that did the measured work,
+     * usually a background thread, so implementations should be quick and thread-safe.
+     */
+    public interface Listener {
+        /**
+         * @param entryCount    The number of entries in the batch.
+         * @param waitMicros    The time from when the oldest entry in the batch was added until it
+         *                      was committed.
+         * @param commitMicros  The time it took to write and commit the batch.
+         */
+        void onBatchCommitted(int entryCount, long waitMicros, long commitMicros);
+
+        /**
+         * @param entryCount        The number of entries in the chunk.
+         * @param encodedBytes      The size of the request body, after compression.
+         * @param serializeMicros   The time it took to build the request body.
+         */
+        void onChunkSent(int entryCount, long encodedBytes, long serializeMicros);
+
+        /**
+         * @param entryCount        The number of entries in the chunk.
+         * @param roundTripMillis   The time from sending the request until the response arrived.
+         * @param success           False if the request failed, or the server reported an error.
+         */
+        void onChunkCompleted(int entryCount, long roundTripMillis, boolean success);
+
+        /**
+         * @param entryCount    The number of entries the server acknowledged.
+         * @param ackMicros     The time from receiving the response until the acknowledgement was
+         *                      committed to the local database.
+         */
+        void onEntriesAcknowledged(int entryCount, long ackMicros);
+    }
+
+
+    private volatile boolean mEnabled;
+    private volatile Listener mListener;
+
+    private final Histogram mInsertWaitMicros = new Histogram();
+    private final Histogram mCommitMicros = new Histogram();
+    private final Histogram mBatchSizes = new Histogram();
+    private final Histogram mChunkEntries = new Histogram();
+    private final Histogram mChunkBytes = new Histogram();
+    private final Histogram mChunkSerializeMicros = new Histogram();
+    private final Histogram mChunkRoundTripMillis = new Histogram();
+    private final Histogram mAckMicros = new Histogram();
+
+    private final AtomicLong mChunksSucceeded = new AtomicLong();
+    private final AtomicLong mChunksFailed = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mChunksGivenUp = new AtomicLong();
+
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+
+    /**
+     * @param listener  Receives each measurement while metrics are enabled, or null.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+
+    public void recordBatchCommitted(int entryCount, long waitMicros, long commitMicros) {
+        if( !mEnabled )
+            return;
+
+        mBatchSizes.record(entryCount);
+        mInsertWaitMicros.record(waitMicros);
+        mCommitMicros.record(commitMicros);
+
+        Listener listener = mListener;
+        if( listener != null )
+            listener.onBatchCommitted(entryCount, waitMicros, commitMicros);
+    }
+
+
+    public void recordChunkSent(int entryCount, long encodedBytes, long serializeMicros) {
+        if( !mEnabled )
+            return;
+
+        mChunkEntries.record(entryCount);
+        mChunkBytes.record(encodedBytes);
+        mChunkSerializeMicros.record(serializeMicros);
+
+        Listener listener = mListener;
+        if( listener != null )
+            listener.onChunkSent(entryCount, encodedBytes, serializeMicros);
+    }
+
+
+    public void recordChunkCompleted(int entryCount, long roundTripMillis, boolean success) {
+        if( !mEnabled )
+            return;
+
+        mChunkRoundTripMillis.record(roundTripMillis);
+        (success ? mChunksSucceeded : mChunksFailed).incrementAndGet();
+
+        Listener listener = mListener;
+        if( listener != null )
+            listener.onChunkCompleted(entryCount, roundTripMillis, success);
+    }
+
+
+    public void recordEntriesAcknowledged(int entryCount, long ackMicros) {
+        if( !mEnabled )
+            return;
+
+        mAckMicros.record(ackMicros);
+
+        Listener listener = mListener;
+        if( listener != null )
+            listener.onEntriesAcknowledged(entryCount, ackMicros);
+    }
+
+
+    /**
+     * @param givenUp   True if the chunk won't be retried again.
+     */
+    public void recordRetry(boolean givenUp) {
+        if( !mEnabled )
+            return;
+
+        (givenUp ? mChunksGivenUp : mRetries).incrementAndGet();
+    }
+
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+
+    /**
+     * Everything recorded up to the time the snapshot was taken.
+     */
+    public static class Snapshot {
+        private final Histogram.Snapshot mInsertWaitMicros;
+        private final Histogram.Snapshot mCommitMicros;
+        private final Histogram.Snapshot mBatchSizes;
+        private final Histogram.Snapshot mChunkEntries;
+        private final Histogram.Snapshot mChunkBytes;
+        private final Histogram.Snapshot mChunkSerializeMicros;
+        private final Histogram.Snapshot mChunkRoundTripMillis;
+        private final Histogram.Snapshot mAckMicros;
+        private final long mChunksSucceeded;
+        private final long mChunksFailed;
+        private final long mRetries;
+        private final long mChunksGivenUp;
+
+        Snapshot(RemoteDbMetrics metrics) {
+            mInsertWaitMicros = metrics.mInsertWaitMicros.snapshot();
+            mCommitMicros = metrics.mCommitMicros.snapshot();
+            mBatchSizes = metrics.mBatchSizes.snapshot();
+            mChunkEntries = metrics.mChunkEntries.snapshot();
+            mChunkBytes = metrics.mChunkBytes.snapshot();
+            mChunkSerializeMicros = metrics.mChunkSerializeMicros.snapshot();
+            mChunkRoundTripMillis = metrics.mChunkRoundTripMillis.snapshot();
+            mAckMicros = metrics.mAckMicros.snapshot();
+            mChunksSucceeded = metrics.mChunksSucceeded.get();
+            mChunksFailed = metrics.mChunksFailed.get();
+            mRetries = metrics.mRetries.get();
+            mChunksGivenUp = metrics.mChunksGivenUp.get();
+        }
+
+
+        /** The time from adding an entry until it is committed, for the oldest entry of each batch. */
+        public Histogram.Snapshot getInsertWaitMicros() {
+            return mInsertWaitMicros;
+        }
+
+        /** The time to write and commit each batch. */
+        public Histogram.Snapshot getCommitMicros() {
+            return mCommitMicros;
+        }
+
+        /** The number of entries in each committed batch. */
+        public Histogram.Snapshot getBatchSizes() {
+            return mBatchSizes;
+        }
+
+        /** The number of entries in each sent chunk. */
+        public Histogram.Snapshot getChunkEntries() {
+            return mChunkEntries;
+        }
+
+        /** The size of each sent request body, after compression. */
+        public Histogram.Snapshot getChunkBytes() {
+            return mChunkBytes;
+        }
+
+        /** The time to build each request body. */
+        public Histogram.Snapshot getChunkSerializeMicros() {
+            return mChunkSerializeMicros;
+        }
+
+        /** The time from sending each request until its response (or error) arrived. */
+        public Histogram.Snapshot getChunkRoundTripMillis() {
+            return mChunkRoundTripMillis;
+        }
+
+        /** The time from receiving each successful response until its acknowledgement was committed. */
+        public Histogram.Snapshot getAckMicros() {
+            return mAckMicros;
+        }
+
+        public long getChunksSucceeded() {
+            return mChunksSucceeded;
+        }
+
+        public long getChunksFailed() {
+            return mChunksFailed;
+        }
+
+        /** The number of times a failed chunk was scheduled to be sent again. */
+        public long getRetries() {
+            return mRetries;
+        }
+
+        /** The number of chunks that failed too many times, or permanently, and weren't retried. */
+        public long getChunksGivenUp() {
+            return mChunksGivenUp;
+        }
+
+
+        @Override
+        public String toString() {
+            return "insertWaitMicros: " + mInsertWaitMicros
+                    + "\ncommitMicros: " + mCommitMicros
+                    + "\nbatchSizes: " + mBatchSizes
+                    + "\nchunkEntries: " + mChunkEntries
+                    + "\nchunkBytes: " + mChunkBytes
+                    + "\nchunkSerializeMicros: " + mChunkSerializeMicros
+                    + "\nchunkRoundTripMillis: " + mChunkRoundTripMillis
+                    + "\nackMicros: " + mAckMicros
+                    + "\nchunksSucceeded=" + mChunksSucceeded + " chunksFailed=" + mChunksFailed
+                    + " retries=" + mRetries + " chunksGivenUp=" + mChunksGivenUp;
+        }
+    }
+}
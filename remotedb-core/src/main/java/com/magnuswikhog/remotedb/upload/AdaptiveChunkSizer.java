@@ -0,0 +1,117 @@
+package com.magnuswikhog.remotedb.upload;
+
+
+/**
+ * Decides how many entries to put in each upload request, based on how previous requests went.
+ * <p>
+ * The chunk size is the smaller of two limits, kept within the configured min and max entry counts:
+ * <ul>
+ *     <li>A byte budget divided by the average encoded size of an entry. The budget is the
+ *     configured target bytes, or what the observed throughput can deliver within the target round
+ *     trip time if that is less.</li>
+ *     <li>An AIMD limit, which grows additively for every request answered within the target round
+ *     trip time, and shrinks multiplicatively when a request is slow or fails.</li>
+ * </ul>
+ */
+public class AdaptiveChunkSizer {
+    /** Weight of the latest sample in the moving averages. */
+    private static final double SMOOTHING = 0.2;
+    /** The AIMD limit grows from the min to the max entry count in about this many fast requests. */
+    private static final int ADDITIVE_INCREASE_STEPS = 16;
+    /** Factor applied to the AIMD limit when a request takes longer than the target round trip time. */
+    private static final double SLOW_DECREASE = 0.75;
+    /** Factor applied to the AIMD limit when a request fails. */
+    private static final double FAILURE_DECREASE = 0.5;
+    /** Never let the throughput based byte budget drop below this. */
+    private static final long MIN_BYTE_BUDGET = 4 * 1024;
+
+    private int mMinEntries;
+    private int mMaxEntries;
+    private long mTargetBytes;
+    private long mTargetRoundTripMillis;
+
+    private double mLimit;
+    private double mAvgBytesPerEntry;
+    private double mAvgBytesPerMilli;
+
+
+    /**
+     * @param minEntries                The smallest chunk size that will be used.
+     * @param maxEntries                The largest chunk size that will be used.
+     * @param targetBytes               The preferred size of a request body, in bytes.
+     * @param targetRoundTripMillis     Requests that take longer than this shrink the chunk size.
+     */
+    public AdaptiveChunkSizer(int minEntries, int maxEntries, long targetBytes, long targetRoundTripMillis) {
+        setBounds(minEntries, maxEntries);
+        setTargets(targetBytes, targetRoundTripMillis);
+        mLimit = mMinEntries;
+    }
+
+
+    public synchronized void setBounds(int minEntries, int maxEntries) {
+        mMinEntries = Math.max(1, minEntries);
+        mMaxEntries = Math.max(mMinEntries, maxEntries);
+        mLimit = clamp(mLimit);
+    }
+
+
+    public synchronized void setTargets(long targetBytes, long targetRoundTripMillis) {
+        mTargetBytes = Math.max(1, targetBytes);
+        mTargetRoundTripMillis = Math.max(1, targetRoundTripMillis);
+    }
+
+
+    /**
+     * @return The number of entries to put in the next request.
+     */
+    public synchronized int nextChunkSize() {
+        double size = mLimit;
+
+        if( mAvgBytesPerEntry > 0 ) {
+            double byteBudget = mTargetBytes;
+            if( mAvgBytesPerMilli > 0 )
+                byteBudget = Math.min(byteBudget, Math.max(MIN_BYTE_BUDGET, mAvgBytesPerMilli * mTargetRoundTripMillis));
+            size = Math.min(size, byteBudget / mAvgBytesPerEntry);
+        }
+
+        return (int) clamp(size);
+    }
+
+
+    /**
+     * Reports a request that the server has answered.
+     * @param entryCount        The number of entries in the request.
+     * @param bodyBytes         The size of the request body as it was sent.
+     * @param roundTripMillis   The time from sending the request until the response arrived.
+     */
+    public synchronized void onChunkSucceeded(int entryCount, long bodyBytes, long roundTripMillis) {
+        if( entryCount <= 0 )
+            return;
+
+        mAvgBytesPerEntry = average(mAvgBytesPerEntry, (double) bodyBytes / entryCount);
+        mAvgBytesPerMilli = average(mAvgBytesPerMilli, (double) bodyBytes / Math.max(1, roundTripMillis));
+
+        if( roundTripMillis <= mTargetRoundTripMillis )
+            mLimit = clamp(mLimit + Math.max(1, mMaxEntries / ADDITIVE_INCREASE_STEPS));
+        else
+            mLimit = clamp(mLimit * SLOW_DECREASE);
+    }
+
+
+    /**
+     * Reports a request that failed, for example because of a timeout or a server error.
+     */
+    public synchronized void onChunkFailed() {
+        mLimit = clamp(mLimit * FAILURE_DECREASE);
+    }
+
+
+    private double clamp(double size) {
+        return Math.max(mMinEntries, Math.min(mMaxEntries, size));
+    }
+
+
+    private static double average(double average, double sample) {
+        return average <= 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+}
@@ -0,0 +1,171 @@
+package com.magnuswikhog.remotedb.upload;
+
+
+/**
+ * Decides when the entries added since the last upload should be sent, so that the app doesn't
+ * have to call sendToServer() on its own timers.
+ * <p>
+ * An upload is due when the backlog reaches a number of entries or bytes, or when its oldest entry
+ * reaches a max age. All thresholds are multiplied by a factor that depends on the conditions: on
+ * a metered network or on battery, uploads wait for larger backlogs, so that the radio is woken up
+ * less often. Without a network, nothing is due. A min interval between uploads makes many small
+ * backlogs that cross the thresholds in quick succession share a single upload.
+ * <p>
+ * This class has no Android dependencies, the conditions are fed to it by the caller, see
+ * RemoteDb.enableAutoFlush(AutoFlushPolicy).
+ */
+public class AutoFlushPolicy {
+
+    public enum Network {
+        NONE,
+        /** A network that may be billed per byte, like a cellular connection. */
+        METERED,
+        UNMETERED
+    }
+
+
+    private final Clock mClock;
+
+    private int mMaxEntries = 500;
+    private long mMaxBytes = 256 * 1024;
+    private long mMaxAgeMillis = 5 * 60 * 1000;
+    private long mMinIntervalMillis = 30 * 1000;
+    private int mMeteredFactor = 4;
+    private int mOnBatteryFactor = 2;
+    private int mLowBatteryFactor = 4;
+
+    private Network mNetwork = Network.UNMETERED;
+    private boolean mCharging = true;
+    private boolean mBatteryLow;
+
+    private int mPendingEntries;
+    private long mPendingBytes;
+    private long mOldestPendingMillis;
+    private long mLastFlushMillis = Long.MIN_VALUE / 2;
+
+
+    public AutoFlushPolicy() {
+        this(Clock.SYSTEM);
+    }
+
+
+    public AutoFlushPolicy(Clock clock) {
+        mClock = clock;
+    }
+
+
+    /**
+     * Sets the backlog that makes an upload due, in the best conditions (unmetered network, charging).
+     * @param maxEntries    The number of entries added since the last upload.
+     * @param maxBytes      The stored size of the entries added since the last upload.
+     * @param maxAgeMillis  The time since the oldest entry was added.
+     */
+    public synchronized void setThresholds(int maxEntries, long maxBytes, long maxAgeMillis) {
+        mMaxEntries = Math.max(1, maxEntries);
+        mMaxBytes = Math.max(1, maxBytes);
+        mMaxAgeMillis = Math.max(0, maxAgeMillis);
+    }
+
+
+    /**
+     * Sets the min time between the start of two uploads, in the best conditions.
+     */
+    public synchronized void setMinInterval(long minIntervalMillis) {
+        mMinIntervalMillis = Math.max(0, minIntervalMillis);
+    }
+
+
+    /**
+     * Sets how much the thresholds and the min interval are multiplied by in worse conditions. The
+     * factors of all conditions that apply are multiplied together.
+     * @param metered       On a metered network.
+     * @param onBattery     When not charging.
+     * @param lowBattery    When not charging and the battery is low, on top of onBattery.
+     */
+    public synchronized void setFactors(int metered, int onBattery, int lowBattery) {
+        mMeteredFactor = Math.max(1, metered);
+        mOnBatteryFactor = Math.max(1, onBattery);
+        mLowBatteryFactor = Math.max(1, lowBattery);
+    }
+
+
+    public synchronized void setNetwork(Network network) {
+        mNetwork = network;
+    }
+
+
+    public synchronized Network getNetwork() {
+        return mNetwork;
+    }
+
+
+    public synchronized void setBatteryState(boolean charging, boolean batteryLow) {
+        mCharging = charging;
+        mBatteryLow = batteryLow;
+    }
+
+
+    /**
+     * Adds entries to the backlog.
+     * @return True if this made an upload due earlier than before, in which case
+     * {@link #getNextFlushDelayMillis()} should be checked again. Adding to a backlog that already
+     * has a due time below the thresholds returns false, so the caller doesn't have to reschedule
+     * for every entry.
+     */
+    public synchronized boolean onEntriesAdded(int count, long bytes) {
+        boolean wasEmpty = mPendingEntries == 0;
+        boolean wasOverThreshold = isOverThreshold(getFactor());
+
+        if( wasEmpty )
+            mOldestPendingMillis = mClock.currentTimeMillis();
+        mPendingEntries += count;
+        mPendingBytes += bytes;
+
+        return wasEmpty || (!wasOverThreshold && isOverThreshold(getFactor()));
+    }
+
+
+    /**
+     * Called when an upload is started. The entries added so far are part of it, so the backlog
+     * starts over.
+     */
+    public synchronized void onFlushStarted() {
+        mLastFlushMillis = mClock.currentTimeMillis();
+        mPendingEntries = 0;
+        mPendingBytes = 0;
+    }
+
+
+    /**
+     * @return The time until the next upload is due, 0 if it's due now, or -1 if no upload is needed
+     * (the backlog is empty, or there is no network).
+     */
+    public synchronized long getNextFlushDelayMillis() {
+        if( mPendingEntries == 0 || mNetwork == Network.NONE )
+            return -1;
+
+        int factor = getFactor();
+        long now = mClock.currentTimeMillis();
+        long dueAt = isOverThreshold(factor) ? now : mOldestPendingMillis + mMaxAgeMillis * factor;
+        dueAt = Math.max(dueAt, mLastFlushMillis + mMinIntervalMillis * factor);
+        return Math.max(0, dueAt - now);
+    }
+
+
+    private boolean isOverThreshold(int factor) {
+        return mPendingEntries >= (long) mMaxEntries * factor || mPendingBytes >= mMaxBytes * factor;
+    }
+
+
+    private int getFactor() {
+        int factor = 1;
+        if( mNetwork == Network.METERED )
+            factor *= mMeteredFactor;
+        if( !mCharging ) {
+            factor *= mOnBatteryFactor;
+            if( mBatteryLow )
+                factor *= mLowBatteryFactor;
+        }
+        return factor;
+    }
+}
@@ -0,0 +1,192 @@
+package com.magnuswikhog.remotedb.upload;
+
+import com.magnuswikhog.remotedb.codec.EntryCodec;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+
+/**
+ * Writes the JSON body of an upload request directly to an output stream, one entry at a time,
+ * instead of first building the whole request as a JSONObject tree:
+ * <pre>
+ * {"_pw":"...","_did":"...",["_ack":"seq",]"_ent":[{...,"_s":1,"_u":"..."},...],&lt;request params&gt;}
+ * </pre>
+ * Entries and request params are supplied as JSON object text, or as the bytes stored in the local
+ * database, and the extra fields are spliced into that text without parsing it.
+ */
+public class ChunkBodyWriter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final OutputStream mOut;
+    /** Holds the JSON text of the entry being written, reused for all entries in the chunk. */
+    private final EntryBuffer mEntryBuffer = new EntryBuffer();
+    private int mEntryCount;
+
+
+    public ChunkBodyWriter(OutputStream out) {
+        mOut = out;
+    }
+
+
+    /**
+     * Writes the start of the request, up to and including the opening bracket of the entry array.
+     */
+    public void begin(String password, String deviceId) throws IOException {
+        begin(password, deviceId, false);
+    }
+
+
+    /**
+     * Like {@link #begin(String, String)}.
+     * @param sequenceAck If true, the request asks the server to acknowledge the stored entries by
+     *                    sequence number instead of by UUID, with "_ack":"seq" (see
+     *                    {@link ChunkResponse}).
+     */
+    public void begin(String password, String deviceId, boolean sequenceAck) throws IOException {
+        writeAscii("{\"_pw\":");
+        writeQuoted(password);
+        writeAscii(",\"_did\":");
+        writeQuoted(deviceId);
+        if( sequenceAck )
+            writeAscii(",\"_ack\":\"seq\"");
+        writeAscii(",\"_ent\":[");
+    }
+
+
+    /**
+     * Writes an entry, with its sequence number and UUID added as the "_s" and "_u" fields.
+     * @param entryJson The entry as a JSON object, e.g. "{"t":123}".
+     */
+    public void writeEntry(String entryJson, long sequence, String uuid) throws IOException {
+        byte[] json = entryJson.getBytes(UTF_8);
+        writeEntry(json, json.length, sequence, uuid);
+    }
+
+
+    /**
+     * Writes an entry as it is stored in the local database, with its sequence number and UUID
+     * added as the "_s" and "_u" fields. The entry is converted to JSON by the codec it was stored
+     * with, without being decoded.
+     * @return False if the codec couldn't convert the entry, e.g. binary data interned with a
+     *         dictionary that hasn't been set since a restart, in which case nothing is written. The
+     *         entry must then be left out of the acknowledgement of the chunk.
+     */
+    public boolean writeStoredEntry(EntryCodec codec, byte[] storedEntry, long sequence, String uuid) throws IOException {
+        mEntryBuffer.reset();
+        try {
+            codec.writeJson(storedEntry, mEntryBuffer);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        writeEntry(mEntryBuffer.getBuffer(), mEntryBuffer.size(), sequence, uuid);
+        return true;
+    }
+
+
+    private void writeEntry(byte[] json, int length, long sequence, String uuid) throws IOException {
+        if( mEntryCount > 0 )
+            mOut.write(',');
+
+        int end = lastIndexOf(json, length, '}');
+        if( end < 0 ) {
+            mOut.write('{');
+        }
+        else {
+            mOut.write(json, 0, end);
+            if( hasMembers(json, end) )
+                mOut.write(',');
+        }
+
+        writeAscii("\"_s\":");
+        writeAscii(Long.toString(sequence));
+        writeAscii(",\"_u\":");
+        writeQuoted(uuid);
+        mOut.write('}');
+        mEntryCount++;
+    }
+
+
+    /**
+     * Closes the entry array, writes the members of the request params (if any) and closes the
+     * request object. Flushes, but does not close, the underlying stream.
+     * @param requestParamsJson The request params as a JSON object, or null.
+     */
+    public void end(String requestParamsJson) throws IOException {
+        mOut.write(']');
+
+        if( requestParamsJson != null ) {
+            byte[] json = requestParamsJson.getBytes(UTF_8);
+            int start = indexOf(json, '{');
+            int end = lastIndexOf(json, json.length, '}');
+            if( start >= 0 && end > start && hasMembers(json, end) ) {
+                mOut.write(',');
+                mOut.write(json, start + 1, end - start - 1);
+            }
+        }
+
+        mOut.write('}');
+        mOut.flush();
+    }
+
+
+    public int getEntryCount() {
+        return mEntryCount;
+    }
+
+
+    private void writeAscii(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++)
+            mOut.write(text.charAt(i));
+    }
+
+
+    private void writeQuoted(String text) throws IOException {
+        mOut.write(JSONObject.quote(text).getBytes(UTF_8));
+    }
+
+
+    private static int indexOf(byte[] json, char c) {
+        for (int i = 0; i < json.length; i++) {
+            if( json[i] == c )
+                return i;
+        }
+        return -1;
+    }
+
+
+    private static int lastIndexOf(byte[] json, int length, char c) {
+        for (int i = length - 1; i >= 0; i--) {
+            if( json[i] == c )
+                return i;
+        }
+        return -1;
+    }
+
+
+    /**
+     * @return True if there is anything but whitespace between the opening brace and the closing
+     *         brace at closeIndex.
+     */
+    private static boolean hasMembers(byte[] json, int closeIndex) {
+        for (int i = indexOf(json, '{') + 1; i < closeIndex; i++) {
+            if( !Character.isWhitespace(json[i]) )
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Gives access to the internal buffer, so that entries can be spliced without copying them.
+     */
+    private static class EntryBuffer extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.magnuswikhog.remotedb.upload;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * The server's answer to an upload request. The server acknowledges the entries it stored in one
+ * of two ways:
+ * <ul>
+ *     <li>By UUID, in "stored_uuids", as an array or as the JSON text of an array.</li>
+ *     <li>By sequence number (the "_s" field of each entry), if the request asked for it (see
+ *     {@link ChunkBodyWriter#begin(String, String, boolean)}): every entry in the request with a
+ *     sequence number up to "stored_through" was stored, except the ones listed in "not_stored".
+ *     A fully stored chunk is acknowledged in a few bytes, however many entries it has.</li>
+ * </ul>
+ * The response is parsed in a single pass over its text with {@link #parse(String)}, which only
+ * keeps the fields listed here. The UUID's go straight into the list that the store is
+ * acknowledged with, without building a JSONObject tree or a JSONArray.
+ */
+public class ChunkResponse {
+    private String mStatus = "";
+    private String mMessage;
+    private long mTotalCount = -1;
+    private List<String> mStoredUuids = Collections.emptyList();
+    private long mStoredThrough = -1;
+    private long[] mNotStored = new long[0];
+
+
+    /**
+     * @throws JSONException If the text isn't a JSON object, or one of the known fields has an
+     *                       unexpected type.
+     */
+    public static ChunkResponse parse(String json) throws JSONException {
+        ChunkResponse response = new ChunkResponse();
+        Scanner scanner = new Scanner(json);
+        if( scanner.nextClean() != '{' )
+            throw scanner.syntaxError("A JSON object text must begin with '{'");
+        if( scanner.nextClean() == '}' )
+            return response;
+        scanner.back();
+
+        while( true ) {
+            char quote = scanner.nextClean();
+            if( quote != '"' && quote != '\'' )
+                throw scanner.syntaxError("Expected a key");
+            String key = scanner.nextString(quote);
+            if( scanner.nextClean() != ':' )
+                throw scanner.syntaxError("Expected a ':' after a key");
+
+            if( key.equals("status") )
+                response.mStatus = scanner.nextText();
+            else if( key.equals("message") )
+                response.mMessage = scanner.nextText();
+            else if( key.equals("total_count") )
+                response.mTotalCount = scanner.nextLong();
+            else if( key.equals("stored_uuids") )
+                response.mStoredUuids = readStoredUuids(scanner);
+            else if( key.equals("stored_through") )
+                response.mStoredThrough = scanner.nextLong();
+            else if( key.equals("not_stored") )
+                response.mNotStored = readSequences(scanner);
+            else
+                scanner.skipValue();
+
+            char next = scanner.nextClean();
+            if( next == '}' )
+                return response;
+            if( next != ',' )
+                throw scanner.syntaxError("Expected a ',' or '}'");
+        }
+    }
+
+
+    public boolean isOk() {
+        return mStatus.equals("ok");
+    }
+
+
+    public String getStatus() {
+        return mStatus;
+    }
+
+
+    /**
+     * @return The error message of a response that isn't ok, or null if there is none.
+     */
+    public String getMessage() {
+        return mMessage;
+    }
+
+
+    /**
+     * @return The total number of entries stored on the server, or -1 if the response didn't
+     *         include it.
+     */
+    public long getTotalCount() {
+        return mTotalCount;
+    }
+
+
+    /**
+     * @return True if the server acknowledged by sequence number, see {@link #getStoredThrough()}.
+     */
+    public boolean hasStoredThrough() {
+        return mStoredThrough >= 0;
+    }
+
+
+    /**
+     * @return The highest sequence number up to which every entry in the request was stored
+     *         (except the ones in {@link #getNotStored()}), or -1 if the server acknowledged by UUID.
+     */
+    public long getStoredThrough() {
+        return mStoredThrough;
+    }
+
+
+    /**
+     * @return The sequence numbers up to {@link #getStoredThrough()} that weren't stored.
+     */
+    public long[] getNotStored() {
+        return mNotStored;
+    }
+
+
+    /**
+     * @return The UUID's of the stored entries, empty if there are none or if the server
+     *         acknowledged by sequence number.
+     */
+    public List<String> getStoredUuids() {
+        return mStoredUuids;
+    }
+
+
+    @Override
+    public String toString() {
+        return "status=" + mStatus + "   message=" + mMessage;
+    }
+
+
+    private static List<String> readStoredUuids(Scanner scanner) throws JSONException {
+        char c = scanner.nextClean();
+        // Older servers send the array as a string, e.g. "stored_uuids":"[\"...\"]"
+        if( c == '"' || c == '\'' )
+            return readStrings(new Scanner(scanner.nextString(c)));
+        scanner.back();
+        return readStrings(scanner);
+    }
+
+
+    private static List<String> readStrings(Scanner scanner) throws JSONException {
+        List<String> strings = new ArrayList<>();
+        if( scanner.nextClean() != '[' )
+            throw scanner.syntaxError("A JSONArray text must start with '['");
+        if( scanner.nextClean() == ']' )
+            return strings;
+        scanner.back();
+
+        while( true ) {
+            strings.add(scanner.nextText());
+
+            char next = scanner.nextClean();
+            if( next == ']' )
+                return strings;
+            if( next != ',' )
+                throw scanner.syntaxError("Expected a ',' or ']'");
+        }
+    }
+
+
+    private static long[] readSequences(Scanner scanner) throws JSONException {
+        long[] sequences = new long[16];
+        int count = 0;
+        if( scanner.nextClean() != '[' )
+            throw scanner.syntaxError("A JSONArray text must start with '['");
+        if( scanner.nextClean() == ']' )
+            return new long[0];
+        scanner.back();
+
+        while( true ) {
+            if( count == sequences.length ) {
+                long[] grown = new long[count * 2];
+                System.arraycopy(sequences, 0, grown, 0, count);
+                sequences = grown;
+            }
+            sequences[count++] = scanner.nextLong();
+
+            char next = scanner.nextClean();
+            if( next == ']' ) {
+                long[] result = new long[count];
+                System.arraycopy(sequences, 0, result, 0, count);
+                return result;
+            }
+            if( next != ',' )
+                throw scanner.syntaxError("Expected a ',' or ']'");
+        }
+    }
+
+
+    /**
+     * Reads JSON tokens from a string, one at a time. It works on the string directly, which is
+     * several times faster than JSONTokener, and only creates strings for the values that are
+     * kept. Values of unknown fields are skipped over without being parsed.
+     */
+    private static class Scanner {
+        private final String mText;
+        private int mPosition;
+
+        Scanner(String text) {
+            mText = text;
+        }
+
+
+        /**
+         * @return The next character that isn't whitespace, or 0 at the end of the text.
+         */
+        char nextClean() {
+            while( mPosition < mText.length() ) {
+                char c = mText.charAt(mPosition++);
+                if( c > ' ' )
+                    return c;
+            }
+            mPosition++;
+            return 0;
+        }
+
+
+        void back() {
+            mPosition--;
+        }
+
+
+        /**
+         * Reads a string up to the closing quote, after the opening quote has been read.
+         */
+        String nextString(char quote) throws JSONException {
+            int start = mPosition;
+            StringBuilder unescaped = null;
+            while( true ) {
+                if( mPosition >= mText.length() )
+                    throw syntaxError("Unterminated string");
+
+                char c = mText.charAt(mPosition++);
+                if( c == quote ) {
+                    if( unescaped == null )
+                        return mText.substring(start, mPosition - 1);
+                    return unescaped.append(mText, start, mPosition - 1).toString();
+                }
+                if( c == '\\' ) {
+                    if( unescaped == null )
+                        unescaped = new StringBuilder();
+                    unescaped.append(mText, start, mPosition - 1).append(nextEscaped());
+                    start = mPosition;
+                }
+            }
+        }
+
+
+        private char nextEscaped() throws JSONException {
+            if( mPosition >= mText.length() )
+                throw syntaxError("Unterminated escape sequence");
+
+            char c = mText.charAt(mPosition++);
+            switch( c ) {
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    if( mPosition + 4 > mText.length() )
+                        throw syntaxError("Unterminated escape sequence");
+                    try {
+                        char unicode = (char) Integer.parseInt(mText.substring(mPosition, mPosition + 4), 16);
+                        mPosition += 4;
+                        return unicode;
+                    }
+                    catch (NumberFormatException e) {
+                        throw syntaxError("Illegal escape");
+                    }
+                default:
+                    return c;
+            }
+        }
+
+
+        /**
+         * @return A string value, or the text of any other value that isn't an object or array.
+         */
+        String nextText() throws JSONException {
+            char c = nextClean();
+            if( c == '"' || c == '\'' )
+                return nextString(c);
+            back();
+            return nextLiteral();
+        }
+
+
+        /**
+         * Numbers may also be sent as strings, which is what some PHP setups do with large integers.
+         */
+        long nextLong() throws JSONException {
+            String text = nextText();
+            try {
+                return Long.parseLong(text);
+            }
+            catch (NumberFormatException e) {
+                try {
+                    return (long) Double.parseDouble(text);
+                }
+                catch (NumberFormatException notDouble) {
+                    throw syntaxError("Expected a number, not " + text);
+                }
+            }
+        }
+
+
+        /**
+         * Reads an unquoted value, e.g. a number, true or null.
+         */
+        private String nextLiteral() throws JSONException {
+            int start = mPosition;
+            while( mPosition < mText.length() && ",:]}[{\"'".indexOf(mText.charAt(mPosition)) < 0 && mText.charAt(mPosition) > ' ' )
+                mPosition++;
+            if( start == mPosition )
+                throw syntaxError("Missing value");
+            return mText.substring(start, mPosition);
+        }
+
+
+        void skipValue() throws JSONException {
+            char c = nextClean();
+            if( c == '"' || c == '\'' ) {
+                nextString(c);
+            }
+            else if( c == '{' || c == '[' ) {
+                char close = c == '{' ? '}' : ']';
+                if( nextClean() == close )
+                    return;
+                back();
+                while( true ) {
+                    if( c == '{' ) {
+                        skipValue();
+                        if( nextClean() != ':' )
+                            throw syntaxError("Expected a ':' after a key");
+                    }
+                    skipValue();
+
+                    char next = nextClean();
+                    if( next == close )
+                        return;
+                    if( next != ',' )
+                        throw syntaxError("Expected a ',' or '" + close + "'");
+                }
+            }
+            else {
+                back();
+                nextLiteral();
+            }
+        }
+
+
+        JSONException syntaxError(String message) {
+            return new JSONException(message + " at " + mPosition);
+        }
+    }
+}
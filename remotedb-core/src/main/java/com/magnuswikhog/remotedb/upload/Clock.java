@@ -0,0 +1,18 @@
+package com.magnuswikhog.remotedb.upload;
+
+
+/**
+ * A source of the current time, which can be replaced in tests.
+ */
+public interface Clock {
+    /** A clock returning System.currentTimeMillis(). */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+
+    long currentTimeMillis();
+}
@@ -0,0 +1,65 @@
+package com.magnuswikhog.remotedb.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * The encodings that upload request bodies can be compressed with.
+ */
+public enum ContentEncoding {
+    IDENTITY(null),
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+
+    private final String mHeaderValue;
+
+    ContentEncoding(String headerValue) {
+        mHeaderValue = headerValue;
+    }
+
+
+    /**
+     * @return The value for the Content-Encoding header, or null if no header should be sent.
+     */
+    public String getHeaderValue() {
+        return mHeaderValue;
+    }
+
+
+    /**
+     * Wraps the stream so that anything written to it is encoded. The returned stream must be
+     * closed to write the final compressed block, which also closes the wrapped stream.
+     */
+    public OutputStream wrap(OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out);
+            case DEFLATE:
+                return new DeflaterOutputStream(out);
+            default:
+                return out;
+        }
+    }
+
+
+    /**
+     * Wraps the stream so that anything read from it is decoded.
+     */
+    public InputStream unwrap(InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in);
+            case DEFLATE:
+                return new InflaterInputStream(in);
+            default:
+                return in;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.magnuswikhog.remotedb.upload;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Passes everything through to the wrapped stream, counting the number of bytes written.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+    private long mCount;
+
+
+    public CountingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        mCount++;
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        mCount += len;
+    }
+
+
+    public long getCount() {
+        return mCount;
+    }
+}
@@ -0,0 +1,179 @@
+package com.magnuswikhog.remotedb.upload;
+
+import com.magnuswikhog.remotedb.RemoteDbExecutors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Sends upload requests with HttpURLConnection, without Volley's request queue and cache.
+ * <p>
+ * The body is streamed to the connection with a fixed length, instead of being buffered again by
+ * HttpURLConnection. Responses are always read to the end and their streams closed (never
+ * disconnected), which lets HttpURLConnection keep the connection alive and reuse it for the next
+ * request. Since HttpURLConnection's connection pool is process wide, sharing one transport between
+ * RemoteDb instances also shares its threads.
+ */
+public class HttpUrlConnectionTransport implements UploadTransport {
+    private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_TIMEOUT_MS = 10000;
+
+    private final Executor mIoExecutor;
+    private final Executor mCallbackExecutor;
+    private final int mTimeoutMillis;
+
+
+    /**
+     * Creates a transport with two background threads and a 10 second timeout, which calls its
+     * callbacks on the thread that ran the request.
+     */
+    public HttpUrlConnectionTransport() {
+        this(Executors.newFixedThreadPool(DEFAULT_THREADS, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RemoteDb-http-" + mCount.incrementAndGet());
+                thread.setPriority(RemoteDbExecutors.BACKGROUND_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, DEFAULT_TIMEOUT_MS);
+    }
+
+
+    /**
+     * @param ioExecutor        Runs the blocking network calls.
+     * @param callbackExecutor  Runs the callbacks.
+     * @param timeoutMillis     The connect and read timeout.
+     */
+    public HttpUrlConnectionTransport(Executor ioExecutor, Executor callbackExecutor, int timeoutMillis) {
+        mIoExecutor = ioExecutor;
+        mCallbackExecutor = callbackExecutor;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+
+    @Override
+    public void post(final String url, final byte[] body, final ContentEncoding encoding, final Callback callback) {
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                execute(url, body, encoding, callback);
+            }
+        });
+    }
+
+
+    /**
+     * Runs the request, and then calls exactly one of the callback's methods. The callback is called
+     * outside of the request's error handling, so an exception thrown by onResponse() isn't
+     * reported as a failed request as well.
+     */
+    private void execute(String url, byte[] body, ContentEncoding encoding, final Callback callback) {
+        int statusCode = 0;
+        String retryAfterHeader = null;
+        ChunkResponse response = null;
+        Exception error;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(mTimeoutMillis);
+            connection.setReadTimeout(mTimeoutMillis);
+            connection.setUseCaches(false);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+            if( encoding.getHeaderValue() != null )
+                connection.setRequestProperty("Content-Encoding", encoding.getHeaderValue());
+            connection.setFixedLengthStreamingMode(body.length);
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            }
+            finally {
+                out.close();
+            }
+
+            statusCode = connection.getResponseCode();
+            retryAfterHeader = connection.getHeaderField("Retry-After");
+            boolean success = statusCode >= 200 && statusCode < 300;
+            String responseBody = readFully(success ? connection.getInputStream() : connection.getErrorStream());
+
+            if( success ) {
+                response = ChunkResponse.parse(responseBody);
+                error = null;
+            }
+            else {
+                error = new IOException("HTTP " + statusCode);
+            }
+        }
+        catch (Exception e) {
+            // Like Volley, a successful response that isn't a JSON object is reported without a status code
+            if( statusCode >= 200 && statusCode < 300 )
+                statusCode = 0;
+            error = e;
+        }
+
+        if( response != null )
+            deliverResponse(callback, response);
+        else
+            deliverError(callback, statusCode, retryAfterHeader, error);
+    }
+
+
+    private void deliverResponse(final Callback callback, final ChunkResponse response) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResponse(response);
+            }
+        });
+    }
+
+
+    private void deliverError(final Callback callback, final int statusCode, final String retryAfterHeader, final Exception error) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onError(statusCode, retryAfterHeader, error);
+            }
+        });
+    }
+
+
+    /**
+     * Reads the stream to the end and closes it, which returns the connection to the pool.
+     */
+    private static String readFully(InputStream in) throws IOException {
+        if( in == null )
+            return "";
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while( (count = in.read(buffer)) != -1 )
+                out.write(buffer, 0, count);
+            return out.toString("UTF-8");
+        }
+        finally {
+            in.close();
+        }
+    }
+}
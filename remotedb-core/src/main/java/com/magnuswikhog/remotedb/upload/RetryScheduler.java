@@ -0,0 +1,206 @@
+package com.magnuswikhog.remotedb.upload;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+
+/**
+ * Keeps track of failed chunks and decides when (and if) they should be sent again.
+ * <p>
+ * Retries are delayed with exponential backoff and jitter, so that a fleet of devices that failed
+ * at the same time doesn't retry at the same time. A Retry-After header sent by the server is
+ * honored. Chunks rejected with a 4xx status (other than 408 and 429) are given up on immediately,
+ * since sending the same request again won't change the outcome, as are chunks that have failed
+ * the max number of attempts.
+ */
+public class RetryScheduler {
+
+    /**
+     * A chunk waiting to be sent again.
+     */
+    public static class PendingRetry {
+        /** Identifies the chunk, RemoteDb uses the lease id of its entries. */
+        public final long chunkId;
+        private int mAttempts;
+        private long mDueAtMillis;
+
+        PendingRetry(long chunkId) {
+            this.chunkId = chunkId;
+        }
+
+        /** @return The number of times the chunk has failed so far. */
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        /** @return The time (according to the scheduler's clock) when the chunk should be sent again. */
+        public long getDueAtMillis() {
+            return mDueAtMillis;
+        }
+    }
+
+
+    private final Clock mClock;
+    private final Random mRandom;
+    private final List<PendingRetry> mPending = new ArrayList<>();
+
+    private long mBaseDelayMillis = 1000;
+    private long mMaxDelayMillis = 5 * 60 * 1000;
+    private int mMaxAttempts = 8;
+    private long mGivenUpCount;
+
+
+    public RetryScheduler() {
+        this(Clock.SYSTEM, new Random());
+    }
+
+
+    public RetryScheduler(Clock clock, Random random) {
+        mClock = clock;
+        mRandom = random;
+    }
+
+
+    /**
+     * @param baseDelayMillis   The delay before the first retry. Each following retry doubles it.
+     * @param maxDelayMillis    The longest delay between two attempts (Retry-After excluded).
+     * @param maxAttempts       The number of failed attempts after which a chunk is given up on. Use
+     *                          0 to never retry.
+     */
+    public synchronized void setBackoff(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+        mBaseDelayMillis = Math.max(1, baseDelayMillis);
+        mMaxDelayMillis = Math.max(mBaseDelayMillis, maxDelayMillis);
+        mMaxAttempts = Math.max(0, maxAttempts);
+    }
+
+
+    /**
+     * Reports a failed chunk and schedules it to be retried.
+     * @param previous          The pending retry that was being sent, or null if this was the first
+     *                          attempt to send the chunk.
+     * @param chunkId           Identifies the chunk.
+     * @param statusCode        The HTTP status code of the response, or 0 if there was none (for
+     *                          example a timeout or a connection error).
+     * @param retryAfterHeader  The value of the Retry-After response header, or null.
+     * @return The scheduled retry, or null if the chunk won't be retried.
+     */
+    public synchronized PendingRetry onFailure(PendingRetry previous, long chunkId, int statusCode, String retryAfterHeader) {
+        PendingRetry retry = previous != null ? previous : new PendingRetry(chunkId);
+        retry.mAttempts++;
+
+        if( isPermanentFailure(statusCode) || retry.mAttempts > mMaxAttempts ) {
+            mGivenUpCount++;
+            return null;
+        }
+
+        long delay = getBackoffDelay(retry.mAttempts);
+        long retryAfter = parseRetryAfter(retryAfterHeader);
+        if( retryAfter > delay )
+            delay = retryAfter + (long) (mRandom.nextDouble() * mBaseDelayMillis);
+
+        retry.mDueAtMillis = mClock.currentTimeMillis() + delay;
+        mPending.add(retry);
+        return retry;
+    }
+
+
+    /**
+     * Removes and returns the due retry of the oldest chunk (the one with the lowest id), so that
+     * chunks are resent in the order they were first sent.
+     * @return Null if no retry is due.
+     */
+    public synchronized PendingRetry takeNextDue() {
+        PendingRetry next = null;
+        long now = mClock.currentTimeMillis();
+        for (PendingRetry retry : mPending) {
+            if( retry.mDueAtMillis <= now && (next == null || retry.chunkId < next.chunkId) )
+                next = retry;
+        }
+        if( next != null )
+            mPending.remove(next);
+        return next;
+    }
+
+
+    /**
+     * @return The number of milliseconds until the next pending retry is due (0 if one is already
+     *         due), or -1 if there are no pending retries.
+     */
+    public synchronized long getMillisUntilNextDue() {
+        if( mPending.isEmpty() )
+            return -1;
+
+        long next = Long.MAX_VALUE;
+        for (PendingRetry retry : mPending)
+            next = Math.min(next, retry.mDueAtMillis);
+        return Math.max(0, next - mClock.currentTimeMillis());
+    }
+
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+
+    /**
+     * @return The number of chunks that have been given up on.
+     */
+    public synchronized long getGivenUpCount() {
+        return mGivenUpCount;
+    }
+
+
+    public synchronized void clear() {
+        mPending.clear();
+    }
+
+
+    /**
+     * @return A delay between half and all of base * 2^(attempts-1), capped at the max delay.
+     */
+    private long getBackoffDelay(int attempts) {
+        long delay = mMaxDelayMillis;
+        if( attempts - 1 < 62 )
+            delay = Math.min(mMaxDelayMillis, mBaseDelayMillis << (attempts - 1));
+        if( delay <= 0 )
+            delay = mMaxDelayMillis;
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+
+    private static boolean isPermanentFailure(int statusCode) {
+        return statusCode >= 400 && statusCode < 500 && statusCode != 408 && statusCode != 429;
+    }
+
+
+    /**
+     * @return The delay in milliseconds requested by a Retry-After header (either a number of
+     *         seconds or an HTTP date), or -1 if there is no valid header.
+     */
+    private long parseRetryAfter(String retryAfterHeader) {
+        if( retryAfterHeader == null || retryAfterHeader.trim().isEmpty() )
+            return -1;
+
+        String value = retryAfterHeader.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, try an HTTP date
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value);
+            return Math.max(0, date.getTime() - mClock.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
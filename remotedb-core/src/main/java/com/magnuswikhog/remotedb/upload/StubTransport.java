@@ -0,0 +1,224 @@
+package com.magnuswikhog.remotedb.upload;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+
+/**
+ * An in-process stand-in for the RemoteDb server, for tests. Requests are decoded and handled the
+ * way the server script handles them: entries are stored once per UUID, and the response lists the
+ * UUID's of the stored entries (or, if the request asks for it, the highest stored sequence number
+ * and the ones below it that weren't stored) and the total number of stored entries.
+ * <p>
+ * Failures can be queued with {@link #failNextRequest(int, String)}, to test retries and
+ * fallbacks without a network.
+ */
+public class StubTransport implements UploadTransport {
+    private final Executor mCallbackExecutor;
+    private final String mPassword;
+
+    private final Map<String, JSONObject> mStoredEntries = new LinkedHashMap<>();
+    private final ArrayDeque<Failure> mFailures = new ArrayDeque<>();
+    private final List<ContentEncoding> mRequestEncodings = new ArrayList<>();
+    private boolean mAcceptCompressedRequests = true;
+    private int mEntriesToReject;
+
+
+    /**
+     * @param callbackExecutor  Runs the callbacks, e.g. a direct executor in unit tests.
+     * @param password          The password that requests must contain, or null to accept any.
+     */
+    public StubTransport(Executor callbackExecutor, String password) {
+        mCallbackExecutor = callbackExecutor;
+        mPassword = password;
+    }
+
+
+    /**
+     * Makes the next request fail with the supplied status code, without being handled.
+     * @param statusCode        The HTTP status code, or 0 to simulate a timeout.
+     * @param retryAfterHeader  The Retry-After header to return, or null.
+     */
+    public synchronized void failNextRequest(int statusCode, String retryAfterHeader) {
+        mFailures.add(new Failure(statusCode, retryAfterHeader));
+    }
+
+
+    /**
+     * @param accept If false, compressed requests are rejected with HTTP 415, like a server that
+     *               doesn't support them.
+     */
+    public synchronized void setAcceptCompressedRequests(boolean accept) {
+        mAcceptCompressedRequests = accept;
+    }
+
+
+    /**
+     * Makes the server leave the next entries it receives unstored, like entries that fail to be
+     * inserted into its database. They are left out of the acknowledgement of their request.
+     */
+    public synchronized void rejectNextEntries(int count) {
+        mEntriesToReject += count;
+    }
+
+
+    /**
+     * @return The stored entries, in the order they were first received.
+     */
+    public synchronized List<JSONObject> getStoredEntries() {
+        return new ArrayList<>(mStoredEntries.values());
+    }
+
+
+    /**
+     * @return The encoding of every request received so far, including failed ones.
+     */
+    public synchronized List<ContentEncoding> getRequestEncodings() {
+        return new ArrayList<>(mRequestEncodings);
+    }
+
+
+    @Override
+    public void post(String url, byte[] body, ContentEncoding encoding, final Callback callback) {
+        int statusCode;
+        final String retryAfterHeader;
+        ChunkResponse response;
+
+        synchronized (this) {
+            mRequestEncodings.add(encoding);
+
+            Failure failure = mFailures.poll();
+            if( failure != null ) {
+                statusCode = failure.mStatusCode;
+                retryAfterHeader = failure.mRetryAfterHeader;
+                response = null;
+            }
+            else if( encoding != ContentEncoding.IDENTITY && !mAcceptCompressedRequests ) {
+                statusCode = 415;
+                retryAfterHeader = null;
+                response = null;
+            }
+            else {
+                statusCode = 200;
+                retryAfterHeader = null;
+                try {
+                    response = ChunkResponse.parse(handle(body, encoding).toString());
+                }
+                catch (JSONException e) {
+                    statusCode = 0;
+                    response = null;
+                }
+            }
+        }
+
+        final int finalStatusCode = statusCode;
+        final ChunkResponse finalResponse = response;
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if( finalResponse != null )
+                    callback.onResponse(finalResponse);
+                else
+                    callback.onError(finalStatusCode, retryAfterHeader, null);
+            }
+        });
+    }
+
+
+    /**
+     * Handles a request the way {@link #post} does, and returns the text of the response, e.g. to
+     * serve it over a real HTTP connection. Failures queued with
+     * {@link #failNextRequest(int, String)} don't apply.
+     */
+    public synchronized String respond(byte[] body, ContentEncoding encoding) {
+        mRequestEncodings.add(encoding);
+        return handle(body, encoding).toString();
+    }
+
+
+    private JSONObject handle(byte[] body, ContentEncoding encoding) {
+        JSONObject response = new JSONObject();
+        try {
+            JSONObject request = new JSONObject(decode(body, encoding));
+            if( mPassword != null && !mPassword.equals(request.optString("_pw")) )
+                return response.put("status", "error").put("message", "Wrong password");
+
+            JSONArray entries = request.getJSONArray("_ent");
+            JSONArray storedUuids = new JSONArray();
+            long storedThrough = 0;
+            List<Long> notStored = new ArrayList<>();
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                String uuid = entry.getString("_u");
+                if( mEntriesToReject > 0 ) {
+                    mEntriesToReject--;
+                    notStored.add(entry.getLong("_s"));
+                    continue;
+                }
+                if( !mStoredEntries.containsKey(uuid) )
+                    mStoredEntries.put(uuid, entry);
+                storedUuids.put(uuid);
+                storedThrough = Math.max(storedThrough, entry.getLong("_s"));
+            }
+
+            response.put("status", "ok");
+            if( request.optString("_ack").equals("seq") ) {
+                JSONArray notStoredBelow = new JSONArray();
+                for (long sequence : notStored) {
+                    if( sequence < storedThrough )
+                        notStoredBelow.put(sequence);
+                }
+                response.put("stored_through", storedThrough).put("not_stored", notStoredBelow);
+            }
+            else {
+                response.put("stored_uuids", storedUuids.toString());
+            }
+            return response.put("total_count", mStoredEntries.size());
+        }
+        catch (Exception e) {
+            try {
+                return response.put("status", "error").put("message", String.valueOf(e));
+            } catch (Exception ignored) {
+                return response;
+            }
+        }
+    }
+
+
+    private static String decode(byte[] body, ContentEncoding encoding) throws Exception {
+        InputStream in = encoding.unwrap(new ByteArrayInputStream(body));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+            byte[] buffer = new byte[4096];
+            int count;
+            while( (count = in.read(buffer)) != -1 )
+                out.write(buffer, 0, count);
+            return out.toString("UTF-8");
+        }
+        finally {
+            in.close();
+        }
+    }
+
+
+    private static class Failure {
+        final int mStatusCode;
+        final String mRetryAfterHeader;
+
+        Failure(int statusCode, String retryAfterHeader) {
+            mStatusCode = statusCode;
+            mRetryAfterHeader = retryAfterHeader;
+        }
+    }
+}
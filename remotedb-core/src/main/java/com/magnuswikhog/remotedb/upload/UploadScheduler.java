@@ -0,0 +1,201 @@
+package com.magnuswikhog.remotedb.upload;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Shares a limited number of in-flight upload requests between several streams of entries.
+ * <p>
+ * Free slots are handed out with stride scheduling: every stream has a pass value which grows by
+ * an amount inversely proportional to its priority each time it sends a chunk, and the waiting
+ * stream with the lowest pass gets the next slot. So while several streams have entries to send, a
+ * stream with priority 2 sends about twice as many chunks as one with priority 1, and no stream is
+ * starved. A stream that starts sending joins at the current pass, instead of catching up on the
+ * time it was idle.
+ */
+public class UploadScheduler {
+    public static final int DEFAULT_PRIORITY = 1;
+    private static final long STRIDE = 1 << 20;
+
+
+    /**
+     * A source of upload chunks.
+     */
+    public interface Stream {
+        /**
+         * Reads, serializes and sends the next chunk of the stream, if it has one and its own limits
+         * allow it. Called on the scheduler's executor, never concurrently for the same stream.
+         * Call {@link UploadScheduler#onChunkDone(Stream)} when a sent chunk has been answered.
+         * @return False if no chunk was sent.
+         */
+        boolean sendNextChunk();
+    }
+
+
+    private static class StreamState {
+        int mPriority = DEFAULT_PRIORITY;
+        long mPass;
+        /** True if the stream may have a chunk to send. */
+        boolean mWaiting;
+        /** True while sendNextChunk() is running. */
+        boolean mSending;
+    }
+
+
+    private final Executor mExecutor;
+    private final Map<Stream, StreamState> mStreams = new IdentityHashMap<>();
+    private int mMaxInFlight = 4;
+    private int mInFlight;
+    /** The pass of the stream that was most recently given a slot. */
+    private long mCurrentPass;
+
+
+    /**
+     * @param executor Runs the streams' sendNextChunk(), see {@link com.magnuswikhog.remotedb.RemoteDbExecutors#getUpload()}.
+     */
+    public UploadScheduler(Executor executor) {
+        mExecutor = executor;
+    }
+
+
+    /**
+     * @param priority  The stream's share of the in-flight slots, relative to other streams. Must be
+     *                  at least 1.
+     */
+    public synchronized void setPriority(Stream stream, int priority) {
+        getState(stream).mPriority = Math.max(1, priority);
+    }
+
+
+    public synchronized int getPriority(Stream stream) {
+        return getState(stream).mPriority;
+    }
+
+
+    /**
+     * Sets how many chunks may be in flight, in total for all streams.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        synchronized (this) {
+            mMaxInFlight = Math.max(1, maxInFlight);
+        }
+        scheduleAsync();
+    }
+
+
+    public synchronized int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+
+    /**
+     * Tells the scheduler that the stream has chunks to send.
+     */
+    public void requestSend(Stream stream) {
+        synchronized (this) {
+            StreamState state = getState(stream);
+            if( !state.mWaiting && !state.mSending )
+                state.mPass = Math.max(state.mPass, mCurrentPass);
+            state.mWaiting = true;
+        }
+        scheduleAsync();
+    }
+
+
+    /**
+     * Frees the slot of a chunk sent by the stream, and lets the stream send more.
+     */
+    public void onChunkDone(Stream stream) {
+        synchronized (this) {
+            mInFlight = Math.max(0, mInFlight - 1);
+            getState(stream).mWaiting = true;
+        }
+        scheduleAsync();
+    }
+
+
+    public synchronized int getInFlightCount() {
+        return mInFlight;
+    }
+
+
+    private void scheduleAsync() {
+        mExecutor.execute(mScheduleRunnable);
+    }
+
+
+    private final Runnable mScheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
+
+
+    /**
+     * Gives free slots to waiting streams until either runs out.
+     */
+    void schedule() {
+        while( true ) {
+            Stream next = null;
+            StreamState nextState = null;
+            long stride;
+
+            synchronized (this) {
+                if( mInFlight >= mMaxInFlight )
+                    return;
+
+                for (Map.Entry<Stream, StreamState> candidate : mStreams.entrySet()) {
+                    StreamState state = candidate.getValue();
+                    if( state.mWaiting && !state.mSending && (nextState == null || state.mPass < nextState.mPass) ) {
+                        next = candidate.getKey();
+                        nextState = state;
+                    }
+                }
+                if( next == null )
+                    return;
+
+                mInFlight++;
+                mCurrentPass = nextState.mPass;
+                stride = STRIDE / nextState.mPriority;
+                nextState.mPass += stride;
+                nextState.mWaiting = false;
+                nextState.mSending = true;
+            }
+
+            boolean sent = false;
+            try {
+                sent = next.sendNextChunk();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            finally {
+                synchronized (this) {
+                    nextState.mSending = false;
+                    if( sent ) {
+                        // It may have more, it is asked again when it's its turn
+                        nextState.mWaiting = true;
+                    }
+                    else {
+                        mInFlight--;
+                        nextState.mPass -= stride;
+                    }
+                }
+            }
+        }
+    }
+
+
+    private StreamState getState(Stream stream) {
+        StreamState state = mStreams.get(stream);
+        if( state == null ) {
+            state = new StreamState();
+            state.mPass = mCurrentPass;
+            mStreams.put(stream, state);
+        }
+        return state;
+    }
+}
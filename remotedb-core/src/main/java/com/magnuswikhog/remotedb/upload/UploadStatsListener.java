@@ -0,0 +1,17 @@
+package com.magnuswikhog.remotedb.upload;
+
+
+/**
+ * Receives statistics about the upload requests sent to the server. Useful for tuning the chunk
+ * size and compression settings.
+ */
+public interface UploadStatsListener {
+    /**
+     * Called on a background thread when the body of an upload request has been built.
+     * @param entryCount    The number of entries in the request.
+     * @param rawBytes      The size of the uncompressed JSON body.
+     * @param encodedBytes  The size of the body as it is sent, after compression.
+     * @param encoding      The encoding the body was compressed with.
+     */
+    void onChunkEncoded(int entryCount, long rawBytes, long encodedBytes, ContentEncoding encoding);
+}
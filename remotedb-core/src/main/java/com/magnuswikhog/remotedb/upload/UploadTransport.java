@@ -0,0 +1,42 @@
+package com.magnuswikhog.remotedb.upload;
+
+
+/**
+ * Sends upload requests to the server. A transport can be shared by several RemoteDb instances,
+ * which then share its threads and connections.
+ * <p>
+ * Implementations must not retry failed requests, that is done by the UploadEngine's
+ * RetryScheduler.
+ */
+public interface UploadTransport {
+
+    /**
+     * Receives the outcome of a request. Can be called on any thread, e.g. Volley calls it on the
+     * main thread and HttpUrlConnectionTransport on its own threads by default.
+     */
+    interface Callback {
+        /**
+         * Called when the server has answered with a 2xx status code and a JSON object. The
+         * response should be parsed with {@link ChunkResponse#parse(String)} on the thread that
+         * read it, not the thread that the callback is delivered on.
+         */
+        void onResponse(ChunkResponse response);
+
+        /**
+         * Called when the request failed.
+         * @param statusCode        The HTTP status code, or 0 if there was no response (e.g. a
+         *                          timeout) or it couldn't be parsed.
+         * @param retryAfterHeader  The value of the Retry-After response header, or null.
+         * @param error             What went wrong, may be null.
+         */
+        void onError(int statusCode, String retryAfterHeader, Exception error);
+    }
+
+
+    /**
+     * Posts a JSON request body.
+     * @param body      The request body, already compressed with the supplied encoding.
+     * @param encoding  The encoding of the body, sent in the Content-Encoding header.
+     */
+    void post(String url, byte[] body, ContentEncoding encoding, Callback callback);
+}
@@ -0,0 +1,287 @@
+package com.magnuswikhog.remotedb;
+
+import com.magnuswikhog.remotedb.database.MemoryEntryStore;
+import com.magnuswikhog.remotedb.database.RawLocalEntry;
+import com.magnuswikhog.remotedb.engine.EngineLogger;
+import com.magnuswikhog.remotedb.metrics.RemoteDbMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EntryIngestQueueTest {
+
+    /** Records the size of each inserted batch, and can fail or hold inserts. */
+    private static class RecordingStore extends MemoryEntryStore {
+        final List<Integer> mBatchSizes = new ArrayList<>();
+        volatile int mFailuresLeft;
+        volatile CountDownLatch mInsertStarted;
+        volatile CountDownLatch mReleaseInsert;
+
+        @Override
+        public void insert(RawLocalEntry[] entries) {
+            CountDownLatch release = mReleaseInsert;
+            if( release != null ) {
+                mInsertStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            if( mFailuresLeft > 0 ) {
+                mFailuresLeft--;
+                throw new IllegalStateException("disk I/O error");
+            }
+            synchronized (mBatchSizes) {
+                mBatchSizes.add(entries.length);
+            }
+            super.insert(entries);
+        }
+
+        List<Integer> getBatchSizes() {
+            synchronized (mBatchSizes) {
+                return new ArrayList<>(mBatchSizes);
+            }
+        }
+    }
+
+    private static final EngineLogger QUIET = new EngineLogger() {
+        @Override
+        public boolean isDebugEnabled() {
+            return false;
+        }
+
+        @Override
+        public void debug(String tag, String message) {
+        }
+
+        @Override
+        public void warn(String tag, String message) {
+        }
+
+        @Override
+        public void error(String tag, String message, Throwable error) {
+        }
+    };
+
+    private ExecutorService mWriter;
+    private RecordingStore mStore;
+    private EntryIngestQueue mQueue;
+    private int mNextNumber;
+
+
+    @Before
+    public void setUp() {
+        mWriter = Executors.newSingleThreadExecutor();
+        mStore = new RecordingStore();
+        mQueue = new EntryIngestQueue(mStore, mWriter, new RemoteDbMetrics(), QUIET);
+        // Batches are only written when they are full, or flushed
+        mQueue.setBatching(10, 60000);
+    }
+
+
+    @After
+    public void tearDown() {
+        CountDownLatch release = mStore.mReleaseInsert;
+        if( release != null )
+            release.countDown();
+        mWriter.shutdownNow();
+    }
+
+
+    @Test
+    public void writesFullBatchesAndFlushesTheRest() throws Exception {
+        addEntries("a", 10);
+        waitForCount("a", 10);
+        assertEquals(1, mStore.getBatchSizes().size());
+
+        addEntries("a", 5);
+        Thread.sleep(50);
+        assertEquals(10, mStore.countEntries("a"));
+
+        mQueue.flush();
+        assertEquals(15, mStore.countEntries("a"));
+        assertEquals(2, mStore.getBatchSizes().size());
+        assertEquals(5, (int) mStore.getBatchSizes().get(1));
+    }
+
+
+    @Test
+    public void writesBatchAfterMaxDelay() throws Exception {
+        mQueue.setBatching(100, 20);
+        addEntries("a", 3);
+        waitForCount("a", 3);
+        assertEquals(1, mStore.getBatchSizes().size());
+    }
+
+
+    @Test
+    public void failedBatchIsReportedAndWrittenAgain() throws Exception {
+        mStore.mFailuresLeft = 1;
+        addEntries("a", 5);
+
+        try {
+            mQueue.flush();
+            fail("The failed write wasn't reported");
+        }
+        catch (IllegalStateException expected) {
+        }
+        assertEquals(0, mStore.countEntries("a"));
+
+        // The batch is kept, and written again in front of the entries added since
+        addEntries("a", 2);
+        mQueue.flush();
+        assertEquals(7, mStore.countEntries("a"));
+        assertEquals(1, mStore.getBatchSizes().size());
+        List<RawLocalEntry> written = mStore.leaseNextChunk("a", new long[]{0}, new int[]{10}, 10, 1);
+        assertEquals("a-0", written.get(0).uuid);
+        assertEquals("a-5", written.get(5).uuid);
+    }
+
+
+    @Test
+    public void failedBatchIsPutBackWithinTheCapacity() throws Exception {
+        mQueue.setBackpressure(5, EntryIngestQueue.Backpressure.BLOCK);
+        mStore.mFailuresLeft = 1;
+        mStore.mInsertStarted = new CountDownLatch(1);
+        mStore.mReleaseInsert = new CountDownLatch(1);
+        addEntries("a", 5);
+        assertTrue(mStore.mInsertStarted.await(2, TimeUnit.SECONDS));
+
+        // The batch being written counts against the capacity, also while it waits to be written again
+        Thread add = startAdding("a", 1);
+        add.join(100);
+        assertTrue(add.isAlive());
+
+        mStore.mReleaseInsert.countDown();
+        add.join(100);
+        assertTrue(add.isAlive());
+
+        add.join(3000);
+        assertFalse(add.isAlive());
+        mQueue.flush();
+        assertEquals(6, mStore.countEntries("a"));
+        assertEquals(0, mQueue.getDroppedCount());
+    }
+
+
+    @Test
+    public void interruptedBlockedAddStillAddsTheEntry() throws Exception {
+        mQueue.setBackpressure(2, EntryIngestQueue.Backpressure.BLOCK);
+        mStore.mInsertStarted = new CountDownLatch(1);
+        mStore.mReleaseInsert = new CountDownLatch(1);
+        addEntries("a", 2);
+        assertTrue(mStore.mInsertStarted.await(2, TimeUnit.SECONDS));
+
+        final boolean[] interrupted = new boolean[1];
+        Thread add = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                addEntries("a", 1);
+                interrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        });
+        add.start();
+        add.join(100);
+        assertTrue(add.isAlive());
+
+        add.interrupt();
+        add.join(2000);
+        assertFalse(add.isAlive());
+        assertTrue(interrupted[0]);
+
+        mStore.mReleaseInsert.countDown();
+        mQueue.flush();
+        assertEquals(3, mStore.countEntries("a"));
+    }
+
+
+    @Test
+    public void clearDiscardsBufferedEntriesOfTheStream() throws Exception {
+        addEntries("a", 3);
+        addEntries("b", 2);
+
+        mQueue.clear("a");
+        mQueue.flush();
+
+        assertEquals(0, mStore.countEntries("a"));
+        assertEquals(2, mStore.countEntries("b"));
+    }
+
+
+    @Test
+    public void flushWaitsForBatchBeingWrittenWhenClearing() throws Exception {
+        mStore.mInsertStarted = new CountDownLatch(1);
+        mStore.mReleaseInsert = new CountDownLatch(1);
+        addEntries("a", 10);
+        assertTrue(mStore.mInsertStarted.await(2, TimeUnit.SECONDS));
+
+        // Clearing an empty buffer must not count the batch in flight as written
+        mQueue.clear("b");
+        Thread flush = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.flush();
+            }
+        });
+        flush.start();
+        flush.join(100);
+        assertTrue(flush.isAlive());
+
+        mStore.mReleaseInsert.countDown();
+        flush.join(2000);
+        assertFalse(flush.isAlive());
+        assertEquals(10, mStore.countEntries("a"));
+    }
+
+
+    @Test
+    public void closeWritesBufferedEntries() throws Exception {
+        addEntries("a", 5);
+        mQueue.close();
+        assertEquals(5, mStore.countEntries("a"));
+
+        try {
+            addEntries("a", 1);
+            fail("Added an entry to a closed queue");
+        }
+        catch (IllegalStateException expected) {
+        }
+    }
+
+
+    private void addEntries(String stream, int count) {
+        for (int i = 0; i < count; i++)
+            mQueue.add(new RawLocalEntry(stream, 0, stream + "-" + mNextNumber++, new byte[0]));
+    }
+
+
+    private Thread startAdding(final String stream, final int count) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                addEntries(stream, count);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+
+    private void waitForCount(String stream, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while( mStore.countEntries(stream) < count && System.currentTimeMillis() < deadline )
+            Thread.sleep(5);
+        assertEquals(count, mStore.countEntries(stream));
+    }
+}
@@ -0,0 +1,83 @@
+package com.magnuswikhog.remotedb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class RemoteDbExecutorsTest {
+
+    /** Queues tasks until run() is called, like a busy thread would. */
+    private static class QueueingExecutor implements Executor {
+        final List<Runnable> mTasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        void run() {
+            for (Runnable task : mTasks)
+                task.run();
+            mTasks.clear();
+        }
+    }
+
+
+    @Test
+    public void futuresCompleteWhenTasksHaveRun() throws Exception {
+        QueueingExecutor writer = new QueueingExecutor();
+        QueueingExecutor upload = new QueueingExecutor();
+        RemoteDbExecutors executors = new RemoteDbExecutors(writer, upload);
+
+        final List<String> order = new ArrayList<>();
+        Future<Void> first = executors.submitWrite(new Runnable() {
+            @Override
+            public void run() {
+                order.add("first");
+            }
+        });
+        Future<Void> second = executors.submitWrite(new Runnable() {
+            @Override
+            public void run() {
+                order.add("second");
+            }
+        });
+
+        assertFalse(first.isDone());
+        assertTrue(upload.mTasks.isEmpty());
+
+        writer.run();
+        assertNull(first.get());
+        assertTrue(second.isDone());
+        assertEquals("first", order.get(0));
+        assertEquals("second", order.get(1));
+    }
+
+
+    @Test
+    public void failuresAreReportedThroughTheFuture() throws Exception {
+        QueueingExecutor upload = new QueueingExecutor();
+        RemoteDbExecutors executors = new RemoteDbExecutors(new QueueingExecutor(), upload);
+
+        Future<Void> future = executors.submitUpload(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("expected");
+            }
+        });
+        upload.run();
+
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
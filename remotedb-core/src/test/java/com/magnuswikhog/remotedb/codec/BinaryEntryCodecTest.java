@@ -0,0 +1,152 @@
+package com.magnuswikhog.remotedb.codec;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.EntryBuilder;
+import com.magnuswikhog.remotedb.database.Converters;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BinaryEntryCodecTest {
+
+    @After
+    public void resetCodec() {
+        Converters.setEntryCodec(null);
+    }
+
+    @Test
+    public void roundTripsAllValueTypes() throws Exception {
+        Entry entry = new Entry()
+                .put("t", 1539849600000L)
+                .put("small", 5)
+                .put("negative", -1000)
+                .put("int", 70000)
+                .put("d", 3.25)
+                .put("b", true)
+                .put("m", "Random message: \u00e5\u00e4\u00f6")
+                .put("long", new String(new char[300]).replace('\0', 'x'))
+                .put("n", JSONObject.NULL)
+                .put("o", new JSONObject().put("x", 1).put("y", new JSONArray().put(1).put("two").put(false)));
+
+        BinaryEntryCodec codec = new BinaryEntryCodec("t", "m");
+        byte[] data = codec.encode(entry);
+        assertTrue(codec.canDecode(data));
+
+        Entry decoded = codec.decode(data);
+        assertEquals(entry.length(), decoded.length());
+        assertEquals(1539849600000L, decoded.getLong("t"));
+        assertEquals(5, decoded.getInt("small"));
+        assertEquals(-1000, decoded.getInt("negative"));
+        assertEquals(70000, decoded.getInt("int"));
+        assertEquals(3.25, decoded.getDouble("d"), 0);
+        assertTrue(decoded.getBoolean("b"));
+        assertEquals(entry.getString("m"), decoded.getString("m"));
+        assertEquals(300, decoded.getString("long").length());
+        assertTrue(decoded.isNull("n"));
+        assertEquals("two", decoded.getJSONObject("o").getJSONArray("y").getString(1));
+    }
+
+    @Test
+    public void internedKeysMakeEntriesSmaller() {
+        Entry entry = new Entry().put("timestamp", 1539849600000L).put("message", "Entry #1");
+
+        int plain = new BinaryEntryCodec().encode(entry).length;
+        int interned = new BinaryEntryCodec("timestamp", "message").encode(entry).length;
+        int json = new JsonEntryCodec().encode(entry).length;
+
+        assertTrue(interned < plain);
+        assertTrue(plain < json);
+    }
+
+    @Test
+    public void convertersStillReadLegacyJson() throws Exception {
+        Converters.setEntryCodec(new BinaryEntryCodec());
+
+        byte[] legacy = "{\"t\":1,\"m\":\"legacy\"}".getBytes("UTF-8");
+        assertEquals("legacy", Converters.fromBytes(legacy).getString("m"));
+
+        byte[] binary = Converters.entryToBytes(new Entry().put("m", "binary"));
+        assertEquals("binary", Converters.fromBytes(binary).getString("m"));
+    }
+
+    @Test
+    public void convertersReadBinaryEntriesWhateverCodecIsConfigured() throws Exception {
+        BinaryEntryCodec binaryCodec = new BinaryEntryCodec("m");
+        Converters.setEntryCodec(binaryCodec);
+        byte[] binary = Converters.entryToBytes(new Entry().put("m", "binary"));
+
+        Converters.setEntryCodec(new JsonEntryCodec());
+        assertSame(binaryCodec, Converters.codecFor(binary));
+        assertEquals("binary", Converters.fromBytes(binary).getString("m"));
+
+        Converters.setEntryCodec(null);
+        assertSame(binaryCodec, Converters.codecFor(binary));
+    }
+
+    @Test
+    public void writeJsonRejectsInvalidData() throws Exception {
+        BinaryEntryCodec codec = new BinaryEntryCodec("t");
+        byte[] data = codec.encode(new Entry().put("t", 1).put("message", "Entry #1"));
+
+        byte[][] invalid = {
+                Arrays.copyOf(data, data.length - 3),
+                // A key index outside the dictionary
+                new byte[]{BinaryEntryCodec.MAGIC, BinaryEntryCodec.VERSION, (byte) 0x81, 0x05, 0x01},
+                // A string longer than the data
+                new byte[]{BinaryEntryCodec.MAGIC, BinaryEntryCodec.VERSION, (byte) 0x81, (byte) 0xdb, 0x7f, 0, 0, 0},
+                "{}".getBytes("UTF-8"),
+        };
+        for (byte[] bytes : invalid) {
+            try {
+                codec.writeJson(bytes, new ByteArrayOutputStream());
+                fail("Accepted " + Arrays.toString(bytes));
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+
+        try {
+            new JsonEntryCodec().writeJson(data, new ByteArrayOutputStream());
+            fail("JSON codec accepted a binary entry");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void encodesBuildersLikeEntries() throws Exception {
+        EntryBuilder builder = new EntryBuilder(2);
+        builder.put("stale", 1).reset()
+                .put("t", 1539849600000L)
+                .put("i", -7)
+                .put("d", 0.1)
+                .put("b", false)
+                .put("m", "\"message\"")
+                .put("n", JSONObject.NULL)
+                .put("o", new JSONObject().put("x", 1))
+                .put("removed", "x")
+                .put("removed", (String) null)
+                .put("i", 8);
+        Entry entry = builder.toEntry();
+        assertEquals(7, entry.length());
+
+        EntryCodec[] codecs = {new JsonEntryCodec(), new BinaryEntryCodec("t")};
+        for (EntryCodec codec : codecs) {
+            assertTrue(codec.decode(codec.encode(entry)).similar(codec.decode(codec.encode(builder))));
+
+            Entry decoded = codec.decode(codec.encode(builder));
+            assertEquals(1539849600000L, decoded.getLong("t"));
+            assertEquals(8, decoded.getInt("i"));
+            assertEquals(0.1, decoded.getDouble("d"), 0);
+            assertFalse(decoded.getBoolean("b"));
+            assertEquals("\"message\"", decoded.getString("m"));
+            assertTrue(decoded.isNull("n"));
+            assertEquals(1, decoded.getJSONObject("o").getInt("x"));
+        }
+    }
+}
@@ -0,0 +1,655 @@
+package com.magnuswikhog.remotedb.engine;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.RemoteDbExecutors;
+import com.magnuswikhog.remotedb.database.MemoryEntryStore;
+import com.magnuswikhog.remotedb.database.RawLocalEntry;
+import com.magnuswikhog.remotedb.upload.ChunkResponse;
+import com.magnuswikhog.remotedb.upload.ContentEncoding;
+import com.magnuswikhog.remotedb.upload.StubTransport;
+import com.magnuswikhog.remotedb.upload.UploadTransport;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class UploadEngineTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    private static final String STREAM = "events";
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private MemoryEntryStore mStore;
+    private StubTransport mTransport;
+    private UploadEngine mEngine;
+
+    private final AtomicInteger mSucceeded = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final AtomicLong mServerEntryCount = new AtomicLong(-1);
+
+
+    @Before
+    public void setUp() {
+        mStore = new MemoryEntryStore();
+        mTransport = new StubTransport(DIRECT, "secret");
+        EngineEnvironment environment = new EngineEnvironment(mStore, new RemoteDbExecutors(DIRECT, DIRECT), mTransport);
+        mEngine = new UploadEngine(environment, STREAM, "http://localhost/store", "secret", "test-host");
+        mEngine.setListener(new UploadEngine.Listener() {
+            @Override
+            public void onSendSucceeded() {
+                mSucceeded.incrementAndGet();
+            }
+
+            @Override
+            public void onSendFailed() {
+                mFailed.incrementAndGet();
+            }
+
+            @Override
+            public void onServerEntryCount(long serverEntryCount) {
+                mServerEntryCount.set(serverEntryCount);
+            }
+        });
+    }
+
+
+    @Test
+    public void sendsBacklogInChunksAndMarksItStored() throws Exception {
+        addEntries(250, UploadEngine.PRIORITY_NORMAL);
+        mEngine.setSendToServerEntryChunkSize(100);
+
+        mEngine.sendToServer(false).get();
+
+        assertEquals(250, mTransport.getStoredEntries().size());
+        assertEquals(3, mSucceeded.get());
+        assertEquals(0, mFailed.get());
+        assertEquals(250, mServerEntryCount.get());
+        assertEquals(250, mStore.countEntries(STREAM));
+        assertEquals(0, mStore.countUnstoredEntries(STREAM));
+        assertFalse(mEngine.isSending());
+    }
+
+
+    @Test
+    public void higherPrioritiesAreSentFirst() throws Exception {
+        addEntries(5, UploadEngine.PRIORITY_NORMAL);
+        addEntries(2, UploadEngine.PRIORITY_HIGH);
+        mEngine.setSendToServerEntryChunkSize(3);
+
+        mEngine.sendToServer(false).get();
+
+        List<JSONObject> stored = mTransport.getStoredEntries();
+        assertEquals(7, stored.size());
+        assertEquals(UploadEngine.PRIORITY_HIGH, stored.get(0).getInt("priority"));
+        assertEquals(UploadEngine.PRIORITY_HIGH, stored.get(1).getInt("priority"));
+        assertEquals(0, stored.get(2).getInt("n"));
+    }
+
+
+    @Test
+    public void highPriorityEntryGoesOutWithTheNextRequest() throws Exception {
+        final BlockingQueue<Post> posts = new LinkedBlockingQueue<>();
+        UploadEngine engine = createEngine(new UploadTransport() {
+            @Override
+            public void post(String url, byte[] body, ContentEncoding encoding, Callback callback) {
+                posts.add(new Post(body, callback));
+            }
+        });
+        for (int i = 0; i < 100; i++)
+            engine.addEntry(new Entry().put("n", i), UploadEngine.PRIORITY_LOW);
+        engine.setSendToServerEntryChunkSize(10);
+        engine.setMaxInFlightChunks(1);
+
+        engine.sendToServer(false).get();
+        Post first = posts.poll(1, TimeUnit.SECONDS);
+
+        // Added behind a backlog of low priority entries, while a chunk of them is in flight
+        engine.addEntry(new Entry().put("n", -1), UploadEngine.PRIORITY_HIGH);
+        engine.sendToServer(false).get();
+        first.succeed();
+
+        Post second = posts.poll(1, TimeUnit.SECONDS);
+        assertEquals(-1, second.mEntries.getJSONObject(0).getInt("n"));
+        assertEquals(10, second.mEntries.length());
+        assertEquals(10, second.mEntries.getJSONObject(1).getInt("n"));
+    }
+
+
+    @Test
+    public void priorityBudgetLeavesRoomForLowerPriorities() throws Exception {
+        addEntries(30, UploadEngine.PRIORITY_HIGH);
+        addEntries(30, UploadEngine.PRIORITY_LOW);
+        mEngine.setSendToServerEntryChunkSize(10);
+        mEngine.setPriorityChunkBudget(UploadEngine.PRIORITY_HIGH, 7);
+
+        mEngine.sendToServer(false).get();
+
+        List<JSONObject> stored = mTransport.getStoredEntries();
+        assertEquals(60, stored.size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(i < 7 ? UploadEngine.PRIORITY_HIGH : UploadEngine.PRIORITY_LOW, stored.get(i).getInt("priority"));
+        // Each lane is sent in the order it was added
+        assertEquals(7, stored.get(10).getInt("n"));
+        assertEquals(3, stored.get(17).getInt("n"));
+    }
+
+
+    @Test
+    public void deletesEntriesAfterStoreIfAsked() throws Exception {
+        addEntries(10, UploadEngine.PRIORITY_NORMAL);
+        mEngine.setDeleteAfterStore(true);
+
+        mEngine.sendToServer(false).get();
+
+        assertEquals(10, mTransport.getStoredEntries().size());
+        assertEquals(0, mStore.countEntries(STREAM));
+    }
+
+
+    @Test
+    public void failedChunkIsRetried() throws Exception {
+        addEntries(10, UploadEngine.PRIORITY_NORMAL);
+        mEngine.setRetryBackoff(1, 1, 3);
+        mTransport.failNextRequest(503, null);
+
+        mEngine.sendToServer(false).get();
+        assertEquals(1, mFailed.get());
+
+        // The retry timer runs on a thread of its own
+        long deadline = System.currentTimeMillis() + 5000;
+        while( mStore.countUnstoredEntries(STREAM) > 0 && System.currentTimeMillis() < deadline )
+            Thread.sleep(5);
+
+        assertEquals(0, mStore.countUnstoredEntries(STREAM));
+        assertEquals(10, mTransport.getStoredEntries().size());
+        assertEquals(1, mSucceeded.get());
+    }
+
+
+    @Test
+    public void rejectedChunkIsQuarantined() throws Exception {
+        addEntries(30, UploadEngine.PRIORITY_NORMAL);
+        mEngine.setSendToServerEntryChunkSize(10);
+        mTransport.failNextRequest(422, null);
+
+        // The rest of the backlog is sent, and the rejected chunk isn't sent again
+        mEngine.sendToServer(false).get();
+        assertEquals(20, mTransport.getStoredEntries().size());
+        assertEquals(10, mStore.countUnstoredEntries(STREAM));
+
+        // Not even after a restart
+        mStore.releaseAllLeases();
+        mEngine.sendToServer(false).get();
+        assertEquals(20, mTransport.getStoredEntries().size());
+
+        mEngine.retryQuarantinedEntries().get();
+        mEngine.sendToServer(false).get();
+        assertEquals(30, mTransport.getStoredEntries().size());
+        assertEquals(0, mStore.countUnstoredEntries(STREAM));
+    }
+
+
+    @Test
+    public void sequenceAcknowledgementsMarkChunksStored() throws Exception {
+        addEntries(250, UploadEngine.PRIORITY_NORMAL);
+        mEngine.setSendToServerEntryChunkSize(100);
+        mEngine.setSequenceAcknowledgements(true);
+
+        mEngine.sendToServer(false).get();
+
+        assertEquals(250, mTransport.getStoredEntries().size());
+        assertEquals(0, mStore.countUnstoredEntries(STREAM));
+        assertEquals(250, mServerEntryCount.get());
+    }
+
+
+    @Test
+    public void entriesLeftOutOfSequenceAcknowledgementAreResent() throws Exception {
+        addEntries(10, UploadEngine.PRIORITY_NORMAL);
+        mEngine.setSequenceAcknowledgements(true);
+        mEngine.setDeleteAfterStore(true);
+        mTransport.rejectNextEntries(1);
+
+        mEngine.sendToServer(false).get();
+        assertEquals(9, mTransport.getStoredEntries().size());
+        assertEquals(1, mStore.countUnstoredEntries(STREAM));
+        assertEquals(1, mStore.countEntries(STREAM));
+
+        mEngine.sendToServer(false).get();
+        assertEquals(10, mTransport.getStoredEntries().size());
+        assertEquals(0, mStore.countEntries(STREAM));
+    }
+
+
+    @Test
+    public void entryThatCantBeReadIsNotAcknowledged() throws Exception {
+        addEntries(3, UploadEngine.PRIORITY_NORMAL);
+        mEngine.flush();
+        // Binary data whose dictionary hasn't been set, e.g. read after a restart
+        mStore.insert(new RawLocalEntry[]{new RawLocalEntry(STREAM, UploadEngine.PRIORITY_NORMAL, "unreadable", new byte[]{(byte) 0xC1, 1, (byte) 0x85})});
+        addEntries(3, UploadEngine.PRIORITY_NORMAL);
+        mEngine.setSequenceAcknowledgements(true);
+
+        mEngine.sendToServer(false).get();
+        assertEquals(6, mTransport.getStoredEntries().size());
+        assertEquals(1, mStore.countUnstoredEntries(STREAM));
+
+        // It is left unleased, to be sent once it can be read
+        mEngine.setSequenceAcknowledgements(false);
+        mEngine.sendToServer(false).get();
+        assertEquals(6, mTransport.getStoredEntries().size());
+        assertEquals(1, mStore.countUnstoredEntries(STREAM));
+        List<RawLocalEntry> unsent = mStore.leaseNextChunk(STREAM, new long[3], new int[]{100, 100, 100}, 100, 1000);
+        assertEquals(1, unsent.size());
+        assertEquals("unreadable", unsent.get(0).uuid);
+    }
+
+
+    @Test
+    public void emptyRequestFetchesServerCount() throws Exception {
+        mEngine.sendToServer(true).get();
+
+        assertEquals(0, mServerEntryCount.get());
+        assertEquals(1, mSucceeded.get());
+    }
+
+
+    @Test
+    public void failingServerIsNotSentTheBacklog() throws Exception {
+        final AtomicInteger posts = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final ScheduledExecutorService server = Executors.newSingleThreadScheduledExecutor();
+        UploadTransport failingTransport = new UploadTransport() {
+            @Override
+            public void post(String url, byte[] body, ContentEncoding encoding, final Callback callback) {
+                posts.incrementAndGet();
+                int count = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), count));
+                }
+                server.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        inFlight.decrementAndGet();
+                        callback.onError(503, null, null);
+                    }
+                }, 5, TimeUnit.MILLISECONDS);
+            }
+        };
+        UploadEngine engine = createEngine(failingTransport);
+        for (int i = 0; i < 1000; i++)
+            engine.addEntry(new Entry().put("n", i), UploadEngine.PRIORITY_NORMAL);
+        engine.setSendToServerEntryChunkSize(10);
+        engine.setMaxInFlightChunks(2);
+        engine.setRetryBackoff(1, 1, 3);
+
+        try {
+            engine.sendToServer(false).get();
+
+            // Both chunks in the window are sent once and retried three times, then given up on
+            long deadline = System.currentTimeMillis() + 5000;
+            while( mFailed.get() < 8 && System.currentTimeMillis() < deadline )
+                Thread.sleep(5);
+            Thread.sleep(100);
+
+            assertEquals(8, posts.get());
+            assertTrue(maxInFlight.get() <= 2);
+            assertEquals(1000, mStore.countUnstoredEntries(STREAM));
+        }
+        finally {
+            server.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void failedChunkIsResentBeforeTheNextOne() throws Exception {
+        final BlockingQueue<Post> posts = new LinkedBlockingQueue<>();
+        UploadEngine engine = createEngine(new UploadTransport() {
+            @Override
+            public void post(String url, byte[] body, ContentEncoding encoding, Callback callback) {
+                posts.add(new Post(body, callback));
+            }
+        });
+        for (int i = 0; i < 30; i++)
+            engine.addEntry(new Entry().put("n", i), UploadEngine.PRIORITY_NORMAL);
+        engine.setSendToServerEntryChunkSize(10);
+        engine.setPreserveUploadOrder(true);
+        engine.setRetryBackoff(200, 200, 5);
+
+        engine.sendToServer(false).get();
+        Post first = posts.poll(1, TimeUnit.SECONDS);
+        assertNull(posts.poll(50, TimeUnit.MILLISECONDS));
+
+        // Nothing else is sent while the failed chunk waits for its retry
+        first.mCallback.onError(503, null, null);
+        engine.sendToServer(false).get();
+        assertNull(posts.poll(50, TimeUnit.MILLISECONDS));
+
+        Post retry = posts.poll(2, TimeUnit.SECONDS);
+        assertEquals(first.getFirstSequence(), retry.getFirstSequence());
+        retry.succeed();
+
+        Post second = posts.poll(1, TimeUnit.SECONDS);
+        assertTrue(second.getFirstSequence() > retry.getLastSequence());
+        second.succeed();
+        posts.poll(1, TimeUnit.SECONDS).succeed();
+
+        assertNull(posts.poll(50, TimeUnit.MILLISECONDS));
+        assertEquals(0, mStore.countUnstoredEntries(STREAM));
+    }
+
+
+    @Test
+    public void concurrentSendToServerCallsUploadEachEntryOnce() throws Exception {
+        final AtomicInteger postedEntries = new AtomicInteger();
+        final ScheduledExecutorService server = Executors.newSingleThreadScheduledExecutor();
+        final UploadEngine engine = createEngine(new UploadTransport() {
+            @Override
+            public void post(final String url, final byte[] body, final ContentEncoding encoding, final Callback callback) {
+                postedEntries.addAndGet(new Post(body, callback).mEntries.length());
+                server.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        mTransport.post(url, body, encoding, callback);
+                    }
+                }, 2, TimeUnit.MILLISECONDS);
+            }
+        });
+        for (int i = 0; i < 500; i++)
+            engine.addEntry(new Entry().put("n", i), UploadEngine.PRIORITY_NORMAL);
+        engine.setSendToServerEntryChunkSize(10);
+
+        // E.g. a timer, a connectivity callback and the app all asking for an upload at once
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> callers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread caller = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < 5; j++)
+                            engine.sendToServer(false).get();
+                    }
+                    catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            caller.start();
+            callers.add(caller);
+        }
+
+        try {
+            start.countDown();
+            for (Thread caller : callers)
+                caller.join(5000);
+            waitUntilSent(engine);
+
+            assertEquals(500, mTransport.getStoredEntries().size());
+            assertEquals(500, postedEntries.get());
+        }
+        finally {
+            server.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void sendToServerDuringAnUploadIsMergedIntoIt() throws Exception {
+        final BlockingQueue<Post> posts = new LinkedBlockingQueue<>();
+        UploadEngine engine = createEngine(new UploadTransport() {
+            @Override
+            public void post(String url, byte[] body, ContentEncoding encoding, Callback callback) {
+                posts.add(new Post(body, callback));
+            }
+        });
+        for (int i = 0; i < 30; i++)
+            engine.addEntry(new Entry().put("n", i), UploadEngine.PRIORITY_NORMAL);
+        engine.setSendToServerEntryChunkSize(10);
+        engine.setMaxInFlightChunks(1);
+
+        engine.sendToServer(false).get();
+        Post first = posts.poll(1, TimeUnit.SECONDS);
+        for (int i = 0; i < 3; i++)
+            engine.sendToServer(false).get();
+        assertNull(posts.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(engine.isSending());
+
+        // Entries added in the meantime go out with the running upload
+        for (int i = 30; i < 35; i++)
+            engine.addEntry(new Entry().put("n", i), UploadEngine.PRIORITY_NORMAL);
+        engine.sendToServer(false).get();
+
+        first.succeed();
+        int sentEntries = first.mEntries.length();
+        Post next;
+        while( (next = posts.poll(200, TimeUnit.MILLISECONDS)) != null ) {
+            sentEntries += next.mEntries.length();
+            next.succeed();
+        }
+
+        assertEquals(35, sentEntries);
+        assertEquals(0, mStore.countUnstoredEntries(STREAM));
+        assertFalse(engine.isSending());
+    }
+
+
+    @Test
+    public void leasesLeftByAnEarlierProcessAreReclaimed() throws Exception {
+        addEntries(20, UploadEngine.PRIORITY_NORMAL);
+        mEngine.flush();
+        // A chunk that was in flight when the process died
+        assertEquals(10, mStore.leaseNextChunk(STREAM, new long[3], new int[]{100, 100, 100}, 10, 1000).size());
+
+        mEngine.sendToServer(false).get();
+        assertEquals(10, mTransport.getStoredEntries().size());
+
+        // The next process starts with a new environment, which releases the stale lease
+        UploadEngine restarted = createEngine(mTransport);
+        restarted.sendToServer(false).get();
+        assertEquals(20, mTransport.getStoredEntries().size());
+        assertEquals(0, mStore.countUnstoredEntries(STREAM));
+    }
+
+
+    @Test
+    public void newLeasesDontReuseTheIdsOfStaleOnes() throws Exception {
+        // The stale leases of an earlier process can't be released
+        MemoryEntryStore store = new MemoryEntryStore() {
+            @Override
+            public void releaseAllLeases() {
+                throw new IllegalStateException("disk I/O error");
+            }
+        };
+        store.insert(createRawEntries(20));
+        assertEquals(10, store.leaseNextChunk(STREAM, new long[3], new int[]{100, 100, 100}, 10, 1).size());
+
+        EngineEnvironment environment = new EngineEnvironment(store, new RemoteDbExecutors(DIRECT, DIRECT), mTransport);
+        UploadEngine engine = new UploadEngine(environment, STREAM, "http://localhost/store", "secret", "test-host");
+        engine.setSequenceAcknowledgements(true);
+        engine.sendToServer(false).get();
+
+        assertEquals(10, mTransport.getStoredEntries().size());
+        assertEquals(10, store.countUnstoredEntries(STREAM));
+        assertEquals(10, store.getLeasedEntries(1).size());
+    }
+
+
+    @Test
+    public void leaseTakenRightAfterStartupSurvivesTheReleaseOfStaleLeases() throws Exception {
+        mStore.insert(createRawEntries(10));
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        ExecutorService upload = Executors.newSingleThreadExecutor();
+        final CountDownLatch writerHeld = new CountDownLatch(1);
+        final BlockingQueue<Post> posts = new LinkedBlockingQueue<>();
+        try {
+            // Holds up the writer, so that the release of the stale leases runs after the upload starts
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writerHeld.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            });
+            EngineEnvironment environment = new EngineEnvironment(mStore, new RemoteDbExecutors(writer, upload), new UploadTransport() {
+                @Override
+                public void post(String url, byte[] body, ContentEncoding encoding, Callback callback) {
+                    posts.add(new Post(body, callback));
+                }
+            });
+            UploadEngine engine = new UploadEngine(environment, STREAM, "http://localhost/store", "secret", "test-host");
+            engine.setSequenceAcknowledgements(true);
+
+            engine.sendToServer(false);
+            assertNull(posts.poll(100, TimeUnit.MILLISECONDS));
+
+            writerHeld.countDown();
+            Post post = posts.poll(2, TimeUnit.SECONDS);
+            assertEquals(10, post.mEntries.length());
+            writer.submit(NO_OP).get();
+            assertEquals(10, mStore.getLeasedEntries(mStore.getMaxLeaseId()).size());
+
+            post.succeedThroughLastSequence();
+            writer.submit(NO_OP).get();
+            assertEquals(0, mStore.countUnstoredEntries(STREAM));
+        }
+        finally {
+            writerHeld.countDown();
+            writer.shutdownNow();
+            upload.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void chunkThatIsGivenUpOnIsSentByTheNextUpload() throws Exception {
+        addEntries(10, UploadEngine.PRIORITY_NORMAL);
+        mEngine.setRetryBackoff(1, 1, 1);
+        mTransport.failNextRequest(503, null);
+        mTransport.failNextRequest(503, null);
+
+        mEngine.sendToServer(false).get();
+        long deadline = System.currentTimeMillis() + 5000;
+        while( mFailed.get() < 2 && System.currentTimeMillis() < deadline )
+            Thread.sleep(5);
+        Thread.sleep(50);
+        assertEquals(2, mFailed.get());
+        assertEquals(0, mTransport.getStoredEntries().size());
+
+        // The lease was released when the chunk was given up on
+        mEngine.sendToServer(false).get();
+        assertEquals(10, mTransport.getStoredEntries().size());
+        assertEquals(0, mStore.countUnstoredEntries(STREAM));
+    }
+
+
+    private UploadEngine createEngine(UploadTransport transport) {
+        EngineEnvironment environment = new EngineEnvironment(mStore, new RemoteDbExecutors(DIRECT, DIRECT), transport);
+        UploadEngine engine = new UploadEngine(environment, STREAM, "http://localhost/store", "secret", "test-host");
+        engine.setListener(new UploadEngine.Listener() {
+            @Override
+            public void onSendSucceeded() {
+                mSucceeded.incrementAndGet();
+            }
+
+            @Override
+            public void onSendFailed() {
+                mFailed.incrementAndGet();
+            }
+
+            @Override
+            public void onServerEntryCount(long serverEntryCount) {
+            }
+        });
+        return engine;
+    }
+
+
+    /**
+     * A request that the test answers itself.
+     */
+    private static class Post {
+        final JSONArray mEntries;
+        final UploadTransport.Callback mCallback;
+
+        Post(byte[] body, UploadTransport.Callback callback) {
+            try {
+                mEntries = new JSONObject(new String(body, Charset.forName("UTF-8"))).getJSONArray("_ent");
+            }
+            catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            mCallback = callback;
+        }
+
+        long getFirstSequence() {
+            return mEntries.optJSONObject(0).optLong("_s");
+        }
+
+        long getLastSequence() {
+            return mEntries.optJSONObject(mEntries.length() - 1).optLong("_s");
+        }
+
+        void succeedThroughLastSequence() throws Exception {
+            mCallback.onResponse(ChunkResponse.parse(new JSONObject().put("status", "ok").put("stored_through", getLastSequence()).put("not_stored", new JSONArray()).toString()));
+        }
+
+        void succeed() throws Exception {
+            JSONArray uuids = new JSONArray();
+            for (int i = 0; i < mEntries.length(); i++)
+                uuids.put(mEntries.getJSONObject(i).getString("_u"));
+            mCallback.onResponse(ChunkResponse.parse(new JSONObject().put("status", "ok").put("stored_uuids", uuids).toString()));
+        }
+    }
+
+
+    private static RawLocalEntry[] createRawEntries(int count) {
+        RawLocalEntry[] entries = new RawLocalEntry[count];
+        for (int i = 0; i < count; i++)
+            entries[i] = new RawLocalEntry(STREAM, UploadEngine.PRIORITY_NORMAL, "raw-" + i, ("{\"n\":" + i + "}").getBytes(Charset.forName("UTF-8")));
+        return entries;
+    }
+
+
+    private void waitUntilSent(UploadEngine engine) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while( (mStore.countUnstoredEntries(STREAM) > 0 || engine.isSending()) && System.currentTimeMillis() < deadline )
+            Thread.sleep(5);
+    }
+
+
+    private void addEntries(int count, int priority) {
+        for (int i = 0; i < count; i++)
+            mEngine.addEntry(new Entry().put("n", i).put("priority", priority), priority);
+    }
+}
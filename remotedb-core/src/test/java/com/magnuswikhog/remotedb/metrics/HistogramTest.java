@@ -0,0 +1,54 @@
+package com.magnuswikhog.remotedb.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void bucketsArePowersOfTwo() {
+        assertEquals(0, Histogram.bucketOf(0));
+        assertEquals(1, Histogram.bucketOf(1));
+        assertEquals(2, Histogram.bucketOf(2));
+        assertEquals(2, Histogram.bucketOf(3));
+        assertEquals(3, Histogram.bucketOf(4));
+        assertEquals(10, Histogram.bucketOf(1023));
+        assertEquals(11, Histogram.bucketOf(1024));
+        assertEquals(Histogram.BUCKET_COUNT - 1, Histogram.bucketOf(Long.MAX_VALUE));
+        assertEquals(1023, Histogram.upperBoundOf(10));
+    }
+
+    @Test
+    public void emptySnapshot() {
+        Histogram.Snapshot snapshot = new Histogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(0.5));
+        assertEquals(0, snapshot.getMean(), 0);
+    }
+
+    @Test
+    public void percentilesAreWithinFactorOfTwo() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++)
+            histogram.record(i);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(5050, snapshot.getSum());
+        assertEquals(100, snapshot.getMax());
+        assertEquals(50.5, snapshot.getMean(), 0.001);
+
+        assertEquals(63, snapshot.getPercentile(0.5));
+        assertEquals(100, snapshot.getPercentile(0.99));
+        assertEquals(1, snapshot.getPercentile(0));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.snapshot().getMax());
+        assertEquals(1, histogram.snapshot().getCount());
+    }
+}
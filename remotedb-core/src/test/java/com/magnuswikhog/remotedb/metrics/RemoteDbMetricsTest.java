@@ -0,0 +1,30 @@
+package com.magnuswikhog.remotedb.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RemoteDbMetricsTest {
+
+    @Test
+    public void disabledMetricsRecordNothing() {
+        RemoteDbMetrics metrics = new RemoteDbMetrics();
+        metrics.recordBatchCommitted(10, 100, 50);
+        metrics.recordRetry(false);
+        assertEquals(0, metrics.snapshot().getBatchSizes().getCount());
+        assertEquals(0, metrics.snapshot().getRetries());
+
+        metrics.setEnabled(true);
+        metrics.recordBatchCommitted(10, 100, 50);
+        metrics.recordRetry(false);
+        metrics.recordRetry(true);
+        metrics.recordChunkCompleted(10, 200, false);
+        RemoteDbMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getBatchSizes().getCount());
+        assertEquals(10, snapshot.getBatchSizes().getMax());
+        assertEquals(1, snapshot.getRetries());
+        assertEquals(1, snapshot.getChunksGivenUp());
+        assertEquals(1, snapshot.getChunksFailed());
+        assertEquals(0, snapshot.getChunksSucceeded());
+    }
+}
@@ -0,0 +1,50 @@
+package com.magnuswikhog.remotedb.upload;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveChunkSizerTest {
+
+    @Test
+    public void growsWhileRequestsAreFastAndStaysWithinBounds() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(10, 1000, 1024 * 1024, 2000);
+        assertEquals(10, sizer.nextChunkSize());
+
+        int previous = 0;
+        for (int i = 0; i < 100; i++) {
+            int size = sizer.nextChunkSize();
+            assertTrue(size >= previous);
+            sizer.onChunkSucceeded(size, size * 50L, 100);
+            previous = size;
+        }
+        assertEquals(1000, sizer.nextChunkSize());
+    }
+
+    @Test
+    public void shrinksOnFailureAndSlowRequests() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(10, 1000, 1024 * 1024, 2000);
+        for (int i = 0; i < 100; i++)
+            sizer.onChunkSucceeded(sizer.nextChunkSize(), 1000, 100);
+
+        sizer.onChunkFailed();
+        assertEquals(500, sizer.nextChunkSize());
+
+        sizer.onChunkSucceeded(500, 5000, 5000);
+        assertTrue(sizer.nextChunkSize() < 500);
+
+        for (int i = 0; i < 100; i++)
+            sizer.onChunkFailed();
+        assertEquals(10, sizer.nextChunkSize());
+    }
+
+    @Test
+    public void limitsChunksToByteBudget() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(1, 1000, 100 * 1000, 60000);
+        for (int i = 0; i < 100; i++)
+            sizer.onChunkSucceeded(sizer.nextChunkSize(), sizer.nextChunkSize() * 1000L, 10);
+
+        // 1000 bytes per entry and a budget of 100 kB
+        assertEquals(100, sizer.nextChunkSize());
+    }
+}
@@ -0,0 +1,99 @@
+package com.magnuswikhog.remotedb.upload;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AutoFlushPolicyTest {
+
+    private long mNow;
+    private AutoFlushPolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        mNow = 1000000;
+        mPolicy = new AutoFlushPolicy(new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return mNow;
+            }
+        });
+        mPolicy.setThresholds(100, 10000, 60000);
+        mPolicy.setMinInterval(5000);
+        mPolicy.setFactors(4, 2, 4);
+    }
+
+    @Test
+    public void nothingIsDueWithoutBacklog() {
+        assertEquals(-1, mPolicy.getNextFlushDelayMillis());
+    }
+
+    @Test
+    public void oldestEntryAgeMakesFlushDue() {
+        assertTrue(mPolicy.onEntriesAdded(1, 10));
+        assertEquals(60000, mPolicy.getNextFlushDelayMillis());
+
+        mNow += 1000;
+        assertFalse(mPolicy.onEntriesAdded(1, 10));
+        assertEquals(59000, mPolicy.getNextFlushDelayMillis());
+
+        mNow += 59000;
+        assertEquals(0, mPolicy.getNextFlushDelayMillis());
+    }
+
+    @Test
+    public void entryAndByteThresholdsMakeFlushDueRightAway() {
+        assertTrue(mPolicy.onEntriesAdded(99, 100));
+        assertTrue(mPolicy.onEntriesAdded(1, 100));
+        assertEquals(0, mPolicy.getNextFlushDelayMillis());
+        assertFalse(mPolicy.onEntriesAdded(1, 100));
+
+        mPolicy.onFlushStarted();
+        mNow += 10000;
+        mPolicy.onEntriesAdded(1, 10000);
+        assertEquals(0, mPolicy.getNextFlushDelayMillis());
+    }
+
+    @Test
+    public void minIntervalBatchesFlushes() {
+        mPolicy.onEntriesAdded(100, 0);
+        assertEquals(0, mPolicy.getNextFlushDelayMillis());
+        mPolicy.onFlushStarted();
+        assertEquals(-1, mPolicy.getNextFlushDelayMillis());
+
+        mNow += 1000;
+        mPolicy.onEntriesAdded(100, 0);
+        assertEquals(4000, mPolicy.getNextFlushDelayMillis());
+    }
+
+    @Test
+    public void meteredNetworkAndBatteryStretchThresholds() {
+        mPolicy.setNetwork(AutoFlushPolicy.Network.METERED);
+        mPolicy.onEntriesAdded(100, 0);
+        assertEquals(4 * 60000, mPolicy.getNextFlushDelayMillis());
+
+        mPolicy.setBatteryState(false, false);
+        assertEquals(8 * 60000, mPolicy.getNextFlushDelayMillis());
+
+        mPolicy.setBatteryState(false, true);
+        assertEquals(32 * 60000, mPolicy.getNextFlushDelayMillis());
+
+        mPolicy.onEntriesAdded(3100, 0);
+        assertEquals(0, mPolicy.getNextFlushDelayMillis());
+
+        mPolicy.setNetwork(AutoFlushPolicy.Network.UNMETERED);
+        mPolicy.setBatteryState(true, true);
+        assertEquals(0, mPolicy.getNextFlushDelayMillis());
+    }
+
+    @Test
+    public void nothingIsDueWithoutNetwork() {
+        mPolicy.onEntriesAdded(1000, 0);
+        mPolicy.setNetwork(AutoFlushPolicy.Network.NONE);
+        assertEquals(-1, mPolicy.getNextFlushDelayMillis());
+
+        mPolicy.setNetwork(AutoFlushPolicy.Network.UNMETERED);
+        assertEquals(0, mPolicy.getNextFlushDelayMillis());
+    }
+}
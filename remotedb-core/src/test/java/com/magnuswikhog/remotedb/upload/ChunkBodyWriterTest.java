@@ -0,0 +1,97 @@
+package com.magnuswikhog.remotedb.upload;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.codec.BinaryEntryCodec;
+import com.magnuswikhog.remotedb.codec.JsonEntryCodec;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ChunkBodyWriterTest {
+
+    @Test
+    public void splicesSequenceAndUuidIntoEntries() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkBodyWriter writer = new ChunkBodyWriter(out);
+        writer.begin("pw", "device");
+        writer.writeEntry("{\"t\":1,\"m\":\"}\"}", 7, "uuid-7");
+        writer.writeEntry("{ }", 8, "uuid-8");
+        writer.end("{\"static\":\"s\"}");
+
+        JSONObject request = new JSONObject(out.toString("UTF-8"));
+        assertEquals("pw", request.getString("_pw"));
+        assertEquals("device", request.getString("_did"));
+        assertEquals("s", request.getString("static"));
+
+        JSONArray entries = request.getJSONArray("_ent");
+        assertEquals(2, entries.length());
+        assertEquals("}", entries.getJSONObject(0).getString("m"));
+        assertEquals(7, entries.getJSONObject(0).getLong("_s"));
+        assertEquals("uuid-7", entries.getJSONObject(0).getString("_u"));
+        assertEquals(8, entries.getJSONObject(1).getLong("_s"));
+        assertEquals(2, entries.getJSONObject(1).length());
+    }
+
+    @Test
+    public void writesEmptyRequest() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkBodyWriter writer = new ChunkBodyWriter(out);
+        writer.begin("pw", "device");
+        writer.end("{}");
+
+        JSONObject request = new JSONObject(out.toString("UTF-8"));
+        assertEquals(0, request.getJSONArray("_ent").length());
+        assertEquals(3, request.length());
+    }
+
+    @Test
+    public void asksForSequenceAcknowledgement() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkBodyWriter writer = new ChunkBodyWriter(out);
+        writer.begin("pw", "device", true);
+        writer.writeEntry("{\"a\":1}", 3, "uuid");
+        writer.end(null);
+
+        JSONObject request = new JSONObject(out.toString("UTF-8"));
+        assertEquals("seq", request.getString("_ack"));
+        assertEquals(3, request.getJSONArray("_ent").getJSONObject(0).getLong("_s"));
+    }
+
+    @Test
+    public void splicesStoredEntriesWithoutDecoding() throws Exception {
+        Entry entry = new Entry()
+                .put("t", 1539849600000L)
+                .put("m", "\"quoted\" \u00e5")
+                .put("d", 0.5)
+                .put("o", new JSONObject().put("a", new JSONArray().put(1).put(JSONObject.NULL)));
+        JsonEntryCodec jsonCodec = new JsonEntryCodec();
+        BinaryEntryCodec binaryCodec = new BinaryEntryCodec("t", "m");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkBodyWriter writer = new ChunkBodyWriter(out);
+        writer.begin("pw", "device");
+        writer.writeStoredEntry(jsonCodec, jsonCodec.encode(entry), 1, "uuid-1");
+        writer.writeStoredEntry(binaryCodec, binaryCodec.encode(entry), 2, "uuid-2");
+        // A truncated entry is left out rather than breaking the request
+        assertFalse(writer.writeStoredEntry(binaryCodec, new byte[]{(byte) 0xC1, 1, (byte) 0x85}, 3, "uuid-3"));
+        writer.end(null);
+
+        JSONArray entries = new JSONObject(out.toString("UTF-8")).getJSONArray("_ent");
+        assertEquals(2, entries.length());
+        assertEquals(2, writer.getEntryCount());
+        for (int i = 0; i < 2; i++) {
+            JSONObject sent = entries.getJSONObject(i);
+            assertEquals(6, sent.length());
+            assertEquals(1539849600000L, sent.getLong("t"));
+            assertEquals(entry.getString("m"), sent.getString("m"));
+            assertEquals(0.5, sent.getDouble("d"), 0);
+            assertTrue(sent.getJSONObject("o").getJSONArray("a").isNull(1));
+            assertEquals("uuid-" + (i + 1), sent.getString("_u"));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.magnuswikhog.remotedb.upload;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ChunkResponseTest {
+
+    @Test
+    public void parsesStoredUuidsArray() throws Exception {
+        ChunkResponse response = ChunkResponse.parse("{\"status\":\"ok\",\"stored_uuids\":[\"a\",\"b\"],\"total_count\":12}");
+
+        assertTrue(response.isOk());
+        assertEquals(Arrays.asList("a", "b"), response.getStoredUuids());
+        assertEquals(12, response.getTotalCount());
+        assertFalse(response.hasStoredThrough());
+    }
+
+    @Test
+    public void parsesStoredUuidsSentAsString() throws Exception {
+        ChunkResponse response = ChunkResponse.parse("{\"status\":\"ok\",\"stored_uuids\":\"[\\\"a\\\",\\\"b\\\"]\"}");
+
+        assertEquals(Arrays.asList("a", "b"), response.getStoredUuids());
+        assertEquals(-1, response.getTotalCount());
+    }
+
+    @Test
+    public void parsesSequenceAcknowledgement() throws Exception {
+        ChunkResponse response = ChunkResponse.parse("{ \"status\" : \"ok\", \"stored_through\": 250, \"not_stored\": [17, \"42\"], \"total_count\": \"1000\" }");
+
+        assertTrue(response.hasStoredThrough());
+        assertEquals(250, response.getStoredThrough());
+        assertArrayEquals(new long[]{17, 42}, response.getNotStored());
+        assertEquals(1000, response.getTotalCount());
+        assertTrue(response.getStoredUuids().isEmpty());
+    }
+
+    @Test
+    public void skipsUnknownFields() throws Exception {
+        ChunkResponse response = ChunkResponse.parse("{\"debug\":{\"a\":[1,{\"b\":null}]},\"status\":\"error\",\"message\":\"Wrong password\",\"extra\":[]}");
+
+        assertFalse(response.isOk());
+        assertEquals("error", response.getStatus());
+        assertTrue(response.getStoredUuids().isEmpty());
+        assertEquals(0, ChunkResponse.parse("{}").getStoredUuids().size());
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsTextThatIsNotAnObject() throws Exception {
+        ChunkResponse.parse("[\"status\",\"ok\"]");
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsMalformedSequences() throws Exception {
+        ChunkResponse.parse("{\"status\":\"ok\",\"stored_through\":10,\"not_stored\":[\"x\"]}");
+    }
+}
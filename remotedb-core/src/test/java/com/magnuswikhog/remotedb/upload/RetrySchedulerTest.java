@@ -0,0 +1,92 @@
+package com.magnuswikhog.remotedb.upload;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RetrySchedulerTest {
+
+    private long mNow;
+    private RetryScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mNow = 1000000;
+        mScheduler = new RetryScheduler(new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return mNow;
+            }
+        }, new Random(42));
+        mScheduler.setBackoff(1000, 60000, 5);
+    }
+
+    @Test
+    public void backsOffExponentiallyWithJitter() {
+        RetryScheduler.PendingRetry retry = null;
+        long maxDelay = 1000;
+        for (int attempt = 1; attempt <= 5; attempt++) {
+            retry = mScheduler.onFailure(retry, 1, 503, null);
+            assertNotNull(retry);
+
+            long delay = retry.getDueAtMillis() - mNow;
+            assertTrue(delay >= maxDelay / 2);
+            assertTrue(delay <= maxDelay);
+            maxDelay *= 2;
+
+            // The engine schedules its retry check this far ahead
+            assertEquals(delay, mScheduler.getMillisUntilNextDue());
+            assertNull(mScheduler.takeNextDue());
+            mNow = retry.getDueAtMillis();
+            assertSame(retry, mScheduler.takeNextDue());
+            assertEquals(-1, mScheduler.getMillisUntilNextDue());
+        }
+
+        assertNull(mScheduler.onFailure(retry, 1, 503, null));
+        assertEquals(1, mScheduler.getGivenUpCount());
+    }
+
+    @Test
+    public void givesUpOnPermanentFailures() {
+        assertNull(mScheduler.onFailure(null, 1, 400, null));
+        assertNull(mScheduler.onFailure(null, 1, 403, null));
+        assertNotNull(mScheduler.onFailure(null, 1, 408, null));
+        assertNotNull(mScheduler.onFailure(null, 1, 429, null));
+        assertNotNull(mScheduler.onFailure(null, 1, 0, null));
+        assertEquals(2, mScheduler.getGivenUpCount());
+        assertEquals(3, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void honorsRetryAfter() {
+        RetryScheduler.PendingRetry retry = mScheduler.onFailure(null, 1, 429, "30");
+        assertTrue(retry.getDueAtMillis() - mNow >= 30000);
+        assertTrue(retry.getDueAtMillis() - mNow <= 31000);
+
+        mNow = 1500000000000L; // 2017-07-14T02:40:00Z
+        retry = mScheduler.onFailure(null, 1, 503, "Fri, 14 Jul 2017 02:42:00 GMT");
+        assertTrue(retry.getDueAtMillis() - mNow >= 120000);
+
+        // The first retry is long overdue by now
+        assertEquals(0, mScheduler.getMillisUntilNextDue());
+        assertNotNull(mScheduler.takeNextDue());
+        assertTrue(mScheduler.getMillisUntilNextDue() >= 120000);
+    }
+
+    @Test
+    public void takesTheOldestDueChunkFirst() {
+        mScheduler.onFailure(null, 7, 503, null);
+        mScheduler.onFailure(null, 3, 503, null);
+        mScheduler.onFailure(null, 5, 429, "60");
+        assertNull(mScheduler.takeNextDue());
+
+        mNow += 2000;
+        assertEquals(3, mScheduler.takeNextDue().chunkId);
+        assertEquals(7, mScheduler.takeNextDue().chunkId);
+        assertNull(mScheduler.takeNextDue());
+        assertEquals(1, mScheduler.getPendingCount());
+    }
+}
@@ -0,0 +1,141 @@
+package com.magnuswikhog.remotedb.upload;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class UploadSchedulerTest {
+
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    /** The streams of the chunks in flight, in the order they were sent. */
+    private final ArrayDeque<FakeStream> mInFlight = new ArrayDeque<>();
+    private UploadScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new UploadScheduler(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mTasks.add(command);
+            }
+        });
+    }
+
+    @Test
+    public void neverExceedsTheSharedInFlightLimit() {
+        mScheduler.setMaxInFlight(2);
+        List<FakeStream> streams = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            FakeStream stream = new FakeStream(10);
+            streams.add(stream);
+            mScheduler.requestSend(stream);
+        }
+
+        runTasks();
+        assertEquals(2, mInFlight.size());
+        assertEquals(2, mScheduler.getInFlightCount());
+
+        while( !mInFlight.isEmpty() ) {
+            completeNextChunk();
+            runTasks();
+            assertTrue(mInFlight.size() <= 2);
+            assertEquals(mInFlight.size(), mScheduler.getInFlightCount());
+        }
+
+        for (FakeStream stream : streams)
+            assertEquals(10, stream.mSentCount);
+    }
+
+    @Test
+    public void sharesSlotsByPriority() {
+        mScheduler.setMaxInFlight(1);
+        FakeStream high = new FakeStream(Integer.MAX_VALUE);
+        FakeStream low = new FakeStream(Integer.MAX_VALUE);
+        mScheduler.setPriority(high, 2);
+        mScheduler.requestSend(high);
+        mScheduler.requestSend(low);
+
+        for (int i = 0; i < 300; i++) {
+            runTasks();
+            completeNextChunk();
+        }
+
+        assertEquals(200, high.mSentCount, 2);
+        assertEquals(100, low.mSentCount, 2);
+    }
+
+    @Test
+    public void idleStreamsDoNotHoldSlots() {
+        mScheduler.setMaxInFlight(1);
+        FakeStream empty = new FakeStream(0);
+        FakeStream busy = new FakeStream(5);
+        mScheduler.requestSend(empty);
+        runTasks();
+        assertEquals(0, mScheduler.getInFlightCount());
+
+        mScheduler.requestSend(busy);
+        runTasks();
+        assertEquals(1, mScheduler.getInFlightCount());
+        assertSame(busy, mInFlight.peek());
+    }
+
+    @Test
+    public void idleStreamsDoNotBankTheirShare() {
+        mScheduler.setMaxInFlight(1);
+        FakeStream early = new FakeStream(Integer.MAX_VALUE);
+        FakeStream late = new FakeStream(Integer.MAX_VALUE);
+        mScheduler.requestSend(early);
+        for (int i = 0; i < 100; i++) {
+            runTasks();
+            completeNextChunk();
+        }
+
+        // The late stream joins at the current pass, so the two alternate from now on
+        mScheduler.requestSend(late);
+        for (int i = 0; i < 10; i++) {
+            runTasks();
+            completeNextChunk();
+        }
+        assertEquals(5, late.mSentCount, 1);
+    }
+
+
+    private void runTasks() {
+        Runnable task;
+        while( (task = mTasks.poll()) != null )
+            task.run();
+    }
+
+
+    private void completeNextChunk() {
+        FakeStream stream = mInFlight.poll();
+        assertNotNull(stream);
+        mScheduler.onChunkDone(stream);
+    }
+
+
+    private class FakeStream implements UploadScheduler.Stream {
+        private int mRemaining;
+        int mSentCount;
+
+        FakeStream(int chunks) {
+            mRemaining = chunks;
+        }
+
+        @Override
+        public boolean sendNextChunk() {
+            if( mRemaining == 0 )
+                return false;
+            mRemaining--;
+            mSentCount++;
+            mInFlight.add(this);
+            return true;
+        }
+    }
+}
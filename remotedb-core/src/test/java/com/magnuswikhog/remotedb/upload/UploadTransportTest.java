@@ -0,0 +1,219 @@
+package com.magnuswikhog.remotedb.upload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class UploadTransportTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private HttpServer mServer;
+    private String mUrl;
+    private final AtomicReference<String> mReceivedBody = new AtomicReference<>();
+
+
+    /** Records the outcome of a single request. */
+    private static class RecordingCallback implements UploadTransport.Callback {
+        ChunkResponse mResponse;
+        int mStatusCode = -1;
+        String mRetryAfterHeader;
+
+        @Override
+        public void onResponse(ChunkResponse response) {
+            mResponse = response;
+        }
+
+        @Override
+        public void onError(int statusCode, String retryAfterHeader, Exception error) {
+            mStatusCode = statusCode;
+            mRetryAfterHeader = retryAfterHeader;
+        }
+    }
+
+
+    @Before
+    public void startServer() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/ok", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                InputStream in = "gzip".equals(encoding)
+                        ? ContentEncoding.GZIP.unwrap(exchange.getRequestBody())
+                        : exchange.getRequestBody();
+                mReceivedBody.set(readFully(in));
+                respond(exchange, 200, "{\"status\":\"ok\"}");
+            }
+        });
+        mServer.createContext("/busy", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                readFully(exchange.getRequestBody());
+                exchange.getResponseHeaders().add("Retry-After", "30");
+                respond(exchange, 503, "busy");
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+
+    @After
+    public void stopServer() {
+        mServer.stop(0);
+    }
+
+
+    @Test
+    public void httpUrlConnectionTransportPostsBodyAndParsesResponse() throws Exception {
+        HttpUrlConnectionTransport transport = new HttpUrlConnectionTransport(DIRECT, DIRECT, 5000);
+        RecordingCallback callback = new RecordingCallback();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        OutputStream out = ContentEncoding.GZIP.wrap(body);
+        out.write("{\"_ent\":[]}".getBytes("UTF-8"));
+        out.close();
+
+        transport.post(mUrl + "/ok", body.toByteArray(), ContentEncoding.GZIP, callback);
+
+        assertEquals("{\"_ent\":[]}", mReceivedBody.get());
+        assertTrue(callback.mResponse.isOk());
+    }
+
+
+    @Test
+    public void httpUrlConnectionTransportReportsStatusAndRetryAfter() throws Exception {
+        HttpUrlConnectionTransport transport = new HttpUrlConnectionTransport(DIRECT, DIRECT, 5000);
+        RecordingCallback callback = new RecordingCallback();
+
+        transport.post(mUrl + "/busy", "{}".getBytes("UTF-8"), ContentEncoding.IDENTITY, callback);
+
+        assertNull(callback.mResponse);
+        assertEquals(503, callback.mStatusCode);
+        assertEquals("30", callback.mRetryAfterHeader);
+    }
+
+
+    @Test
+    public void httpUrlConnectionTransportDoesNotReportFailingCallbackAsError() throws Exception {
+        HttpUrlConnectionTransport transport = new HttpUrlConnectionTransport(DIRECT, DIRECT, 5000);
+        final RecordingCallback callback = new RecordingCallback() {
+            @Override
+            public void onResponse(ChunkResponse response) {
+                super.onResponse(response);
+                throw new IllegalStateException("Callback failed");
+            }
+        };
+
+        try {
+            transport.post(mUrl + "/ok", "{}".getBytes("UTF-8"), ContentEncoding.IDENTITY, callback);
+            fail("The callback's exception was swallowed");
+        }
+        catch (IllegalStateException expected) {
+        }
+
+        assertTrue(callback.mResponse.isOk());
+        assertEquals(-1, callback.mStatusCode);
+    }
+
+
+    @Test
+    public void stubTransportStoresEntriesOnceAndQueuesFailures() throws Exception {
+        StubTransport transport = new StubTransport(DIRECT, "pw");
+        byte[] body = requestBody("pw", "a", "b");
+
+        RecordingCallback failed = new RecordingCallback();
+        transport.failNextRequest(429, "5");
+        transport.post("stub", body, ContentEncoding.IDENTITY, failed);
+        assertEquals(429, failed.mStatusCode);
+        assertEquals("5", failed.mRetryAfterHeader);
+
+        RecordingCallback first = new RecordingCallback();
+        transport.post("stub", body, ContentEncoding.IDENTITY, first);
+        RecordingCallback second = new RecordingCallback();
+        transport.post("stub", requestBody("pw", "b", "c"), ContentEncoding.IDENTITY, second);
+
+        assertEquals(2, first.mResponse.getStoredUuids().size());
+        assertEquals(3, second.mResponse.getTotalCount());
+        assertEquals(3, transport.getStoredEntries().size());
+
+        RecordingCallback wrongPassword = new RecordingCallback();
+        transport.post("stub", requestBody("wrong", "d"), ContentEncoding.IDENTITY, wrongPassword);
+        assertEquals("error", wrongPassword.mResponse.getStatus());
+
+        transport.setAcceptCompressedRequests(false);
+        RecordingCallback compressed = new RecordingCallback();
+        transport.post("stub", body, ContentEncoding.GZIP, compressed);
+        assertEquals(415, compressed.mStatusCode);
+    }
+
+
+    @Test
+    public void stubTransportAcknowledgesBySequenceIfAsked() throws Exception {
+        StubTransport transport = new StubTransport(DIRECT, null);
+        transport.rejectNextEntries(1);
+
+        RecordingCallback callback = new RecordingCallback();
+        transport.post("stub", requestBody(null, true, "a", "b", "c"), ContentEncoding.IDENTITY, callback);
+
+        assertTrue(callback.mResponse.hasStoredThrough());
+        assertEquals(3, callback.mResponse.getStoredThrough());
+        assertArrayEquals(new long[]{1}, callback.mResponse.getNotStored());
+        assertTrue(callback.mResponse.getStoredUuids().isEmpty());
+        assertEquals(2, transport.getStoredEntries().size());
+    }
+
+
+    private static byte[] requestBody(String password, String... uuids) throws Exception {
+        return requestBody(password, false, uuids);
+    }
+
+
+    private static byte[] requestBody(String password, boolean sequenceAck, String... uuids) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkBodyWriter writer = new ChunkBodyWriter(out);
+        writer.begin(password, "device", sequenceAck);
+        for (int i = 0; i < uuids.length; i++)
+            writer.writeEntry("{\"i\":" + i + "}", i + 1, uuids[i]);
+        writer.end(null);
+        return out.toByteArray();
+    }
+
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while( (count = in.read(buffer)) != -1 )
+            out.write(buffer, 0, count);
+        return out.toString("UTF-8");
+    }
+
+
+    private static void respond(HttpExchange exchange, int statusCode, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+}
@@ -0,0 +1,83 @@
+package com.magnuswikhog.remotedb.codec;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.magnuswikhog.remotedb.Entry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the stored size and the encode/decode time per entry of the legacy JSON format and the
+ * binary format, with and without an interned key dictionary.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EntryCodecBenchmark {
+    private static final String TAG = "EntryCodecBenchmark";
+    private static final int ENTRY_COUNT = 2000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+
+
+    @Test
+    public void compareCodecs() {
+        Entry[] entries = createEntries();
+
+        long jsonBytes = measure("json", new JsonEntryCodec(), entries);
+        long binaryBytes = measure("binary", new BinaryEntryCodec(), entries);
+        long internedBytes = measure("binary+dictionary", new BinaryEntryCodec("timestamp", "level", "message", "battery"), entries);
+
+        assertTrue(binaryBytes < jsonBytes);
+        assertTrue(internedBytes < binaryBytes);
+    }
+
+
+    private static Entry[] createEntries() {
+        Entry[] entries = new Entry[ENTRY_COUNT];
+        for (int i = 0; i < ENTRY_COUNT; i++)
+            entries[i] = new Entry()
+                    .put("timestamp", 1539849600000L + i)
+                    .put("level", i % 4)
+                    .put("message", "Entry #" + i)
+                    .put("battery", 0.5 + i / (double) ENTRY_COUNT / 2);
+        return entries;
+    }
+
+
+    /**
+     * @return The total encoded size of the entries.
+     */
+    private static long measure(String name, EntryCodec codec, Entry[] entries) {
+        byte[][] encoded = new byte[entries.length][];
+        long totalBytes = 0;
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < entries.length; i++)
+                encoded[i] = codec.encode(entries[i]);
+            long encodedAt = System.nanoTime();
+            for (byte[] data : encoded)
+                assertEquals(4, codec.decode(data).length());
+            long end = System.nanoTime();
+
+            if( round >= WARMUP_ROUNDS ) {
+                encodeNanos += encodedAt - start;
+                decodeNanos += end - encodedAt;
+            }
+        }
+
+        for (byte[] data : encoded)
+            totalBytes += data.length;
+
+        long samples = (long) MEASURED_ROUNDS * entries.length;
+        Log.i(TAG, name + "   bytesPerEntry=" + (totalBytes / entries.length)
+                + "   encodeNsPerEntry=" + (encodeNanos / samples)
+                + "   decodeNsPerEntry=" + (decodeNanos / samples));
+        return totalBytes;
+    }
+}
@@ -0,0 +1,182 @@
+package com.magnuswikhog.remotedb.database;
+
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.RemoteDb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the counts kept by the triggers of {@link EntryCount} match the entries, after each
+ * way the entries are changed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EntryCountTest {
+    private LocalDatabase mDb;
+    private LocalEntryDao mDao;
+    private RoomEntryStore mStore;
+    private int mNextNumber;
+
+
+    @Before
+    public void createDb() {
+        mDb = LocalDatabase.createInMemory(InstrumentationRegistry.getTargetContext());
+        mDao = mDb.getLocalEntryDao();
+        mStore = new RoomEntryStore(mDb);
+    }
+
+    @After
+    public void closeDb() {
+        mDb.close();
+    }
+
+
+    @Test
+    public void insertsAreCountedPerStream() {
+        insert("a", 3);
+        insert("b", 2);
+        mDao.insert(new LocalEntry("legacy", new Entry().put("n", 1)));
+
+        assertCounts("a", 3, 3);
+        assertCounts("b", 2, 2);
+        assertCounts("", 1, 1);
+        assertCounts("unknown", 0, 0);
+        assertEquals(6, mDao.countEntriesInAllStreams());
+    }
+
+
+    @Test
+    public void markingAsStoredOnlyChangesTheUnstoredCount() {
+        insert("a", 6);
+
+        mDao.markAsStored("a0");
+        mDao.markAsStored(Arrays.asList("a1", "a2"));
+        assertCounts("a", 6, 3);
+
+        // Marking an entry that is already stored changes nothing
+        mDao.markAsStored(Arrays.asList("a0", "a1"));
+        assertCounts("a", 6, 3);
+
+        List<RawLocalEntry> chunk = lease("a", 1);
+        assertEquals(3, chunk.size());
+        assertEquals(2, mStore.acknowledgeThrough(1, chunk.get(2).id, new long[]{chunk.get(0).id}, false));
+        assertCounts("a", 6, 1);
+    }
+
+
+    @Test
+    public void deletesAreCounted() {
+        insert("a", 6);
+        mDao.markAsStored(Arrays.asList("a0", "a1"));
+
+        mDao.deleteWithUuid("a0");
+        assertCounts("a", 5, 4);
+
+        mDao.deleteWithUuid("a2");
+        assertCounts("a", 4, 3);
+
+        mStore.acknowledge(Arrays.asList("a3", "a4"), true, 0);
+        assertCounts("a", 2, 1);
+
+        mStore.deleteStored("a");
+        assertCounts("a", 1, 1);
+
+        assertEquals(1, mDao.evictOldestUnstored(10));
+        assertCounts("a", 0, 0);
+    }
+
+
+    @Test
+    public void clearingAStreamLeavesTheOthers() {
+        insert("a", 4);
+        insert("b", 3);
+        mDao.markAsStored("a0");
+
+        mStore.deleteAll("a");
+        assertCounts("a", 0, 0);
+        assertCounts("b", 3, 3);
+
+        insert("a", 2);
+        assertCounts("a", 2, 2);
+    }
+
+
+    @Test
+    public void leasesDoNotChangeTheCounts() {
+        insert("a", 4);
+
+        lease("a", 1);
+        assertCounts("a", 4, 4);
+
+        mStore.quarantine(1);
+        assertCounts("a", 4, 4);
+
+        assertEquals(4, mStore.releaseQuarantined("a"));
+        assertCounts("a", 4, 4);
+    }
+
+
+    @Test
+    public void installingTheTriggersRecountsTheEntries() {
+        SupportSQLiteDatabase db = mDb.getOpenHelper().getWritableDatabase();
+        db.execSQL("DROP TRIGGER remotedb_entrycount_insert");
+        db.execSQL("DROP TRIGGER remotedb_entrycount_update");
+        insert("a", 3);
+        mDao.markAsStored("a0");
+        db.execSQL("UPDATE remotedb_entrycount SET allCount=100, unstoredCount=100");
+
+        EntryCount.installTriggers(db);
+        assertCounts("a", 3, 2);
+
+        insert("a", 1);
+        mDao.markAsStored("a1");
+        assertCounts("a", 4, 2);
+    }
+
+
+    private void insert(String stream, int count) {
+        RawLocalEntry[] entries = new RawLocalEntry[count];
+        for (int i = 0; i < count; i++)
+            entries[i] = new RawLocalEntry(stream, RemoteDb.PRIORITY_NORMAL, stream + mNextNumber++, new byte[1]);
+        mDb.insertRawEntries(entries);
+    }
+
+
+    private List<RawLocalEntry> lease(String stream, long leaseId) {
+        return mStore.leaseNextChunk(stream, new long[3], new int[]{100, 100, 100}, 100, leaseId);
+    }
+
+
+    /**
+     * Checks the counts against both the expected numbers and a count of the entries themselves.
+     */
+    private void assertCounts(String stream, long all, long unstored) {
+        assertEquals(all, mDao.countAllEntries(stream));
+        assertEquals(unstored, mDao.countEntriesNotStoredOnServer(stream));
+        assertEquals(all, queryLong("SELECT COUNT(*) FROM remotedb_localentry WHERE stream=?", stream));
+        assertEquals(unstored, queryLong("SELECT COUNT(*) FROM remotedb_localentry WHERE stream=? AND storedOnServer=0", stream));
+    }
+
+
+    private long queryLong(String sql, String arg) {
+        Cursor cursor = mDb.query(sql, new Object[]{arg});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+        finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.magnuswikhog.remotedb.database;
+
+import android.arch.persistence.room.RoomDatabase;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.RemoteDb;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Inserts entries into a database file opened with each of a few {@link LocalDatabaseConfig}
+ * profiles, both in large batches (like the ingest queue writes them) and one entry per transaction
+ * (like flushing after every added entry), and logs the time per entry for each.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LocalDatabaseConfigBenchmark {
+    private static final String TAG = "DbConfigBenchmark";
+    private static final String FILENAME = "config-benchmark.db";
+    private static final int BATCH_COUNT = 20;
+    private static final int BATCH_SIZE = 500;
+    private static final int FLUSH_COUNT = 500;
+
+
+    @Test
+    public void compareProfiles() {
+        measure("truncate+strict", LocalDatabaseConfig.createDefault()
+                .setJournalMode(RoomDatabase.JournalMode.TRUNCATE)
+                .setDurability(LocalDatabaseConfig.Durability.STRICT));
+        measure("wal+strict", LocalDatabaseConfig.createDefault()
+                .setDurability(LocalDatabaseConfig.Durability.STRICT));
+        measure("wal+normal", LocalDatabaseConfig.createDefault());
+        measure("wal+relaxed", LocalDatabaseConfig.createDefault()
+                .setDurability(LocalDatabaseConfig.Durability.RELAXED));
+        measure("wal+normal+large", LocalDatabaseConfig.createDefault()
+                .setWalAutoCheckpointPages(4000)
+                .setCacheSizeKiB(8 * 1024));
+    }
+
+
+    private void measure(String name, LocalDatabaseConfig config) {
+        Context context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(FILENAME);
+        LocalDatabase db = LocalDatabase.create(context, FILENAME, config);
+        try {
+            long start = System.nanoTime();
+            for (int batch = 0; batch < BATCH_COUNT; batch++)
+                db.insertRawEntries(createEntries(batch, BATCH_SIZE));
+            long batchNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int flush = 0; flush < FLUSH_COUNT; flush++)
+                db.insertRawEntries(createEntries(flush, 1));
+            long flushNanos = System.nanoTime() - start;
+
+            assertEquals(BATCH_COUNT * BATCH_SIZE + FLUSH_COUNT, db.getLocalEntryDao().countEntriesInAllStreams());
+
+            Log.i(TAG, name + "   batchedNsPerEntry=" + (batchNanos / (BATCH_COUNT * BATCH_SIZE))
+                    + "   flushUsPerEntry=" + (flushNanos / FLUSH_COUNT / 1000) + "   (" + config + ")");
+        }
+        finally {
+            db.close();
+            context.deleteDatabase(FILENAME);
+        }
+    }
+
+
+    private static RawLocalEntry[] createEntries(int round, int count) {
+        RawLocalEntry[] entries = new RawLocalEntry[count];
+        for (int i = 0; i < count; i++) {
+            Entry entry = new Entry().put("round", round).put("i", i).put("m", "Entry #" + i);
+            entries[i] = new RawLocalEntry(RemoteDb.DEFAULT_STREAM, RemoteDb.PRIORITY_NORMAL, UUID.randomUUID().toString(), Converters.entryToBytes(entry));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,137 @@
+package com.magnuswikhog.remotedb.database;
+
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.arch.persistence.db.framework.FrameworkSQLiteOpenHelperFactory;
+import android.arch.persistence.room.migration.Migration;
+import android.arch.persistence.room.testing.MigrationTestHelper;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.magnuswikhog.remotedb.RemoteDb;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the migrations against the schemas that Room exports to remotedb/schemas, and checks that
+ * the entries of an old database survive them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LocalDatabaseMigrationTest {
+    private static final String TEST_DB = "migration-test.db";
+
+    private static final Migration[] MIGRATIONS = {
+            LocalDatabase.MIGRATION_2_3,
+            LocalDatabase.MIGRATION_3_4,
+            LocalDatabase.MIGRATION_4_5,
+            LocalDatabase.MIGRATION_5_6,
+            LocalDatabase.MIGRATION_6_7,
+            LocalDatabase.MIGRATION_7_8,
+            LocalDatabase.MIGRATION_8_9
+    };
+
+    @Rule
+    public MigrationTestHelper mHelper = new MigrationTestHelper(InstrumentationRegistry.getInstrumentation(),
+            LocalDatabase.class.getCanonicalName(), new FrameworkSQLiteOpenHelperFactory());
+
+
+    @Test
+    public void eachMigrationProducesTheExportedSchema() {
+        mHelper.createDatabase(TEST_DB, 2).close();
+
+        for (Migration migration : MIGRATIONS)
+            mHelper.runMigrationsAndValidate(TEST_DB, migration.endVersion, true, migration).close();
+    }
+
+
+    @Test
+    public void entriesSurviveMigrationFromVersion2() {
+        SupportSQLiteDatabase db = mHelper.createDatabase(TEST_DB, 2);
+        insertVersion2Entry(db, "a", "{\"n\":1}", false);
+        insertVersion2Entry(db, "b", "{\"n\":2}", true);
+        // Duplicates were possible before the unique index, only the first copy is kept
+        insertVersion2Entry(db, "a", "{\"n\":3}", false);
+        insertVersion2Entry(db, "c", "{\"n\":4}", false);
+        db.close();
+
+        db = mHelper.runMigrationsAndValidate(TEST_DB, 9, true, MIGRATIONS);
+        Cursor cursor = db.query("SELECT id, uuid, stream, priority, leaseId, createdAt FROM remotedb_localentry ORDER BY id");
+        try {
+            long[] ids = {1, 2, 4};
+            String[] uuids = {"a", "b", "c"};
+            for (int i = 0; i < ids.length; i++) {
+                assertTrue(cursor.moveToNext());
+                assertEquals(ids[i], cursor.getLong(0));
+                assertEquals(uuids[i], cursor.getString(1));
+                assertEquals("", cursor.getString(2));
+                assertEquals(RemoteDb.PRIORITY_NORMAL, cursor.getInt(3));
+                assertEquals(0, cursor.getLong(4));
+                assertTrue(cursor.getLong(5) > 0);
+            }
+            assertFalse(cursor.moveToNext());
+        }
+        finally {
+            cursor.close();
+        }
+        db.close();
+
+        // The entries are still read as JSON, and the counters are filled when the database is opened
+        LocalDatabase localDb = LocalDatabase.create(InstrumentationRegistry.getTargetContext(), TEST_DB);
+        mHelper.closeWhenFinished(localDb);
+        LocalEntryDao dao = localDb.getLocalEntryDao();
+        assertEquals(3, dao.countAllEntries(""));
+        assertEquals(2, dao.countEntriesNotStoredOnServer(""));
+
+        List<LocalEntry> unstored = dao.getEntriesNotStoredOnServer("", RemoteDb.PRIORITY_NORMAL, 0, 10);
+        assertEquals(2, unstored.size());
+        assertEquals(1, unstored.get(0).entry.optInt("n"));
+        assertEquals(4, unstored.get(1).entry.optInt("n"));
+    }
+
+
+    /**
+     * Ids are sent to the server as sequence numbers, so the rebuilt table must not hand out the id
+     * of an entry that was deleted before the migration.
+     */
+    @Test
+    public void migration4To5KeepsTheIdSequence() {
+        SupportSQLiteDatabase db = mHelper.createDatabase(TEST_DB, 4);
+        for (int i = 0; i < 3; i++)
+            db.execSQL("INSERT INTO remotedb_localentry (uuid, entry, storedOnServer, leaseId) VALUES (?, ?, 0, 0)",
+                    new Object[]{"e" + i, "{\"n\":" + i + "}"});
+        db.execSQL("DELETE FROM remotedb_localentry WHERE uuid='e2'");
+        db.close();
+
+        db = mHelper.runMigrationsAndValidate(TEST_DB, 5, true, LocalDatabase.MIGRATION_4_5);
+        db.execSQL("INSERT INTO remotedb_localentry (uuid, entry, storedOnServer, leaseId) VALUES ('e3', NULL, 0, 0)");
+
+        assertEquals(4, queryLong(db, "SELECT id FROM remotedb_localentry WHERE uuid='e3'"));
+        assertEquals(4, queryLong(db, "SELECT seq FROM sqlite_sequence WHERE name='remotedb_localentry'"));
+        assertEquals(0, queryLong(db, "SELECT COUNT(*) FROM sqlite_sequence WHERE name='remotedb_localentry_new'"));
+        assertEquals(2, queryLong(db, "SELECT COUNT(*) FROM remotedb_localentry WHERE entry IS NOT NULL"));
+        db.close();
+    }
+
+
+    private static void insertVersion2Entry(SupportSQLiteDatabase db, String uuid, String json, boolean storedOnServer) {
+        db.execSQL("INSERT INTO remotedb_localentry (uuid, entry, storedOnServer) VALUES (?, ?, ?)",
+                new Object[]{uuid, json, storedOnServer ? 1 : 0});
+    }
+
+
+    private static long queryLong(SupportSQLiteDatabase db, String sql) {
+        Cursor cursor = db.query(sql);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+        finally {
+            cursor.close();
+        }
+    }
+}
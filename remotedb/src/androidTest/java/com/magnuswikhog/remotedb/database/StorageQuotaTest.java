@@ -0,0 +1,190 @@
+package com.magnuswikhog.remotedb.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.magnuswikhog.remotedb.RemoteDb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class StorageQuotaTest {
+    private LocalDatabase mDb;
+    private StorageQuota mQuota;
+    private int mNextNumber;
+
+
+    @Before
+    public void createDb() {
+        mDb = LocalDatabase.createInMemory(InstrumentationRegistry.getTargetContext());
+        mQuota = mDb.getStorageQuota();
+    }
+
+    @After
+    public void closeDb() {
+        mDb.close();
+    }
+
+
+    @Test
+    public void evictsStoredEntriesBeforeUnstoredOnes() {
+        insert(RemoteDb.PRIORITY_NORMAL, 10);
+        mDb.getLocalEntryDao().markAsStored(Arrays.asList("e5", "e6"));
+
+        // Going over the limit evicts down to 90% of it
+        mQuota.setLimits(0, 10);
+        insert(RemoteDb.PRIORITY_NORMAL, 2);
+
+        assertEquals(Arrays.asList("e1", "e2", "e3", "e4", "e7", "e8", "e9", "e10", "e11"), getUuids());
+        assertEquals(2, mQuota.getEvictedStoredCount());
+        assertEquals(1, mQuota.getEvictedUnstoredCount());
+    }
+
+
+    @Test
+    public void evictsLowestPriorityFirst() {
+        for (int i = 0; i < 3; i++) {
+            insert(RemoteDb.PRIORITY_HIGH, 1);
+            insert(RemoteDb.PRIORITY_LOW, 1);
+        }
+
+        mQuota.setEvictionPolicy(StorageQuota.EvictionPolicy.LOWEST_PRIORITY_FIRST);
+        mQuota.setLimits(0, 4);
+        mQuota.enforce();
+
+        assertEquals(Arrays.asList("e0", "e2", "e4"), getUuids());
+        assertEquals(3, mQuota.getEvictedUnstoredCount());
+    }
+
+
+    @Test
+    public void leasedEntriesAreNotEvicted() {
+        insert(RemoteDb.PRIORITY_NORMAL, 5);
+        List<RawLocalEntry> leased = mDb.getLocalEntryDao().getRawEntriesNotStoredOnServer("", RemoteDb.PRIORITY_NORMAL, 0, 2);
+        mDb.getLocalEntryDao().lease("", RemoteDb.PRIORITY_NORMAL, leased.get(0).id, leased.get(1).id, 1);
+
+        mQuota.setLimits(0, 1);
+        mQuota.enforce();
+
+        assertEquals(Arrays.asList("e0", "e1"), getUuids());
+        assertEquals(3, mQuota.getEvictedUnstoredCount());
+    }
+
+
+    @Test
+    public void keepsTheDatabaseBelowTheByteLimit() {
+        for (int i = 0; i < 10; i++)
+            insert(RemoteDb.PRIORITY_NORMAL, 20, 1000);
+        long entriesBefore = mDb.getLocalEntryDao().countEntriesInAllStreams();
+
+        mQuota.setLimits(100 * 1000, 0);
+        mQuota.enforce();
+        assertTrue(getUsedBytes() <= 90 * 1000);
+
+        // The limit is checked against an estimate, so the database may go over it by about a batch
+        for (int i = 0; i < 10; i++) {
+            insert(RemoteDb.PRIORITY_NORMAL, 20, 1000);
+            assertTrue(getUsedBytes() <= 100 * 1000 + 20 * 2000);
+        }
+
+        long entries = mDb.getLocalEntryDao().countEntriesInAllStreams();
+        assertTrue(entries > 0);
+        assertEquals(entriesBefore + 200 - entries, mQuota.getEvictedUnstoredCount());
+    }
+
+
+    @Test
+    public void removesExpiredEntries() throws InterruptedException {
+        insert(RemoteDb.PRIORITY_NORMAL, 3);
+        Thread.sleep(1000);
+
+        mQuota.setMaxAge(500);
+        insert(RemoteDb.PRIORITY_NORMAL, 1);
+
+        assertEquals(Arrays.asList("e3"), getUuids());
+        assertEquals(3, mQuota.getExpiredCount());
+    }
+
+
+    @Test
+    public void newDatabaseUsesIncrementalAutoVacuum() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        String filename = "storage-quota-test.db";
+        context.deleteDatabase(filename);
+
+        LocalDatabase db = LocalDatabase.create(context, filename);
+        try {
+            assertEquals(2, queryLong(db, "PRAGMA auto_vacuum"));
+            assertFalse(db.getStorageQuota().enableIncrementalAutoVacuum());
+        }
+        finally {
+            db.close();
+            context.deleteDatabase(filename);
+        }
+    }
+
+
+    @Test
+    public void existingDatabaseIsSwitchedToIncrementalAutoVacuumOnce() {
+        insert(RemoteDb.PRIORITY_NORMAL, 10);
+
+        assertTrue(mQuota.enableIncrementalAutoVacuum());
+        assertEquals(2, queryLong(mDb, "PRAGMA auto_vacuum"));
+        assertFalse(mQuota.enableIncrementalAutoVacuum());
+        assertEquals(10, getUuids().size());
+    }
+
+
+    private void insert(int priority, int count) {
+        insert(priority, count, 10);
+    }
+
+
+    private void insert(int priority, int count, int entrySize) {
+        RawLocalEntry[] entries = new RawLocalEntry[count];
+        for (int i = 0; i < count; i++)
+            entries[i] = new RawLocalEntry("", priority, "e" + mNextNumber++, new byte[entrySize]);
+        mDb.insertRawEntries(entries);
+    }
+
+
+    private List<String> getUuids() {
+        List<String> uuids = new ArrayList<>();
+        Cursor cursor = mDb.query("SELECT uuid FROM remotedb_localentry ORDER BY id", null);
+        try {
+            while( cursor.moveToNext() )
+                uuids.add(cursor.getString(0));
+        }
+        finally {
+            cursor.close();
+        }
+        return uuids;
+    }
+
+
+    private long getUsedBytes() {
+        return (queryLong(mDb, "PRAGMA page_count") - queryLong(mDb, "PRAGMA freelist_count")) * queryLong(mDb, "PRAGMA page_size");
+    }
+
+
+    private static long queryLong(LocalDatabase db, String sql) {
+        Cursor cursor = db.query(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+        finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.magnuswikhog.remotedb.database;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.RemoteDb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Walks backlogs of increasing size with the keyset cursor used by
+ * {@link com.magnuswikhog.remotedb.RemoteDb#sendToServer(boolean)}, marking chunks as stored while
+ * walking (like an acknowledgement arriving mid-flush would). Checks that no entry is skipped and
+ * that the time per entry stays roughly constant as the backlog grows.
+ */
+@RunWith(AndroidJUnit4.class)
+public class UnstoredEntryCursorBenchmark {
+    private static final String TAG = "CursorBenchmark";
+    private static final int CHUNK_SIZE = 100;
+    private static final int[] BACKLOG_SIZES = {5000, 20000, 80000};
+
+    private LocalDatabase mDb;
+
+    @Before
+    public void createDb() {
+        mDb = LocalDatabase.createInMemory(InstrumentationRegistry.getTargetContext());
+    }
+
+    @After
+    public void closeDb() {
+        mDb.close();
+    }
+
+    @Test
+    public void flushTimeStaysLinear() {
+        double firstNanosPerEntry = 0;
+
+        for (int backlogSize : BACKLOG_SIZES) {
+            mDb.getLocalEntryDao().deleteAll("");
+            insertBacklog(backlogSize);
+
+            long start = System.nanoTime();
+            long visited = walkAndAcknowledge();
+            long elapsed = System.nanoTime() - start;
+
+            assertEquals(backlogSize, visited);
+            assertEquals(0, mDb.getLocalEntryDao().countEntriesNotStoredOnServer(""));
+
+            double nanosPerEntry = (double) elapsed / backlogSize;
+            Log.i(TAG, "backlog=" + backlogSize + "   totalMs=" + (elapsed / 1000000) + "   nsPerEntry=" + (long) nanosPerEntry);
+
+            if( firstNanosPerEntry == 0 )
+                firstNanosPerEntry = nanosPerEntry;
+            else
+                assertTrue("Flush time per entry grew with backlog size", nanosPerEntry < firstNanosPerEntry * 4);
+        }
+    }
+
+
+    private void insertBacklog(int count) {
+        LocalEntry[] entries = new LocalEntry[count];
+        for (int i = 0; i < count; i++)
+            entries[i] = new LocalEntry(UUID.randomUUID().toString(), new Entry().put("t", i).put("m", "Entry #" + i));
+        mDb.getLocalEntryDao().insert(entries);
+    }
+
+
+    private long walkAndAcknowledge() {
+        long visited = 0;
+        long lastId = 0;
+        while( true ) {
+            List<LocalEntry> chunk = mDb.getLocalEntryDao().getEntriesNotStoredOnServer("", RemoteDb.PRIORITY_NORMAL, lastId, CHUNK_SIZE);
+            if( chunk.isEmpty() )
+                break;
+
+            visited += chunk.size();
+            lastId = chunk.get(chunk.size() - 1).id;
+
+            // Acknowledge by primary key range so that the benchmark measures the cursor, not the ack
+            mDb.getOpenHelper().getWritableDatabase().execSQL(
+                    "UPDATE remotedb_localentry SET storedOnServer=1 WHERE id<=?", new Object[]{lastId});
+        }
+        return visited;
+    }
+}
@@ -0,0 +1,35 @@
+package com.magnuswikhog.remotedb;
+
+import android.util.Log;
+
+import com.magnuswikhog.remotedb.engine.EngineLogger;
+
+
+/**
+ * Logs the engine's messages to Logcat, with debug messages enabled by {@link RemoteDb#DEBUG}.
+ */
+class AndroidEngineLogger implements EngineLogger {
+
+    @Override
+    public boolean isDebugEnabled() {
+        return RemoteDb.DEBUG;
+    }
+
+
+    @Override
+    public void debug(String tag, String message) {
+        Log.d(tag, message);
+    }
+
+
+    @Override
+    public void warn(String tag, String message) {
+        Log.w(tag, message);
+    }
+
+
+    @Override
+    public void error(String tag, String message, Throwable error) {
+        Log.e(tag, message, error);
+    }
+}
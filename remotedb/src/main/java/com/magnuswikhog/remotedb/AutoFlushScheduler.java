@@ -0,0 +1,179 @@
+package com.magnuswikhog.remotedb;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.magnuswikhog.remotedb.upload.AutoFlushPolicy;
+
+
+/**
+ * Runs an {@link AutoFlushPolicy} for a RemoteDb: feeds it the network and battery state from
+ * system broadcasts, and starts an upload on the main thread when the policy says one is due.
+ * <p>
+ * While the device dozes, apps have no network, so the policy holds uploads back until the device
+ * wakes up and the connectivity broadcast arrives.
+ */
+class AutoFlushScheduler {
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    private final Context mContext;
+    private final RemoteDb mRemoteDb;
+    private final AutoFlushPolicy mPolicy;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mStarted;
+
+
+    AutoFlushScheduler(Context context, RemoteDb remoteDb, AutoFlushPolicy policy) {
+        mContext = context.getApplicationContext();
+        mRemoteDb = remoteDb;
+        mPolicy = policy;
+    }
+
+
+    AutoFlushPolicy getPolicy() {
+        return mPolicy;
+    }
+
+
+    /**
+     * Must be called on the main thread.
+     */
+    void start() {
+        if( mStarted )
+            return;
+        mStarted = true;
+
+        mContext.registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        IntentFilter batteryFilter = new IntentFilter();
+        batteryFilter.addAction(Intent.ACTION_POWER_CONNECTED);
+        batteryFilter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        batteryFilter.addAction(Intent.ACTION_BATTERY_LOW);
+        batteryFilter.addAction(Intent.ACTION_BATTERY_OKAY);
+        mContext.registerReceiver(mBatteryReceiver, batteryFilter);
+
+        updateNetwork();
+        updateBattery();
+        reschedule();
+    }
+
+
+    /**
+     * Must be called on the main thread.
+     */
+    void stop() {
+        if( !mStarted )
+            return;
+        mStarted = false;
+
+        mContext.unregisterReceiver(mConnectivityReceiver);
+        mContext.unregisterReceiver(mBatteryReceiver);
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.removeCallbacks(mRescheduleRunnable);
+    }
+
+
+    /**
+     * Adds entries to the policy's backlog. Can be called on any thread.
+     */
+    void onEntriesAdded(int count, long bytes) {
+        if( mPolicy.onEntriesAdded(count, bytes) )
+            mHandler.post(mRescheduleRunnable);
+    }
+
+
+    private void reschedule() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if( !mStarted )
+            return;
+
+        long delay = mPolicy.getNextFlushDelayMillis();
+        if( delay >= 0 )
+            mHandler.postDelayed(mFlushRunnable, delay);
+    }
+
+
+    private final Runnable mRescheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reschedule();
+        }
+    };
+
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if( !mStarted )
+                return;
+
+            // The conditions may have changed since this was posted
+            long delay = mPolicy.getNextFlushDelayMillis();
+            if( delay == 0 ) {
+                mPolicy.onFlushStarted();
+                mRemoteDb.sendToServer(false);
+            }
+            else if( delay > 0 ) {
+                mHandler.postDelayed(this, delay);
+            }
+        }
+    };
+
+
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateNetwork();
+            reschedule();
+        }
+    };
+
+
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateBattery();
+            reschedule();
+        }
+    };
+
+
+    private void updateNetwork() {
+        AutoFlushPolicy.Network network;
+        try {
+            ConnectivityManager connectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo info = connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null;
+            if( info == null || !info.isConnected() )
+                network = AutoFlushPolicy.Network.NONE;
+            else if( info.getType() == ConnectivityManager.TYPE_WIFI || info.getType() == ConnectivityManager.TYPE_ETHERNET )
+                network = AutoFlushPolicy.Network.UNMETERED;
+            else
+                network = AutoFlushPolicy.Network.METERED;
+        }
+        catch (SecurityException e) {
+            // Without the network state permission, assume that there is a network and let the upload find out
+            network = AutoFlushPolicy.Network.UNMETERED;
+        }
+        mPolicy.setNetwork(network);
+    }
+
+
+    private void updateBattery() {
+        // ACTION_BATTERY_CHANGED is sticky, so this returns the current state without registering anything
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if( battery == null )
+            return;
+
+        boolean charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        boolean batteryLow = level >= 0 && scale > 0 && level * 100 / scale <= LOW_BATTERY_PERCENT;
+        mPolicy.setBatteryState(charging, batteryLow);
+    }
+}
@@ -0,0 +1,56 @@
+package com.magnuswikhog.remotedb;
+
+import android.arch.lifecycle.LiveData;
+import android.arch.lifecycle.MediatorLiveData;
+import android.arch.lifecycle.Observer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+
+/**
+ * Passes on the values of another LiveData at most once per interval, and only when they have
+ * changed. Room re-runs an observed query after every committed write to its tables, so during a
+ * burst of writes this keeps the observers (and whatever UI they update) from running for every
+ * single batch. The first value is passed on right away, and the last value of a burst is never
+ * lost.
+ */
+class CoalescingLiveData<T> extends MediatorLiveData<T> {
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final long mIntervalMillis;
+
+    private T mPendingValue;
+    private boolean mDispatchScheduled;
+    private long mLastDispatchMillis = -1;
+
+
+    CoalescingLiveData(LiveData<T> source, long intervalMillis) {
+        mIntervalMillis = intervalMillis;
+        addSource(source, new Observer<T>() {
+            @Override
+            public void onChanged(T value) {
+                mPendingValue = value;
+                if( mDispatchScheduled )
+                    return;
+
+                mDispatchScheduled = true;
+                long delay = mLastDispatchMillis < 0 ? 0 : mLastDispatchMillis + mIntervalMillis - SystemClock.uptimeMillis();
+                mHandler.postDelayed(mDispatchRunnable, Math.max(0, delay));
+            }
+        });
+    }
+
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mDispatchScheduled = false;
+            mLastDispatchMillis = SystemClock.uptimeMillis();
+
+            T value = mPendingValue;
+            T current = getValue();
+            if( value == null ? current != null : !value.equals(current) )
+                setValue(value);
+        }
+    };
+}
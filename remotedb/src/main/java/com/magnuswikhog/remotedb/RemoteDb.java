@@ -1,40 +1,56 @@
 package com.magnuswikhog.remotedb;
 
 import android.annotation.SuppressLint;
-import android.arch.lifecycle.LifecycleOwner;
 import android.arch.lifecycle.LiveData;
 import android.arch.lifecycle.MutableLiveData;
-import android.arch.lifecycle.Observer;
 import android.content.Context;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Settings;
-import android.support.annotation.NonNull;
-import android.util.Log;
-
-import com.android.volley.Request;
-import com.android.volley.RequestQueue;
-import com.android.volley.Response;
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.Volley;
+import android.support.annotation.MainThread;
+import android.support.annotation.WorkerThread;
+
+import com.magnuswikhog.remotedb.codec.BinaryEntryCodec;
+import com.magnuswikhog.remotedb.codec.EntryCodec;
+import com.magnuswikhog.remotedb.database.Converters;
 import com.magnuswikhog.remotedb.database.LocalDatabase;
-import com.magnuswikhog.remotedb.database.LocalEntry;
+import com.magnuswikhog.remotedb.engine.UploadEngine;
+import com.magnuswikhog.remotedb.metrics.RemoteDbMetrics;
+import com.magnuswikhog.remotedb.upload.AutoFlushPolicy;
+import com.magnuswikhog.remotedb.upload.ContentEncoding;
+import com.magnuswikhog.remotedb.upload.UploadStatsListener;
+import com.magnuswikhog.remotedb.upload.UploadTransport;
+import com.magnuswikhog.remotedb.upload.VolleyTransport;
 
-import org.jetbrains.annotations.NonNls;
 import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.Future;
 
 
+/**
+ * Stores entries in a local database on the device, and sends them to the RemoteDb server. The
+ * storing, chunking, acknowledging and retrying is done by an {@link UploadEngine}, which this
+ * class runs over the Room database, with the Android id as device id, and with its outcomes
+ * passed on to the {@link RemoteDbInterface} and LiveData on the main thread.
+ */
 @SuppressWarnings("HardCodedStringLiteral")
 public class RemoteDb {
-	private static final String TAG = "RemoteDb";
-
 	public static boolean DEBUG = false;
 
+    /** The min interval between updates of the LiveData entry counts. */
+    private static final long COUNT_LIVE_DATA_INTERVAL_MS = 200;
+
+    /** The stream used by instances that have a database file of their own. */
+    public static final String DEFAULT_STREAM = "";
+
+    /**
+     * Entry priorities, see {@link RemoteDb#addEntry(Entry, int)}. Unstored entries are sent in
+     * order of priority, highest first, and within each priority in the order they were added.
+     */
+    public static final int PRIORITY_LOW = UploadEngine.PRIORITY_LOW;
+    public static final int PRIORITY_NORMAL = UploadEngine.PRIORITY_NORMAL;
+    public static final int PRIORITY_HIGH = UploadEngine.PRIORITY_HIGH;
+
 
     /**
      * The callback interface used by the RemoteDb class.
@@ -50,24 +66,21 @@ public class RemoteDb {
 
 
 
-    private String mStoreUrl;
-	private String mPassword;
     private RemoteDbInterface mInterface;
 
     private Context mContext;
-    private RequestQueue mRequestQueue;
-    private boolean mDeleteLocalEntriesAfterRemoteStoreSuccess;
-    private LocalDatabase mDb;
-
-    private Entry mRequestParams;
 
-    /**
-     * Each HTTP request to the server will contain at most this many entries. Useful to prevent
-     * trying to send a single giant JSON request with thousands of entries.
-     */
-    private int mSendToServerEntryChunkSize = 100;
+    private RemoteDbEnvironment mEnvironment;
+    /** True if the environment was created for this instance only. */
+    private boolean mOwnsEnvironment;
+    private String mStream;
+    private LocalDatabase mDb;
+    private RemoteDbExecutors mExecutors;
+    private UploadEngine mEngine;
 
+    private volatile AutoFlushScheduler mAutoFlush;
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
     private MutableLiveData<Long> mServerEntryCount;
 
 
@@ -82,251 +95,255 @@ public class RemoteDb {
      * @param deleteLocalEntriesAfterRemoteStoreSuccess     If true, entries will be removed from the local database when they have been successfully stored on the server. If false, the local entries will be kept in the local database even after they have been stored on the server.
      */
     public RemoteDb(Context context, String filename, String storeUrl, String password, RemoteDbInterface aInterface, boolean deleteLocalEntriesAfterRemoteStoreSuccess){
+        this(context, filename, storeUrl, password, aInterface, deleteLocalEntriesAfterRemoteStoreSuccess, RemoteDbExecutors.createDefault());
+    }
+
+
+    /**
+     * Like {@link RemoteDb#RemoteDb(Context, String, String, String, RemoteDbInterface, boolean)},
+     * but runs its work on the supplied executors instead of on threads of its own.
+     *
+     * @param executors     The executors to run database writes and uploads on.
+     */
+    public RemoteDb(Context context, String filename, String storeUrl, String password, RemoteDbInterface aInterface, boolean deleteLocalEntriesAfterRemoteStoreSuccess, RemoteDbExecutors executors){
+        this(context, filename, storeUrl, password, aInterface, deleteLocalEntriesAfterRemoteStoreSuccess, executors, VolleyTransport.getDefault(context));
+    }
+
+
+    /**
+     * Like {@link RemoteDb#RemoteDb(Context, String, String, String, RemoteDbInterface, boolean, RemoteDbExecutors)},
+     * but sends requests with the supplied transport instead of the default, Volley based, one.
+     *
+     * @param transport     The transport to send requests with. Can be shared between instances.
+     */
+    public RemoteDb(Context context, String filename, String storeUrl, String password, RemoteDbInterface aInterface, boolean deleteLocalEntriesAfterRemoteStoreSuccess, RemoteDbExecutors executors, UploadTransport transport){
+        this(context, new RemoteDbEnvironment(context, filename, executors, transport), true, DEFAULT_STREAM, storeUrl, password, aInterface, deleteLocalEntriesAfterRemoteStoreSuccess);
+    }
+
+
+    /**
+     * Creates a RemoteDb for a named stream of entries in a shared environment. Streams in the same
+     * environment share a single local database and the same threads, see
+     * {@link RemoteDbEnvironment}.
+     *
+     * @param environment   The environment that the stream lives in.
+     * @param stream        The name of the stream. Use a single RemoteDb instance per stream.
+     * @param storeUrl      The URL for the RemoteDb server script.
+     * @param password      The password to send to the RemoteDb server script.
+     * @param aInterface    An optional callback interface.
+     * @param deleteLocalEntriesAfterRemoteStoreSuccess     If true, entries will be removed from the local database when they have been successfully stored on the server.
+     */
+    public RemoteDb(Context context, RemoteDbEnvironment environment, String stream, String storeUrl, String password, RemoteDbInterface aInterface, boolean deleteLocalEntriesAfterRemoteStoreSuccess){
+        this(context, environment, false, stream, storeUrl, password, aInterface, deleteLocalEntriesAfterRemoteStoreSuccess);
+    }
+
+
+    private RemoteDb(Context context, RemoteDbEnvironment environment, boolean ownsEnvironment, String stream, String storeUrl, String password, RemoteDbInterface aInterface, boolean deleteLocalEntriesAfterRemoteStoreSuccess){
+        mEnvironment = environment;
+        mOwnsEnvironment = ownsEnvironment;
+        mStream = stream != null ? stream : DEFAULT_STREAM;
+        mExecutors = environment.getExecutors();
+        mDb = environment.getDatabase();
+
         mContext = context.getApplicationContext();
-        mStoreUrl = storeUrl;
-        mPassword = password;
         mInterface = aInterface;
-        mRequestQueue = Volley.newRequestQueue(context);
-        mDeleteLocalEntriesAfterRemoteStoreSuccess = deleteLocalEntriesAfterRemoteStoreSuccess;
-
-        mRequestParams = new Entry();
-        mDb = LocalDatabase.create(context, filename);
         mServerEntryCount = new MutableLiveData<Long>();
+
+        mEngine = new UploadEngine(environment.getEngineEnvironment(), mStream, storeUrl, password, getUniqueDeviceIdentifier(mContext));
+        mEngine.setDeleteAfterStore(deleteLocalEntriesAfterRemoteStoreSuccess);
+        mEngine.setListener(mEngineListener);
     }
 
 
+    /**
+     * Passes the outcome of each request on to the callback interface and the server count, on the
+     * main thread, whichever thread the transport calls back on.
+     */
+    private final UploadEngine.Listener mEngineListener = new UploadEngine.Listener() {
+        @Override
+        public void onSendSucceeded() {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if( mInterface != null )
+                        mInterface.onSendToServerSuccess();
+                }
+            });
+        }
+
+        @Override
+        public void onSendFailed() {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if( mInterface != null )
+                        mInterface.onSendToServerFailure();
+                }
+            });
+        }
+
+        @Override
+        public void onServerEntryCount(final long serverEntryCount) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mServerEntryCount.setValue(serverEntryCount);
+                }
+            });
+        }
+    };
+
+
     /**
      * Adds a new entry to the local database. You must first add any data that you want to store to
-     * the entry, before calling this method. After calling this method, the entry is stored in the
+     * the entry, before calling this method. The entry is encoded right away, so changing it
+     * afterwards doesn't affect what is stored. After calling this method, the entry is stored in the
      * local database on the users device, but is not sent to the remote server until you call
      * {@link com.magnuswikhog.remotedb.RemoteDb#sendToServer(boolean)}.
+     * <p>
+     * Entries are buffered in memory and written to the local database in batches, see
+     * {@link RemoteDb#setIngestBatching(int, long)}. Call {@link RemoteDb#flush()} if you need the
+     * entry to be written to the database right away.
      * @param entry The entry you want to store in the local database.
      */
     public void addEntry(final Entry entry){
-        AsyncTask.execute(new Runnable() {
-            @Override
-            public void run() {
-                mDb.getLocalEntryDao().insert(new LocalEntry(UUID.randomUUID().toString(), entry));
-
-                if( DEBUG ) {
-                    long allEntriesCount = mDb.getLocalEntryDao().countAllEntries();
-                    long unstoredEntriesCount = mDb.getLocalEntryDao().countEntriesNotStoredOnServer();
-                    Log.d(TAG, "addEntry()    allEntriesCount=" + allEntriesCount + "    unstoredEntriesCount=" + unstoredEntriesCount);
-                }
-            }
-        });
+        addEntry(entry, PRIORITY_NORMAL);
     }
 
 
     /**
-     * Sends all entries in the database that have not yet been stored on the server, to the server.
-     * This is done asynchronously, and if you have set a {@link RemoteDbInterface}, the appropriate
-     * callback method will be invoked when the server responds.
-     * @param sendRequestEvenIfEmpty    It true, a HTTP request will be sent to the server even if
-     *                                  there are no entries to send. Useful for retrieving the number
-     *                                  of entries on the server in {@link RemoteDb#getServerEntriesCountLive()}.
+     * Like {@link RemoteDb#addEntry(Entry)}, but with a priority. Unstored entries with a higher
+     * priority are sent before all entries with a lower priority, so for example crash reports added
+     * with {@link RemoteDb#PRIORITY_HIGH} go out with the first request after connectivity returns,
+     * even if there is a large backlog of entries with normal priority.
+     * @param entry     The entry you want to store in the local database.
+     * @param priority  One of {@link RemoteDb#PRIORITY_LOW}, {@link RemoteDb#PRIORITY_NORMAL} and
+     *                  {@link RemoteDb#PRIORITY_HIGH}.
      */
-    public synchronized void sendToServer(final boolean sendRequestEvenIfEmpty) {
-        AsyncTask.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    long unstoredEntriesCount = mDb.getLocalEntryDao().countEntriesNotStoredOnServer();
-                    if( DEBUG && unstoredEntriesCount == 0){
-                        long allEntriesCount = mDb.getLocalEntryDao().countAllEntries();
-                        Log.d(TAG, "sendToServer()    Nothing to send to server!    allEntriesCount=" + allEntriesCount + "    unstoredEntriesCount=" + unstoredEntriesCount);
-                    }
-
-                    for(int i=((unstoredEntriesCount>0 || !sendRequestEvenIfEmpty) ? 0 : -1); i<unstoredEntriesCount; i+=mSendToServerEntryChunkSize) {
-                        List<LocalEntry> unstoredEntries = mDb.getLocalEntryDao().getEntriesNotStoredOnServer(i, mSendToServerEntryChunkSize);
-
-                        JSONArray entries = new JSONArray();
-                        for (LocalEntry unstoredEntry : unstoredEntries) {
-                            Entry entry = unstoredEntry.entry;
-                            entry.put("_s", unstoredEntry.id);
-                            entry.put("_u", unstoredEntry.uuid);
-                            entries.put(entry);
-                        }
-
-
-                        JSONObject jsonRequest = new JSONObject();
-                        jsonRequest.put("_pw", mPassword);
-                        jsonRequest.put("_did", getUniqueDeviceIdentifier(mContext));
-                        jsonRequest.put("_ent", entries);
-
-                        JSONArray paramNames = mRequestParams.names();
-                        if (paramNames != null) {
-                            for (int n = 0; n < paramNames.length(); n++) {
-                                String paramName = (String) paramNames.get(n);
-                                jsonRequest.put(paramName, mRequestParams.get(paramName));
-                            }
-                        }
-
-
-                        if (DEBUG) {
-                            long allEntriesCount = mDb.getLocalEntryDao().countAllEntries();
-                            Log.d(TAG, "sendToServer()    allEntriesCount=" + allEntriesCount + "    unstoredEntriesCount=" + unstoredEntriesCount + "   chunkSize="+unstoredEntries.size()+"   jsonRequest=" + String.valueOf(jsonRequest));
-                        }
-
-
-                        JsonObjectRequest jsonObjectRequest = new JsonObjectRequest(
-                                Request.Method.POST,
-                                mStoreUrl,
-                                jsonRequest,
-                                onRequestSuccess,
-                                onRequestError);
-
-                        mRequestQueue.add(jsonObjectRequest);
-                    }
-                }
-                catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        });
+    public void addEntry(Entry entry, int priority){
+        addEncodedEntry(Converters.entryToBytes(entry), priority);
     }
 
 
-    private Response.Listener<JSONObject> onRequestSuccess = new Response.Listener<JSONObject>() {
-        @Override
-        public void onResponse(JSONObject response) {
-            if( !response.optString("status", "").equals("ok") ) {
-                if( DEBUG )
-                    Log.e(TAG, "Server error: "+response.toString());
+    /**
+     * Like {@link RemoteDb#addEntry(Entry)}, but takes the fields from a builder, which is encoded
+     * directly to the storage format without creating an {@link Entry}. The builder isn't
+     * referenced after this returns, so it can be reset and reused for the next entry right away.
+     * @param builder The fields of the entry you want to store in the local database.
+     */
+    public void addEntry(EntryBuilder builder){
+        addEntry(builder, PRIORITY_NORMAL);
+    }
 
-                if( mInterface != null )
-                    mInterface.onSendToServerFailure();
-            }
-            else {
-                JSONArray storedUuids = null;
-                try {
-                    storedUuids = new JSONArray( response.optString("stored_uuids", "[]") );
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
 
-                if( DEBUG )
-                    Log.d(TAG, "onResponse()   storedUuids.length()="+storedUuids.length());
+    /**
+     * Like {@link RemoteDb#addEntry(EntryBuilder)}, but with a priority, see
+     * {@link RemoteDb#addEntry(Entry, int)}.
+     */
+    public void addEntry(EntryBuilder builder, int priority){
+        addEncodedEntry(Converters.getEntryCodec().encode(builder), priority);
+    }
 
-                markEntriesAsStored(storedUuids, mDeleteLocalEntriesAfterRemoteStoreSuccess);
 
-                if( mInterface == null )
-                    mInterface.onSendToServerSuccess();
+    private void addEncodedEntry(byte[] bytes, int priority){
+        mEngine.addEncodedEntry(bytes, priority);
 
-                try {
-                    Long serverEntryCount = response.getLong("total_count");
-                    mServerEntryCount.setValue( serverEntryCount );
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-    };
+        AutoFlushScheduler autoFlush = mAutoFlush;
+        if( autoFlush != null )
+            autoFlush.onEntriesAdded(1, bytes.length);
+    }
 
 
-    private Response.ErrorListener onRequestError = new Response.ErrorListener() {
-        @Override
-        public void onErrorResponse(VolleyError error) {
-            @NonNls String errorStr = "Volley error: ";
-            errorStr += "HTTP code " + (error != null && error.networkResponse != null ? error.networkResponse.statusCode : "(none)") + "   ";
-            errorStr += "Message: " + (error != null && error.getMessage() != null ? error.getMessage() : "(none)");
-
-            Log.e(TAG, errorStr);
-            if( error != null ) {
-                for (StackTraceElement stackTraceElement : error.getStackTrace()) {
-                    Log.e("RemoteDb/VolleyError", "at " + String.valueOf(stackTraceElement));
-                }
-            }
+    /**
+     * Writes all entries that have been added with {@link RemoteDb#addEntry(Entry)} but are still
+     * buffered in memory to the local database, and waits until they have been committed. Must not
+     * be called on the database writer thread (see {@link RemoteDbExecutors}).
+     */
+    @WorkerThread
+    public void flush(){
+        mEngine.flush();
+    }
 
-            if( mInterface != null )
-                mInterface.onSendToServerFailure();
-        }
-    };
+
+    /**
+     * Sends all entries in the database that have not yet been stored on the server, to the server.
+     * This is done asynchronously, and if you have set a {@link RemoteDbInterface}, the appropriate
+     * callback method will be invoked when the server responds.
+     * @param sendRequestEvenIfEmpty    It true, a HTTP request will be sent to the server even if
+     *                                  there are no entries to send. Useful for retrieving the number
+     *                                  of entries on the server in {@link RemoteDb#getServerEntriesCountLive()}.
+     * @return A future which completes when the entries added before this call have been written
+     *         to the local database and the upload of them has started (or been merged into an
+     *         upload that is already running). The outcome of the upload is reported to the
+     *         {@link RemoteDbInterface}.
+     */
+    public Future<Void> sendToServer(boolean sendRequestEvenIfEmpty) {
+        return mEngine.sendToServer(sendRequestEvenIfEmpty);
+    }
 
 
     /**
      * Marks the entries with the supplied UUID's in the local database as "stored on the server".
      * @param uuids A list of UUID's, one for each entry to mark as stored.
-     * @param deleteEntries If true, all entries that are marked as stored (not only the ones supplied
-     *                      in the uuids parameter) will be deleted from the local database.
+     * @param deleteEntries If true, the entries with the supplied UUID's will be deleted from the
+     *                      local database instead of being marked as stored. Entries that were
+     *                      marked as stored earlier are left alone, use
+     *                      {@link RemoteDb#removeStoredEntries()} to remove those.
+     * @return A future which completes when the change has been committed.
      */
-    public void markEntriesAsStored(final JSONArray uuids, final boolean deleteEntries){
-        if( null != uuids ) {
-            AsyncTask.execute(new Runnable() {
-                @Override
-                public void run() {
-                    if( DEBUG )
-                        Log.d(TAG, "Marking "+uuids.length()+" local entries as stored");
-
-
-                    /*
-                    We're using a transaction and deleting one-by-one instead of making a single
-                    DELETE FROM ... WHERE uuid IN (:uuids) because there is a limit to how many
-                    variables can be in a single SQLite statement (default seems to be 999). If we
-                    sent for example 1000 entries in a single request, we'd get an exception when
-                    trying to execute a SQL statement with all 1000 stored UUID's.
-                     */
-                    mDb.beginTransaction();
-                    try {
-                        for (int i = 0; i < uuids.length(); i++) {
-                            mDb.getLocalEntryDao().markAsStored(uuids.optString(i));
-                        }
-                        mDb.setTransactionSuccessful(); // Commmit
-                    }
-                    finally {
-                        mDb.endTransaction();
-                    }
-
-                    if( DEBUG ) {
-                        long allEntriesCount = mDb.getLocalEntryDao().countAllEntries();
-                        long unstoredEntriesCount = mDb.getLocalEntryDao().countEntriesNotStoredOnServer();
-                        Log.d(TAG, "markEntriesAsStored()    allEntriesCount=" + allEntriesCount + "    unstoredEntriesCount=" + unstoredEntriesCount);
-                    }
-
-                    if( deleteEntries )
-                        removeStoredEntries();
-                }
-            });
-        }
+    public Future<Void> markEntriesAsStored(JSONArray uuids, boolean deleteEntries){
+        return mEngine.markEntriesAsStored(uuids, deleteEntries);
     }
 
 
     /**
-     * Removes all entries that are marked as "stored on the server" from the local database.
+     * Removes all entries of this stream that are marked as "stored on the server" from the local database.
+     * @return A future which completes when the entries have been removed.
      */
-    public void removeStoredEntries(){
-        AsyncTask.execute(new Runnable() {
-            @Override
-            public void run() {
-                if( DEBUG )
-                    Log.d(TAG, "Removing all stored entries from local DB");
-
-                mDb.getLocalEntryDao().deleteStored();
+    public Future<Void> removeStoredEntries(){
+        return mEngine.removeStoredEntries();
+    }
 
-                if( DEBUG ) {
-                    long allEntriesCount = mDb.getLocalEntryDao().countAllEntries();
-                    long unstoredEntriesCount = mDb.getLocalEntryDao().countEntriesNotStoredOnServer();
-                    Log.d(TAG, "addEntry()    allEntriesCount=" + allEntriesCount + "    unstoredEntriesCount=" + unstoredEntriesCount);
-                }
 
-            }
-        });
+    /**
+     * Removes all entries of this stream from the local database, regardless of if they have been stored on the server or not.
+     * @return A future which completes when the entries have been removed.
+     */
+    public Future<Void> clearLocalDatabase(){
+        return mEngine.clearLocalEntries();
     }
 
 
     /**
-     * Removes all entries from the local database, regardless of if they have been stored on the server or not.
+     * Stops automatic uploads and, if this RemoteDb created its own environment, writes the buffered
+     * entries and closes the environment, see {@link RemoteDbEnvironment#close()}. A stream in a
+     * shared environment only writes its buffered entries, close the environment once all its
+     * streams are done. The instance can't be used afterwards.
      */
-    public void clearLocalDatabase(){
-        AsyncTask.execute(new Runnable() {
+    @WorkerThread
+    public void close(){
+        mMainHandler.post(new Runnable() {
             @Override
             public void run() {
-                if( DEBUG )
-                    Log.d(TAG, "Clearing local DB");
-
-                mDb.getLocalEntryDao().deleteAll();
+                disableAutoFlush();
             }
         });
+
+        if( mOwnsEnvironment )
+            mEnvironment.close();
+        else
+            mEngine.flush();
+    }
+
+
+    /**
+     * Lets the entries of this stream that the server rejected (with HTTP 400, 413 or 422) be sent
+     * again with the next {@link RemoteDb#sendToServer(boolean)}. Until then they are kept in the
+     * local database, but not sent.
+     * @return A future which completes when the entries have been released.
+     */
+    public Future<Void> retryQuarantinedEntries(){
+        return mEngine.retryQuarantinedEntries();
     }
 
 
@@ -338,21 +355,25 @@ public class RemoteDb {
 
 
     /**
-     * Returns a LiveData object representing the total number of entries in the local database.
+     * Returns a LiveData object representing the total number of entries of this stream in the local database.
+     * The count is updated at most every {@value #COUNT_LIVE_DATA_INTERVAL_MS} ms, however fast
+     * entries are added.
      * @return A LiveData object which can be used to observe this property.
      */
     public LiveData<Long> getLocalEntriesCountLive(){
-        return mDb.getLocalEntryDao().countAllEntriesLive();
+        return new CoalescingLiveData<>(mDb.getLocalEntryDao().countAllEntriesLive(mStream), COUNT_LIVE_DATA_INTERVAL_MS);
     }
 
 
     /**
-     * Returns a LiveData object representing the number of entries in the local database which have
-     * not yet been stored on the server.
+     * Returns a LiveData object representing the number of entries of this stream in the local
+     * database which have not yet been stored on the server. Like
+     * {@link RemoteDb#getLocalEntriesCountLive()}, the count is updated at most every
+     * {@value #COUNT_LIVE_DATA_INTERVAL_MS} ms.
      * @return A LiveData object which can be used to observe this property.
      */
     public LiveData<Long> getUnstoredLocalEntriesCountLive(){
-        return mDb.getLocalEntryDao().countEntriesNotStoredOnServerLive();
+        return new CoalescingLiveData<>(mDb.getLocalEntryDao().countEntriesNotStoredOnServerLive(mStream), COUNT_LIVE_DATA_INTERVAL_MS);
     }
 
 
@@ -367,22 +388,23 @@ public class RemoteDb {
 
 
     /**
-     * @param deleteLocalEntriesAfterRemoteStoreSuccess If true, all entries that have been stored on the
-     *                                                  server will be removed the next time a call to
-     *                                                  {@link RemoteDb#sendToServer(boolean)} is
-     *                                                  successful.
+     * @param deleteLocalEntriesAfterRemoteStoreSuccess If true, entries will be removed from the local
+     *                                                  database as soon as the server has acknowledged
+     *                                                  that they have been stored. Entries that were
+     *                                                  stored before this was enabled can be removed
+     *                                                  with {@link RemoteDb#removeStoredEntries()}.
      */
     public void setDeleteLocalEntriesAfterRemoteStoreSuccess(boolean deleteLocalEntriesAfterRemoteStoreSuccess) {
-        mDeleteLocalEntriesAfterRemoteStoreSuccess = deleteLocalEntriesAfterRemoteStoreSuccess;
+        mEngine.setDeleteAfterStore(deleteLocalEntriesAfterRemoteStoreSuccess);
     }
 
     public boolean getDeleteLocalEntriesAfterRemoteStoreSuccess() {
-        return mDeleteLocalEntriesAfterRemoteStoreSuccess;
+        return mEngine.getDeleteAfterStore();
     }
 
 
     public Entry getRequestParams() {
-        return mRequestParams;
+        return mEngine.getRequestParams();
     }
 
 
@@ -395,20 +417,310 @@ public class RemoteDb {
      *                      server.
      */
     public void setRequestParams(Entry requestParams) {
-        mRequestParams = requestParams;
+        mEngine.setRequestParams(requestParams);
+    }
+
+
+    /**
+     * Entries added with {@link RemoteDb#addEntry(Entry)} are buffered in memory and written to the
+     * local database in batches, one transaction per batch. The buffer is shared by all streams in
+     * the environment, so this applies to all of them.
+     * @param maxBatchSize      A batch is written as soon as this many entries are buffered.
+     * @param maxDelayMillis    A batch is written at the latest this long after its first entry was
+     *                          added, even if it isn't full.
+     */
+    public void setIngestBatching(int maxBatchSize, long maxDelayMillis) {
+        mEnvironment.setIngestBatching(maxBatchSize, maxDelayMillis);
+    }
+
+
+    /**
+     * @param capacity      The maximum number of entries that can be buffered in memory before they
+     *                      are written to the local database.
+     * @param backpressure  What {@link RemoteDb#addEntry(Entry)} should do when the buffer is full.
+     *                      Note that {@link EntryIngestQueue.Backpressure#BLOCK} and
+     *                      {@link EntryIngestQueue.Backpressure#SPILL} may block the calling thread.
+     *                      Like the batching, this applies to all streams in the environment.
+     */
+    public void setIngestBackpressure(int capacity, EntryIngestQueue.Backpressure backpressure) {
+        mEnvironment.setIngestBackpressure(capacity, backpressure);
     }
 
 
     public int getSendToServerEntryChunk() {
-        return mSendToServerEntryChunkSize;
+        return mEngine.getSendToServerEntryChunk();
     }
 
 
     /**
      * Each HTTP request to the server will contain at most this many entries. Useful to prevent
      * trying to send a single giant JSON request with thousands of entries.
+     * <p>
+     * This disables adaptive chunk sizing, see {@link RemoteDb#setSendToServerEntryChunkSize(int, int)}.
      */
     public void setSendToServerEntryChunkSize(int entryCount) {
-        this.mSendToServerEntryChunkSize = entryCount;
+        mEngine.setSendToServerEntryChunkSize(entryCount);
+    }
+
+
+    /**
+     * Enables adaptive chunk sizing. Each HTTP request to the server will contain between
+     * minEntryCount and maxEntryCount entries, sized to fit a byte budget and adjusted based on the
+     * round trip time and failures of previous requests. See
+     * {@link RemoteDb#setAdaptiveChunkTargets(long, long)} for the targets that are used.
+     */
+    public void setSendToServerEntryChunkSize(int minEntryCount, int maxEntryCount) {
+        mEngine.setSendToServerEntryChunkSize(minEntryCount, maxEntryCount);
+    }
+
+
+    /**
+     * Sets the targets used by adaptive chunk sizing.
+     * @param targetBytes               The preferred size of a request body, in bytes (after compression).
+     * @param targetRoundTripMillis     Requests that take longer than this to get a response make
+     *                                  the following chunks smaller.
+     */
+    public void setAdaptiveChunkTargets(long targetBytes, long targetRoundTripMillis) {
+        mEngine.setAdaptiveChunkTargets(targetBytes, targetRoundTripMillis);
+    }
+
+
+    public int getPriorityChunkBudget(int priority) {
+        return mEngine.getPriorityChunkBudget(priority);
+    }
+
+
+    /**
+     * Sets how many entries of a priority each chunk may contain at most. By default there is no
+     * limit besides the chunk size, and each chunk is filled with entries of the highest priority
+     * first. Giving the higher priorities a budget below the chunk size leaves room for entries of
+     * lower priorities in every chunk, so that a steady flow of important entries can't hold back
+     * the rest forever.
+     */
+    public void setPriorityChunkBudget(int priority, int maxEntries) {
+        mEngine.setPriorityChunkBudget(priority, maxEntries);
+    }
+
+
+    public int getMaxInFlightChunks() {
+        return mEngine.getMaxInFlightChunks();
+    }
+
+
+    /**
+     * Sets how many chunks may be sent to the server without having been answered yet. A new chunk
+     * is only read from the local database and serialized when a slot in this window is free, so
+     * this also limits how much memory a large backlog can use while it is being sent.
+     * <p>
+     * In a shared environment, the streams also share the environment's limit, see
+     * {@link RemoteDbEnvironment#setMaxInFlightChunks(int)}.
+     */
+    public void setMaxInFlightChunks(int maxInFlightChunks) {
+        mEngine.setMaxInFlightChunks(maxInFlightChunks);
+        // With an environment of its own, this is the only stream competing for the slots
+        if( mOwnsEnvironment )
+            mEnvironment.setMaxInFlightChunks(mEngine.getMaxInFlightChunks());
+    }
+
+
+    public int getUploadPriority() {
+        return mEngine.getUploadPriority();
+    }
+
+
+    /**
+     * @param priority  This stream's share of the upload requests in its environment, relative to
+     *                  the other streams. While several streams have entries to send, a stream with
+     *                  priority 2 gets about twice as many requests as one with priority 1.
+     */
+    public void setUploadPriority(int priority) {
+        mEngine.setUploadPriority(priority);
+    }
+
+
+    public String getStream() {
+        return mStream;
+    }
+
+
+    public RemoteDbEnvironment getEnvironment() {
+        return mEnvironment;
+    }
+
+
+    /**
+     * @return The engine that uploads this stream's entries.
+     */
+    public UploadEngine getUploadEngine() {
+        return mEngine;
+    }
+
+
+    /**
+     * @return The metrics of the environment, which are shared by all its streams.
+     * @see RemoteDbEnvironment#getMetrics()
+     */
+    public RemoteDbMetrics getMetrics() {
+        return mEnvironment.getMetrics();
+    }
+
+
+    /**
+     * Returns how long the oldest entry of this stream that hasn't been stored on the server has been
+     * waiting, based on when it was written to the local database. Entries that are still buffered
+     * in memory aren't counted.
+     * @return The age in milliseconds, or 0 if there are no such entries.
+     */
+    @WorkerThread
+    public long getBacklogAgeMillis() {
+        long oldestCreatedAt = Long.MAX_VALUE;
+        for (int priority = PRIORITY_LOW; priority <= PRIORITY_HIGH; priority++) {
+            Long createdAt = mDb.getLocalEntryDao().getOldestUnstoredCreatedAt(mStream, priority);
+            if( createdAt != null )
+                oldestCreatedAt = Math.min(oldestCreatedAt, createdAt);
+        }
+        return oldestCreatedAt == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldestCreatedAt);
+    }
+
+
+    /**
+     * Starts sending entries to the server automatically, with the default {@link AutoFlushPolicy}:
+     * when 500 entries or 256 KiB have been added, or 5 minutes after the first entry was added, but
+     * less often on metered networks and on battery, and never without a network.
+     */
+    @MainThread
+    public void enableAutoFlush() {
+        enableAutoFlush(new AutoFlushPolicy());
+    }
+
+
+    /**
+     * Starts sending entries to the server automatically, whenever the policy says an upload is
+     * due. The network and battery state are fed to the policy from system broadcasts, so the app
+     * should have the ACCESS_NETWORK_STATE permission (which the library's manifest requests).
+     * Entries that are already in the local database count towards the first upload.
+     */
+    @MainThread
+    public void enableAutoFlush(AutoFlushPolicy policy) {
+        disableAutoFlush();
+
+        final AutoFlushScheduler autoFlush = new AutoFlushScheduler(mContext, this, policy);
+        mAutoFlush = autoFlush;
+        autoFlush.start();
+
+        mExecutors.submitUpload(new Runnable() {
+            @Override
+            public void run() {
+                long unstoredEntriesCount = mDb.getLocalEntryDao().countEntriesNotStoredOnServer(mStream);
+                if( unstoredEntriesCount > 0 )
+                    autoFlush.onEntriesAdded((int) Math.min(Integer.MAX_VALUE, unstoredEntriesCount), 0);
+            }
+        });
+    }
+
+
+    /**
+     * Stops sending entries automatically, see {@link RemoteDb#enableAutoFlush(AutoFlushPolicy)}.
+     */
+    @MainThread
+    public void disableAutoFlush() {
+        AutoFlushScheduler autoFlush = mAutoFlush;
+        mAutoFlush = null;
+        if( autoFlush != null )
+            autoFlush.stop();
+    }
+
+
+    /**
+     * @return The policy used for automatic uploads, or null if they aren't enabled.
+     */
+    public AutoFlushPolicy getAutoFlushPolicy() {
+        AutoFlushScheduler autoFlush = mAutoFlush;
+        return autoFlush != null ? autoFlush.getPolicy() : null;
+    }
+
+
+    public boolean getPreserveUploadOrder() {
+        return mEngine.getPreserveUploadOrder();
+    }
+
+
+    /**
+     * @param preserveUploadOrder If true, chunks are sent one at a time, so the server receives the
+     *                            entries in the order they were added (by their "_s" sequence
+     *                            number). This overrides {@link RemoteDb#setMaxInFlightChunks(int)}.
+     */
+    public void setPreserveUploadOrder(boolean preserveUploadOrder) {
+        mEngine.setPreserveUploadOrder(preserveUploadOrder);
+    }
+
+
+    /**
+     * Failed chunks are retried automatically, with exponential backoff and jitter. A Retry-After
+     * header sent by the server is honored. Chunks rejected with a 4xx HTTP code (other than 408 and
+     * 429) are not retried, since the server would reject them again.
+     * <p>
+     * A chunk rejected with 400, 413 or 422 is quarantined: its entries are kept, but aren't sent
+     * again (not even after a restart) until {@link RemoteDb#retryQuarantinedEntries()} is called,
+     * so that they don't hold up the rest of the backlog. Any other chunk that is given up on, after
+     * another 4xx code or after maxAttempts failures, is sent again on the next call to
+     * {@link RemoteDb#sendToServer(boolean)}.
+     * @param baseDelayMillis   The delay before the first retry. Each following retry doubles it.
+     * @param maxDelayMillis    The longest delay between two attempts.
+     * @param maxAttempts       The number of failed attempts after which a chunk is given up on.
+     *                          Use 0 to disable automatic retries.
+     */
+    public void setRetryBackoff(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+        mEngine.setRetryBackoff(baseDelayMillis, maxDelayMillis, maxAttempts);
+    }
+
+
+    /**
+     * Sets the codec used to store new entries in the local database, for example a
+     * {@link BinaryEntryCodec} which gives a smaller database and faster decoding than the default
+     * JSON format. Entries stored with the default JSON format can always be read, regardless of
+     * which codec is set. Since the codec is used by the database type converters, it applies to
+     * all RemoteDb instances in the process, and should be set before any entries are added.
+     */
+    public static void setEntryCodec(EntryCodec codec) {
+        Converters.setEntryCodec(codec);
+    }
+
+
+    public ContentEncoding getUploadCompression() {
+        return mEngine.getUploadCompression();
+    }
+
+
+    /**
+     * Compresses the body of each HTTP request to the server with the supplied encoding, and sends
+     * the matching Content-Encoding header. If the server rejects a compressed request before it has
+     * accepted any, RemoteDb falls back to sending uncompressed requests.
+     */
+    public void setUploadCompression(ContentEncoding encoding) {
+        mEngine.setUploadCompression(encoding);
+    }
+
+
+    /**
+     * Asks the server to acknowledge each chunk by sequence number instead of listing the UUID of
+     * every stored entry, see {@link UploadEngine#setSequenceAcknowledgements(boolean)}. Only
+     * enable it if the server supports it.
+     */
+    public void setSequenceAcknowledgements(boolean enabled) {
+        mEngine.setSequenceAcknowledgements(enabled);
+    }
+
+
+    public boolean getSequenceAcknowledgements() {
+        return mEngine.getSequenceAcknowledgements();
+    }
+
+
+    /**
+     * Sets a listener that receives the raw and compressed size of each request sent to the server.
+     */
+    public void setUploadStatsListener(UploadStatsListener listener) {
+        mEngine.setUploadStatsListener(listener);
     }
 }
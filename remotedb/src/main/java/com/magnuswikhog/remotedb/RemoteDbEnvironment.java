@@ -0,0 +1,221 @@
+package com.magnuswikhog.remotedb;
+
+import android.content.Context;
+import android.support.annotation.WorkerThread;
+
+import com.magnuswikhog.remotedb.database.LocalDatabase;
+import com.magnuswikhog.remotedb.database.LocalDatabaseConfig;
+import com.magnuswikhog.remotedb.database.RoomEntryStore;
+import com.magnuswikhog.remotedb.database.StorageQuota;
+import com.magnuswikhog.remotedb.engine.EngineEnvironment;
+import com.magnuswikhog.remotedb.metrics.RemoteDbMetrics;
+import com.magnuswikhog.remotedb.upload.UploadTransport;
+import com.magnuswikhog.remotedb.upload.VolleyTransport;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+
+/**
+ * Everything that several streams of entries can share: a single local database file, its ingest
+ * queue and writer thread, the upload threads, the transport, and a scheduler which divides the
+ * in-flight upload requests fairly between the streams.
+ * <p>
+ * Instead of one RemoteDb (and one database) per type of entry, create one environment and a
+ * RemoteDb for each stream in it:
+ * <pre>
+ * RemoteDbEnvironment environment = new RemoteDbEnvironment(context, "remotedb.db");
+ * RemoteDb events = new RemoteDb(context, environment, "events", eventsUrl, password, null, true);
+ * RemoteDb logs = new RemoteDb(context, environment, "logs", logsUrl, password, null, true);
+ * logs.setUploadPriority(1);
+ * events.setUploadPriority(4);
+ * </pre>
+ * Each stream has its own entries, server URL, request params and upload settings, but there is
+ * only one open database, one WAL file and one set of threads.
+ * <p>
+ * The platform independent part of the environment is an {@link EngineEnvironment} over the Room
+ * database, which this class adds the database file, its storage limits and Logcat to.
+ */
+public class RemoteDbEnvironment {
+    private final LocalDatabase mDb;
+    private final RemoteDbExecutors mExecutors;
+    private final EngineEnvironment mEngineEnvironment;
+    private boolean mAutoVacuumEnabled;
+
+
+    /**
+     * Creates an environment with its own background threads, which sends requests with the
+     * default, Volley based, transport.
+     * @param filename  The filename of the local database.
+     */
+    public RemoteDbEnvironment(Context context, String filename) {
+        this(context, filename, RemoteDbExecutors.createDefault(), VolleyTransport.getDefault(context));
+    }
+
+
+    /**
+     * @param filename  The filename of the local database.
+     * @param executors The executors to run database writes and uploads on.
+     * @param transport The transport to send requests with.
+     */
+    public RemoteDbEnvironment(Context context, String filename, RemoteDbExecutors executors, UploadTransport transport) {
+        this(context, filename, LocalDatabaseConfig.createDefault(), executors, transport);
+    }
+
+
+    /**
+     * @param filename  The filename of the local database.
+     * @param config    How to open the local database, e.g. its journal mode and durability.
+     * @param executors The executors to run database writes and uploads on.
+     * @param transport The transport to send requests with.
+     */
+    public RemoteDbEnvironment(Context context, String filename, LocalDatabaseConfig config, RemoteDbExecutors executors, UploadTransport transport) {
+        mExecutors = executors;
+        mDb = LocalDatabase.create(context, filename, config);
+        AndroidEngineLogger logger = new AndroidEngineLogger();
+        mDb.getStorageQuota().setLogger(logger);
+        mEngineEnvironment = new EngineEnvironment(new RoomEntryStore(mDb), executors, transport, logger);
+    }
+
+
+    /**
+     * Sets how many upload requests may be sent but not yet answered, in total for all streams.
+     * Each stream can be limited further with {@link RemoteDb#setMaxInFlightChunks(int)}.
+     */
+    public void setMaxInFlightChunks(int maxInFlightChunks) {
+        mEngineEnvironment.setMaxInFlightChunks(maxInFlightChunks);
+    }
+
+
+    public int getMaxInFlightChunks() {
+        return mEngineEnvironment.getMaxInFlightChunks();
+    }
+
+
+    /**
+     * Entries added to any stream are buffered in memory and written to the local database in
+     * batches, one transaction per batch.
+     * @see EntryIngestQueue#setBatching(int, long)
+     */
+    public void setIngestBatching(int maxBatchSize, long maxDelayMillis) {
+        mEngineEnvironment.setIngestBatching(maxBatchSize, maxDelayMillis);
+    }
+
+
+    /**
+     * @see EntryIngestQueue#setBackpressure(int, EntryIngestQueue.Backpressure)
+     */
+    public void setIngestBackpressure(int capacity, EntryIngestQueue.Backpressure backpressure) {
+        mEngineEnvironment.setIngestBackpressure(capacity, backpressure);
+    }
+
+
+    /**
+     * Limits the size of the local database, which otherwise grows for as long as the server can't
+     * be reached (or forever, if stored entries are kept). The limits apply to all streams together,
+     * and are checked right away and then as entries are written, see {@link StorageQuota}.
+     * @param maxBytes          The max size of the database file, or 0 for no limit.
+     * @param maxEntries        The max number of entries, or 0 for no limit.
+     * @param evictionPolicy    Which unstored entries to evict first, once there are no stored
+     *                          entries left to evict.
+     */
+    public void setStorageLimits(long maxBytes, long maxEntries, StorageQuota.EvictionPolicy evictionPolicy) {
+        StorageQuota quota = mDb.getStorageQuota();
+        quota.setEvictionPolicy(evictionPolicy);
+        quota.setLimits(maxBytes, maxEntries);
+        enforceStorageLimits();
+    }
+
+
+    /**
+     * @param maxAgeMillis  Entries are removed this long after they were added, whether they have
+     *                      been stored on the server or not. 0 keeps entries until they are removed
+     *                      by other means.
+     */
+    public void setMaxEntryAge(long maxAgeMillis) {
+        mDb.getStorageQuota().setMaxAge(maxAgeMillis);
+        enforceStorageLimits();
+    }
+
+
+    /**
+     * Checks the storage limits and the max entry age, and evicts entries as needed. The first time,
+     * a database created by an older version is also switched to incremental auto-vacuum (see
+     * {@link StorageQuota#enableIncrementalAutoVacuum()}), in a write of its own, so that the space
+     * of evicted entries is returned to the file system.
+     * @return A future which completes when the check is done.
+     */
+    public synchronized Future<Void> enforceStorageLimits() {
+        if( !mAutoVacuumEnabled ) {
+            mAutoVacuumEnabled = true;
+            mExecutors.submitWrite(new Runnable() {
+                @Override
+                public void run() {
+                    mDb.getStorageQuota().enableIncrementalAutoVacuum();
+                }
+            });
+        }
+        return mExecutors.submitWrite(new Runnable() {
+            @Override
+            public void run() {
+                mDb.getStorageQuota().enforce();
+            }
+        });
+    }
+
+
+    /**
+     * @return The storage limits, which also count the entries that have been evicted.
+     */
+    public StorageQuota getStorageQuota() {
+        return mDb.getStorageQuota();
+    }
+
+
+    /**
+     * @return The metrics of the ingest and upload pipeline of all streams. They are disabled until
+     * {@link RemoteDbMetrics#setEnabled(boolean)} is called.
+     */
+    public RemoteDbMetrics getMetrics() {
+        return mEngineEnvironment.getMetrics();
+    }
+
+
+    /**
+     * @return The platform independent part of the environment, which the streams' upload engines
+     * run in.
+     */
+    public EngineEnvironment getEngineEnvironment() {
+        return mEngineEnvironment;
+    }
+
+
+    /**
+     * Writes the buffered entries, stops the environment's threads (see
+     * {@link EngineEnvironment#close()}) and closes the local database once the pending writes have
+     * run. The streams of the environment can't be used afterwards.
+     */
+    @WorkerThread
+    public void close() {
+        try {
+            mEngineEnvironment.close().get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        mDb.close();
+    }
+
+
+    LocalDatabase getDatabase() {
+        return mDb;
+    }
+
+
+    RemoteDbExecutors getExecutors() {
+        return mExecutors;
+    }
+}
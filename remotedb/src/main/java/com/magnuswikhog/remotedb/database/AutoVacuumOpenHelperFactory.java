@@ -0,0 +1,57 @@
+package com.magnuswikhog.remotedb.database;
+
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.arch.persistence.db.SupportSQLiteOpenHelper;
+import android.arch.persistence.db.framework.FrameworkSQLiteOpenHelperFactory;
+
+
+/**
+ * Opens the database like Room's default factory does, but turns on incremental auto-vacuum before
+ * the tables of a new database are created. That is the only time it can be turned on without
+ * rebuilding the whole file with VACUUM, see {@link StorageQuota#enableIncrementalAutoVacuum()}.
+ * For an existing database the pragma has no effect.
+ */
+class AutoVacuumOpenHelperFactory implements SupportSQLiteOpenHelper.Factory {
+    private final SupportSQLiteOpenHelper.Factory mDelegate = new FrameworkSQLiteOpenHelperFactory();
+
+
+    @Override
+    public SupportSQLiteOpenHelper create(SupportSQLiteOpenHelper.Configuration configuration) {
+        final SupportSQLiteOpenHelper.Callback callback = configuration.callback;
+        return mDelegate.create(SupportSQLiteOpenHelper.Configuration.builder(configuration.context)
+                .name(configuration.name)
+                .callback(new SupportSQLiteOpenHelper.Callback(callback.version) {
+                    @Override
+                    public void onConfigure(SupportSQLiteDatabase db) {
+                        LocalDatabase.execPragma(db, "PRAGMA auto_vacuum = INCREMENTAL");
+                        callback.onConfigure(db);
+                    }
+
+                    @Override
+                    public void onCreate(SupportSQLiteDatabase db) {
+                        callback.onCreate(db);
+                    }
+
+                    @Override
+                    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion, int newVersion) {
+                        callback.onUpgrade(db, oldVersion, newVersion);
+                    }
+
+                    @Override
+                    public void onDowngrade(SupportSQLiteDatabase db, int oldVersion, int newVersion) {
+                        callback.onDowngrade(db, oldVersion, newVersion);
+                    }
+
+                    @Override
+                    public void onOpen(SupportSQLiteDatabase db) {
+                        callback.onOpen(db);
+                    }
+
+                    @Override
+                    public void onCorruption(SupportSQLiteDatabase db) {
+                        callback.onCorruption(db);
+                    }
+                })
+                .build());
+    }
+}
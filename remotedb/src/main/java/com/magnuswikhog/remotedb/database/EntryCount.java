@@ -0,0 +1,68 @@
+package com.magnuswikhog.remotedb.database;
+
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.arch.persistence.room.Entity;
+import android.arch.persistence.room.PrimaryKey;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+
+
+/**
+ * The number of entries in a stream, kept up to date by triggers on the entry table, so that the
+ * counts can be read (and observed) without counting the entries.
+ */
+@Entity(tableName = "remotedb_entrycount")
+public class EntryCount {
+    private static final String TRIGGER_INSERT = "remotedb_entrycount_insert";
+    private static final String TRIGGER_DELETE = "remotedb_entrycount_delete";
+    private static final String TRIGGER_UPDATE = "remotedb_entrycount_update";
+
+    @PrimaryKey
+    @NonNull
+    public String stream = "";
+
+    public long allCount;
+
+    public long unstoredCount;
+
+
+    /**
+     * Creates the triggers that maintain the counts, and counts the existing entries, unless the
+     * triggers already exist. Room doesn't know about triggers, so this is done every time the
+     * database is opened, which also covers newly created and destructively migrated databases.
+     */
+    static void installTriggers(SupportSQLiteDatabase db) {
+        Cursor cursor = db.query("SELECT COUNT(*) FROM sqlite_master WHERE type='trigger' AND name IN (?, ?, ?)",
+                new Object[]{TRIGGER_INSERT, TRIGGER_DELETE, TRIGGER_UPDATE});
+        try {
+            if( cursor.moveToFirst() && cursor.getInt(0) == 3 )
+                return;
+        }
+        finally {
+            cursor.close();
+        }
+
+        db.beginTransaction();
+        try {
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TRIGGER_INSERT + " AFTER INSERT ON remotedb_localentry BEGIN "
+                    + "INSERT OR IGNORE INTO remotedb_entrycount (stream, allCount, unstoredCount) VALUES (NEW.stream, 0, 0); "
+                    + "UPDATE remotedb_entrycount SET allCount=allCount+1, unstoredCount=unstoredCount+(NEW.storedOnServer=0) WHERE stream=NEW.stream; "
+                    + "END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TRIGGER_DELETE + " AFTER DELETE ON remotedb_localentry BEGIN "
+                    + "UPDATE remotedb_entrycount SET allCount=allCount-1, unstoredCount=unstoredCount-(OLD.storedOnServer=0) WHERE stream=OLD.stream; "
+                    + "END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TRIGGER_UPDATE + " AFTER UPDATE OF storedOnServer ON remotedb_localentry "
+                    + "WHEN OLD.storedOnServer!=NEW.storedOnServer BEGIN "
+                    + "UPDATE remotedb_entrycount SET unstoredCount=unstoredCount+(NEW.storedOnServer=0)-(OLD.storedOnServer=0) WHERE stream=NEW.stream; "
+                    + "END");
+
+            db.execSQL("DELETE FROM remotedb_entrycount");
+            db.execSQL("INSERT INTO remotedb_entrycount (stream, allCount, unstoredCount) "
+                    + "SELECT stream, COUNT(*), SUM(storedOnServer=0) FROM remotedb_localentry GROUP BY stream");
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -1,35 +1,266 @@
 package com.magnuswikhog.remotedb.database;
 
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.arch.persistence.db.SupportSQLiteStatement;
 import android.arch.persistence.room.Database;
 import android.arch.persistence.room.Room;
 import android.arch.persistence.room.RoomDatabase;
 import android.arch.persistence.room.TypeConverters;
+import android.arch.persistence.room.migration.Migration;
 import android.content.Context;
+import android.database.Cursor;
 import android.support.annotation.WorkerThread;
 
+import com.magnuswikhog.remotedb.RemoteDb;
 
-@Database(entities = {LocalEntry.class}, exportSchema = false, version = 2)
+
+@Database(entities = {LocalEntry.class, EntryCount.class}, version = 9)
 @TypeConverters({Converters.class})
 public abstract class LocalDatabase extends RoomDatabase {
 
 
+    /**
+     * Adds a unique index on uuid (used when acknowledging and deleting entries) and an index on
+     * (storedOnServer, id) which covers the unstored entries cursor and the unstored count.
+     */
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            // A unique index can't be created if there are duplicates, so keep the first copy of any duplicated UUID
+            db.execSQL("DELETE FROM remotedb_localentry WHERE uuid IS NOT NULL AND id NOT IN "
+                    + "(SELECT MIN(id) FROM remotedb_localentry WHERE uuid IS NOT NULL GROUP BY uuid)");
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS index_remotedb_localentry_uuid ON remotedb_localentry (uuid)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_remotedb_localentry_storedOnServer_id ON remotedb_localentry (storedOnServer, id)");
+        }
+    };
+
+
+    /**
+     * Adds the leaseId column, which marks entries that are part of a chunk being uploaded.
+     */
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE remotedb_localentry ADD COLUMN leaseId INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_remotedb_localentry_leaseId ON remotedb_localentry (leaseId)");
+        }
+    };
+
+
+    /**
+     * Changes the entry column from TEXT to BLOB, so that entries can be stored with a binary
+     * {@link com.magnuswikhog.remotedb.codec.EntryCodec}. SQLite can't change the type of a column, so
+     * the table is rebuilt. Existing entries are copied as they are, and are still read as JSON.
+     */
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE remotedb_localentry_new (id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, uuid TEXT, entry BLOB, storedOnServer INTEGER NOT NULL, leaseId INTEGER NOT NULL)");
+            db.execSQL("INSERT INTO remotedb_localentry_new (id, uuid, entry, storedOnServer, leaseId) SELECT id, uuid, entry, storedOnServer, leaseId FROM remotedb_localentry");
+
+            // Keep the id sequence, since ids are sent to the server as sequence numbers
+            db.execSQL("DELETE FROM sqlite_sequence WHERE name='remotedb_localentry_new'");
+            db.execSQL("UPDATE sqlite_sequence SET name='remotedb_localentry_new' WHERE name='remotedb_localentry'");
+
+            db.execSQL("DROP TABLE remotedb_localentry");
+            db.execSQL("ALTER TABLE remotedb_localentry_new RENAME TO remotedb_localentry");
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS index_remotedb_localentry_uuid ON remotedb_localentry (uuid)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_remotedb_localentry_storedOnServer_id ON remotedb_localentry (storedOnServer, id)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_remotedb_localentry_leaseId ON remotedb_localentry (leaseId)");
+        }
+    };
+
+
+    /**
+     * Adds the stream column, so that several streams of entries can share a database, and replaces
+     * the (storedOnServer, id) index with one that starts with the stream.
+     */
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE remotedb_localentry ADD COLUMN stream TEXT NOT NULL DEFAULT ''");
+            db.execSQL("DROP INDEX IF EXISTS index_remotedb_localentry_storedOnServer_id");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_remotedb_localentry_stream_storedOnServer_id ON remotedb_localentry (stream, storedOnServer, id)");
+        }
+    };
+
+
+    /**
+     * Adds the priority column. Existing entries get normal priority, and the index used to find
+     * unstored entries gets the priority between the stored flag and the id, so each priority can
+     * be walked in id order.
+     */
+    static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE remotedb_localentry ADD COLUMN priority INTEGER NOT NULL DEFAULT " + RemoteDb.PRIORITY_NORMAL);
+            db.execSQL("DROP INDEX IF EXISTS index_remotedb_localentry_stream_storedOnServer_id");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_remotedb_localentry_stream_storedOnServer_priority_id ON remotedb_localentry (stream, storedOnServer, priority, id)");
+        }
+    };
+
+
+    /**
+     * Adds the createdAt column. The time existing entries were added isn't known, so they get the
+     * time of the migration, which keeps them from all expiring at once.
+     */
+    static final Migration MIGRATION_7_8 = new Migration(7, 8) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE remotedb_localentry ADD COLUMN createdAt INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("UPDATE remotedb_localentry SET createdAt=?", new Object[]{System.currentTimeMillis()});
+        }
+    };
+
+
+    /**
+     * Adds the table of entry counts per stream. It's filled, and the triggers that maintain it are
+     * created, when the database is opened, see {@link EntryCount#installTriggers(SupportSQLiteDatabase)}.
+     * Also adds the indexes that the {@link StorageQuota} looks up the oldest entries of all streams
+     * with, which the indexes starting with the stream can't serve.
+     */
+    static final Migration MIGRATION_8_9 = new Migration(8, 9) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS remotedb_entrycount (stream TEXT NOT NULL, allCount INTEGER NOT NULL, unstoredCount INTEGER NOT NULL, PRIMARY KEY(stream))");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_remotedb_localentry_storedOnServer_id ON remotedb_localentry (storedOnServer, id)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_remotedb_localentry_createdAt ON remotedb_localentry (createdAt)");
+        }
+    };
+
+
+    private final StorageQuota mStorageQuota = new StorageQuota(this);
+
+
     @WorkerThread
     public static synchronized LocalDatabase create(Context context, String filename) {
+        return create(context, filename, LocalDatabaseConfig.createDefault());
+    }
+
+
+    @WorkerThread
+    public static synchronized LocalDatabase create(Context context, String filename, final LocalDatabaseConfig config) {
         return Room.databaseBuilder(
                 context.getApplicationContext(),
                 LocalDatabase.class,
                 filename)
-                .fallbackToDestructiveMigration()
+                .addMigrations(MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7, MIGRATION_7_8, MIGRATION_8_9)
+                // Version 1 predates the released schema, there is nothing to migrate from
+                .fallbackToDestructiveMigrationFrom(1)
+                .setJournalMode(config.getJournalMode())
+                .openHelperFactory(new AutoVacuumOpenHelperFactory())
+                .addCallback(new Callback() {
+                    @Override
+                    public void onOpen(SupportSQLiteDatabase db) {
+                        applyPragmas(db, config);
+                        EntryCount.installTriggers(db);
+                    }
+                })
                 .build();
     }
 
 
+    /**
+     * Creates a database that only lives in memory, for tests and benchmarks.
+     */
+    static LocalDatabase createInMemory(Context context) {
+        return Room.inMemoryDatabaseBuilder(context.getApplicationContext(), LocalDatabase.class)
+                .addCallback(new Callback() {
+                    @Override
+                    public void onOpen(SupportSQLiteDatabase db) {
+                        EntryCount.installTriggers(db);
+                    }
+                })
+                .build();
+    }
+
+
+    /**
+     * Applies the connection settings of the config. These only apply to the connection that Room
+     * opens first, which is the one that all writes go through.
+     */
+    private static void applyPragmas(SupportSQLiteDatabase db, LocalDatabaseConfig config) {
+        execPragma(db, "PRAGMA synchronous = " + config.getDurability().mSynchronous);
+        if( config.getWalAutoCheckpointPages() >= 0 )
+            execPragma(db, "PRAGMA wal_autocheckpoint = " + config.getWalAutoCheckpointPages());
+        if( config.getCacheSizeKiB() > 0 )
+            execPragma(db, "PRAGMA cache_size = -" + config.getCacheSizeKiB());
+    }
+
+
+    /**
+     * Runs a pragma through a query, since some pragmas return a row even when setting a value,
+     * which execSQL() doesn't allow.
+     */
+    static void execPragma(SupportSQLiteDatabase db, String pragma) {
+        Cursor cursor = db.query(pragma);
+        try {
+            cursor.moveToFirst();
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+
+    /**
+     * Writes the write-ahead log back to the database file and truncates it. Only needed when
+     * automatic checkpoints have been turned off, see
+     * {@link LocalDatabaseConfig#setWalAutoCheckpointPages(int)}. Does nothing if the database
+     * doesn't use write-ahead logging.
+     */
+    @WorkerThread
+    public void checkpoint() {
+        execPragma(getOpenHelper().getWritableDatabase(), "PRAGMA wal_checkpoint(TRUNCATE)");
+    }
+
+
 
     public abstract LocalEntryDao getLocalEntryDao();
 
 
+    /**
+     * Inserts entries that have already been encoded, in a single transaction. Room can only insert
+     * entities through a DAO, which would decode and re-encode the entries, so this uses a plain
+     * insert statement instead. Afterwards, entries may be evicted to stay within the
+     * {@link StorageQuota}. Only a failure of the insert itself is thrown, once the transaction
+     * has been committed the entries are in the database.
+     */
+    @WorkerThread
+    public void insertRawEntries(RawLocalEntry... entries) {
+        beginTransaction();
+        try {
+            SupportSQLiteStatement insert = compileStatement(
+                    "INSERT INTO remotedb_localentry (stream, priority, uuid, entry, createdAt, storedOnServer, leaseId) VALUES (?, ?, ?, ?, ?, 0, 0)");
+            long createdAt = System.currentTimeMillis();
+            for (RawLocalEntry entry : entries) {
+                insert.bindString(1, entry.stream != null ? entry.stream : "");
+                insert.bindLong(2, entry.priority);
+                insert.bindString(3, entry.uuid);
+                insert.bindBlob(4, entry.entry);
+                insert.bindLong(5, createdAt);
+                entry.id = insert.executeInsert();
+            }
+            setTransactionSuccessful();
+        }
+        finally {
+            endTransaction();
+        }
+
+        mStorageQuota.onInserted(entries);
+    }
+
+
+    /**
+     * The limits on the size of the database, which are checked as entries are inserted.
+     */
+    public StorageQuota getStorageQuota() {
+        return mStorageQuota;
+    }
+
+
 
 
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,119 @@
+package com.magnuswikhog.remotedb.database;
+
+import android.arch.persistence.room.RoomDatabase;
+
+
+/**
+ * How the local database file is opened: journal mode, durability, checkpoints and cache size.
+ * <p>
+ * The defaults suit RemoteDb's workload, where batches of entries are inserted while the upload
+ * reads chunks at the same time: write-ahead logging where the device supports it, so readers and
+ * the writer don't block each other, with {@link Durability#NORMAL} syncing.
+ */
+public class LocalDatabaseConfig {
+
+    public enum Durability {
+        /**
+         * Syncs on every commit (synchronous=FULL). Committed entries survive a power loss, at the
+         * cost of a sync per batch.
+         */
+        STRICT("FULL"),
+        /**
+         * Syncs at checkpoints only (synchronous=NORMAL). With write-ahead logging, committed
+         * entries survive an app crash, but the last batches may be lost on a power loss.
+         */
+        NORMAL("NORMAL"),
+        /**
+         * Never syncs (synchronous=OFF). Fastest, but a power loss or OS crash may lose entries or
+         * corrupt the database.
+         */
+        RELAXED("OFF");
+
+        final String mSynchronous;
+
+        Durability(String synchronous) {
+            mSynchronous = synchronous;
+        }
+    }
+
+
+    private RoomDatabase.JournalMode mJournalMode = RoomDatabase.JournalMode.AUTOMATIC;
+    private Durability mDurability = Durability.NORMAL;
+    private int mWalAutoCheckpointPages = -1;
+    private int mCacheSizeKiB;
+
+
+    /**
+     * @return The defaults: the journal mode Room picks for the device (write-ahead logging unless
+     * it's a low RAM device or older than Android 4.1), {@link Durability#NORMAL}, and SQLite's own
+     * checkpoint and cache settings.
+     */
+    public static LocalDatabaseConfig createDefault() {
+        return new LocalDatabaseConfig();
+    }
+
+
+    /**
+     * Note that {@link RoomDatabase.JournalMode#WRITE_AHEAD_LOGGING} requires Android 4.1, use
+     * {@link RoomDatabase.JournalMode#AUTOMATIC} unless the device is known to support it.
+     */
+    public LocalDatabaseConfig setJournalMode(RoomDatabase.JournalMode journalMode) {
+        mJournalMode = journalMode;
+        return this;
+    }
+
+
+    public RoomDatabase.JournalMode getJournalMode() {
+        return mJournalMode;
+    }
+
+
+    public LocalDatabaseConfig setDurability(Durability durability) {
+        mDurability = durability;
+        return this;
+    }
+
+
+    public Durability getDurability() {
+        return mDurability;
+    }
+
+
+    /**
+     * With write-ahead logging, sets how large (in pages) the log may grow before it is written back
+     * to the database file. A larger value makes bursts of inserts cheaper but the log file larger.
+     * 0 turns automatic checkpoints off, in which case {@link LocalDatabase#checkpoint()} must be
+     * called now and then. A negative value keeps SQLite's default of 1000 pages.
+     */
+    public LocalDatabaseConfig setWalAutoCheckpointPages(int pages) {
+        mWalAutoCheckpointPages = pages;
+        return this;
+    }
+
+
+    public int getWalAutoCheckpointPages() {
+        return mWalAutoCheckpointPages;
+    }
+
+
+    /**
+     * Sets the page cache size of the connection that writes to the database, in KiB. 0 keeps
+     * SQLite's default.
+     */
+    public LocalDatabaseConfig setCacheSizeKiB(int cacheSizeKiB) {
+        mCacheSizeKiB = Math.max(0, cacheSizeKiB);
+        return this;
+    }
+
+
+    public int getCacheSizeKiB() {
+        return mCacheSizeKiB;
+    }
+
+
+    @Override
+    public String toString() {
+        return "journalMode=" + mJournalMode + " durability=" + mDurability
+                + " walAutoCheckpointPages=" + mWalAutoCheckpointPages + " cacheSizeKiB=" + mCacheSizeKiB;
+    }
+}
@@ -2,13 +2,23 @@ package com.magnuswikhog.remotedb.database;
 
 import android.arch.persistence.room.Entity;
 import android.arch.persistence.room.Ignore;
+import android.arch.persistence.room.Index;
 import android.arch.persistence.room.PrimaryKey;
+import android.support.annotation.NonNull;
 
 import com.magnuswikhog.remotedb.Entry;
+import com.magnuswikhog.remotedb.RemoteDb;
 
 import org.json.JSONObject;
 
-@Entity(tableName = "remotedb_localentry")
+@Entity(tableName = "remotedb_localentry",
+        indices = {
+                @Index(value = "uuid", unique = true),
+                @Index(value = {"stream", "storedOnServer", "priority", "id"}),
+                @Index(value = "leaseId"),
+                @Index(value = {"storedOnServer", "id"}),
+                @Index(value = "createdAt")
+        })
 public class LocalEntry {
 
     /**
@@ -17,6 +27,19 @@ public class LocalEntry {
     @PrimaryKey(autoGenerate = true)
     public long id;
 
+    /**
+     * The name of the stream the entry belongs to, see {@link com.magnuswikhog.remotedb.RemoteDbEnvironment}.
+     * Entries added through a RemoteDb with its own database file belong to the default stream "".
+     */
+    @NonNull
+    public String stream = "";
+
+    /**
+     * Unstored entries with a higher priority are sent before those with a lower one, see
+     * {@link RemoteDb#addEntry(Entry, int)}.
+     */
+    public int priority = RemoteDb.PRIORITY_NORMAL;
+
     /**
      * Unique UUID for this entry, ensures that the same entry is never stored on the server twice.
      */
@@ -27,11 +50,24 @@ public class LocalEntry {
      */
     public Entry entry;
 
+    /**
+     * The time the entry was added, in milliseconds since the epoch. Used to remove old entries, see
+     * {@link StorageQuota#setMaxAge(long)}.
+     */
+    public long createdAt;
+
     /**
      * False by default, gets set to true after the entry has been stored on the server.
      */
     public boolean storedOnServer;
 
+    /**
+     * Non-zero while the entry is part of a chunk that has been sent to the server but not yet
+     * acknowledged (or is waiting to be retried). Identifies that chunk, and keeps other uploads
+     * from sending the entry again in the meantime.
+     */
+    public long leaseId;
+
 
 
     public LocalEntry(){}
@@ -40,6 +76,7 @@ public class LocalEntry {
     public LocalEntry(String uuid, Entry entry){
         this.uuid = uuid;
         this.entry = entry;
+        this.createdAt = System.currentTimeMillis();
     }
 
 }
@@ -11,21 +11,86 @@ import java.util.List;
 
 @Dao
 public interface LocalEntryDao {
-    @Query("SELECT * FROM remotedb_localentry WHERE storedOnServer=0 LIMIT :maxCount OFFSET :offset")
-    List<LocalEntry> getEntriesNotStoredOnServer(long offset, long maxCount);
+    /**
+     * Returns at most maxCount unstored entries of the stream with the supplied priority, that are
+     * not leased to a chunk being uploaded, with an id greater than afterId, in id order. Pass the
+     * id of the last entry in the previous chunk as afterId to walk through all unstored entries
+     * without rescanning (or skipping) rows that have been marked as stored in the meantime.
+     */
+    @Query("SELECT * FROM remotedb_localentry WHERE stream=:stream AND storedOnServer=0 AND priority=:priority AND leaseId=0 AND id>:afterId ORDER BY id LIMIT :maxCount")
+    List<LocalEntry> getEntriesNotStoredOnServer(String stream, int priority, long afterId, long maxCount);
 
-    @Query("SELECT COUNT(*) FROM remotedb_localentry")
-    long countAllEntries();
+    /**
+     * Like {@link #getEntriesNotStoredOnServer(String, int, long, long)}, but returns the stored
+     * bytes of each entry without decoding them.
+     */
+    @Query("SELECT id, uuid, entry FROM remotedb_localentry WHERE stream=:stream AND storedOnServer=0 AND priority=:priority AND leaseId=0 AND id>:afterId ORDER BY id LIMIT :maxCount")
+    List<RawLocalEntry> getRawEntriesNotStoredOnServer(String stream, int priority, long afterId, long maxCount);
 
-    @Query("SELECT COUNT(*) FROM remotedb_localentry")
-    LiveData<Long> countAllEntriesLive();
+    /**
+     * Returns the stored bytes of the unstored entries leased with the supplied lease id, highest
+     * priority first and then in id order, the same order they were first sent in.
+     */
+    @Query("SELECT id, uuid, entry FROM remotedb_localentry WHERE storedOnServer=0 AND leaseId=:leaseId ORDER BY priority DESC, id")
+    List<RawLocalEntry> getLeasedRawEntriesNotStoredOnServer(long leaseId);
 
+    /**
+     * Leases the unstored, unleased entries of the stream with the supplied priority and ids from
+     * firstId to lastId (inclusive). Use in the same transaction as the query that selected the
+     * entries.
+     */
+    @Query("UPDATE remotedb_localentry SET leaseId=:leaseId WHERE stream=:stream AND storedOnServer=0 AND priority=:priority AND leaseId=0 AND id BETWEEN :firstId AND :lastId")
+    int lease(String stream, int priority, long firstId, long lastId, long leaseId);
 
-    @Query("SELECT COUNT(*) FROM remotedb_localentry WHERE storedOnServer=0")
-    long countEntriesNotStoredOnServer();
+    @Query("UPDATE remotedb_localentry SET leaseId=0 WHERE leaseId=:leaseId")
+    void releaseLease(long leaseId);
 
-    @Query("SELECT COUNT(*) FROM remotedb_localentry WHERE storedOnServer=0")
-    LiveData<Long> countEntriesNotStoredOnServerLive();
+    /**
+     * Takes the entries with the supplied ids out of the lease, so that they aren't acknowledged
+     * with the rest of it. Note that each id is bound as a separate SQL variable, so the list must
+     * be kept below SQLite's variable limit (999 by default).
+     */
+    @Query("UPDATE remotedb_localentry SET leaseId=0 WHERE leaseId=:leaseId AND id IN (:ids)")
+    int releaseFromLease(long leaseId, List<Long> ids);
+
+    @Query("SELECT IFNULL(MAX(leaseId), 0) FROM remotedb_localentry")
+    long getMaxLeaseId();
+
+    /**
+     * Releases every lease except the quarantine (leaseId -1, see EntryStore.QUARANTINED_LEASE_ID),
+     * which outlives the process.
+     */
+    @Query("UPDATE remotedb_localentry SET leaseId=0 WHERE leaseId>0")
+    void releaseAllLeases();
+
+    @Query("UPDATE remotedb_localentry SET leaseId=-1 WHERE leaseId=:leaseId AND storedOnServer=0")
+    void quarantine(long leaseId);
+
+    @Query("UPDATE remotedb_localentry SET leaseId=0 WHERE stream=:stream AND leaseId=-1")
+    int releaseQuarantined(String stream);
+
+
+    /*
+    The counts are read from the counters table (see EntryCount), which is a single row lookup
+    instead of a scan over the stream's entries.
+     */
+
+    @Query("SELECT IFNULL((SELECT allCount FROM remotedb_entrycount WHERE stream=:stream), 0)")
+    long countAllEntries(String stream);
+
+    @Query("SELECT IFNULL((SELECT allCount FROM remotedb_entrycount WHERE stream=:stream), 0)")
+    LiveData<Long> countAllEntriesLive(String stream);
+
+
+    @Query("SELECT IFNULL((SELECT unstoredCount FROM remotedb_entrycount WHERE stream=:stream), 0)")
+    long countEntriesNotStoredOnServer(String stream);
+
+    @Query("SELECT IFNULL((SELECT unstoredCount FROM remotedb_entrycount WHERE stream=:stream), 0)")
+    LiveData<Long> countEntriesNotStoredOnServerLive(String stream);
+
+
+    @Query("SELECT IFNULL(SUM(allCount), 0) FROM remotedb_entrycount")
+    long countEntriesInAllStreams();
 
 
 
@@ -37,18 +102,81 @@ public interface LocalEntryDao {
     @Query("UPDATE remotedb_localentry SET storedOnServer=1 WHERE uuid=:uuid")
     void markAsStored(String uuid);
 
+    /**
+     * Note that each UUID is bound as a separate SQL variable, so the list must be kept below
+     * SQLite's variable limit (999 by default).
+     */
+    @Query("UPDATE remotedb_localentry SET storedOnServer=1 WHERE uuid IN (:uuids)")
+    void markAsStored(List<String> uuids);
+
+    @Query("UPDATE remotedb_localentry SET storedOnServer=1 WHERE leaseId=:leaseId AND storedOnServer=0 AND id<=:throughId")
+    int markLeasedAsStored(long leaseId, long throughId);
+
 
 
 
     @Delete
     void delete(LocalEntry entry);
 
-    @Query("DELETE FROM remotedb_localentry")
-    void deleteAll();
-
-    @Query("DELETE FROM remotedb_localentry WHERE storedOnServer=1")
-    void deleteStored();
+    @Query("DELETE FROM remotedb_localentry WHERE stream=:stream")
+    void deleteAll(String stream);
+
+    @Query("DELETE FROM remotedb_localentry WHERE stream=:stream AND storedOnServer=1")
+    void deleteStored(String stream);
+
+    /**
+     * Returns the id of the oldest entry added at or after the supplied time, or null if there is
+     * none. A single lookup in the createdAt index.
+     */
+    @Query("SELECT id FROM remotedb_localentry WHERE createdAt>=:sinceMillis ORDER BY createdAt, id LIMIT 1")
+    Long getFirstIdAddedSince(long sinceMillis);
+
+    /**
+     * Returns the createdAt time of the oldest entry of the priority that isn't stored on the server,
+     * or null if there is none. Uses the (stream, storedOnServer, priority, id) index, which is why
+     * each priority is queried separately.
+     */
+    @Query("SELECT createdAt FROM remotedb_localentry WHERE stream=:stream AND storedOnServer=0 AND priority=:priority ORDER BY id LIMIT 1")
+    Long getOldestUnstoredCreatedAt(String stream, int priority);
+
+    /**
+     * Deletes the entries older than beforeId that aren't part of a chunk in flight. Quarantined
+     * entries (leaseId -1) are deleted like unleased ones.
+     */
+    @Query("DELETE FROM remotedb_localentry WHERE id<:beforeId AND leaseId<=0")
+    int deleteUnleasedBefore(long beforeId);
+
+    /**
+     * Deletes at most maxCount of the oldest entries, in any stream, that have been stored on the
+     * server. Uses the (storedOnServer, id) index.
+     */
+    @Query("DELETE FROM remotedb_localentry WHERE id IN (SELECT id FROM remotedb_localentry WHERE storedOnServer=1 ORDER BY id LIMIT :maxCount)")
+    int evictOldestStored(int maxCount);
+
+    /**
+     * Deletes at most maxCount of the oldest unstored entries that aren't part of a chunk in
+     * flight, in any stream.
+     */
+    @Query("DELETE FROM remotedb_localentry WHERE id IN (SELECT id FROM remotedb_localentry WHERE storedOnServer=0 AND leaseId<=0 ORDER BY id LIMIT :maxCount)")
+    int evictOldestUnstored(int maxCount);
+
+    /**
+     * Deletes at most maxCount unstored entries that aren't part of a chunk in flight, in any
+     * stream, lowest priority first and oldest first within each priority.
+     */
+    @Query("DELETE FROM remotedb_localentry WHERE id IN (SELECT id FROM remotedb_localentry WHERE storedOnServer=0 AND leaseId<=0 ORDER BY priority, id LIMIT :maxCount)")
+    int evictLowestPriorityUnstored(int maxCount);
 
     @Query("DELETE FROM remotedb_localentry WHERE uuid=:uuid")
     void deleteWithUuid(String uuid);
+
+    /**
+     * Note that each UUID is bound as a separate SQL variable, so the list must be kept below
+     * SQLite's variable limit (999 by default).
+     */
+    @Query("DELETE FROM remotedb_localentry WHERE uuid IN (:uuids)")
+    void deleteWithUuids(List<String> uuids);
+
+    @Query("DELETE FROM remotedb_localentry WHERE leaseId=:leaseId AND storedOnServer=0 AND id<=:throughId")
+    int deleteLeased(long leaseId, long throughId);
 }
\ No newline at end of file
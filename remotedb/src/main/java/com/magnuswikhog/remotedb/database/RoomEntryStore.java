@@ -0,0 +1,182 @@
+package com.magnuswikhog.remotedb.database;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The {@link EntryStore} of a RemoteDb, backed by the Room database.
+ */
+public class RoomEntryStore implements EntryStore {
+
+    /**
+     * The number of UUID's (or ids) bound in each statement when acknowledging entries. Must be
+     * kept below SQLite's limit of 999 variables per statement.
+     */
+    private static final int ACK_BATCH_SIZE = 500;
+
+    private final LocalDatabase mDb;
+
+
+    public RoomEntryStore(LocalDatabase db) {
+        mDb = db;
+    }
+
+
+    @Override
+    public void insert(RawLocalEntry[] entries) {
+        mDb.insertRawEntries(entries);
+    }
+
+
+    @Override
+    public List<RawLocalEntry> leaseNextChunk(String stream, long[] lastSentIds, int[] priorityBudgets, int maxCount, long leaseId) {
+        List<RawLocalEntry> chunk = new ArrayList<>();
+        mDb.beginTransaction();
+        try {
+            for (int priority = lastSentIds.length - 1; priority >= 0 && chunk.size() < maxCount; priority--) {
+                int count = Math.min(maxCount - chunk.size(), priorityBudgets[priority]);
+                if( count <= 0 )
+                    continue;
+
+                List<RawLocalEntry> entries = mDb.getLocalEntryDao().getRawEntriesNotStoredOnServer(stream, priority, lastSentIds[priority], count);
+                if( entries.isEmpty() )
+                    continue;
+
+                long lastId = entries.get(entries.size() - 1).id;
+                mDb.getLocalEntryDao().lease(stream, priority, entries.get(0).id, lastId, leaseId);
+                lastSentIds[priority] = lastId;
+                chunk.addAll(entries);
+            }
+            mDb.setTransactionSuccessful();
+            return chunk;
+        }
+        finally {
+            mDb.endTransaction();
+        }
+    }
+
+
+    @Override
+    public List<RawLocalEntry> getLeasedEntries(long leaseId) {
+        return mDb.getLocalEntryDao().getLeasedRawEntriesNotStoredOnServer(leaseId);
+    }
+
+
+    @Override
+    public void acknowledge(List<String> uuids, boolean delete, long leaseId) {
+        /*
+        Each UUID in an IN (...) list is a separate SQL variable, and there is a limit
+        to how many variables can be in a single SQLite statement (999 by default). So
+        we acknowledge in batches below that limit, all within a single transaction.
+         */
+        mDb.beginTransaction();
+        try {
+            for (int offset = 0; offset < uuids.size(); offset += ACK_BATCH_SIZE) {
+                List<String> batch = uuids.subList(offset, Math.min(uuids.size(), offset + ACK_BATCH_SIZE));
+                if( delete )
+                    mDb.getLocalEntryDao().deleteWithUuids(batch);
+                else
+                    mDb.getLocalEntryDao().markAsStored(batch);
+            }
+            if( leaseId != 0 )
+                mDb.getLocalEntryDao().releaseLease(leaseId);
+            mDb.setTransactionSuccessful(); // Commmit
+        }
+        finally {
+            mDb.endTransaction();
+        }
+    }
+
+
+    @Override
+    public int acknowledgeThrough(long leaseId, long storedThroughId, long[] notStoredIds, boolean delete) {
+        mDb.beginTransaction();
+        try {
+            // The exceptions are taken out of the lease first, so the rest can be acknowledged by range
+            releaseFromLease(leaseId, notStoredIds);
+
+            int count = delete
+                    ? mDb.getLocalEntryDao().deleteLeased(leaseId, storedThroughId)
+                    : mDb.getLocalEntryDao().markLeasedAsStored(leaseId, storedThroughId);
+            mDb.getLocalEntryDao().releaseLease(leaseId);
+            mDb.setTransactionSuccessful();
+            return count;
+        }
+        finally {
+            mDb.endTransaction();
+        }
+    }
+
+
+    @Override
+    public void releaseLease(long leaseId) {
+        mDb.getLocalEntryDao().releaseLease(leaseId);
+    }
+
+
+    @Override
+    public void releaseFromLease(long leaseId, long[] ids) {
+        mDb.beginTransaction();
+        try {
+            for (int offset = 0; offset < ids.length; offset += ACK_BATCH_SIZE) {
+                List<Long> batch = new ArrayList<>();
+                for (int i = offset; i < Math.min(ids.length, offset + ACK_BATCH_SIZE); i++)
+                    batch.add(ids[i]);
+                mDb.getLocalEntryDao().releaseFromLease(leaseId, batch);
+            }
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+        }
+    }
+
+
+    @Override
+    public long getMaxLeaseId() {
+        return mDb.getLocalEntryDao().getMaxLeaseId();
+    }
+
+
+    @Override
+    public void releaseAllLeases() {
+        mDb.getLocalEntryDao().releaseAllLeases();
+    }
+
+
+    @Override
+    public void quarantine(long leaseId) {
+        mDb.getLocalEntryDao().quarantine(leaseId);
+    }
+
+
+    @Override
+    public int releaseQuarantined(String stream) {
+        return mDb.getLocalEntryDao().releaseQuarantined(stream);
+    }
+
+
+    @Override
+    public void deleteStored(String stream) {
+        mDb.getLocalEntryDao().deleteStored(stream);
+    }
+
+
+    @Override
+    public void deleteAll(String stream) {
+        mDb.getLocalEntryDao().deleteAll(stream);
+    }
+
+
+    @Override
+    public long countEntries(String stream) {
+        return mDb.getLocalEntryDao().countAllEntries(stream);
+    }
+
+
+    @Override
+    public long countUnstoredEntries(String stream) {
+        return mDb.getLocalEntryDao().countEntriesNotStoredOnServer(stream);
+    }
+}
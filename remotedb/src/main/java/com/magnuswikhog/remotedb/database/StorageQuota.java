@@ -0,0 +1,302 @@
+package com.magnuswikhog.remotedb.database;
+
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.database.Cursor;
+import android.support.annotation.WorkerThread;
+
+import com.magnuswikhog.remotedb.engine.EngineLogger;
+
+
+/**
+ * Keeps the local database below a size and a number of entries, and removes entries that are
+ * older than a max age. Nothing is limited until one of the setters has been called.
+ * <p>
+ * Checking the limits is cheap: the rows and bytes written by each batch are added to an estimate of
+ * the database's contents, and the database is only queried when the estimate goes over a limit, or
+ * when the max age check is due. Entries removed by other means are never subtracted from the
+ * estimate, so it errs on the side of checking too early, and each check replaces it with the real
+ * numbers.
+ * <p>
+ * When over a limit, entries are evicted in batches until the database is below 90% of the limit,
+ * so that the next few batches don't trigger another eviction. Entries that have already been stored
+ * on the server are evicted first, oldest first, and then unstored entries in the order given by
+ * the {@link EvictionPolicy}. Entries leased to a chunk that is being uploaded are left alone.
+ * <p>
+ * New databases are created with incremental auto-vacuum, and the pages freed by evictions are
+ * returned to the file system after each eviction. A database created by an older version has to be
+ * rebuilt once to get there, with {@link #enableIncrementalAutoVacuum()}. Until then, freed pages are
+ * reused by new entries, but the file doesn't shrink.
+ */
+public class StorageQuota {
+    private static final String TAG = "StorageQuota";
+
+    public enum EvictionPolicy {
+        /** Evict the oldest unstored entries first, regardless of their priority. */
+        OLDEST_FIRST,
+        /** Evict the unstored entries with the lowest priority first, oldest first within each priority. */
+        LOWEST_PRIORITY_FIRST
+    }
+
+    private static final int EVICTION_BATCH_SIZE = 500;
+    /** Approximate size of a row's header and index entries, besides the uuid and the entry. */
+    private static final int ROW_OVERHEAD_BYTES = 64;
+    private static final long MAX_AGE_CHECK_INTERVAL_MS = 60 * 1000;
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final LocalDatabase mDb;
+    private volatile EngineLogger mLogger = EngineLogger.STDERR;
+
+    private long mMaxBytes;
+    private long mMaxEntries;
+    private long mMaxAgeMillis;
+    private EvictionPolicy mEvictionPolicy = EvictionPolicy.OLDEST_FIRST;
+
+    /** Negative until the database has been checked once. */
+    private long mEstimatedEntries = -1;
+    private long mEstimatedBytes;
+    private long mNextMaxAgeCheckMillis;
+
+    private long mEvictedStoredCount;
+    private long mEvictedUnstoredCount;
+    private long mExpiredCount;
+
+
+    StorageQuota(LocalDatabase db) {
+        mDb = db;
+    }
+
+
+    public void setLogger(EngineLogger logger) {
+        mLogger = logger;
+    }
+
+
+    /**
+     * @param maxBytes      The max size of the database file, or 0 for no limit.
+     * @param maxEntries    The max number of entries in the database, or 0 for no limit.
+     */
+    public synchronized void setLimits(long maxBytes, long maxEntries) {
+        mMaxBytes = Math.max(0, maxBytes);
+        mMaxEntries = Math.max(0, maxEntries);
+        // Check against the new limits with the next batch
+        mEstimatedEntries = -1;
+    }
+
+
+    /**
+     * @param maxAgeMillis  Entries are removed this long after they were added, whether they have
+     *                      been stored on the server or not. 0 keeps entries forever.
+     */
+    public synchronized void setMaxAge(long maxAgeMillis) {
+        mMaxAgeMillis = Math.max(0, maxAgeMillis);
+        mNextMaxAgeCheckMillis = 0;
+    }
+
+
+    public synchronized void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        mEvictionPolicy = evictionPolicy;
+    }
+
+
+    public synchronized EvictionPolicy getEvictionPolicy() {
+        return mEvictionPolicy;
+    }
+
+
+    /**
+     * @return The number of entries that were evicted after they had been stored on the server.
+     */
+    public synchronized long getEvictedStoredCount() {
+        return mEvictedStoredCount;
+    }
+
+
+    /**
+     * @return The number of entries that were evicted before they had been stored on the server, and
+     * so were never sent.
+     */
+    public synchronized long getEvictedUnstoredCount() {
+        return mEvictedUnstoredCount;
+    }
+
+
+    /**
+     * @return The number of entries that were removed because they were older than the max age.
+     */
+    public synchronized long getExpiredCount() {
+        return mExpiredCount;
+    }
+
+
+    private boolean isEnabled() {
+        return mMaxBytes > 0 || mMaxEntries > 0 || mMaxAgeMillis > 0;
+    }
+
+
+    /**
+     * Called after a batch of entries has been committed. Checks the limits if the batch may have
+     * brought the database over one of them. A failed check is logged rather than thrown, since the
+     * caller would take it for a failure of the insert, and is tried again after the next batch.
+     */
+    @WorkerThread
+    synchronized void onInserted(RawLocalEntry[] entries) {
+        if( !isEnabled() )
+            return;
+
+        if( mEstimatedEntries >= 0 ) {
+            mEstimatedEntries += entries.length;
+            for (RawLocalEntry entry : entries)
+                mEstimatedBytes += ROW_OVERHEAD_BYTES + entry.entry.length + (entry.uuid != null ? entry.uuid.length() : 0);
+        }
+
+        boolean overLimit = mEstimatedEntries < 0
+                || (mMaxEntries > 0 && mEstimatedEntries > mMaxEntries)
+                || (mMaxBytes > 0 && mEstimatedBytes > mMaxBytes);
+        boolean maxAgeCheckDue = mMaxAgeMillis > 0 && System.currentTimeMillis() >= mNextMaxAgeCheckMillis;
+        if( overLimit || maxAgeCheckDue ) {
+            try {
+                enforce();
+            }
+            catch (RuntimeException e) {
+                mLogger.error(TAG, "Failed to enforce the storage limits", e);
+            }
+        }
+    }
+
+
+    /**
+     * Checks all limits right away, and evicts entries as needed. Must be called on the database
+     * writer thread, outside of any transaction.
+     */
+    @WorkerThread
+    public synchronized void enforce() {
+        if( !isEnabled() )
+            return;
+
+        SupportSQLiteDatabase db = mDb.getOpenHelper().getWritableDatabase();
+
+        long now = System.currentTimeMillis();
+        boolean evicted = false;
+        if( mMaxAgeMillis > 0 ) {
+            int expired = removeExpired(now - mMaxAgeMillis);
+            mExpiredCount += expired;
+            evicted = expired > 0;
+            mNextMaxAgeCheckMillis = now + MAX_AGE_CHECK_INTERVAL_MS;
+        }
+
+        long entries = mDb.getLocalEntryDao().countEntriesInAllStreams();
+        long bytes = getUsedBytes(db);
+        if( isOver(entries, bytes, 1.0) ) {
+            while( isOver(entries, bytes, 0.9) ) {
+                int batchSize = EVICTION_BATCH_SIZE;
+                if( mMaxBytes <= 0 || bytes <= mMaxBytes * 0.9 )
+                    batchSize = (int) Math.min(batchSize, entries - (long) (mMaxEntries * 0.9));
+
+                int count = evictBatch(Math.max(1, batchSize));
+                if( count == 0 )
+                    break; // Only leased entries left
+                evicted = true;
+                entries -= count;
+                bytes = getUsedBytes(db);
+            }
+        }
+
+        if( evicted )
+            incrementalVacuum(db);
+
+        mEstimatedEntries = entries;
+        mEstimatedBytes = bytes;
+
+        if( mLogger.isDebugEnabled() )
+            mLogger.debug(TAG, "enforce()    entries=" + entries + "   bytes=" + bytes + "   evictedStored=" + mEvictedStoredCount + "   evictedUnstored=" + mEvictedUnstoredCount + "   expired=" + mExpiredCount);
+    }
+
+
+    private boolean isOver(long entries, long bytes, double fraction) {
+        return (mMaxEntries > 0 && entries > mMaxEntries * fraction)
+                || (mMaxBytes > 0 && bytes > mMaxBytes * fraction);
+    }
+
+
+    /**
+     * Removes the unleased entries that were added before the cutoff. Ids grow with the time the
+     * entries were added, so the expired entries are the ones before the first entry that hasn't
+     * expired, which is found without scanning past it.
+     */
+    private int removeExpired(long cutoffMillis) {
+        Long firstUnexpiredId = mDb.getLocalEntryDao().getFirstIdAddedSince(cutoffMillis);
+        return mDb.getLocalEntryDao().deleteUnleasedBefore(firstUnexpiredId != null ? firstUnexpiredId : Long.MAX_VALUE);
+    }
+
+
+    private int evictBatch(int count) {
+        LocalEntryDao dao = mDb.getLocalEntryDao();
+        int stored = dao.evictOldestStored(count);
+        mEvictedStoredCount += stored;
+        if( stored >= count )
+            return stored;
+
+        int unstored = mEvictionPolicy == EvictionPolicy.LOWEST_PRIORITY_FIRST
+                ? dao.evictLowestPriorityUnstored(count - stored)
+                : dao.evictOldestUnstored(count - stored);
+        mEvictedUnstoredCount += unstored;
+        return stored + unstored;
+    }
+
+
+    /**
+     * @return The size of the pages in use, which is the size of the database file when there are
+     * no free pages left to vacuum.
+     */
+    private static long getUsedBytes(SupportSQLiteDatabase db) {
+        return (queryLong(db, "PRAGMA page_count") - queryLong(db, "PRAGMA freelist_count")) * queryLong(db, "PRAGMA page_size");
+    }
+
+
+    /**
+     * Switches a database that was created without incremental auto-vacuum over to it. That can
+     * only be done by rebuilding the whole file, which blocks all other writes while it runs, so it
+     * should run as a task of its own rather than as part of writing entries. Does nothing if the
+     * database already uses incremental auto-vacuum. Must be called on the database writer thread,
+     * outside of any transaction.
+     * @return True if the database was rebuilt.
+     */
+    @WorkerThread
+    public boolean enableIncrementalAutoVacuum() {
+        SupportSQLiteDatabase db = mDb.getOpenHelper().getWritableDatabase();
+        if( queryLong(db, "PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL )
+            return false;
+
+        long start = System.nanoTime();
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.execSQL("VACUUM");
+        if( mLogger.isDebugEnabled() )
+            mLogger.debug(TAG, "enableIncrementalAutoVacuum()    ms=" + (System.nanoTime() - start) / 1000000);
+        return true;
+    }
+
+
+    private static void incrementalVacuum(SupportSQLiteDatabase db) {
+        // The pragma frees one page per result row, so all rows must be stepped through
+        Cursor cursor = db.query("PRAGMA incremental_vacuum");
+        try {
+            while( cursor.moveToNext() ) {
+                // Nothing to read
+            }
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+
+    private static long queryLong(SupportSQLiteDatabase db, String sql) {
+        Cursor cursor = db.query(sql);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+        finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.magnuswikhog.remotedb.upload;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import org.json.JSONException;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.Map;
+
+
+/**
+ * A Volley request which posts a pre-serialized body (see {@link ChunkBodyWriter}) and parses the
+ * response into a {@link ChunkResponse}. Unlike JsonObjectRequest, the body is never held as a
+ * JSONObject or a String, only as the bytes that are sent, and the response is parsed on Volley's
+ * network thread, so only the parsed acknowledgement is delivered on the main thread.
+ */
+public class EntryChunkRequest extends Request<ChunkResponse> {
+    private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+    private static final int TIMEOUT_MS = 10000;
+
+    private final byte[] mBody;
+    private final ContentEncoding mEncoding;
+    private final Response.Listener<ChunkResponse> mListener;
+
+
+    /**
+     * @param body      The request body, already compressed with the supplied encoding.
+     * @param encoding  The encoding of the body, sent in the Content-Encoding header.
+     */
+    public EntryChunkRequest(String url, byte[] body, ContentEncoding encoding, Response.Listener<ChunkResponse> listener, Response.ErrorListener errorListener) {
+        super(Method.POST, url, errorListener);
+        mBody = body;
+        mEncoding = encoding;
+        mListener = listener;
+        setShouldCache(false);
+        // Failed chunks are retried by RemoteDb's RetryScheduler, don't let Volley retry them as well
+        setRetryPolicy(new DefaultRetryPolicy(TIMEOUT_MS, 0, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
+    }
+
+
+    @Override
+    public Map<String, String> getHeaders() {
+        if( mEncoding.getHeaderValue() == null )
+            return Collections.emptyMap();
+        return Collections.singletonMap("Content-Encoding", mEncoding.getHeaderValue());
+    }
+
+
+    @Override
+    public String getBodyContentType() {
+        return CONTENT_TYPE;
+    }
+
+
+    @Override
+    public byte[] getBody() {
+        return mBody;
+    }
+
+
+    @Override
+    protected Response<ChunkResponse> parseNetworkResponse(NetworkResponse response) {
+        try {
+            String json = new String(response.data, HttpHeaderParser.parseCharset(response.headers, "utf-8"));
+            return Response.success(ChunkResponse.parse(json), HttpHeaderParser.parseCacheHeaders(response));
+        } catch (UnsupportedEncodingException | JSONException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+
+
+    @Override
+    protected void deliverResponse(ChunkResponse response) {
+        mListener.onResponse(response);
+    }
+}
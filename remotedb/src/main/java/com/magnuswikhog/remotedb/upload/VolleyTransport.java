@@ -0,0 +1,57 @@
+package com.magnuswikhog.remotedb.upload;
+
+import android.content.Context;
+
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.Volley;
+
+
+/**
+ * Sends upload requests with Volley, see {@link EntryChunkRequest}.
+ */
+public class VolleyTransport implements UploadTransport {
+    private static VolleyTransport sDefault;
+
+    private final RequestQueue mRequestQueue;
+
+
+    public VolleyTransport(RequestQueue requestQueue) {
+        mRequestQueue = requestQueue;
+    }
+
+
+    /**
+     * @return A transport with a request queue that is shared by everything in the process that
+     *         uses the default transport.
+     */
+    public static synchronized VolleyTransport getDefault(Context context) {
+        if( sDefault == null )
+            sDefault = new VolleyTransport(Volley.newRequestQueue(context.getApplicationContext()));
+        return sDefault;
+    }
+
+
+    @Override
+    public void post(String url, byte[] body, ContentEncoding encoding, final Callback callback) {
+        mRequestQueue.add(new EntryChunkRequest(url, body, encoding, new Response.Listener<ChunkResponse>() {
+            @Override
+            public void onResponse(ChunkResponse response) {
+                callback.onResponse(response);
+            }
+        }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                int statusCode = 0;
+                String retryAfterHeader = null;
+                if( error != null && error.networkResponse != null ) {
+                    statusCode = error.networkResponse.statusCode;
+                    if( error.networkResponse.headers != null )
+                        retryAfterHeader = error.networkResponse.headers.get("Retry-After");
+                }
+                callback.onError(statusCode, retryAfterHeader, error);
+            }
+        }));
+    }
+}